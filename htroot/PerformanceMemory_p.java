@@ -34,12 +34,16 @@ import net.yacy.cora.protocol.Domains;
 import net.yacy.cora.protocol.RequestHeader;
 import net.yacy.kelondro.index.Cache;
 import net.yacy.kelondro.index.RAMIndex;
+import net.yacy.kelondro.index.ScalableBloomFilter;
 import net.yacy.kelondro.table.Table;
 import net.yacy.kelondro.util.FileUtils;
 import net.yacy.kelondro.util.Formatter;
 import net.yacy.kelondro.util.MemoryControl;
 import net.yacy.search.Switchboard;
+import net.yacy.search.index.MetadataRepository;
+import net.yacy.search.index.Segments;
 import net.yacy.search.query.SearchEventCache;
+import net.yacy.search.snippet.TextSnippet;
 import de.anomic.server.serverObjects;
 import de.anomic.server.serverSwitch;
 
@@ -215,6 +219,31 @@ public class PerformanceMemory_p {
         prop.putNum("searchevent.miss", SearchEventCache.cacheMiss);
         prop.putNum("searchevent.insert", SearchEventCache.cacheInsert);
         prop.putNum("searchevent.delete", SearchEventCache.cacheDelete);
+        prop.putNum("searchevent.release", SearchEventCache.cacheRelease);
+        prop.putNum("searchevent.mem", SearchEventCache.bytes() / (1024 * 1024d));
+        prop.putNum("snippetcache.size", TextSnippet.snippetsCache.size());
+        prop.putNum("snippetcache.mem", TextSnippet.snippetsCache.bytes() / (1024 * 1024d));
+        prop.putNum("snippetcache.hit", TextSnippet.snippetsCache.hits());
+        prop.putNum("snippetcache.miss", TextSnippet.snippetsCache.misses());
+        prop.putNum("snippetcache.insert", TextSnippet.snippetsCache.inserts());
+        prop.putNum("snippetcache.delete", TextSnippet.snippetsCache.deletes());
+        prop.putNum("metadatacache.size", MetadataRepository.metadataCache.size());
+        prop.putNum("metadatacache.mem", MetadataRepository.metadataCache.bytes() / (1024 * 1024d));
+        prop.putNum("metadatacache.hit", MetadataRepository.metadataCache.hits());
+        prop.putNum("metadatacache.negativehit", MetadataRepository.metadataCache.negativeHits());
+        prop.putNum("metadatacache.miss", MetadataRepository.metadataCache.misses());
+        prop.putNum("metadatacache.insert", MetadataRepository.metadataCache.inserts());
+        prop.putNum("metadatacache.delete", MetadataRepository.metadataCache.deletes());
+        final ScalableBloomFilter metadataFilter = ((Switchboard) env).indexSegments.urlMetadata(Segments.Process.LOCALCRAWLING).keyFilter();
+        prop.put("metadatafilter", metadataFilter == null ? 0 : 1);
+        if (metadataFilter != null) {
+            prop.putNum("metadatafilter_size", metadataFilter.size());
+            prop.putNum("metadatafilter_mem", metadataFilter.mem() / (1024 * 1024d));
+            prop.putNum("metadatafilter_filters", metadataFilter.filters());
+            prop.putNum("metadatafilter_positive", metadataFilter.positives());
+            prop.putNum("metadatafilter_negative", metadataFilter.negatives());
+            prop.putNum("metadatafilter_fpr", metadataFilter.falsePositiveRate() * 100.0d);
+        }
         // return rewrite values for templates
         return prop;
     }
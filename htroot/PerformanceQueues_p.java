@@ -31,6 +31,7 @@ import java.util.Map;
 
 import net.yacy.cora.protocol.HeaderFramework;
 import net.yacy.cora.protocol.RequestHeader;
+import net.yacy.kelondro.rwi.IODispatcher;
 import net.yacy.kelondro.util.FileUtils;
 import net.yacy.kelondro.util.Formatter;
 import net.yacy.kelondro.util.MemoryControl;
@@ -41,6 +42,7 @@ import net.yacy.search.Switchboard;
 import net.yacy.search.SwitchboardConstants;
 import net.yacy.search.index.Segment;
 import net.yacy.search.index.Segments;
+import de.anomic.crawler.Latency;
 import de.anomic.server.serverCore;
 import de.anomic.server.serverObjects;
 import de.anomic.server.serverSwitch;
@@ -284,6 +286,13 @@ public class PerformanceQueues_p {
             // storing the new values into configfile
             sb.setConfig("httpdMaxBusySessions",maxBusy);
 
+            /*
+             * configuring the index merge pool
+             */
+            maxBusy = post.getInt("Index Merge Pool_maxActive", 2);
+            IODispatcher.setMaxConcurrentMerges(maxBusy);
+            sb.setConfig("index.merge.concurrency", IODispatcher.getMaxConcurrentMerges());
+
         }        
         
         if ((post != null) && (post.containsKey("PrioritySubmit"))) {
@@ -327,14 +336,42 @@ public class PerformanceQueues_p {
         // table thread pool settings
         prop.put("pool_0_name","Crawler Pool");
         prop.put("pool_0_maxActive", sb.getConfigLong("crawler.MaxActiveThreads", 0));
-        prop.put("pool_0_numActive",sb.crawlQueues.workerSize());
+        prop.put("pool_0_numActive",sb.crawlQueues.loaderActiveCount());
+        prop.put("pool_0_numQueued",sb.crawlQueues.loaderQueueSize());
+        prop.putNum("loadingHosts", Latency.loadingHosts());
+        prop.putNum("maxLoadsPerHost", sb.getConfigLong(SwitchboardConstants.CRAWLER_LOADS_PER_HOST_MAX, 2));
         
         final WorkflowThread httpd = sb.getThread("10_httpd");
         prop.put("pool_1_name", "httpd Session Pool");
         prop.put("pool_1_maxActive", ((serverCore)httpd).getMaxSessionCount());
         prop.put("pool_1_numActive", ((serverCore)httpd).getJobCount());
+        prop.put("pool_1_numQueued", "-");
         
-        prop.put("pool", "2");
+        prop.put("pool_2_name", "Index Merge Pool");
+        prop.put("pool_2_maxActive", IODispatcher.getMaxConcurrentMerges());
+        prop.put("pool_2_numActive", IODispatcher.getActiveMerges());
+        prop.put("pool_2_numQueued", "-");
+
+        prop.put("pool", "3");
+
+        // index merge statistics
+        prop.putNum("mergeJobs", IODispatcher.getMergeJobs());
+        prop.putNum("mergeFiles", IODispatcher.getMergeFiles());
+        prop.putNum("mergeBytesRead", IODispatcher.getMergeBytesRead() / 1024 / 1024);
+        prop.putNum("mergeBytesWritten", IODispatcher.getMergeBytesWritten() / 1024 / 1024);
+        prop.putNum("mergeTime", IODispatcher.getMergeTime() / 1000);
+        prop.putNum("mergeThroughput", IODispatcher.getMergeThroughput() / 1024);
+
+        // shape of the RWI index files according to the compaction strategy
+        prop.put("compactionStrategy", indexSegment.termIndex().getCompactionStrategy().name());
+        prop.put("writeAmplification", String.format("%.2f", indexSegment.termIndex().writeAmplification()));
+        final long[][] levels = indexSegment.termIndex().compactionLevels();
+        for (int l = 0; l < levels.length; l++) {
+            prop.put("levels_" + l + "_level", l);
+            prop.putNum("levels_" + l + "_files", levels[l][0]);
+            prop.putNum("levels_" + l + "_size", levels[l][1] / 1024 / 1024);
+        }
+        prop.put("levels", levels.length);
         
         final long curr_prio = sb.getConfigLong("javastart_priority",0);
         prop.put("priority_normal",(curr_prio == 0) ? "1" : "0");
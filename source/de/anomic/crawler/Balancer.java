@@ -29,15 +29,13 @@ package de.anomic.crawler;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.UTF8;
@@ -51,17 +49,28 @@ import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
 import net.yacy.kelondro.order.CloneableIterator;
 import net.yacy.kelondro.table.Table;
-import net.yacy.kelondro.util.ByteBuffer;
 import net.yacy.kelondro.util.MemoryControl;
 import de.anomic.crawler.retrieval.Request;
 import de.anomic.http.client.Cache;
 
+/**
+ * the crawl frontier of one crawl stack. The requests are stored in a table; in the RAM the url hashes
+ * are sorted into one queue for each host. The host is identified by the host hash part of the url hash,
+ * therefore the queues can be filled without reading the requests. The queues hold a bounded window of the
+ * url hashes which is refilled from the table in small batches when it runs low. All host queues that have entries are
+ * kept in a heap that is ordered by the time when the host may be accessed again, so the next host is
+ * found in O(log n) without scanning the queues. The heap and the queues are protected by a short lock;
+ * the robots.txt lookup and a forced crawl delay are done outside of any lock, so many threads can pop
+ * concurrently.
+ */
 public class Balancer {
 
     private static final String indexSuffix           = "9.db";
     private static final int    EcoFSBufferSize       = 1000;
     private static final int    objectIndexBufferSize = 1000;
-    private static final String localhost             = "localhost";
+    private static final int    maxPutBack            = 10; // the number of urls that pop puts back to find a host which needs no delay
+    private static final int    maxScheduled          = 100000; // the maximum number of url hashes in the host queues
+    private static final int    fillBatchSize         = 1000; // the number of url hashes that are added to the host queues in one critical section
 
     // class variables filled with external values
     private final File                 cacheStacksPath;
@@ -71,13 +80,14 @@ public class Balancer {
     private       BufferedObjectIndex  urlFileIndex;
 
     // class variables computed during operation
-    private final ConcurrentMap<String, HandleSet> domainStacks; // a map from host name to lists with url hashs
-    private final ConcurrentLinkedQueue<byte[]>    top; // a list of url-hashes that shall be taken next
-    private final SortedMap<Long, byte[]>          delayed;
-    private final HandleSet                        ddc;
-    private final HandleSet                        double_push_check; // for debugging
-    private long                                   lastDomainStackFill;
-    private int                                    domStackInitSize;
+    private final Map<String, HostQueue>   hostQueues; // a map from host hash to the queue of url hashes of that host
+    private final PriorityQueue<HostQueue> schedule;   // all host queues that have entries, ordered by the next access time; also the lock for the host queues
+    private       int                      queuedHashes; // the number of url hashes in the host queues; guarded by the schedule lock
+    private       byte[]                   fillPosition; // the last url hash that the fill took from the file index, or null to start at the beginning
+    private       boolean                  complete;   // true if all url hashes of the file index are in the host queues; guarded by the schedule lock
+    private final Object                   fillLock;   // only one thread fills the host queues at a time
+    private final HandleSet                ddc;
+    private final HandleSet                double_push_check; // for debugging
 
     public Balancer(
             final File cachePath,
@@ -88,13 +98,15 @@ public class Balancer {
             final boolean useTailCache,
             final boolean exceed134217727) {
         this.cacheStacksPath = cachePath;
-        this.domainStacks = new ConcurrentHashMap<String, HandleSet>();
-        this.top = new ConcurrentLinkedQueue<byte[]>();
-        this.delayed = new TreeMap<Long, byte[]>();
+        this.hostQueues = new HashMap<String, HostQueue>();
+        this.schedule = new PriorityQueue<HostQueue>(64, new ReadyComparator());
+        this.queuedHashes = 0;
+        this.fillPosition = null;
+        this.complete = false;
+        this.fillLock = new Object();
         this.minimumLocalDelta = minimumLocalDelta;
         this.minimumGlobalDelta = minimumGlobalDelta;
         this.myAgentIDs = myAgentIDs;
-        this.domStackInitSize = Integer.MAX_VALUE;
         this.ddc = new HandleSet(URIMetadataRow.rowdef.primaryKeyLength, URIMetadataRow.rowdef.objectOrder, 0);
         this.double_push_check = new HandleSet(URIMetadataRow.rowdef.primaryKeyLength, URIMetadataRow.rowdef.objectOrder, 0);
 
@@ -111,7 +123,7 @@ public class Balancer {
                 Log.logException(e1);
             }
         }
-        this.lastDomainStackFill = 0;
+        fillHostQueues();
         Log.logInfo("Balancer", "opened balancer file with " + this.urlFileIndex.size() + " entries from " + f.toString());
     }
 
@@ -142,13 +154,17 @@ public class Balancer {
         } catch (final IOException e) {
             Log.logException(e);
         }
-        this.domainStacks.clear();
-        this.top.clear();
-        synchronized (this.delayed) {
-        	this.delayed.clear();
+        synchronized (this.schedule) {
+            this.hostQueues.clear();
+            this.schedule.clear();
+            this.queuedHashes = 0;
+            this.fillPosition = null;
+            this.complete = true;
+        }
+        synchronized (this) {
+            this.double_push_check.clear();
+            this.ddc.clear();
         }
-        this.double_push_check.clear();
-        this.ddc.clear();
     }
 
     public Request get(final byte[] urlhash) throws IOException {
@@ -206,31 +222,15 @@ public class Balancer {
         if (removedCounter == 0) return 0;
         assert this.urlFileIndex.size() + removedCounter == s : "urlFileIndex.size() = " + this.urlFileIndex.size() + ", s = " + s;
 
-        // iterate through the top list
-        final Iterator<byte[]> j = this.top.iterator();
-        byte[] urlhash;
-        while (j.hasNext()) {
-            urlhash = j.next();
-            if (urlHashes.has(urlhash)) j.remove();
-        }
-
-        // remove from delayed
-        synchronized (this.delayed) {
-            final Iterator<Map.Entry<Long, byte[]>> k = this.delayed.entrySet().iterator();
-            while (k.hasNext()) {
-                if (urlHashes.has(k.next().getValue())) k.remove();
+        // remove from the host queues; empty queues are removed from the schedule when they are reached
+        synchronized (this.schedule) {
+            HostQueue queue;
+            for (final byte[] urlhash: urlHashes) {
+                queue = this.hostQueues.get(hosthash(urlhash));
+                if (queue != null && queue.urlhashes.remove(urlhash)) this.queuedHashes--;
             }
         }
 
-        // iterate through the domain stacks
-        final Iterator<Map.Entry<String, HandleSet>> q = this.domainStacks.entrySet().iterator();
-        HandleSet stack;
-        while (q.hasNext()) {
-            stack = q.next().getValue();
-            for (final byte[] handle: urlHashes) stack.remove(handle);
-            if (stack.isEmpty()) q.remove();
-        }
-
         return removedCounter;
     }
 
@@ -240,8 +240,10 @@ public class Balancer {
 
     public boolean notEmpty() {
         // alternative method to the property size() > 0
-        // this is better because it may avoid synchronized access to domain stack summarization
-        return domainStacksNotEmpty();
+        // this is better because it avoids the access to the file index
+        synchronized (this.schedule) {
+            return !this.schedule.isEmpty();
+        }
     }
 
     public int size() {
@@ -252,14 +254,14 @@ public class Balancer {
         return this.urlFileIndex.isEmpty();
     }
 
-    private boolean domainStacksNotEmpty() {
-        if (this.domainStacks == null) return false;
-        synchronized (this.domainStacks) {
-            for (final HandleSet l: this.domainStacks.values()) {
-                if (!l.isEmpty()) return true;
-            }
+    /**
+     * the number of hosts that have urls in this stack
+     * @return the number of host queues
+     */
+    public int hosts() {
+        synchronized (this.schedule) {
+            return this.hostQueues.size();
         }
-        return false;
     }
 
     /**
@@ -287,52 +289,141 @@ public class Balancer {
 	        assert s < this.urlFileIndex.size() : "hash = " + ASCII.String(hash) + ", s = " + s + ", size = " + this.urlFileIndex.size();
 	        assert this.urlFileIndex.has(hash) : "hash = " + ASCII.String(hash);
 
-	        // add the hash to a queue
-	        pushHashToDomainStacks(entry.url().getHost(), entry.url().hash());
+	        // add the hash to the queue of the host; if the queues are full, a later fill takes it from the file index
+	        synchronized (this.schedule) {
+	            if (this.queuedHashes < maxScheduled) pushHashToHostQueues(hash); else this.complete = false;
+	        }
 	        return null;
         }
     }
 
-    private void pushHashToDomainStacks(String host, final byte[] urlhash) throws RowSpaceExceededException {
-        // extend domain stack
-        if (host == null) host = localhost;
-        HandleSet domainList = this.domainStacks.get(host);
-        if (domainList == null) {
-            // create new list
-            domainList = new HandleSet(12, Base64Order.enhancedCoder, 1);
-            domainList.put(urlhash);
-            this.domainStacks.put(host, domainList);
-        } else {
-            // extend existent domain list
-        	domainList.put(urlhash);
+    private static String hosthash(final byte[] urlhash) {
+        return ASCII.String(urlhash, 6, 6);
+    }
+
+    /**
+     * add a url hash to the queue of its host; the caller must hold the schedule lock
+     * @param urlhash
+     * @return the queue of the host
+     * @throws RowSpaceExceededException
+     */
+    private HostQueue pushHashToHostQueues(final byte[] urlhash) throws RowSpaceExceededException {
+        final String hosthash = hosthash(urlhash);
+        HostQueue queue = this.hostQueues.get(hosthash);
+        if (queue == null) {
+            queue = new HostQueue(hosthash, this.minimumGlobalDelta);
+            this.hostQueues.put(hosthash, queue);
         }
+        if (queue.urlhashes.put(urlhash)) this.queuedHashes++;
+        if (!queue.scheduled) {
+            this.schedule.add(queue);
+            queue.scheduled = true;
+        }
+        return queue;
     }
 
-    private void removeHashFromDomainStacks(String host, final byte[] urlhash) {
-        // reduce domain stack
-        if (host == null) host = localhost;
-        final HandleSet domainList = this.domainStacks.get(host);
-        if (domainList == null) {
-            this.domainStacks.remove(host);
-            return;
+    /**
+     * take the host queue that can be accessed next from the schedule; the caller must hold the schedule lock.
+     * Empty queues are dropped here; queues whose access time was postponed are sorted into the schedule again.
+     * @return the queue with the smallest access time or null if there is no queue with entries
+     */
+    private HostQueue nextHostQueue() {
+        HostQueue queue;
+        while ((queue = this.schedule.poll()) != null) {
+            if (queue.urlhashes.isEmpty()) {
+                dropHostQueue(queue);
+                continue;
+            }
+            if (queue.notBefore > queue.ready) {
+                queue.ready = queue.notBefore;
+                this.schedule.add(queue);
+                continue;
+            }
+            return queue;
         }
-        domainList.remove(urlhash);
-        if (domainList.isEmpty()) this.domainStacks.remove(host);
+        return null;
+    }
+
+    private void dropHostQueue(final HostQueue queue) {
+        queue.scheduled = false;
+        if (this.hostQueues.get(queue.hosthash) == queue) this.hostQueues.remove(queue.hosthash);
     }
 
-    private byte[] nextFromDelayed() {
-        if (this.delayed.isEmpty()) return null;
-        final Long first = this.delayed.firstKey();
-        if (first.longValue() < System.currentTimeMillis()) {
-            return this.delayed.remove(first);
+    private boolean hostReady() {
+        synchronized (this.schedule) {
+            final HostQueue queue = this.schedule.peek();
+            return queue != null && Math.max(queue.ready, queue.notBefore) <= System.currentTimeMillis();
         }
-    	return null;
     }
 
-    private byte[] anyFromDelayed() {
-        if (this.delayed.isEmpty()) return null;
-        final Long first = this.delayed.firstKey();
-        return this.delayed.remove(first);
+    /**
+     * fill the host queues with url hashes from the file index until they hold maxScheduled hashes.
+     * The file index is read in the order of the url hashes, beginning after the last hash of the previous fill;
+     * at the end of the index the fill starts again at the beginning. Hashes that are already in the queues are not
+     * counted twice. The hashes are added in small batches, so push and pop are not blocked during a fill, and
+     * hashes that are pushed concurrently are kept. This is done when the balancer is opened and when the host
+     * queues run low while the file index has entries that are not in the queues.
+     */
+    private void fillHostQueues() {
+        synchronized (this.fillLock) {
+            final long start = System.currentTimeMillis();
+            byte[] position;
+            int missing;
+            synchronized (this.schedule) {
+                position = this.fillPosition;
+                missing = maxScheduled - this.queuedHashes;
+                // a push that does not fit into the queues during the fill resets this
+                this.complete = true;
+            }
+            int read = 0;
+            boolean wrapped = position == null;
+            final List<byte[]> batch = new ArrayList<byte[]>(fillBatchSize);
+            try {
+                CloneableIterator<byte[]> i = this.urlFileIndex.keys(true, position);
+                while (missing > 0) {
+                    // collect a batch of hashes without holding the schedule lock
+                    batch.clear();
+                    while (batch.size() < Math.min(missing, fillBatchSize) && i.hasNext()) {
+                        final byte[] hash = i.next();
+                        if (position != null && Base64Order.enhancedCoder.equal(hash, position)) continue; // was added by the previous fill
+                        batch.add(hash);
+                    }
+                    if (batch.isEmpty()) {
+                        // the end of the file index: start again at the beginning, but only once
+                        if (wrapped) break;
+                        wrapped = true;
+                        position = null;
+                        i = this.urlFileIndex.keys(true, null);
+                        continue;
+                    }
+                    synchronized (this.schedule) {
+                        for (final byte[] hash: batch) pushHashToHostQueues(hash);
+                        missing = maxScheduled - this.queuedHashes;
+                        this.fillPosition = position = batch.get(batch.size() - 1);
+                        // the queues are full before the whole file index was read
+                        if (missing <= 0) this.complete = false;
+                    }
+                    read += batch.size();
+                }
+            } catch (final IOException e) {
+                Log.logException(e);
+                synchronized (this.schedule) {
+                    this.complete = false;
+                }
+            } catch (final RowSpaceExceededException e) {
+                Log.logWarning("BALANCER", "fill of host queues stopped, not enough memory: " + e.getMessage());
+                synchronized (this.schedule) {
+                    this.complete = false;
+                }
+            }
+            if (read > 0) Log.logInfo("BALANCER", "fill of host queues; fileIndex.size() = " + this.urlFileIndex.size() + ", read = " + read + ", hostQueues.size = " + hosts() + ", collection time = " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private boolean queuesLow() {
+        synchronized (this.schedule) {
+            return !this.complete && this.queuedHashes < maxScheduled / 2;
+        }
     }
 
     /**
@@ -345,253 +436,155 @@ public class Balancer {
      * @param profile
      * @return a url in a CrawlEntry object
      * @throws IOException
-     * @throws RowSpaceExceededException
      */
     public Request pop(final boolean delay, final CrawlSwitchboard cs) throws IOException {
         // returns a crawl entry from the stack and ensures minimum delta times
-
-    	try {
-            filltop(delay, -600000, false);
-            filltop(delay, -60000, false);
-            filltop(delay, -10000, false);
-            filltop(delay, -6000, false);
-            filltop(delay, -4000, false);
-            filltop(delay, -3000, false);
-            filltop(delay, -2000, false);
-            filltop(delay, -1000, false);
-            filltop(delay, -500, false);
-            filltop(delay, 0, true);
-            filltop(delay, 500, true);
-            filltop(delay, 1000, true);
-            filltop(delay, 2000, true);
-            filltop(delay, 3000, true);
-            filltop(delay, 4000, true);
-            filltop(delay, 6000, true);
-            filltop(delay, Long.MAX_VALUE, true);
-        } catch (final RowSpaceExceededException e) {}
+        if (this.urlFileIndex == null) return null; // case occurs during shutdown
 
     	long sleeptime = 0;
     	Request crawlEntry = null;
+    	HostQueue queue = null;
+    	boolean refilled = false;
+    	int putback = 0;
+    	while (true) {
+    	    // take the next url hash of the host that can be accessed next
+    	    byte[] nexthash = null;
+    	    long scheduled = 0; // the time until the scheduled access of the host
+    	    synchronized (this.schedule) {
+    	        queue = nextHostQueue();
+    	        if (queue != null) {
+    	            nexthash = queue.urlhashes.removeOne();
+    	            if (nexthash != null) this.queuedHashes--;
+    	            final long now = System.currentTimeMillis();
+    	            final long access = (delay) ? Math.max(now, queue.ready) : now;
+    	            scheduled = access - now;
+    	            queue.ready = access + queue.delta;
+    	            if (queue.urlhashes.isEmpty()) dropHostQueue(queue); else this.schedule.add(queue);
+    	        }
+    	    }
+
+    	    // take the next batch of url hashes from the file index if the host queues run low
+    	    if (queuesLow()) fillHostQueues();
+
+    	    Row.Entry rowEntry = (nexthash == null) ? null : this.urlFileIndex.remove(nexthash);
+    	    if (rowEntry == null) {
+    	        if (nexthash != null) continue; // the entry was removed in the meantime
+    	        if (this.urlFileIndex.isEmpty()) return null;
+    	        // the host queues do not contain all entries of the file index
+    	        if (!refilled) {
+    	            refilled = true;
+    	            fillHostQueues();
+    	            continue;
+    	        }
+    	        rowEntry = this.urlFileIndex.removeOne();
+    	        if (rowEntry == null) {
+    	            Log.logWarning("Balancer", "removeOne() failed - size = " + size());
+    	            return null;
+    	        }
+    	        nexthash = rowEntry.getPrimaryKeyBytes();
+    	    }
+
+	        crawlEntry = new Request(rowEntry);
+	        //Log.logInfo("Balancer", "fetched next url: " + crawlEntry.url().toNormalform(true, false));
+
+	        // at this point we must check if the crawlEntry has relevance because the crawl profile still exists
+	        // if not: return null. A calling method must handle the null value and try again
+	        final CrawlProfile profileEntry = cs.getActive(UTF8.getBytes(crawlEntry.profileHandle()));
+	        if (profileEntry == null) {
+	        	Log.logWarning("Balancer", "no profile entry for handle " + crawlEntry.profileHandle());
+	        	return null;
+	        }
+	        // depending on the caching policy we need sleep time to avoid DoS-like situations
+	        sleeptime = (
+	                profileEntry.cacheStrategy() == CacheStrategy.CACHEONLY ||
+	                (profileEntry.cacheStrategy() == CacheStrategy.IFEXIST && Cache.has(crawlEntry.url()))
+	                ) ? 0 : Math.max(scheduled, Latency.waitingRemaining(crawlEntry.url(), this.myAgentIDs, this.minimumLocalDelta, this.minimumGlobalDelta)); // this uses the robots.txt database and may cause a loading of robots.txt from the server
+
+	        assert Base64Order.enhancedCoder.equal(nexthash, rowEntry.getPrimaryKeyBytes()) : "result = " + ASCII.String(nexthash) + ", rowEntry.getPrimaryKeyBytes() = " + ASCII.String(rowEntry.getPrimaryKeyBytes());
+	        assert Base64Order.enhancedCoder.equal(nexthash, crawlEntry.url().hash()) : "result = " + ASCII.String(nexthash) + ", crawlEntry.url().hash() = " + ASCII.String(crawlEntry.url().hash());
+
+	        if (delay && sleeptime > scheduled && putback < maxPutBack && hostReady()) {
+	            // the host needs a longer delay than scheduled, i.e. because of the robots.txt crawl-delay,
+	            // but another host can be accessed now: put that thing back and postpone the host to omit a delay here
+	            try {
+	                this.urlFileIndex.put(rowEntry);
+	                synchronized (this.schedule) {
+	                    pushHashToHostQueues(nexthash).notBefore = System.currentTimeMillis() + sleeptime;
+	                }
+	            } catch (final RowSpaceExceededException e) {
+	                Log.logException(e);
+	            }
+	            putback++;
+	            continue;
+	        }
+	        break;
+    	}
+
     	synchronized (this) {
-    	    byte[] failhash = null;
-    		while (!this.urlFileIndex.isEmpty()) {
-		    	// first simply take one of the entries in the top list, that should be one without any delay
-    		    byte[] nexthash = nextFromDelayed();
-		        //System.out.println("*** nextFromDelayed=" + nexthash);
-		        if (nexthash == null && !this.top.isEmpty()) {
-		            nexthash = this.top.remove();
-		            //System.out.println("*** top.remove()=" + nexthash);
-		        }
-		        if (nexthash == null) {
-		            nexthash = anyFromDelayed();
-		        }
-
-		        // check minimumDelta and if necessary force a sleep
-		        //final int s = urlFileIndex.size();
-		        Row.Entry rowEntry = (nexthash == null) ? null : this.urlFileIndex.remove(nexthash);
-		        if (rowEntry == null) {
-		            //System.out.println("*** rowEntry=null, nexthash=" + UTF8.String(nexthash));
-		        	rowEntry = this.urlFileIndex.removeOne();
-		        	if (rowEntry == null) {
-		        	    nexthash = null;
-		        	} else {
-		        	    nexthash = rowEntry.getPrimaryKeyBytes();
-		        	    //System.out.println("*** rowEntry.getPrimaryKeyBytes()=" + UTF8.String(nexthash));
-		        	}
-
-		        }
-		        if (rowEntry == null) {
-		        	Log.logWarning("Balancer", "removeOne() failed - size = " + size());
-		        	return null;
-		        }
-		        //assert urlFileIndex.size() + 1 == s : "urlFileIndex.size() = " + urlFileIndex.size() + ", s = " + s + ", result = " + result;
-
-		        crawlEntry = new Request(rowEntry);
-		        //Log.logInfo("Balancer", "fetched next url: " + crawlEntry.url().toNormalform(true, false));
-
-		        // at this point we must check if the crawlEntry has relevance because the crawl profile still exists
-		        // if not: return null. A calling method must handle the null value and try again
-		        final CrawlProfile profileEntry = cs.getActive(UTF8.getBytes(crawlEntry.profileHandle()));
-		        if (profileEntry == null) {
-		        	Log.logWarning("Balancer", "no profile entry for handle " + crawlEntry.profileHandle());
-		        	return null;
-		        }
-		        // depending on the caching policy we need sleep time to avoid DoS-like situations
-		        sleeptime = (
-		                profileEntry.cacheStrategy() == CacheStrategy.CACHEONLY ||
-		                (profileEntry.cacheStrategy() == CacheStrategy.IFEXIST && Cache.has(crawlEntry.url()))
-		                ) ? 0 : Latency.waitingRemaining(crawlEntry.url(), this.myAgentIDs, this.minimumLocalDelta, this.minimumGlobalDelta); // this uses the robots.txt database and may cause a loading of robots.txt from the server
-
-		        assert Base64Order.enhancedCoder.equal(nexthash, rowEntry.getPrimaryKeyBytes()) : "result = " + ASCII.String(nexthash) + ", rowEntry.getPrimaryKeyBytes() = " + ASCII.String(rowEntry.getPrimaryKeyBytes());
-		        assert Base64Order.enhancedCoder.equal(nexthash, crawlEntry.url().hash()) : "result = " + ASCII.String(nexthash) + ", crawlEntry.url().hash() = " + ASCII.String(crawlEntry.url().hash());
-
-		        if (failhash != null && Base64Order.enhancedCoder.equal(failhash, nexthash)) break; // prevent endless loops
-
-		        if (delay && sleeptime > 0 && this.domStackInitSize > 1) {
-		            //System.out.println("*** putback: nexthash=" + nexthash + ", failhash="+failhash);
-		        	// put that thing back to omit a delay here
-		            if (!ByteBuffer.contains(this.delayed.values(), nexthash)) {
-		                //System.out.println("*** delayed +=" + nexthash);
-		                this.delayed.put(Long.valueOf(System.currentTimeMillis() + sleeptime + 1), nexthash);
-		            }
-		        	try {
-                        this.urlFileIndex.put(rowEntry);
-                        String host = crawlEntry.url().getHost();
-                        if (host == null) host = localhost;
-                        this.domainStacks.remove(host);
-                        failhash = nexthash;
-                    } catch (final RowSpaceExceededException e) {
-                        Log.logException(e);
-                    }
-                    continue;
-		        }
-		        break;
-	    	}
-    		if (crawlEntry != null) {
-                if (this.ddc.size() > 10000 || MemoryControl.shortStatus()) this.ddc.clear();
-                try { this.ddc.put(crawlEntry.url().hash()); } catch (final RowSpaceExceededException e) {}
-    		}
+    	    if (this.ddc.size() > 10000 || MemoryControl.shortStatus()) this.ddc.clear();
+    	    try { this.ddc.put(crawlEntry.url().hash()); } catch (final RowSpaceExceededException e) {}
     	}
-    	if (crawlEntry == null) return null;
 
         if (delay && sleeptime > 0) {
             // force a busy waiting here
             // in best case, this should never happen if the balancer works propertly
             // this is only to protection against the worst case, where the crawler could
-            // behave in a DoS-manner
-            Log.logInfo("BALANCER", "forcing crawl-delay of " + sleeptime + " milliseconds for " + crawlEntry.url().getHost() + ": " + Latency.waitingRemainingExplain(crawlEntry.url(), this.myAgentIDs, this.minimumLocalDelta, this.minimumGlobalDelta) + ", top.size() = " + this.top.size() + ", delayed.size() = " + this.delayed.size() + ", domainStacks.size() = " + this.domainStacks.size() + ", domainStacksInitSize = " + this.domStackInitSize);
+            // behave in a DoS-manner. The waiting is done without holding any lock.
+            Log.logInfo("BALANCER", "forcing crawl-delay of " + sleeptime + " milliseconds for " + crawlEntry.url().getHost() + ": " + Latency.waitingRemainingExplain(crawlEntry.url(), this.myAgentIDs, this.minimumLocalDelta, this.minimumGlobalDelta) + ", hostQueues.size() = " + hosts());
             long loops = sleeptime / 1000;
             long rest = sleeptime % 1000;
             if (loops < 3) {
             	rest = rest + 1000 * loops;
             	loops = 0;
             }
-            if (rest > 0) {try {this.wait(rest); } catch (final InterruptedException e) {}}
+            if (rest > 0) {try {Thread.sleep(rest); } catch (final InterruptedException e) {}}
             for (int i = 0; i < loops; i++) {
             	Log.logInfo("BALANCER", "waiting for " + crawlEntry.url().getHost() + ": " + (loops - i) + " seconds remaining...");
-                try {this.wait(1000); } catch (final InterruptedException e) {}
+                try {Thread.sleep(1000); } catch (final InterruptedException e) {}
             }
         }
-        this.ddc.remove(crawlEntry.url().hash());
+        synchronized (this) {
+            this.ddc.remove(crawlEntry.url().hash());
+        }
         Latency.update(crawlEntry.url());
-        return crawlEntry;
-    }
-
-    private void filltop(final boolean delay, final long maximumwaiting, final boolean acceptonebest) throws RowSpaceExceededException {
-    	if (!this.top.isEmpty()) return;
-
-    	//System.out.println("*** DEBUG started filltop delay=" + ((delay) ? "true":"false") + ", maximumwaiting=" + maximumwaiting + ", acceptonebest=" + ((acceptonebest) ? "true":"false"));
-
-    	// check if we need to get entries from the file index
-    	try {
-			fillDomainStacks();
-		} catch (final IOException e) {
-		    Log.logException(e);
-		}
-
-    	// iterate over the domain stacks
-    	final Iterator<Map.Entry<String, HandleSet>> i = this.domainStacks.entrySet().iterator();
-    	Map.Entry<String, HandleSet> entry;
-    	long smallestWaiting = Long.MAX_VALUE;
-    	byte[] besturlhash = null;
-    	String besthost = null;
-    	while (i.hasNext()) {
-            entry = i.next();
-
-            // clean up empty entries
-            if (entry.getValue().isEmpty()) {
-                i.remove();
-                continue;
-            }
 
-            final byte[] n = entry.getValue().removeOne();
-            if (n == null) continue;
-            if (delay) {
-                final long w = Latency.waitingRemainingGuessed(entry.getKey(), this.minimumLocalDelta, this.minimumGlobalDelta);
-                if (w > maximumwaiting) {
-                    if (w < smallestWaiting) {
-                        smallestWaiting = w;
-                        besturlhash = n;
-                        besthost = entry.getKey();
-                    }
-                    entry.getValue().put(n); // put entry back
-                    continue;
-                }
+        // remember the access delta of the host for the next access time in the schedule
+        if (queue != null) {
+            final long delta = Math.max(0, Latency.waitingRemainingGuessed(crawlEntry.url().getHost(), this.minimumLocalDelta, this.minimumGlobalDelta));
+            synchronized (this.schedule) {
+                queue.delta = delta;
             }
-
-            this.top.add(n);
-            if (entry.getValue().isEmpty()) i.remove();
-    	}
-
-    	// if we could not find any entry, then take the best we have seen so far
-    	if (acceptonebest && !this.top.isEmpty() && besturlhash != null) {
-            removeHashFromDomainStacks(besthost, besturlhash);
-            this.top.add(besturlhash);
-    	}
-    }
-
-    private void fillDomainStacks() throws IOException {
-    	if (!this.domainStacks.isEmpty() && System.currentTimeMillis() - this.lastDomainStackFill < 120000L) return;
-    	this.domainStacks.clear();
-    	this.top.clear();
-    	this.lastDomainStackFill = System.currentTimeMillis();
-    	final HandleSet handles = this.urlFileIndex.keysFromBuffer(objectIndexBufferSize / 2);
-        final CloneableIterator<byte[]> i = handles.keys(true, null);
-        byte[] handle;
-        String host;
-        Request request;
-    	while (i.hasNext()) {
-    	    handle = i.next();
-    	    final Row.Entry entry = this.urlFileIndex.get(handle, false);
-    	    if (entry == null) continue;
-    	    request = new Request(entry);
-    	    host = request.url().getHost();
-    		try {
-                pushHashToDomainStacks(host, handle);
-            } catch (final RowSpaceExceededException e) {
-                break;
-            }
-    	}
-    	Log.logInfo("BALANCER", "re-fill of domain stacks; fileIndex.size() = " + this.urlFileIndex.size() + ", domainStacks.size = " + this.domainStacks.size() + ", collection time = " + (System.currentTimeMillis() - this.lastDomainStackFill) + " ms");
-        this.domStackInitSize = this.domainStacks.size();
+        }
+        return crawlEntry;
     }
 
-    public List<Request> top(int count) {
+    public List<Request> top(final int count) {
     	final List<Request> cel = new ArrayList<Request>();
     	if (count == 0) return cel;
-    	byte[][] ta = new byte[Math.min(count, this.top.size())][];
-        ta = this.top.toArray(ta);
-    	for (final byte[] n: ta) {
-    	    if (n == null) break;
-    		try {
-                    final Row.Entry rowEntry = this.urlFileIndex.get(n, false);
-                    if (rowEntry == null) continue;
-                    final Request crawlEntry = new Request(rowEntry);
-                    cel.add(crawlEntry);
-                    count--;
-                    if (count <= 0) break;
-                } catch (final IOException e) {}
-    	}
 
-    	int depth = 0;
-    	loop: while (count > 0) {
-	    	// iterate over the domain stacks
-    	    final int celsize = cel.size();
-	        ll: for (final HandleSet list: this.domainStacks.values()) {
-	            if (list.size() <= depth) continue ll;
-	            final byte[] n = list.getOne(depth);
-	            if (n == null) continue ll;
-                try {
-                    final Row.Entry rowEntry = this.urlFileIndex.get(n, false);
-                    if (rowEntry == null) continue;
-                    final Request crawlEntry = new Request(rowEntry);
-                    cel.add(crawlEntry);
-                    count--;
-                    if (count <= 0) break loop;
-                } catch (final IOException e) {}
-	        }
-    	    if (cel.size() == celsize) break loop;
-	        depth++;
+    	// collect the url hashes of the host queues: first the next url of each host, then the following urls
+    	final List<byte[]> hashes = new ArrayList<byte[]>(count);
+    	synchronized (this.schedule) {
+    	    int depth = 0;
+    	    loop: while (hashes.size() < count) {
+    	        final int size = hashes.size();
+    	        for (final HostQueue queue: this.schedule) {
+    	            if (queue.urlhashes.size() <= depth) continue;
+    	            final byte[] n = queue.urlhashes.getOne(depth);
+    	            if (n == null) continue;
+    	            hashes.add(n);
+    	            if (hashes.size() >= count) break loop;
+    	        }
+    	        if (hashes.size() == size) break loop;
+    	        depth++;
+    	    }
+    	}
+    	for (final byte[] n: hashes) {
+    	    try {
+    	        final Row.Entry rowEntry = this.urlFileIndex.get(n, false);
+    	        if (rowEntry == null) continue;
+    	        cel.add(new Request(rowEntry));
+    	    } catch (final IOException e) {}
     	}
 
     	if (cel.size() < count) try {
@@ -634,4 +627,33 @@ public class Balancer {
 
     }
 
+    /**
+     * the url hashes of one host together with the time when the host may be accessed again
+     */
+    private static final class HostQueue {
+
+        private final String hosthash;
+        private final HandleSet urlhashes;
+        private long ready;         // the time when the host may be accessed next
+        private long notBefore;     // a later access time which is applied when the queue reaches the head of the schedule
+        private long delta;         // the time between two accesses to the host
+        private boolean scheduled;  // true if the queue is in the schedule
+
+        public HostQueue(final String hosthash, final long delta) {
+            this.hosthash = hosthash;
+            this.urlhashes = new HandleSet(URIMetadataRow.rowdef.primaryKeyLength, Base64Order.enhancedCoder, 1);
+            this.ready = 0;
+            this.notBefore = 0;
+            this.delta = delta;
+            this.scheduled = false;
+        }
+    }
+
+    private static final class ReadyComparator implements Comparator<HostQueue> {
+
+        public int compare(final HostQueue a, final HostQueue b) {
+            return (a.ready < b.ready) ? -1 : (a.ready > b.ready) ? 1 : 0;
+        }
+    }
+
 }
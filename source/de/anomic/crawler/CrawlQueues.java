@@ -34,6 +34,9 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.Hit;
@@ -45,6 +48,7 @@ import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
 import net.yacy.kelondro.util.FileUtils;
+import net.yacy.kelondro.util.NamePrefixThreadFactory;
 import net.yacy.kelondro.workflow.WorkflowJob;
 import net.yacy.peers.Protocol;
 import net.yacy.peers.Seed;
@@ -63,10 +67,12 @@ public class CrawlQueues {
     private static final String ERROR_DB_FILENAME = "urlError3.db";
     private static final String DELEGATED_DB_FILENAME = "urlDelegated3.db";
     private static final Segments.Process PROCESS = Segments.Process.LOCALCRAWLING;
+    private static final long loadPermitWait = 500; // the time until a loader that did not get a load permit for its host tries again
 
     protected Switchboard sb;
     protected Log log;
-    protected Map<Integer, Loader> workers; // mapping from url hash to Worker thread object
+    protected Map<Integer, Loader> workers; // mapping from url hash to Worker object
+    private   ScheduledThreadPoolExecutor loaderPool; // the threads that run the workers
     private   final ArrayList<String> remoteCrawlProviderHashes;
 
     public  NoticedURL noticeURL;
@@ -76,6 +82,7 @@ public class CrawlQueues {
         this.sb = sb;
         this.log = new Log("CRAWLER");
         this.workers = new ConcurrentHashMap<Integer, Loader>();
+        this.loaderPool = newLoaderPool();
         this.remoteCrawlProviderHashes = new ArrayList<String>();
 
         // start crawling management
@@ -90,6 +97,7 @@ public class CrawlQueues {
         close();
 
         this.workers = new ConcurrentHashMap<Integer, Loader>();
+        this.loaderPool = newLoaderPool();
         this.remoteCrawlProviderHashes.clear();
 
         this.noticeURL = new NoticedURL(newQueuePath, this.sb.peers.myBotIDs(), this.sb.useTailCache, this.sb.exceed134217727);
@@ -98,17 +106,25 @@ public class CrawlQueues {
         this.delegatedURL = new ZURL(this.sb.indexSegments.segment(PROCESS).getSolr(), newQueuePath, DELEGATED_DB_FILENAME, true, this.sb.useTailCache, this.sb.exceed134217727);
     }
 
+    private ScheduledThreadPoolExecutor newLoaderPool() {
+        final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(
+                (int) this.sb.getConfigLong(SwitchboardConstants.CRAWLER_THREADS_ACTIVE_MAX, 10),
+                new NamePrefixThreadFactory("CrawlQueues.Loader"));
+        pool.setKeepAliveTime(60, TimeUnit.SECONDS);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     public void close() {
         // wait for all workers to finish
         for (final Loader w: this.workers.values()) {
             w.interrupt();
         }
-        for (final Loader w: this.workers.values()) {
-            try {
-                w.join();
-            } catch (final InterruptedException e) {
-                Log.logException(e);
-            }
+        this.loaderPool.shutdownNow();
+        try {
+            this.loaderPool.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Log.logException(e);
         }
         this.noticeURL.close();
         this.errorURL.close();
@@ -121,6 +137,7 @@ public class CrawlQueues {
             w.interrupt();
         }
         // TODO: wait some more time until all threads are finished
+        this.loaderPool.getQueue().clear();
         this.workers.clear();
         this.remoteCrawlProviderHashes.clear();
         this.noticeURL.clear();
@@ -173,10 +190,21 @@ public class CrawlQueues {
     }
 
     public void cleanup() {
-        // wait for all workers to finish
+        // interrupt loads that take too long and drop workers that waited too long for a load permit of their host
         final int timeout = (int) this.sb.getConfigLong("crawler.clientTimeout", 10000);
         for (final Loader w: this.workers.values()) {
-            if (w.age() > timeout) w.interrupt();
+            if (w.age() <= timeout) continue;
+            if (w.cancel()) {
+                this.workers.remove(w.code);
+                this.errorURL.push(
+                        w.request,
+                        ASCII.getBytes(this.sb.peers.mySeed().hash),
+                        new Date(),
+                        1,
+                        FailCategory.TEMPORARY_NETWORK_FAILURE,
+                        "no load permit for host within " + timeout + " ms", -1);
+                w.request.setStatus("worker-cancelled", WorkflowJob.STATUS_FINISHED);
+            }
         }
     }
 
@@ -352,6 +380,7 @@ public class CrawlQueues {
 
         // check the worker threads
         final int maxWorkers = (int) this.sb.getConfigLong(SwitchboardConstants.CRAWLER_THREADS_ACTIVE_MAX, 10);
+        if (this.loaderPool.getCorePoolSize() != maxWorkers) this.loaderPool.setCorePoolSize(maxWorkers);
         if (this.workers.size() >= maxWorkers) {
             // too many worker threads, try a cleanup
             cleanup();
@@ -541,35 +570,119 @@ public class CrawlQueues {
         return this.workers.size();
     }
 
-    protected final class Loader extends Thread {
+    /**
+     * the number of workers that wait for a thread of the loader pool or for a load permit of their host
+     * @return the size of the loader queue
+     */
+    public int loaderQueueSize() {
+        return this.loaderPool.getQueue().size();
+    }
+
+    /**
+     * the number of workers that are loading now
+     * @return the number of active loader threads
+     */
+    public int loaderActiveCount() {
+        return this.loaderPool.getActiveCount();
+    }
+
+    /**
+     * a worker that loads one crawl request. The workers are executed by the loader pool;
+     * the number of concurrent loads from the same host is limited with permits from Latency
+     */
+    protected final class Loader implements Runnable {
 
         protected Request request;
         private final Integer code;
         private final long start;
+        private Thread thread;      // the thread that runs the load or null if the loader is waiting; guarded by this
+        private boolean cancelled;  // true if cleanup() dropped the loader while it was waiting; guarded by this
+        private boolean finished;   // true if the load is done; guarded by this
 
         public Loader(final Request entry) {
             this.start = System.currentTimeMillis();
             this.request = entry;
             this.request.setStatus("worker-initialized", WorkflowJob.STATUS_INITIATED);
             this.code = Integer.valueOf(entry.hashCode());
+            this.thread = null;
+            this.cancelled = false;
+            this.finished = false;
             if (!CrawlQueues.this.workers.containsKey(this.code)) {
                 CrawlQueues.this.workers.put(this.code, this);
                 try {
-                    start();
-                } catch (final OutOfMemoryError e) {
-                    Log.logWarning("CrawlQueues", "crawlWorker sequential fail-over: " + e.getMessage());
-                    run();
+                    CrawlQueues.this.loaderPool.execute(this);
+                } catch (final RejectedExecutionException e) {
+                    // the pool was shut down
+                    CrawlQueues.this.workers.remove(this.code);
                 }
             }
-            setPriority(Thread.MIN_PRIORITY); // http requests from the crawler should not cause that other functions work worse
         }
 
         public long age() {
             return System.currentTimeMillis() - this.start;
         }
 
-        @Override
+        public synchronized void interrupt() {
+            if (this.thread != null) this.thread.interrupt();
+        }
+
+        /**
+         * interrupt a running load or cancel the loader if it is still waiting for a load permit of its host
+         * @return true if the loader was cancelled; then the caller is responsible for the request
+         */
+        public synchronized boolean cancel() {
+            if (this.finished || this.cancelled) return false;
+            if (this.thread != null) {
+                this.thread.interrupt();
+                return false;
+            }
+            this.cancelled = true;
+            return true;
+        }
+
         public void run() {
+            synchronized (this) {
+                if (this.cancelled) return;
+            }
+
+            // if there are too many loads from the same host, the worker is scheduled again
+            // instead of blocking a thread of the pool
+            if (!Latency.acquireLoad(this.request.url(), (int) CrawlQueues.this.sb.getConfigLong(SwitchboardConstants.CRAWLER_LOADS_PER_HOST_MAX, 2))) {
+                this.request.setStatus("worker-waiting", WorkflowJob.STATUS_INITIATED);
+                try {
+                    CrawlQueues.this.loaderPool.schedule(this, loadPermitWait, TimeUnit.MILLISECONDS);
+                } catch (final RejectedExecutionException e) {
+                    CrawlQueues.this.workers.remove(this.code);
+                }
+                return;
+            }
+            final Thread t = Thread.currentThread();
+            synchronized (this) {
+                if (this.cancelled) {
+                    // cleanup() dropped the loader after the last check
+                    Latency.releaseLoad(this.request.url());
+                    return;
+                }
+                this.thread = t;
+            }
+            final int priority = t.getPriority();
+            t.setPriority(Thread.MIN_PRIORITY); // http requests from the crawler should not cause that other functions work worse
+            try {
+                process();
+            } finally {
+                synchronized (this) {
+                    this.thread = null;
+                    this.finished = true;
+                }
+                Thread.interrupted(); // an interrupt of this load must not reach the next task of the pool thread
+                t.setPriority(priority);
+                Latency.releaseLoad(this.request.url());
+                final Loader w = CrawlQueues.this.workers.remove(this.code);
+                assert w != null;
+            }
+        }
+
+        private void process() {
             try {
                 // checking robots.txt for http(s) resources
                 this.request.setStatus("worker-checkingrobots", WorkflowJob.STATUS_STARTED);
@@ -637,9 +750,6 @@ public class CrawlQueues {
                 Log.logException(e);
 //                Client.initConnectionManager();
                 this.request.setStatus("worker-exception", WorkflowJob.STATUS_FINISHED);
-            } finally {
-                final Loader w = CrawlQueues.this.workers.remove(this.code);
-                assert w != null;
             }
         }
 
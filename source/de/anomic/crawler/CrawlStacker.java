@@ -32,11 +32,19 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.MultiProtocolURI;
@@ -47,6 +55,7 @@ import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.meta.URIMetadataRow;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
+import net.yacy.kelondro.util.NamePrefixThreadFactory;
 import net.yacy.kelondro.workflow.WorkflowProcessor;
 import net.yacy.peers.SeedDB;
 import net.yacy.repository.Blacklist;
@@ -65,6 +74,16 @@ public final class CrawlStacker {
 
     private final Log log = new Log("STACKCRAWL");
 
+    // the threads that enqueue the entries of enqueueEntriesAsynchronous
+    private final static ThreadPoolExecutor enqueuePool = new ThreadPoolExecutor(
+            1, 1,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamePrefixThreadFactory("CrawlStacker.enqueue"));
+    static {
+        enqueuePool.allowCoreThreadTimeOut(true);
+    }
+
     private final WorkflowProcessor<Request>  fastQueue, slowQueue;
     private long                    dnsMiss;
     private final CrawlQueues       nextQueue;
@@ -153,9 +172,7 @@ public final class CrawlStacker {
             final String rejectReason = stackCrawl(entry);
 
             // if the url was rejected we store it into the error URL db
-            if (rejectReason != null) {
-                this.nextQueue.errorURL.push(entry, ASCII.getBytes(this.peers.mySeed().hash), new Date(), 1, FailCategory.FINAL_LOAD_CONTEXT, rejectReason, -1);
-            }
+            if (rejectReason != null) reject(entry, rejectReason);
         } catch (final Exception e) {
             CrawlStacker.this.log.logWarning("Error while processing stackCrawl entry.\n" + "Entry: " + entry.toString() + "Error: " + e.toString(), e);
             return null;
@@ -163,6 +180,10 @@ public final class CrawlStacker {
         return null;
     }
 
+    private void reject(final Request entry, final String rejectReason) {
+        this.nextQueue.errorURL.push(entry, ASCII.getBytes(this.peers.mySeed().hash), new Date(), 1, FailCategory.FINAL_LOAD_CONTEXT, rejectReason, -1);
+    }
+
     public void enqueueEntry(final Request entry) {
 
         // DEBUG
@@ -184,15 +205,74 @@ public final class CrawlStacker {
             }
         }
     }
+
+    /**
+     * enqueue a batch of crawl requests, i.e. all links of a document. Before the requests are put on the
+     * stacker queues, double urls are removed from the batch, the filters that do not need a DNS lookup are
+     * applied, and the double-check against the url metadata is done with one batched access to the metadata
+     * for all urls of the batch. Rejected requests are stored in the error db. The accepted requests go through
+     * the stacker queues, where the remaining checks are done; the metadata of their urls is then cached.
+     * @param entries
+     */
+    public void enqueueEntries(final Collection<Request> entries) {
+        if (entries == null || entries.isEmpty()) return;
+
+        // remove double urls and apply the filters
+        final Map<String, CrawlProfile> profiles = new HashMap<String, CrawlProfile>();
+        final Collection<byte[]> urlhashes = new TreeSet<byte[]>(URIMetadataRow.rowdef.objectOrder);
+        final List<Request> candidates = new ArrayList<Request>(entries.size());
+        CrawlProfile profile;
+        String error;
+        for (final Request entry: entries) {
+            if (entry == null || !urlhashes.add(entry.url().hash())) continue;
+            profile = profile(profiles, entry.profileHandle());
+            if (profile != null) {
+                error = checkFilters(entry.url(), profile, entry.depth());
+                if (error != null) {
+                    reject(entry, error);
+                    urlhashes.remove(entry.url().hash());
+                    continue;
+                }
+            }
+            candidates.add(entry);
+        }
+
+        // check the existence of all remaining urls with one access to the url metadata
+        final Map<byte[], URIMetadataRow> oldEntries = this.indexSegment.urlMetadata().loadAll(urlhashes);
+        for (final Request entry: candidates) {
+            profile = profile(profiles, entry.profileHandle());
+            if (profile != null) {
+                error = checkDouble(entry.url(), profile, oldEntries.get(entry.url().hash()));
+                if (error != null) {
+                    reject(entry, error);
+                    continue;
+                }
+            }
+            // requests with a lost profile are rejected by the stacker job
+            enqueueEntry(entry);
+        }
+    }
+
+    private CrawlProfile profile(final Map<String, CrawlProfile> profiles, final String handle) {
+        if (handle == null) return null;
+        CrawlProfile profile = profiles.get(handle);
+        if (profile == null && !profiles.containsKey(handle)) {
+            profile = this.crawler.getActive(UTF8.getBytes(handle));
+            profiles.put(handle, profile);
+        }
+        return profile;
+    }
+
     public void enqueueEntriesAsynchronous(final byte[] initiator, final String profileHandle, final Map<MultiProtocolURI, Properties> hyperlinks, final boolean replace) {
-        new Thread() {
+        enqueuePool.execute(new Runnable() {
             public void run() {
                 enqueueEntries(initiator, profileHandle, hyperlinks, true);
             }
-        }.start();
+        });
     }
 
     private void enqueueEntries(final byte[] initiator, final String profileHandle, final Map<MultiProtocolURI, Properties> hyperlinks, final boolean replace) {
+        final List<Request> entries = new ArrayList<Request>(hyperlinks.size());
         for (final Map.Entry<MultiProtocolURI, Properties> e: hyperlinks.entrySet()) {
             if (e.getKey() == null) continue;
 
@@ -221,7 +301,7 @@ public final class CrawlStacker {
                 enqueueEntriesFTP(initiator, profileHandle, url.getHost(), url.getPort(), replace);
             } else {
                 // put entry on crawl stack
-                enqueueEntry(new Request(
+                entries.add(new Request(
                         initiator,
                         url,
                         null,
@@ -235,6 +315,7 @@ public final class CrawlStacker {
                         ));
             }
         }
+        enqueueEntries(entries);
     }
 
     public void enqueueEntriesFTP(final byte[] initiator, final String profileHandle, final String host, final int port, final boolean replace) {
@@ -387,6 +468,21 @@ public final class CrawlStacker {
     }
 
     public String checkAcceptance(final DigestURI url, final CrawlProfile profile, final int depth) {
+        String error = checkFilters(url, profile, depth);
+        if (error != null) return error;
+        error = checkDouble(url, profile, this.indexSegment.urlMetadata().load(url.hash()));
+        if (error != null) return error;
+        return checkDomain(url, profile, depth);
+    }
+
+    /**
+     * the checks of checkAcceptance that need no access to the url metadata and no DNS lookup for accepted urls
+     * @param url
+     * @param profile
+     * @param depth
+     * @return null if the url passes the filters, a rejection reason otherwise
+     */
+    private String checkFilters(final DigestURI url, final CrawlProfile profile, final int depth) {
 
         // check if the protocol is supported
         final String urlProtocol = url.getProtocol();
@@ -433,9 +529,27 @@ public final class CrawlStacker {
             return "post url not allowed";
         }
 
-        // check if the url is double registered
+        // check robots.txt, but only if the rules of the host are already in the robots cache;
+        // otherwise the robots.txt is checked by the loader
+        final RobotsTxtEntry robotsEntry = Switchboard.getSwitchboard().robots.getCachedEntry(url);
+        if (robotsEntry != null && robotsEntry.isDisallowed(url)) {
+            if (this.log.isFine()) this.log.logFine("URL '" + urlstring + "' is denied by robots.txt.");
+            return "denied by robots.txt";
+        }
+
+        return null;
+    }
+
+    /**
+     * check if the url is double registered
+     * @param url
+     * @param profile
+     * @param oldEntry the metadata of the url or null if the url is not in the metadata
+     * @return null if the url is not double or shall be crawled again, a rejection reason otherwise
+     */
+    private String checkDouble(final DigestURI url, final CrawlProfile profile, final URIMetadataRow oldEntry) {
+        final String urlstring = url.toString();
         final String dbocc = this.nextQueue.urlExists(url.hash()); // returns the name of the queue if entry exists
-        final URIMetadataRow oldEntry = this.indexSegment.urlMetadata().load(url.hash());
         if (oldEntry == null) {
             if (dbocc != null) {
                 // do double-check
@@ -468,6 +582,19 @@ public final class CrawlStacker {
             }
         }
 
+        return null;
+    }
+
+    /**
+     * the domain counter and the ip and country filters, which may need a DNS lookup
+     * @param url
+     * @param profile
+     * @param depth
+     * @return null if the url is accepted, a rejection reason otherwise
+     */
+    private String checkDomain(final DigestURI url, final CrawlProfile profile, final int depth) {
+        final String urlstring = url.toString();
+
         // deny urls that exceed allowed number of occurrences
         final int maxAllowedPagesPerDomain = profile.domMaxPages();
         if (maxAllowedPagesPerDomain < Integer.MAX_VALUE) {
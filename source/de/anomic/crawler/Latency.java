@@ -24,6 +24,7 @@
 package de.anomic.crawler;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +41,9 @@ public class Latency {
     // the map is a mapping from host names to host configurations
     private static final ConcurrentHashMap<String, Host> map = new ConcurrentHashMap<String, Host>();
 
+    // the number of loads that are currently running for each host
+    private static final Map<String, int[]> loads = new HashMap<String, int[]>();
+
     public static void update(final MultiProtocolURI url, final long time) {
         final String host = url.getHost();
         if (host == null) return;
@@ -93,6 +97,46 @@ public class Latency {
         return h.average();
     }
 
+    /**
+     * get a permit to load from the host of the url. The number of concurrent loads from one host is limited;
+     * each permit must be given back with releaseLoad
+     * @param url
+     * @param maxLoads the maximum number of concurrent loads from one host; values below 1 are treated as 1
+     * @return true if the permit was given, false if there are already maxLoads loads from the host
+     */
+    public static boolean acquireLoad(final MultiProtocolURI url, final int maxLoads) {
+        final String host = url.getHost();
+        if (host == null) return true;
+        final int limit = Math.max(1, maxLoads);
+        synchronized (loads) {
+            final int[] count = loads.get(host);
+            if (((count == null) ? 0 : count[0]) >= limit) return false;
+            if (count == null) loads.put(host, new int[]{1}); else count[0]++;
+            return true;
+        }
+    }
+
+    public static void releaseLoad(final MultiProtocolURI url) {
+        final String host = url.getHost();
+        if (host == null) return;
+        synchronized (loads) {
+            final int[] count = loads.get(host);
+            if (count == null) return;
+            count[0]--;
+            if (count[0] <= 0) loads.remove(host);
+        }
+    }
+
+    /**
+     * the number of hosts from which is loaded currently
+     * @return the number of hosts with load permits
+     */
+    public static int loadingHosts() {
+        synchronized (loads) {
+            return loads.size();
+        }
+    }
+
     public static Iterator<Map.Entry<String, Host>> iterator() {
         return map.entrySet().iterator();
     }
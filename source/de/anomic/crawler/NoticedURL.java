@@ -275,22 +275,21 @@ public class NoticedURL {
 
     private Request pop(final Balancer balancer, final boolean delay, final CrawlSwitchboard cs) throws IOException {
         // this is a filo - pop
+        // the balancer is not locked here: it can be used by several threads concurrently and may wait for a crawl delay
         int s;
         Request entry;
         int errors = 0;
-        synchronized (balancer) {
-            while ((s = balancer.size()) > 0) {
-                entry = balancer.pop(delay, cs);
-                if (entry == null) {
-                    if (s > balancer.size()) continue;
-                    errors++;
-                    if (errors < 100) continue;
-                    final int aftersize = balancer.size();
-                    balancer.clear(); // the balancer is broken and cannot shrink
-                    Log.logWarning("BALANCER", "entry is null, balancer cannot shrink (bevore pop = " + s + ", after pop = " + aftersize + "); reset of balancer");
-                }
-                return entry;
+        while ((s = balancer.size()) > 0) {
+            entry = balancer.pop(delay, cs);
+            if (entry == null) {
+                if (s > balancer.size()) continue;
+                errors++;
+                if (errors < 100) continue;
+                final int aftersize = balancer.size();
+                balancer.clear(); // the balancer is broken and cannot shrink
+                Log.logWarning("BALANCER", "entry is null, balancer cannot shrink (bevore pop = " + s + ", after pop = " + aftersize + "); reset of balancer");
             }
+            return entry;
         }
         return null;
     }
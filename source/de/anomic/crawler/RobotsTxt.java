@@ -30,9 +30,11 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import net.yacy.cora.document.MultiProtocolURI;
@@ -58,17 +60,34 @@ public class RobotsTxt {
     protected static final String ROBOTS_DB_PATH_SEPARATOR = ";";
     protected static final Pattern ROBOTS_DB_PATH_SEPARATOR_MATCHER = Pattern.compile(ROBOTS_DB_PATH_SEPARATOR);
 
-    private final ConcurrentHashMap<String, DomSync> syncObjects;
+    private static final long maxAge = 7*24*60*60*1000; // the age of a robots.txt after which it is loaded again
+
+    public static int cacheMaxSize = 10000; // the maximum number of hosts in the cache of parsed entries
+    public static long cacheTTL = 60*60*1000; // the time after which a cached entry is read again from the robots table
+
+    private final Map<String, DomSync> syncObjects; // the synchronization objects of the hosts which are loaded currently
     //private static final HashSet<String> loadedRobots = new HashSet<String>(); // only for debugging
     private final WorkTables tables;
+    private final Map<String, CacheEntry> cache; // the parsed entries of recently checked hosts, in access order
 
     private static class DomSync {
+        private int users = 0; // the number of threads that use or wait for this object; guarded by syncObjects
     	private DomSync() {}
     }
 
+    private static class CacheEntry {
+        private final RobotsTxtEntry entry;
+        private final long time;
+        private CacheEntry(final RobotsTxtEntry entry) {
+            this.entry = entry;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
     public RobotsTxt(final WorkTables worktables) {
-        this.syncObjects = new ConcurrentHashMap<String, DomSync>();
+        this.syncObjects = new HashMap<String, DomSync>();
         this.tables = worktables;
+        this.cache = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
         try {
             log.info("initiated robots table: " + this.tables.getHeap(WorkTables.TABLE_ROBOTS_NAME).getFile());
         } catch (final IOException e) {
@@ -82,7 +101,57 @@ public class RobotsTxt {
     public void clear() throws IOException {
         log.info("clearing robots table");
         this.tables.getHeap(WorkTables.TABLE_ROBOTS_NAME).clear();
-        this.syncObjects.clear();
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    public int cacheSize() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * get an entry from the cache of parsed entries
+     * @param urlHostPort
+     * @return the entry or null if the host is not in the cache, the cache entry is expired or the robots.txt must be loaded again
+     */
+    private RobotsTxtEntry getCached(final String urlHostPort) {
+        final CacheEntry ce;
+        synchronized (this.cache) {
+            ce = this.cache.get(urlHostPort);
+        }
+        if (ce == null) return null;
+        final long now = System.currentTimeMillis();
+        final Date loadedDate = ce.entry.getLoadedDate();
+        if (now - ce.time > cacheTTL || loadedDate == null || now - loadedDate.getTime() > maxAge) return null;
+        return ce.entry;
+    }
+
+    private void putCached(final String urlHostPort, final RobotsTxtEntry entry) {
+        if (cacheMaxSize <= 0) return;
+        synchronized (this.cache) {
+            this.cache.put(urlHostPort, new CacheEntry(entry));
+            if (this.cache.size() <= cacheMaxSize) return;
+            final Iterator<CacheEntry> i = this.cache.values().iterator();
+            while (this.cache.size() > cacheMaxSize && i.hasNext()) {
+                i.next();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * get the robots entry of the host of an url only if it is in the cache of parsed entries.
+     * This does never read the robots table or load the robots.txt from the host, so it can be used
+     * where a robots.txt check shall not cause any IO
+     * @param theURL
+     * @return the entry or null if the host is not in the cache
+     */
+    public RobotsTxtEntry getCachedEntry(final MultiProtocolURI theURL) {
+        if (theURL == null || !theURL.getProtocol().startsWith("http")) return null;
+        return getCached(getHostPort(theURL));
     }
 
     public int size() throws IOException {
@@ -98,7 +167,8 @@ public class RobotsTxt {
     private RobotsTxtEntry getEntry(final MultiProtocolURI theURL, final Set<String> thisAgents, final boolean fetchOnlineIfNotAvailableOrNotFresh) throws IOException {
             // this method will always return a non-null value
         final String urlHostPort = getHostPort(theURL);
-        RobotsTxtEntry robotsTxt4Host = null;
+        RobotsTxtEntry robotsTxt4Host = getCached(urlHostPort);
+        if (robotsTxt4Host != null) return robotsTxt4Host;
         Map<String, byte[]> record;
         final BEncodedHeap robotsTable = this.tables.getHeap(WorkTables.TABLE_ROBOTS_NAME);
         try {
@@ -112,121 +182,154 @@ public class RobotsTxt {
         if (fetchOnlineIfNotAvailableOrNotFresh && (
              robotsTxt4Host == null ||
              robotsTxt4Host.getLoadedDate() == null ||
-             System.currentTimeMillis() - robotsTxt4Host.getLoadedDate().getTime() > 7*24*60*60*1000
+             System.currentTimeMillis() - robotsTxt4Host.getLoadedDate().getTime() > maxAge
            )) {
 
             // make or get a synchronization object
-        	DomSync syncObj = this.syncObjects.get(urlHostPort);
-            if (syncObj == null) {
-                syncObj = new DomSync();
-                this.syncObjects.put(urlHostPort, syncObj);
-            }
+            final DomSync syncObj = acquireSync(urlHostPort);
 
             // we can now synchronize for each host separately
-            synchronized (syncObj) {
-
-                // if we have not found any data or the data is older than 7 days, we need to load it from the remote server
-
-                // check the robots table again for all threads that come here because they waited for another one
-                // to complete a download
-                try {
-                    record = robotsTable.get(robotsTable.encodedKey(urlHostPort));
-                } catch (final RowSpaceExceededException e) {
-                    log.warn("memory exhausted", e);
-                    record = null;
-                }
-                if (record != null) robotsTxt4Host = new RobotsTxtEntry(urlHostPort, record);
-                if (robotsTxt4Host != null &&
-                    robotsTxt4Host.getLoadedDate() != null &&
-                    System.currentTimeMillis() - robotsTxt4Host.getLoadedDate().getTime() <= 1*24*60*60*1000) {
-                    return robotsTxt4Host;
-                }
+            try {
+                synchronized (syncObj) {
 
-                // generating the proper url to download the robots txt
-                MultiProtocolURI robotsURL = null;
-                try {
-                    robotsURL = new MultiProtocolURI("http://" + urlHostPort + "/robots.txt");
-                } catch (final MalformedURLException e) {
-                    log.fatal("Unable to generate robots.txt URL for host:port '" + urlHostPort + "'.", e);
-                    robotsURL = null;
-                }
+                    // if we have not found any data or the data is older than 7 days, we need to load it from the remote server
 
-                Object[] result = null;
-                if (robotsURL != null) {
-                    if (log.isDebugEnabled()) log.debug("Trying to download the robots.txt file from URL '" + robotsURL + "'.");
+                    // check the robots table again for all threads that come here because they waited for another one
+                    // to complete a download
                     try {
-                        result = downloadRobotsTxt(robotsURL, 3, robotsTxt4Host);
-                    } catch (final Exception e) {
-                        result = null;
+                        record = robotsTable.get(robotsTable.encodedKey(urlHostPort));
+                    } catch (final RowSpaceExceededException e) {
+                        log.warn("memory exhausted", e);
+                        record = null;
                     }
-                }
-                /*
-                assert !loadedRobots.contains(robotsURL.toNormalform(false, false)) :
-                    "robots-url=" + robotsURL.toString() +
-                    ", robots=" + ((result == null || result[DOWNLOAD_ROBOTS_TXT] == null) ? "NULL" : UTF8.String((byte[]) result[DOWNLOAD_ROBOTS_TXT])) +
-                    ", robotsTxt4Host=" + ((robotsTxt4Host == null) ? "NULL" : robotsTxt4Host.getLoadedDate().toString());
-                loadedRobots.add(robotsURL.toNormalform(false, false));
-                */
-
-                if (result == null) {
-                    // no robots.txt available, make an entry to prevent that the robots loading is done twice
-                    if (robotsTxt4Host == null) {
-                        // generate artificial entry
-                        robotsTxt4Host = new RobotsTxtEntry(
-                                robotsURL,
-                                new ArrayList<String>(),
-                                new ArrayList<String>(),
-                                new Date(),
-                                new Date(),
-                                null,
-                                null,
-                                Integer.valueOf(0),
-                                null);
-                    } else {
-                        robotsTxt4Host.setLoadedDate(new Date());
+                    if (record != null) robotsTxt4Host = new RobotsTxtEntry(urlHostPort, record);
+                    if (robotsTxt4Host != null &&
+                        robotsTxt4Host.getLoadedDate() != null &&
+                        System.currentTimeMillis() - robotsTxt4Host.getLoadedDate().getTime() <= 1*24*60*60*1000) {
+                        putCached(urlHostPort, robotsTxt4Host);
+                        return robotsTxt4Host;
                     }
 
-                    // store the data into the robots DB
-                    final int sz = robotsTable.size();
-                    addEntry(robotsTxt4Host);
-                    if (robotsTable.size() <= sz) {
-                    	log.fatal("new entry in robots.txt table failed, resetting database");
-                    	clear();
-                    	addEntry(robotsTxt4Host);
+                    // generating the proper url to download the robots txt
+                    MultiProtocolURI robotsURL = null;
+                    try {
+                        robotsURL = new MultiProtocolURI("http://" + urlHostPort + "/robots.txt");
+                    } catch (final MalformedURLException e) {
+                        log.fatal("Unable to generate robots.txt URL for host:port '" + urlHostPort + "'.", e);
+                        robotsURL = null;
                     }
-                } else {
-                    final byte[] robotsTxt = (byte[]) result[DOWNLOAD_ROBOTS_TXT];
-                    //Log.logInfo("RobotsTxt", "robots of " + robotsURL.toNormalform(true, true) + ":\n" + ((robotsTxt == null) ? "null" : UTF8.String(robotsTxt))); // debug TODO remove
-                    RobotsTxtParser parserResult;
-                    ArrayList<String> denyPath;
-                    if (((Boolean) result[DOWNLOAD_ACCESS_RESTRICTED]).booleanValue()) {
-                        parserResult = new RobotsTxtParser(thisAgents);
-                        // create virtual deny path
-                        denyPath = new ArrayList<String>();
-                        denyPath.add("/");
+
+                    Object[] result = null;
+                    if (robotsURL != null) {
+                        if (log.isDebugEnabled()) log.debug("Trying to download the robots.txt file from URL '" + robotsURL + "'.");
+                        try {
+                            result = downloadRobotsTxt(robotsURL, 3, robotsTxt4Host);
+                        } catch (final Exception e) {
+                            result = null;
+                        }
+                    }
+                    /*
+                    assert !loadedRobots.contains(robotsURL.toNormalform(false, false)) :
+                        "robots-url=" + robotsURL.toString() +
+                        ", robots=" + ((result == null || result[DOWNLOAD_ROBOTS_TXT] == null) ? "NULL" : UTF8.String((byte[]) result[DOWNLOAD_ROBOTS_TXT])) +
+                        ", robotsTxt4Host=" + ((robotsTxt4Host == null) ? "NULL" : robotsTxt4Host.getLoadedDate().toString());
+                    loadedRobots.add(robotsURL.toNormalform(false, false));
+                    */
+
+                    if (result == null) {
+                        // no robots.txt available, make an entry to prevent that the robots loading is done twice
+                        if (robotsTxt4Host == null) {
+                            // generate artificial entry
+                            robotsTxt4Host = new RobotsTxtEntry(
+                                    robotsURL,
+                                    new ArrayList<String>(),
+                                    new ArrayList<String>(),
+                                    new Date(),
+                                    new Date(),
+                                    null,
+                                    null,
+                                    Integer.valueOf(0),
+                                    null);
+                        } else {
+                            robotsTxt4Host.setLoadedDate(new Date());
+                        }
+
+                        // store the data into the robots DB
+                        final int sz = robotsTable.size();
+                        addEntry(robotsTxt4Host);
+                        if (robotsTable.size() <= sz) {
+                        	log.fatal("new entry in robots.txt table failed, resetting database");
+                        	clear();
+                        	addEntry(robotsTxt4Host);
+                        }
                     } else {
-                        parserResult = new RobotsTxtParser(thisAgents, robotsTxt);
-                        denyPath = parserResult.denyList();
+                        final byte[] robotsTxt = (byte[]) result[DOWNLOAD_ROBOTS_TXT];
+                        //Log.logInfo("RobotsTxt", "robots of " + robotsURL.toNormalform(true, true) + ":\n" + ((robotsTxt == null) ? "null" : UTF8.String(robotsTxt))); // debug TODO remove
+                        RobotsTxtParser parserResult;
+                        ArrayList<String> denyPath;
+                        if (((Boolean) result[DOWNLOAD_ACCESS_RESTRICTED]).booleanValue()) {
+                            parserResult = new RobotsTxtParser(thisAgents);
+                            // create virtual deny path
+                            denyPath = new ArrayList<String>();
+                            denyPath.add("/");
+                        } else {
+                            parserResult = new RobotsTxtParser(thisAgents, robotsTxt);
+                            denyPath = parserResult.denyList();
+                        }
+
+                        // store the data into the robots DB
+                        robotsTxt4Host = addEntry(
+                                robotsURL,
+                                parserResult.allowList(),
+                                denyPath,
+                                new Date(),
+                                (Date) result[DOWNLOAD_MODDATE],
+                                (String) result[DOWNLOAD_ETAG],
+                                parserResult.sitemap(),
+                                parserResult.crawlDelayMillis(),
+                                parserResult.agentName());
                     }
-
-                    // store the data into the robots DB
-                    robotsTxt4Host = addEntry(
-                            robotsURL,
-                            parserResult.allowList(),
-                            denyPath,
-                            new Date(),
-                            (Date) result[DOWNLOAD_MODDATE],
-                            (String) result[DOWNLOAD_ETAG],
-                            parserResult.sitemap(),
-                            parserResult.crawlDelayMillis(),
-                            parserResult.agentName());
                 }
+            } finally {
+                releaseSync(urlHostPort, syncObj);
             }
         }
 
+        if (robotsTxt4Host != null) putCached(urlHostPort, robotsTxt4Host);
         return robotsTxt4Host;
     }
 
+    /**
+     * get the synchronization object of a host and register the calling thread as a user of it.
+     * All threads that load the robots.txt of the same host at the same time get the same object.
+     * @param urlHostPort
+     * @return the synchronization object; it must be given back with releaseSync
+     */
+    private DomSync acquireSync(final String urlHostPort) {
+        synchronized (this.syncObjects) {
+            DomSync syncObj = this.syncObjects.get(urlHostPort);
+            if (syncObj == null) {
+                syncObj = new DomSync();
+                this.syncObjects.put(urlHostPort, syncObj);
+            }
+            syncObj.users++;
+            return syncObj;
+        }
+    }
+
+    /**
+     * unregister the calling thread as a user of the synchronization object. The object is removed
+     * when no other thread uses it or waits for it, so a new object is only created when no load is running.
+     * @param urlHostPort
+     * @param syncObj
+     */
+    private void releaseSync(final String urlHostPort, final DomSync syncObj) {
+        synchronized (this.syncObjects) {
+            syncObj.users--;
+            if (syncObj.users <= 0 && this.syncObjects.get(urlHostPort) == syncObj) this.syncObjects.remove(urlHostPort);
+        }
+    }
+
     private RobotsTxtEntry addEntry(
     		final MultiProtocolURI theURL,
     		final ArrayList<String> allowPathList,
@@ -29,6 +29,7 @@
 package de.anomic.crawler;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -59,12 +60,13 @@ public class RobotsTxtEntry {
     private final Map<String, byte[]> mem;
     private final List<String> allowPathList, denyPathList;
     private final String hostName, agentName;
-    private String info; // this is filled if robots disallowed access; then the reason is noted there;
+    private final String[] denyPrefixes; // the deny paths, sorted and without paths that start with another deny path
+    private final long crawlDelayMillis;
+    private final MultiProtocolURI sitemap;
 
     protected RobotsTxtEntry(final String hostName, final Map<String, byte[]> mem) {
         this.hostName = hostName.toLowerCase();
         this.mem = mem;
-        this.info = "";
 
         if (this.mem.containsKey(DISALLOW_PATH_LIST)) {
             this.denyPathList = new LinkedList<String>();
@@ -91,6 +93,9 @@ public class RobotsTxtEntry {
             this.allowPathList = new LinkedList<String>();
         }
         this.agentName = this.mem.containsKey(AGENT_NAME) ? UTF8.String(this.mem.get(AGENT_NAME)) : null;
+        this.denyPrefixes = compile(this.denyPathList);
+        this.crawlDelayMillis = parseCrawlDelayMillis();
+        this.sitemap = parseSitemap();
     }
 
     protected RobotsTxtEntry(
@@ -141,6 +146,43 @@ public class RobotsTxtEntry {
             }
             this.mem.put(DISALLOW_PATH_LIST, UTF8.getBytes(pathListStr.substring(0, pathListStr.length()-1)));
         }
+        this.denyPrefixes = compile(this.denyPathList);
+        this.crawlDelayMillis = parseCrawlDelayMillis();
+        this.sitemap = parseSitemap();
+    }
+
+    /**
+     * compile a deny path list into a sorted array of prefixes. Paths that start with another path
+     * of the list are removed, because they cannot change the result. Then no prefix of the array is a
+     * prefix of another one and a path starts with a prefix of the array if and only if it starts with
+     * the greatest prefix that is not greater than the path itself, which can be found with a binary search.
+     * @param pathList
+     * @return the sorted prefix array
+     */
+    private static String[] compile(final List<String> pathList) {
+        final String[] sorted = pathList.toArray(new String[pathList.size()]);
+        Arrays.sort(sorted);
+        final ArrayList<String> prefixes = new ArrayList<String>(sorted.length);
+        String last = null;
+        for (final String path: sorted) {
+            if (last != null && path.startsWith(last)) continue;
+            prefixes.add(path);
+            last = path;
+        }
+        return prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    /**
+     * find the deny prefix that matches a path
+     * @param path
+     * @return the matching prefix or null if the path is not disallowed
+     */
+    private String denyPrefix(final String path) {
+        int pos = Arrays.binarySearch(this.denyPrefixes, path);
+        if (pos >= 0) return this.denyPrefixes[pos];
+        pos = -pos - 2; // the position of the greatest prefix that is smaller than the path
+        if (pos >= 0 && path.startsWith(this.denyPrefixes[pos])) return this.denyPrefixes[pos];
+        return null;
     }
 
     protected String getHostName() {
@@ -169,6 +211,10 @@ public class RobotsTxtEntry {
      * @return the sitemap url or null if no sitemap url is given
      */
     public MultiProtocolURI getSitemap() {
+        return this.sitemap;
+    }
+
+    private MultiProtocolURI parseSitemap() {
         final String url = this.mem.containsKey(SITEMAP)? UTF8.String(this.mem.get(SITEMAP)): null;
         if (url == null) return null;
         try {
@@ -206,6 +252,10 @@ public class RobotsTxtEntry {
     }
 
     protected long getCrawlDelayMillis() {
+        return this.crawlDelayMillis;
+    }
+
+    private long parseCrawlDelayMillis() {
         if (this.mem.containsKey(CRAWL_DELAY_MILLIS)) try {
             return ByteArray.parseDecimal(this.mem.get(CRAWL_DELAY_MILLIS));
         } catch (final NumberFormatException e) {
@@ -220,34 +270,31 @@ public class RobotsTxtEntry {
     }
 
     public boolean isDisallowed(final MultiProtocolURI subpathURL) {
-        String path = subpathURL.getFile();
-        if (this.mem == null) {
-            this.info = "no robots file available";
-            return false;
-        }
-        if (this.denyPathList.isEmpty()) {
-            this.info = "no entry in robots.txt";
-            return false;
-        }
-
-        // if the path is null or empty we set it to /
-        if (path == null || path.length() == 0) path = "/";
-        // escaping all occurences of ; because this char is used as special char in the Robots DB
-        else  path = RobotsTxt.ROBOTS_DB_PATH_SEPARATOR_MATCHER.matcher(path).replaceAll("%3B");
-
-        for (final String element : this.denyPathList) {
+        if (this.mem == null || this.denyPrefixes.length == 0) return false;
+        return denyPrefix(robotsPath(subpathURL)) != null;
+    }
 
-            // disallow rule
-            if (path.startsWith(element)) {
-                this.info = "path '" + path + "' starts with '" + element + "' from deny path list = " + this.denyPathList.toString();
-                return true;
-            }
-        }
-        this.info = "path '" + path + "' does not start with any element from deny path list";
-        return false;
+    /**
+     * explain the result of isDisallowed for the given url. The entries are shared by all threads,
+     * therefore the reason is computed for each call and not stored in the entry.
+     * @param subpathURL
+     * @return the reason why the url is allowed or disallowed
+     */
+    public String getInfo(final MultiProtocolURI subpathURL) {
+        if (this.mem == null) return "no robots file available";
+        if (this.denyPrefixes.length == 0) return "no entry in robots.txt";
+        final String path = robotsPath(subpathURL);
+        final String element = denyPrefix(path);
+        if (element != null) return "path '" + path + "' starts with '" + element + "' from deny path list = " + this.denyPathList.toString();
+        return "path '" + path + "' does not start with any element from deny path list";
     }
 
-    public String getInfo() {
-        return this.info;
+    private static String robotsPath(final MultiProtocolURI subpathURL) {
+        final String path = subpathURL.getFile();
+        // if the path is null or empty we set it to /
+        if (path == null || path.length() == 0) return "/";
+        // escaping all occurences of ; because this char is used as special char in the Robots DB
+        if (path.indexOf(';') >= 0) return RobotsTxt.ROBOTS_DB_PATH_SEPARATOR_MATCHER.matcher(path).replaceAll("%3B");
+        return path;
     }
 }
\ No newline at end of file
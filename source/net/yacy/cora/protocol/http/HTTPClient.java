@@ -101,6 +101,7 @@ import org.apache.http.util.EntityUtils;
 public class HTTPClient {
 
 	private final static int maxcon = 200;
+	private static int maxPerRoute = 2;
 	private static IdledConnectionEvictor idledConnectionEvictor = null;
 	private static HttpClient httpClient = initConnectionManager();
 	private static final CredentialsProvider credsProvider = new BasicCredentialsProvider();
@@ -151,7 +152,7 @@ public class HTTPClient {
 		// for statistics same value should also be set here
 		ConnectionInfo.setMaxcount(maxcon);
 		// connections per host (2 default)
-		clientConnectionManager.setDefaultMaxPerRoute(2);
+		clientConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
 		// Increase max connections for localhost
 		final HttpHost localhost = new HttpHost("localhost");
 		clientConnectionManager.setMaxForRoute(new HttpRoute(localhost), maxcon);
@@ -226,6 +227,18 @@ public class HTTPClient {
         httpClient.getParams().setParameter(ClientContext.CREDS_PROVIDER, credsProvider);
     }
 
+    /**
+     * this method sets the number of connections that are allowed to the same host;
+     * the crawler sets this to the number of loads per host, so that a load does not wait for a connection.
+     * The value is clamped to 1 .. the maximum number of connections.
+     *
+     * @param max the maximum number of connections per host
+     */
+    public static void setDefaultMaxPerRoute(final int max) {
+    	maxPerRoute = Math.max(1, Math.min(maxcon, max));
+    	((ThreadSafeClientConnManager) httpClient.getConnectionManager()).setDefaultMaxPerRoute(maxPerRoute);
+    }
+
     /**
      * this method sets a host on which more than the default of 2 router per host are allowed
      *
@@ -185,6 +185,28 @@ public class WeakPriorityBlockingQueue<E> {
         return this.queue.first();
     }
     
+    /**
+     * return the elements with the smallest weights, but do not remove them
+     * @param count the maximum number of elements; a negative count is treated as 0
+     * @return a list of at most count elements from the head of the queue
+     */
+    public synchronized ArrayList<Element<E>> peek(final int count) {
+        final ArrayList<Element<E>> list = new ArrayList<Element<E>>(Math.max(0, Math.min(count, this.queue.size())));
+        final Iterator<Element<E>> i = this.queue.iterator();
+        while (list.size() < count && i.hasNext()) list.add(i.next());
+        return list;
+    }
+
+    /**
+     * return the element that would be removed from the stack if another element with a better weight is put,
+     * but do not remove it. This is only the case if the stack has reached its maximum size.
+     * @return null if the stack is not full or the last element of the queue
+     */
+    public synchronized Element<E> bottom() {
+        if (this.maxsize < 0 || this.queue.size() < this.maxsize) return null;
+        return this.queue.last();
+    }
+
     /**
      * all objects that have been returned by poll or take are stored in a back-up list
      * where they can be retrieved afterward. The elements from that list are stored in
@@ -28,19 +28,22 @@ package net.yacy.kelondro.blob;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
@@ -58,6 +61,7 @@ import net.yacy.kelondro.order.MergeIterator;
 import net.yacy.kelondro.order.NaturalOrder;
 import net.yacy.kelondro.rwi.Reference;
 import net.yacy.kelondro.rwi.ReferenceContainer;
+import net.yacy.kelondro.rwi.ReferenceContainerCodec;
 import net.yacy.kelondro.rwi.ReferenceFactory;
 import net.yacy.kelondro.rwi.ReferenceIterator;
 import net.yacy.kelondro.util.FileUtils;
@@ -94,9 +98,19 @@ public class ArrayStack implements BLOB {
     private final String         prefix;
     private final int            buffersize;
     private final boolean        trimall;
-
-    // the thread pool for the keeperOf executor service
-    private final ExecutorService executor;
+    private final boolean        offHeapIndex; // if true, the indexes of the BLOB files are stored outside of the java heap
+    private       long           lastNewBLOB; // the time of the last file name that newBLOB() has generated
+
+    // the thread pool for concurrent reads from the BLOB files; it is shared by all arrays to bound the number of concurrent reads
+    private final static ThreadPoolExecutor readPool = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors() + 1,
+            Runtime.getRuntime().availableProcessors() + 1, 60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamePrefixThreadFactory("ArrayStack.read"));
+    static {
+        readPool.allowCoreThreadTimeOut(true);
+    }
 
     // use our own formatter to prevent concurrency locks with other processes
     private final static GenericFormatter my_SHORT_MILSEC_FORMATTER  = new GenericFormatter(GenericFormatter.FORMAT_SHORT_MILSEC, 1);
@@ -109,6 +123,17 @@ public class ArrayStack implements BLOB {
             final int keylength,
             final int buffersize,
             final boolean trimall) throws IOException {
+        this(heapLocation, prefix, ordering, keylength, buffersize, trimall, false);
+    }
+
+    public ArrayStack(
+            final File heapLocation,
+            final String prefix,
+            final ByteOrder ordering,
+            final int keylength,
+            final int buffersize,
+            final boolean trimall,
+            final boolean offHeapIndex) throws IOException {
         this.keylength = keylength;
         this.prefix = prefix;
         this.ordering = ordering;
@@ -119,14 +144,8 @@ public class ArrayStack implements BLOB {
         this.repositoryAgeMax = Long.MAX_VALUE;
         this.repositorySizeMax = Long.MAX_VALUE;
         this.trimall = trimall;
-
-        // init the thread pool for the keeperOf executor service
-        this.executor = new ThreadPoolExecutor(
-        		Runtime.getRuntime().availableProcessors() + 1,
-        		Runtime.getRuntime().availableProcessors() * 4, 100,
-        		TimeUnit.MILLISECONDS,
-        		new LinkedBlockingQueue<Runnable>(),
-        		new NamePrefixThreadFactory(prefix));
+        this.offHeapIndex = offHeapIndex;
+        this.lastNewBLOB = 0;
 
         // check existence of the heap directory
         if (heapLocation.exists()) {
@@ -147,7 +166,7 @@ public class ArrayStack implements BLOB {
                 FileUtils.deletedelete(new File(heapLocation, file));
                 deletions = true;
             }
-            if (file.endsWith(".idx") || file.endsWith(".gap")) {
+            if (file.endsWith(".idx") || file.endsWith(".gap") || file.endsWith(".blm")) {
                 final String s = file.substring(0, file.length() - 17);
                 if (!fh.contains(s)) {
                     FileUtils.deletedelete(new File(heapLocation, file));
@@ -198,9 +217,9 @@ public class ArrayStack implements BLOB {
                    f = new File(heapLocation, file);
                    time = d.getTime();
                    if (time == maxtime && !trimall) {
-                       oneBlob = new Heap(f, keylength, ordering, buffersize);
+                       oneBlob = new Heap(f, keylength, ordering, buffersize, offHeapIndex);
                    } else {
-                       oneBlob = new HeapModifier(f, keylength, ordering);
+                       oneBlob = new HeapModifier(f, keylength, ordering, offHeapIndex);
                        oneBlob.trim(); // no writings here, can be used with minimum memory
                    }
                    sortedItems.put(Long.valueOf(time), new blobItem(d, f, oneBlob));
@@ -243,9 +262,9 @@ public class ArrayStack implements BLOB {
         }
         BLOB oneBlob;
         if (full && this.buffersize > 0 && !this.trimall) {
-            oneBlob = new Heap(location, this.keylength, this.ordering, this.buffersize);
+            oneBlob = new Heap(location, this.keylength, this.ordering, this.buffersize, this.offHeapIndex);
         } else {
-            oneBlob = new HeapModifier(location, this.keylength, this.ordering);
+            oneBlob = new HeapModifier(location, this.keylength, this.ordering, this.offHeapIndex);
             oneBlob.trim();
         }
         this.blobs.add(new blobItem(d, location, oneBlob));
@@ -326,6 +345,61 @@ public class ArrayStack implements BLOB {
         return new File[]{f0, f1};
     }
 
+    /**
+     * unmount a set of files. Either all files are unmounted or none.
+     * @param files
+     * @return true if all files had been mounted and are now unmounted
+     */
+    public synchronized boolean unmountBLOBs(final File[] files) {
+        final List<File> mounted = files();
+        for (final File f: files) if (!mounted.contains(f)) return false;
+        for (final File f: files) unmountBLOB(f, false);
+        return true;
+    }
+
+    /**
+     * the files of the array, the oldest file first
+     * @return
+     */
+    public synchronized List<File> files() {
+        final List<File> files = new ArrayList<File>((this.blobs == null) ? 0 : this.blobs.size());
+        if (this.blobs != null) for (final blobItem b: this.blobs) files.add(b.location);
+        return files;
+    }
+
+    /**
+     * unmount the smallest files for a merge with more than two input files
+     * @param maxCount the maximum number of files
+     * @param maxResultSize the maximum sum of the file sizes
+     * @return at least two files or null if there are not two files that fit into the size limit
+     */
+    public synchronized File[] unmountSmallest(final int maxCount, final long maxResultSize) {
+        if (this.blobs.size() < 2 || maxCount < 2) return null;
+        final TreeMap<Long, List<File>> sized = new TreeMap<Long, List<File>>();
+        File f;
+        for (final blobItem b: this.blobs) {
+            f = b.location;
+            List<File> l = sized.get(f.length());
+            if (l == null) {
+                l = new ArrayList<File>(1);
+                sized.put(f.length(), l);
+            }
+            l.add(f);
+        }
+        final List<File> selected = new ArrayList<File>(maxCount);
+        long sum = 0;
+        select: for (final List<File> l: sized.values()) {
+            for (final File g: l) {
+                if (selected.size() >= maxCount || sum + g.length() > maxResultSize) break select;
+                selected.add(g);
+                sum += g.length();
+            }
+        }
+        if (selected.size() < 2) return null;
+        for (final File g: selected) unmountBLOB(g, false);
+        return selected.toArray(new File[selected.size()]);
+    }
+
     public synchronized File unmountSmallestBLOB(final long maxResultSize) {
         return smallestBLOB(null, maxResultSize);
     }
@@ -370,8 +444,11 @@ public class ArrayStack implements BLOB {
      * @return
      */
     public synchronized File newBLOB(final Date creation) {
+        // merges may run concurrently; each one needs its own target file, therefore two names must not share the same millisecond
+        final long time = Math.max(creation.getTime(), this.lastNewBLOB + 1);
+        this.lastNewBLOB = time;
         //return new File(heapLocation, DateFormatter.formatShortSecond(creation) + "." + blobSalt + ".blob");
-        return new File(this.heapLocation, this.prefix + "." + my_SHORT_MILSEC_FORMATTER.format(creation) + ".blob");
+        return new File(this.heapLocation, this.prefix + "." + my_SHORT_MILSEC_FORMATTER.format(new Date(time)) + ".blob");
     }
 
     public String name() {
@@ -438,7 +515,17 @@ public class ArrayStack implements BLOB {
             // make a new blob file and assign it in this item
             this.creation = new Date();
             this.location = newBLOB(this.creation);
-            this.blob = (buffer == 0) ? new HeapModifier(this.location, ArrayStack.this.keylength, ArrayStack.this.ordering) : new Heap(this.location, ArrayStack.this.keylength, ArrayStack.this.ordering, buffer);
+            this.blob = (buffer == 0) ? new HeapModifier(this.location, ArrayStack.this.keylength, ArrayStack.this.ordering, ArrayStack.this.offHeapIndex) : new Heap(this.location, ArrayStack.this.keylength, ArrayStack.this.ordering, buffer, ArrayStack.this.offHeapIndex);
+        }
+        /**
+         * test with the bloom filter of the heap if the blob may contain the key.
+         * This is used to skip blob files that cannot contain a key without asking the index of the file.
+         * @param key
+         * @return false if the key is certainly not in this blob
+         */
+        public boolean mayContain(final byte[] key) {
+            final BLOB b = this.blob;
+            return !(b instanceof HeapReader) || ((HeapReader) b).mayContain(key);
         }
     }
 
@@ -550,46 +637,20 @@ public class ArrayStack implements BLOB {
             return null;
         }
 
-        // start a concurrent query to database tables
-        final CompletionService<blobItem> cs = new ExecutorCompletionService<blobItem>(this.executor);
-        int accepted = 0;
-        for (final blobItem bi : this.blobs) {
-            try {
-                cs.submit(new Callable<blobItem>() {
-                    public blobItem call() {
-                        if (bi.blob.containsKey(key)) return bi;
-                        return null;
-                    }
-                });
-                accepted++;
-            } catch (final RejectedExecutionException e) {
-                // the executor is either shutting down or the blocking queue is full
-                // execute the search direct here without concurrency
-                if (bi.blob.containsKey(key)) return bi;
-            }
+        // filter out all blobs that cannot contain the key
+        final List<blobItem> candidates = new ArrayList<blobItem>(this.blobs.size());
+        for (final blobItem bi : this.blobs) if (bi.mayContain(key)) candidates.add(bi);
+        if (candidates.isEmpty()) return null;
+        if (candidates.size() == 1) {
+            final blobItem bi = candidates.get(0);
+            if (bi.blob.containsKey(key)) return bi;
+            return null;
         }
 
-        // read the result
-        try {
-            for (int i = 0; i < accepted; i++) {
-                final Future<blobItem> f = cs.take();
-                //hash(System.out.println("**********accepted = " + accepted + ", i =" + i);
-                if (f == null) continue;
-                final blobItem index = f.get();
-                if (index != null) {
-                    //System.out.println("*DEBUG SplitTable success.time = " + (System.currentTimeMillis() - start) + " ms");
-                	return index;
-                }
-            }
-            //System.out.println("*DEBUG SplitTable fail.time = " + (System.currentTimeMillis() - start) + " ms");
-            return null;
-        } catch (final InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } catch (final ExecutionException e) {
-            Log.logSevere("ArrayStack", "", e);
-            throw new RuntimeException(e.getCause());
+        // the lookup uses only the index of the BLOB files in RAM; this is faster than a concurrent lookup
+        for (final blobItem bi : candidates) {
+            if (bi.blob.containsKey(key)) return bi;
         }
-        //System.out.println("*DEBUG SplitTable fail.time = " + (System.currentTimeMillis() - start) + " ms");
         return null;
     }
 
@@ -619,6 +680,116 @@ public class ArrayStack implements BLOB {
         */
     }
 
+    /**
+     * get the BLOBs for many keys from all BLOB files.
+     * Every file is read only once: the keys that may be contained in a file are read together in the order of
+     * their position in that file. The files are read concurrently with a thread pool that is shared by all arrays.
+     * @param keys
+     * @return a map from the keys to the BLOBs of all files that contain the key, the BLOB of the oldest file first.
+     *  Keys that are not contained in any file are not in the map.
+     * @throws IOException
+     * @throws InterruptedIOException if the calling thread was interrupted while it waited for the readers;
+     *  the remaining readers are cancelled and no partial result is returned
+     */
+    public TreeMap<byte[], List<byte[]>> getAll(final Collection<byte[]> keys) throws IOException {
+        final TreeMap<byte[], List<byte[]>> result = new TreeMap<byte[], List<byte[]>>(this.ordering);
+        if (keys.isEmpty()) return result;
+        final List<blobItem> items = new ArrayList<blobItem>(this.blobs);
+        final List<byte[]> keylist = new ArrayList<byte[]>(keys);
+        final byte[][][] values = new byte[items.size()][][]; // values[file][key]
+
+        // read the files concurrently
+        final CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(readPool);
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>>(items.size());
+        for (int f = 0; f < items.size(); f++) {
+            final blobItem bi = items.get(f);
+            final List<byte[]> candidates = new ArrayList<byte[]>(keylist.size());
+            final List<Integer> candidateIndex = new ArrayList<Integer>(keylist.size());
+            for (int k = 0; k < keylist.size(); k++) {
+                if (bi.mayContain(keylist.get(k))) {
+                    candidates.add(keylist.get(k));
+                    candidateIndex.add(k);
+                }
+            }
+            if (candidates.isEmpty()) continue;
+            final BatchReader reader = new BatchReader(bi.blob, candidates, candidateIndex, keylist.size(), values, f);
+            try {
+                futures.add(cs.submit(reader));
+            } catch (final RejectedExecutionException e) {
+                // the pool is shutting down; read the file here without concurrency
+                try {
+                    reader.call();
+                } catch (final RowSpaceExceededException ee) {
+                    Log.logSevere("ArrayStack", "getAll - RowSpaceExceededException: " + ee.getMessage(), ee);
+                }
+            }
+        }
+
+        // wait for the readers
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    cs.take().get();
+                } catch (final ExecutionException e) {
+                    Log.logSevere("ArrayStack", "getAll - " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } catch (final InterruptedException e) {
+            // the values of the readers that are still running are incomplete; do not return them.
+            // running readers are not interrupted, because an interrupt would close the file channels of the heap files
+            for (final Future<Integer> future: futures) future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("getAll interrupted while reading " + futures.size() + " files");
+        }
+
+        // collect the values in the order of the files
+        for (int k = 0; k < keylist.size(); k++) {
+            List<byte[]> list = null;
+            for (int f = 0; f < values.length; f++) {
+                if (values[f] == null || values[f][k] == null) continue;
+                if (list == null) list = new ArrayList<byte[]>(2);
+                list.add(values[f][k]);
+            }
+            if (list != null) result.put(keylist.get(k), list);
+        }
+        return result;
+    }
+
+    /**
+     * a reader for many keys of one BLOB file; the result is written to values[file] at the positions of the keys
+     */
+    private static class BatchReader implements Callable<Integer> {
+        private final BLOB blob;
+        private final List<byte[]> keys;
+        private final List<Integer> keyIndex;
+        private final int keyCount;
+        private final byte[][][] values;
+        private final int file;
+
+        public BatchReader(final BLOB blob, final List<byte[]> keys, final List<Integer> keyIndex, final int keyCount, final byte[][][] values, final int file) {
+            this.blob = blob;
+            this.keys = keys;
+            this.keyIndex = keyIndex;
+            this.keyCount = keyCount;
+            this.values = values;
+            this.file = file;
+        }
+
+        public Integer call() throws IOException, RowSpaceExceededException {
+            final byte[][] b;
+            if (this.blob instanceof HeapReader) {
+                b = ((HeapReader) this.blob).get(this.keys);
+            } else {
+                b = new byte[this.keys.size()][];
+                for (int i = 0; i < b.length; i++) b[i] = this.blob.get(this.keys.get(i));
+            }
+            final byte[][] v = new byte[this.keyCount][];
+            for (int i = 0; i < b.length; i++) v[this.keyIndex.get(i).intValue()] = b[i];
+            this.values[this.file] = v;
+            return this.file;
+        }
+    }
+
     public byte[] get(final Object key) {
         if (!(key instanceof byte[])) return null;
         try {
@@ -639,25 +810,41 @@ public class ArrayStack implements BLOB {
      * @throws IOException
      */
     public Iterable<byte[]> getAll(final byte[] key) throws IOException {
-        return new BlobValues(key);
+        return new BlobValues(key, Integer.MAX_VALUE);
+    }
+
+    /**
+     * get the beginning of all BLOBs in the array.
+     * this is useful to read a header that is stored at the beginning of each BLOB without reading the whole BLOB.
+     * @param key
+     * @param maxLength the maximum number of bytes that are read from each BLOB
+     * @return
+     * @throws IOException
+     */
+    public Iterable<byte[]> getAll(final byte[] key, final int maxLength) throws IOException {
+        return new BlobValues(key, maxLength);
     }
 
     public class BlobValues extends LookAheadIterator<byte[]> {
 
         private final Iterator<blobItem> bii;
         private final byte[] key;
+        private final int maxLength;
 
-        public BlobValues(final byte[] key) {
+        public BlobValues(final byte[] key, final int maxLength) {
             this.bii = ArrayStack.this.blobs.iterator();
             this.key = key;
+            this.maxLength = maxLength;
         }
 
         protected byte[] next0() {
             while (this.bii.hasNext()) {
-                final BLOB b = this.bii.next().blob;
+                final blobItem bi = this.bii.next();
+                if (!bi.mayContain(this.key)) continue;
+                final BLOB b = bi.blob;
                 if (b == null) continue;
                 try {
-                    final byte[] n = b.get(this.key);
+                    final byte[] n = (this.maxLength < Integer.MAX_VALUE && b instanceof HeapReader) ? ((HeapReader) b).get(this.key, this.maxLength) : b.get(this.key);
                     if (n != null) return n;
                 } catch (final IOException e) {
                     Log.logSevere("ArrayStack", "BlobValues - IOException: " + e.getMessage(), e);
@@ -680,6 +867,7 @@ public class ArrayStack implements BLOB {
     public synchronized long length(final byte[] key) throws IOException {
         long l;
         for (final blobItem bi: this.blobs) {
+            if (!bi.mayContain(key)) continue;
             l = bi.blob.length(key);
             if (l >= 0) return l;
         }
@@ -709,7 +897,9 @@ public class ArrayStack implements BLOB {
 
         protected Long next0() {
             while (this.bii.hasNext()) {
-                final BLOB b = this.bii.next().blob;
+                final blobItem bi = this.bii.next();
+                if (!bi.mayContain(this.key)) continue;
+                final BLOB b = bi.blob;
                 if (b == null) continue;
                 try {
                     final long l = b.length(this.key);
@@ -732,6 +922,7 @@ public class ArrayStack implements BLOB {
     public synchronized long lengthAdd(final byte[] key) throws IOException {
         long l = 0;
         for (final blobItem bi: this.blobs) {
+            if (!bi.mayContain(key)) continue;
             l += bi.blob.length(key);
         }
         return l;
@@ -773,6 +964,7 @@ public class ArrayStack implements BLOB {
     public synchronized int replace(final byte[] key, final Rewriter rewriter) throws IOException, RowSpaceExceededException {
         int d = 0;
         for (final blobItem bi: this.blobs) {
+            if (!bi.mayContain(key)) continue;
             d += bi.blob.replace(key, rewriter);
         }
         return d;
@@ -787,6 +979,7 @@ public class ArrayStack implements BLOB {
     public synchronized int reduce(final byte[] key, final Reducer reduce) throws IOException, RowSpaceExceededException {
         int d = 0;
         for (final blobItem bi: this.blobs) {
+            if (!bi.mayContain(key)) continue;
             d += bi.blob.reduce(key, reduce);
         }
         return d;
@@ -805,9 +998,11 @@ public class ArrayStack implements BLOB {
             final blobItem bi = this.blobs.get(0);
             bi.blob.delete(key);
         } else {
-            final Thread[] t = new Thread[this.blobs.size() - 1];
+            final List<blobItem> candidates = new ArrayList<blobItem>(this.blobs.size());
+            for (final blobItem bi : this.blobs) if (bi.mayContain(key)) candidates.add(bi);
+            final Thread[] t = new Thread[Math.max(0, candidates.size() - 1)];
             int i = 0;
-            for (final blobItem bi: this.blobs) {
+            for (final blobItem bi: candidates) {
                 if (i < t.length) {
                     // run this in a concurrent thread
                     final blobItem bi0 = bi;
@@ -851,99 +1046,119 @@ public class ArrayStack implements BLOB {
     public File mergeMount(final File f1, final File f2,
             final ReferenceFactory<? extends Reference> factory,
             final File newFile, final int writeBuffer) {
-        if (f2 == null) {
+        return mergeMount((f2 == null) ? new File[]{f1} : new File[]{f1, f2}, factory, newFile, writeBuffer);
+    }
+
+    /**
+     * merge any number of blob files into one in a single streaming pass.
+     * If only one file is given, then this file is only rewritten into a new one.
+     * @param files the files to be merged; they must be unmounted before
+     * @param factory
+     * @param newFile
+     * @param writeBuffer
+     * @return the target file where the given files are merged in
+     */
+    public File mergeMount(final File[] files,
+            final ReferenceFactory<? extends Reference> factory,
+            final File newFile, final int writeBuffer) {
+        if (files.length == 1) {
             // this is a rewrite
-            Log.logInfo("BLOBArray", "rewrite of " + f1.getName());
-            final File resultFile = rewriteWorker(factory, this.keylength, this.ordering, f1, newFile, writeBuffer);
+            Log.logInfo("BLOBArray", "rewrite of " + files[0].getName());
+            final File resultFile = rewriteWorker(factory, this.keylength, this.ordering, files[0], newFile, writeBuffer);
             if (resultFile == null) {
-                Log.logWarning("BLOBArray", "rewrite of file " + f1 + " returned null. newFile = " + newFile);
+                Log.logWarning("BLOBArray", "rewrite of file " + files[0] + " returned null. newFile = " + newFile);
                 return null;
             }
             try {
                 mountBLOB(resultFile, false);
             } catch (final IOException e) {
-                Log.logWarning("BLOBArray", "rewrite of file " + f1 + " successfull, but read failed. resultFile = " + resultFile);
+                Log.logWarning("BLOBArray", "rewrite of file " + files[0] + " successfull, but read failed. resultFile = " + resultFile);
                 return null;
             }
-            Log.logInfo("BLOBArray", "rewrite of " + f1.getName() + " into " + resultFile);
-            return resultFile;
-        } else {
-            Log.logInfo("BLOBArray", "merging " + f1.getName() + " with " + f2.getName());
-            final File resultFile = mergeWorker(factory, this.keylength, this.ordering, f1, f2, newFile, writeBuffer);
-            if (resultFile == null) {
-                Log.logWarning("BLOBArray", "merge of files " + f1 + ", " + f2 + " returned null. newFile = " + newFile);
-                return null;
-            }
-            try {
-                mountBLOB(resultFile, false);
-            } catch (final IOException e) {
-                Log.logWarning("BLOBArray", "merge of files " + f1 + ", " + f2 + " successfull, but read failed. resultFile = " + resultFile);
-                return null;
-            }
-            Log.logInfo("BLOBArray", "merged " + f1.getName() + " with " + f2.getName() + " into " + resultFile);
+            Log.logInfo("BLOBArray", "rewrite of " + files[0].getName() + " into " + resultFile);
             return resultFile;
         }
+        final String names = names(files);
+        Log.logInfo("BLOBArray", "merging " + names);
+        final File resultFile = mergeWorker(factory, this.keylength, this.ordering, files, newFile, writeBuffer);
+        if (resultFile == null) {
+            Log.logWarning("BLOBArray", "merge of files " + names + " returned null. newFile = " + newFile);
+            return null;
+        }
+        try {
+            mountBLOB(resultFile, false);
+        } catch (final IOException e) {
+            Log.logWarning("BLOBArray", "merge of files " + names + " successfull, but read failed. resultFile = " + resultFile);
+            return null;
+        }
+        Log.logInfo("BLOBArray", "merged " + names + " into " + resultFile);
+        return resultFile;
+    }
+
+    /**
+     * a list of the file names for log messages
+     * @param files
+     * @return the comma-separated names
+     */
+    public static String names(final File[] files) {
+        final StringBuilder sb = new StringBuilder(files.length * 40);
+        for (final File f: files) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(f.getName());
+        }
+        return sb.toString();
     }
 
     private static <ReferenceType extends Reference> File mergeWorker(
                     final ReferenceFactory<ReferenceType> factory,
-                    final int keylength, final ByteOrder order, final File f1, final File f2, final File newFile, final int writeBuffer) {
-        // iterate both files and write a new one
-        ReferenceIterator<ReferenceType> i1 = null;
+                    final int keylength, final ByteOrder order, final File[] files, final File newFile, final int writeBuffer) {
+        // open an iterator for each file; empty files are not needed for the merge
+        final List<ReferenceIterator<ReferenceType>> iterators = new ArrayList<ReferenceIterator<ReferenceType>>(files.length);
+        final List<File> empty = new ArrayList<File>();
+        File nonEmpty = null;
         try {
-            i1 = new ReferenceIterator<ReferenceType>(f1, factory);
-            ReferenceIterator<ReferenceType> i2 = null;
-            try {
-                i2 = new ReferenceIterator<ReferenceType>(f2, factory);
-                if (!i1.hasNext()) {
-                    if (i2.hasNext()) {
-                        HeapWriter.delete(f1);
-                        if (f2.renameTo(newFile))
-                            return newFile;
-                        return f2;
-                    }
-                    HeapWriter.delete(f1);
-                    HeapWriter.delete(f2);
-                    return null;
-                } else if (!i2.hasNext()) {
-                    HeapWriter.delete(f2);
-                    if (f1.renameTo(newFile))
-                        return newFile;
-                    return f1;
-                }
-                assert i1.hasNext();
-                assert i2.hasNext();
-                final File tmpFile = new File(newFile.getParentFile(), newFile.getName() + ".prt");
+            for (final File f: files) {
+                final ReferenceIterator<ReferenceType> i;
                 try {
-                    final HeapWriter writer = new HeapWriter(tmpFile, newFile, keylength, order, writeBuffer);
-                    merge(i1, i2, order, writer);
-                    writer.close(true);
+                    i = new ReferenceIterator<ReferenceType>(f, factory);
                 } catch (final IOException e) {
-                    Log.logSevere("ArrayStack", "cannot writing or close writing merge, newFile = " + newFile.toString() + ", tmpFile = " + tmpFile.toString() + ": " + e.getMessage(), e);
-                    HeapWriter.delete(tmpFile);
-                    HeapWriter.delete(newFile);
-                    return null;
-                } catch (final RowSpaceExceededException e) {
-                    Log.logSevere("ArrayStack", "cannot merge because of memory failure: " + e.getMessage(), e);
-                    HeapWriter.delete(tmpFile);
-                    HeapWriter.delete(newFile);
+                    Log.logSevere("ArrayStack", "cannot merge because input files cannot be read, f = " + f.toString() + ": " + e.getMessage(), e);
                     return null;
                 }
-                // we don't need the old files any more
-                HeapWriter.delete(f1);
-                HeapWriter.delete(f2);
-                return newFile;
+                iterators.add(i);
+                if (i.hasNext()) nonEmpty = f; else empty.add(f);
+            }
+            if (nonEmpty == null) {
+                for (final File f: files) HeapWriter.delete(f);
+                return null;
+            }
+            if (empty.size() == files.length - 1) {
+                // only one file has content: no need to write anything
+                for (final File f: empty) HeapWriter.delete(f);
+                if (nonEmpty.renameTo(newFile)) return newFile;
+                return nonEmpty;
+            }
+            final File tmpFile = new File(newFile.getParentFile(), newFile.getName() + ".prt");
+            try {
+                final HeapWriter writer = new HeapWriter(tmpFile, newFile, keylength, order, writeBuffer);
+                merge(iterators, order, writer);
+                writer.close(true);
             } catch (final IOException e) {
-                Log.logSevere("ArrayStack", "cannot merge because input files cannot be read, f2 = " + f2.toString() + ": " + e.getMessage(), e);
+                Log.logSevere("ArrayStack", "cannot writing or close writing merge, newFile = " + newFile.toString() + ", tmpFile = " + tmpFile.toString() + ": " + e.getMessage(), e);
+                HeapWriter.delete(tmpFile);
+                HeapWriter.delete(newFile);
+                return null;
+            } catch (final RowSpaceExceededException e) {
+                Log.logSevere("ArrayStack", "cannot merge because of memory failure: " + e.getMessage(), e);
+                HeapWriter.delete(tmpFile);
+                HeapWriter.delete(newFile);
                 return null;
-            } finally {
-                if (i2 != null) i2.close();
             }
-        } catch (final IOException e) {
-            Log.logSevere("ArrayStack", "cannot merge because input files cannot be read, f1 = " + f1.toString() + ": " + e.getMessage(), e);
-            return null;
+            // we don't need the old files any more
+            for (final File f: files) HeapWriter.delete(f);
+            return newFile;
         } finally {
-            if (i1 != null) i1.close();
+            for (final ReferenceIterator<ReferenceType> i: iterators) i.close();
         }
     }
 
@@ -985,103 +1200,61 @@ public class ArrayStack implements BLOB {
         return newFile;
     }
 
+    /**
+     * the current head of a sorted input stream during a merge
+     */
+    private static class MergeHead<ReferenceType extends Reference> {
+        private ReferenceContainer<ReferenceType> container;
+        private final CloneableIterator<ReferenceContainer<ReferenceType>> iterator;
+        private MergeHead(final CloneableIterator<ReferenceContainer<ReferenceType>> iterator) {
+            this.iterator = iterator;
+            this.container = iterator.next();
+        }
+        private boolean advance(final ByteOrder ordering) {
+            if (!this.iterator.hasNext()) return false;
+            final byte[] lh = this.container.getTermHash();
+            this.container = this.iterator.next();
+            assert ordering.compare(this.container.getTermHash(), lh) > 0;
+            return true;
+        }
+    }
+
+    /**
+     * merge the content of several sorted streams using a priority queue over the heads of the streams.
+     * containers with the same term hash are merged into one container
+     * @param iterators
+     * @param ordering
+     * @param writer
+     * @throws IOException
+     * @throws RowSpaceExceededException
+     */
     private static <ReferenceType extends Reference> void merge(
-            final CloneableIterator<ReferenceContainer<ReferenceType>> i1,
-            final CloneableIterator<ReferenceContainer<ReferenceType>> i2,
+            final List<? extends CloneableIterator<ReferenceContainer<ReferenceType>>> iterators,
             final ByteOrder ordering, final HeapWriter writer) throws IOException, RowSpaceExceededException {
-        assert i1.hasNext();
-        assert i2.hasNext();
-        byte[] c1lh, c2lh;
-        ReferenceContainer<ReferenceType> c1, c2;
-        c1 = i1.next();
-        c2 = i2.next();
-        int e, s;
-        while (true) {
-            assert c1 != null;
-            assert c2 != null;
-            e = ordering.compare(c1.getTermHash(), c2.getTermHash());
-            if (e < 0) {
-            	s = c1.shrinkReferences();
-            	if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c1.getTermHash()) + " by " + s + " to " + c1.size() + " entries");
-                writer.add(c1.getTermHash(), c1.exportCollection());
-                if (i1.hasNext()) {
-                    c1lh = c1.getTermHash();
-                    c1 = i1.next();
-                    assert ordering.compare(c1.getTermHash(), c1lh) > 0;
-                    continue;
-                }
-                c1 = null;
-                break;
-            }
-            if (e > 0) {
-                s = c2.shrinkReferences();
-                if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c2.getTermHash()) + " by " + s + " to " + c2.size() + " entries");
-                writer.add(c2.getTermHash(), c2.exportCollection());
-                if (i2.hasNext()) {
-                    c2lh = c2.getTermHash();
-                    c2 = i2.next();
-                    assert ordering.compare(c2.getTermHash(), c2lh) > 0;
-                    continue;
-                }
-                c2 = null;
-                break;
+        final PriorityQueue<MergeHead<ReferenceType>> heads = new PriorityQueue<MergeHead<ReferenceType>>(Math.max(1, iterators.size()), new Comparator<MergeHead<ReferenceType>>() {
+            public int compare(final MergeHead<ReferenceType> o1, final MergeHead<ReferenceType> o2) {
+                return ordering.compare(o1.container.getTermHash(), o2.container.getTermHash());
             }
-            assert e == 0;
-            // merge the entries
-            c1 = c1.merge(c2);
-            s = c1.shrinkReferences();
-            if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c1.getTermHash()) + " by " + s + " to " + c1.size() + " entries");
-            writer.add(c1.getTermHash(), c1.exportCollection());
-            c1lh = c1.getTermHash();
-            c2lh = c2.getTermHash();
-            if (i1.hasNext() && i2.hasNext()) {
-                c1 = i1.next();
-                assert ordering.compare(c1.getTermHash(), c1lh) > 0;
-                c2 = i2.next();
-                assert ordering.compare(c2.getTermHash(), c2lh) > 0;
-                continue;
-            }
-            c1 = null;
-            c2 = null;
-            if (i1.hasNext()) {
-                c1 = i1.next();
-                assert ordering.compare(c1.getTermHash(), c1lh) > 0;
-            }
-            if (i2.hasNext()) {
-                c2 = i2.next();
-                assert ordering.compare(c2.getTermHash(), c2lh) > 0;
-            }
-            break;
-
+        });
+        for (final CloneableIterator<ReferenceContainer<ReferenceType>> i: iterators) {
+            if (i.hasNext()) heads.add(new MergeHead<ReferenceType>(i));
         }
-        // catch up remaining entries
-        assert !(i1.hasNext() && i2.hasNext());
-        assert (c1 == null) || (c2 == null);
-        while (c1 != null) {
-            //System.out.println("FLUSH REMAINING 1: " + c1.getWordHash());
-            s = c1.shrinkReferences();
-            if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c1.getTermHash()) + " by " + s + " to " + c1.size() + " entries");
-            writer.add(c1.getTermHash(), c1.exportCollection());
-            if (i1.hasNext()) {
-                c1lh = c1.getTermHash();
-                c1 = i1.next();
-                assert ordering.compare(c1.getTermHash(), c1lh) > 0;
-            } else {
-                c1 = null;
-            }
-        }
-        while (c2 != null) {
-            //System.out.println("FLUSH REMAINING 2: " + c2.getWordHash());
-            s = c2.shrinkReferences();
-            if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c2.getTermHash()) + " by " + s + " to " + c2.size() + " entries");
-            writer.add(c2.getTermHash(), c2.exportCollection());
-            if (i2.hasNext()) {
-                c2lh = c2.getTermHash();
-                c2 = i2.next();
-                assert ordering.compare(c2.getTermHash(), c2lh) > 0;
-            } else {
-                c2 = null;
+        MergeHead<ReferenceType> head;
+        ReferenceContainer<ReferenceType> c;
+        int s;
+        while (!heads.isEmpty()) {
+            head = heads.poll();
+            c = head.container;
+            if (head.advance(ordering)) heads.add(head);
+            // merge the entries of all other streams with the same term hash
+            while (!heads.isEmpty() && ordering.compare(heads.peek().container.getTermHash(), c.getTermHash()) == 0) {
+                head = heads.poll();
+                c = c.merge(head.container);
+                if (head.advance(ordering)) heads.add(head);
             }
+            s = c.shrinkReferences();
+            if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c.getTermHash()) + " by " + s + " to " + c.size() + " entries");
+            writer.add(c.getTermHash(), ReferenceContainerCodec.export(c));
         }
         // finished with writing
     }
@@ -1098,7 +1271,7 @@ public class ArrayStack implements BLOB {
             assert c != null;
             s = c.shrinkReferences();
             if (s > 0) Log.logInfo("ArrayStack", "shrinking index for " + ASCII.String(c.getTermHash()) + " by " + s + " to " + c.size() + " entries");
-            writer.add(c.getTermHash(), c.exportCollection());
+            writer.add(c.getTermHash(), ReferenceContainerCodec.export(c));
             if (i.hasNext()) {
                 clh = c.getTermHash();
                 c = i.next();
@@ -31,33 +31,60 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.ByteOrder;
 import net.yacy.kelondro.order.CloneableIterator;
+import net.yacy.kelondro.order.NaturalOrder;
 import net.yacy.kelondro.util.ByteArray;
 import net.yacy.kelondro.util.MemoryControl;
 
 
 public class Compressor implements BLOB {
 
-    static byte[] gzipMagic  = {(byte) 'z', (byte) '|'}; // magic for gzip-encoded content
-    static byte[] plainMagic = {(byte) 'p', (byte) '|'}; // magic for plain content (no encoding)
+    static byte[] gzipMagic    = {(byte) 'z', (byte) '|'}; // magic for gzip-encoded content
+    static byte[] deflateMagic = {(byte) 'd', (byte) '|'}; // magic for deflate-encoded content; the magic is followed by the 4-byte length of the plain content
+    static byte[] plainMagic   = {(byte) 'p', (byte) '|'}; // magic for plain content (no encoding)
+
+    /**
+     * a cache for decompressed entries which is shared by all compressors that are created with a cache
+     */
+    public final static RecordCache recordCache = new RecordCache(4 * 1024 * 1024);
+
+    // deflater and inflater are expensive to create; they are re-used
+    private final static int codecPoolSize = 2 * Runtime.getRuntime().availableProcessors();
+    private final static ArrayList<Deflater> deflaterPool = new ArrayList<Deflater>(codecPoolSize);
+    private final static ArrayList<Inflater> inflaterPool = new ArrayList<Inflater>(codecPoolSize);
 
     private final BLOB backend;
     private TreeMap<byte[], byte[]> buffer; // entries which are not yet compressed, format is RAW (without magic)
     private long bufferlength;
     private final long maxbufferlength;
+    private final int cacheOwner; // the owner number in the record cache or -1 if the cache is not used
+    private long deletions; // counts deletions and inserts; an entry is only cached if the counter did not change while it was decompressed
 
     public Compressor(final BLOB backend, final long buffersize) {
+        this(backend, buffersize, false);
+    }
+
+    /**
+     * create a compressor
+     * @param backend the BLOB that stores the compressed entries
+     * @param buffersize the maximum number of bytes of entries that are buffered before they are compressed
+     * @param cache if true, decompressed entries are kept in the shared record cache
+     */
+    public Compressor(final BLOB backend, final long buffersize, final boolean cache) {
         this.backend = backend;
         this.maxbufferlength = buffersize;
+        this.cacheOwner = (cache) ? recordCache.newOwner() : -1;
         initBuffer();
     }
 
@@ -75,6 +102,8 @@ public class Compressor implements BLOB {
 
     public synchronized void clear() throws IOException {
         initBuffer();
+        this.deletions++;
+        if (this.cacheOwner >= 0) recordCache.clear(this.cacheOwner);
         this.backend.clear();
     }
 
@@ -90,31 +119,85 @@ public class Compressor implements BLOB {
     public synchronized void close(final boolean writeIDX) {
         // no more thread is running, flush all queues
         flushAll();
+        if (this.cacheOwner >= 0) recordCache.clear(this.cacheOwner);
         this.backend.close(writeIDX);
     }
 
     private static byte[] compress(final byte[] b) {
         final int l = b.length;
-        if (l < 100) return markWithPlainMagic(b);
-        final byte[] bb = compressAddMagic(b);
+        if (l < 64) return markWithPlainMagic(b);
+        final byte[] bb = deflateAddMagic(b);
         if (bb.length >= l) return markWithPlainMagic(b);
         return bb;
     }
 
-    private static byte[] compressAddMagic(final byte[] b) {
-        // compress a byte array and add a leading magic for the compression
+    /**
+     * compress a byte array with a raw deflate stream and the fastest compression level.
+     * In contrast to the gzip format there is no header and no checksum; the length of
+     * the plain content is stored after the magic, so the decompression needs no stream buffers.
+     */
+    private static byte[] deflateAddMagic(final byte[] b) {
+        Deflater deflater;
+        synchronized (deflaterPool) {
+            deflater = (deflaterPool.isEmpty()) ? null : deflaterPool.remove(deflaterPool.size() - 1);
+        }
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
         try {
-            //System.out.print("/(" + cdr + ")"); // DEBUG
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream(b.length / 5);
-            baos.write(gzipMagic);
-            final OutputStream os = new GZIPOutputStream(baos, 512);
-            os.write(b);
-            os.close();
-            baos.close();
-            return baos.toByteArray();
-        } catch (final IOException e) {
-            Log.logSevere("Compressor", "", e);
-            return null;
+            deflater.setInput(b);
+            deflater.finish();
+            byte[] r = new byte[b.length + 6];
+            r[0] = deflateMagic[0];
+            r[1] = deflateMagic[1];
+            NaturalOrder.encodeLong(b.length, r, 2, 4);
+            int p = 6;
+            while (!deflater.finished()) {
+                if (p == r.length) {
+                    // the compressed content is not smaller than the plain content
+                    return r;
+                }
+                p += deflater.deflate(r, p, r.length - p);
+            }
+            if (p == r.length) return r;
+            final byte[] c = new byte[p];
+            System.arraycopy(r, 0, c, 0, p);
+            r = null;
+            return c;
+        } finally {
+            deflater.reset();
+            synchronized (deflaterPool) {
+                if (deflaterPool.size() < codecPoolSize) deflaterPool.add(deflater); else deflater.end();
+            }
+        }
+    }
+
+    private static byte[] inflate(final byte[] b) throws IOException {
+        final int l = (int) NaturalOrder.decodeLong(b, 2, 4);
+        Inflater inflater;
+        synchronized (inflaterPool) {
+            inflater = (inflaterPool.isEmpty()) ? null : inflaterPool.remove(inflaterPool.size() - 1);
+        }
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            // the raw inflater needs one extra byte after the input, see the documentation of Inflater(boolean)
+            final byte[] input = new byte[b.length - 6 + 1];
+            System.arraycopy(b, 6, input, 0, b.length - 6);
+            inflater.setInput(input);
+            final byte[] r = new byte[l];
+            int p = 0;
+            while (p < l) {
+                final int n = inflater.inflate(r, p, l - p);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                p += n;
+            }
+            if (p != l) throw new IOException("deflated content is truncated: " + p + " of " + l + " bytes");
+            return r;
+        } catch (final DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            inflater.reset();
+            synchronized (inflaterPool) {
+                if (inflaterPool.size() < codecPoolSize) inflaterPool.add(inflater); else inflater.end();
+            }
         }
     }
 
@@ -130,7 +213,14 @@ public class Compressor implements BLOB {
     private static byte[] decompress(final byte[] b) {
         // use a magic in the head of the bytes to identify compression type
         if (b == null) return null;
-        if (ByteArray.startsWith(b, gzipMagic)) {
+        if (b.length >= 6 && ByteArray.startsWith(b, deflateMagic)) {
+            try {
+                return inflate(b);
+            } catch (final IOException e) {
+                Log.logException(e);
+                return null;
+            }
+        } else if (ByteArray.startsWith(b, gzipMagic)) {
             //System.out.print("\\"); // DEBUG
             final ByteArrayInputStream bais = new ByteArrayInputStream(b);
             // eat up the magic
@@ -177,13 +267,30 @@ public class Compressor implements BLOB {
             }
         }
 
+        // return from the cache
+        if (this.cacheOwner >= 0) {
+            b = recordCache.get(this.cacheOwner, key);
+            if (b != null) return b.clone();
+        }
+
         // return from the backend
+        final long d;
+        synchronized (this) {
+            d = this.deletions;
+        }
         b = this.backend.get(key);
         if (b == null) return null;
         if (!MemoryControl.request(b.length * 2, true)) {
             throw new RowSpaceExceededException(b.length * 2, "decompress needs 2 * " + b.length + " bytes");
         }
-        return decompress(b);
+        b = decompress(b);
+        if (b != null && this.cacheOwner >= 0) {
+            synchronized (this) {
+                // do not cache the entry if an entry was written or deleted during decompression
+                if (d == this.deletions) recordCache.put(this.cacheOwner, key, b.clone());
+            }
+        }
+        return b;
     }
 
     public byte[] get(final Object key) {
@@ -221,9 +328,15 @@ public class Compressor implements BLOB {
         synchronized (this) {
             byte[] b = this.buffer.get(key);
             if (b != null) return b.length;
+            if (this.cacheOwner >= 0) {
+                b = recordCache.get(this.cacheOwner, key);
+                if (b != null) return b.length;
+            }
             try {
                 b = this.backend.get(key);
                 if (b == null) return 0;
+                // deflated entries store the length of the plain content
+                if (b.length >= 6 && ByteArray.startsWith(b, deflateMagic)) return NaturalOrder.decodeLong(b, 2, 4);
                 b = decompress(b);
                 return (b == null) ? 0 : b.length;
             } catch (final RowSpaceExceededException e) {
@@ -266,6 +379,8 @@ public class Compressor implements BLOB {
     }
 
     public synchronized void delete(final byte[] key) throws IOException {
+        this.deletions++;
+        if (this.cacheOwner >= 0) recordCache.remove(this.cacheOwner, key);
         this.backend.delete(key);
         final long rx = removeFromQueues(key);
         if (rx > 0) this.bufferlength -= rx;
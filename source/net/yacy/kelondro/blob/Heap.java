@@ -28,8 +28,10 @@ package net.yacy.kelondro.blob;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -85,7 +87,25 @@ public final class Heap extends HeapModifier implements BLOB {
             final int keylength,
             final ByteOrder ordering,
             int buffermax) throws IOException {
-        super(heapFile, keylength, ordering);
+        this(heapFile, keylength, ordering, buffermax, false);
+    }
+
+    /**
+     * create a heap file with a choice of the index implementation
+     * @param heapFile
+     * @param keylength
+     * @param ordering
+     * @param buffermax
+     * @param offHeapIndex if true, the index of the heap file is stored outside of the java heap
+     * @throws IOException
+     */
+    public Heap(
+            final File heapFile,
+            final int keylength,
+            final ByteOrder ordering,
+            int buffermax,
+            final boolean offHeapIndex) throws IOException {
+        super(heapFile, keylength, ordering, offHeapIndex);
         this.buffermax = buffermax;
         this.buffer = new TreeMap<byte[], byte[]>(ordering);
         this.buffersize = 0;
@@ -108,6 +128,14 @@ public final class Heap extends HeapModifier implements BLOB {
         */
     }
     
+    /**
+     * a heap gets new entries, therefore no bloom filter is used for it
+     */
+    @Override
+    protected boolean useBloomFilter() {
+        return false;
+    }
+    
     /**
      * the number of BLOBs in the heap
      * @return the number of BLOBs in the heap
@@ -255,6 +283,56 @@ public final class Heap extends HeapModifier implements BLOB {
         }
     }
 
+    /**
+     * read the blobs for many keys from the heap; blobs in the write buffer are taken from the buffer
+     * @param keys
+     * @return an array with the blobs in the same order as the keys; an element is null if the key does not exist
+     * @throws IOException
+     */
+    @Override
+    public byte[][] get(final List<byte[]> keys) throws IOException, RowSpaceExceededException {
+        synchronized (this) {
+            if (this.buffer == null || this.buffer.isEmpty()) return super.get(keys);
+            final byte[][] blobs = new byte[keys.size()][];
+            final List<byte[]> fromFile = new ArrayList<byte[]>(keys.size());
+            final List<Integer> fromFileIndex = new ArrayList<Integer>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                blobs[i] = this.buffer.get(normalizeKey(keys.get(i)));
+                if (blobs[i] == null) {
+                    fromFile.add(keys.get(i));
+                    fromFileIndex.add(i);
+                }
+            }
+            if (fromFile.isEmpty()) return blobs;
+            final byte[][] b = super.get(fromFile);
+            for (int i = 0; i < b.length; i++) blobs[fromFileIndex.get(i).intValue()] = b[i];
+            return blobs;
+        }
+    }
+
+    /**
+     * read the beginning of a blob from the heap
+     * @param key
+     * @param maxLength the maximum number of bytes that are read from the beginning of the blob
+     * @return the first bytes of the blob or the complete blob if it is not longer than maxLength
+     * @throws IOException
+     */
+    @Override
+    public byte[] get(byte[] key, final int maxLength) throws IOException, RowSpaceExceededException {
+        key = normalizeKey(key);
+
+        synchronized (this) {
+            // check the buffer
+            assert buffer != null;
+            if (buffer != null) {
+                byte[] blob = this.buffer.get(key);
+                if (blob != null) return blob;
+            }
+
+            return super.get(key, maxLength);
+        }
+    }
+
     /**
      * retrieve the size of the BLOB
      * @param key
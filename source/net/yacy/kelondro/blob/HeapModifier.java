@@ -55,7 +55,11 @@ public class HeapModifier extends HeapReader implements BLOB {
      * @throws IOException
      */
     public HeapModifier(final File heapFile, final int keylength, final ByteOrder ordering) throws IOException {
-        super(heapFile, keylength, ordering);
+        this(heapFile, keylength, ordering, false);
+    }
+
+    public HeapModifier(final File heapFile, final int keylength, final ByteOrder ordering, final boolean offHeapIndex) throws IOException {
+        super(heapFile, keylength, ordering, offHeapIndex);
     }
     
     /**
@@ -63,13 +67,20 @@ public class HeapModifier extends HeapReader implements BLOB {
      * @throws IOException
      */
     public synchronized void clear() throws IOException {
-        this.index.clear();
-        this.free.clear();
-        this.file.close();
-        this.file = null;
-        FileUtils.deletedelete(this.heapFile);
-        super.deleteFingerprint();
-        this.file = new CachedFileWriter(heapFile);
+        this.content.writeLock().lock();
+        try {
+            this.index.clear();
+            this.free.clear();
+            if (this.bloom != null) this.bloom.clear();
+            this.file.close();
+            this.file = null;
+            super.closeChannel();
+            FileUtils.deletedelete(this.heapFile);
+            super.deleteFingerprint();
+            this.file = new CachedFileWriter(heapFile);
+        } finally {
+            this.content.writeLock().unlock();
+        }
     }
 
     /**
@@ -104,38 +115,43 @@ public class HeapModifier extends HeapReader implements BLOB {
         if (seek < 0) return;
         
         synchronized (this) {
-            // check again if the index contains the key
-            seek = index.get(key);
-            if (seek < 0) return;
+            this.content.writeLock().lock();
+            try {
+                // check again if the index contains the key
+                seek = index.get(key);
+                if (seek < 0) return;
             
-            // check consistency of the index
-            //assert (checkKey(key, seek)) : "key compare failed; key = " + UTF8.String(key) + ", seek = " + seek;
+                // check consistency of the index
+                //assert (checkKey(key, seek)) : "key compare failed; key = " + UTF8.String(key) + ", seek = " + seek;
             
-            // access the file and read the container
-            this.file.seek(seek);
-            int size = file.readInt();
-            //assert seek + size + 4 <= this.file.length() : heapFile.getName() + ": too long size " + size + " in record at " + seek;
-            long filelength = this.file.length(); // put in separate variable for debugging
-            if (seek + size + 4 > filelength) {
-                Log.logSevere("BLOBHeap", heapFile.getName() + ": too long size " + size + " in record at " + seek);
-                throw new IOException(heapFile.getName() + ": too long size " + size + " in record at " + seek);
-            }
-            super.deleteFingerprint();
+                // access the file and read the container
+                this.file.seek(seek);
+                int size = file.readInt();
+                //assert seek + size + 4 <= this.file.length() : heapFile.getName() + ": too long size " + size + " in record at " + seek;
+                long filelength = this.file.length(); // put in separate variable for debugging
+                if (seek + size + 4 > filelength) {
+                    Log.logSevere("BLOBHeap", heapFile.getName() + ": too long size " + size + " in record at " + seek);
+                    throw new IOException(heapFile.getName() + ": too long size " + size + " in record at " + seek);
+                }
+                super.deleteFingerprint();
             
-            // add entry to free array
-            this.free.put(seek, size);
+                // add entry to free array
+                this.free.put(seek, size);
             
-            // fill zeros to the content
-            int l = size; byte[] fill = new byte[size];
-            while (l-- > 0) fill[l] = 0;
-            this.file.write(fill, 0, size);
+                // fill zeros to the content
+                int l = size; byte[] fill = new byte[size];
+                while (l-- > 0) fill[l] = 0;
+                this.file.write(fill, 0, size);
             
-            // remove entry from index
-            this.index.remove(key);
+                // remove entry from index
+                this.index.remove(key);
             
-            // recursively merge gaps
-            tryMergeNextGaps(seek, size);
-            tryMergePreviousGap(seek);
+                // recursively merge gaps
+                tryMergeNextGaps(seek, size);
+                tryMergePreviousGap(seek);
+            } finally {
+                this.content.writeLock().unlock();
+            }
         }
     }
     
@@ -255,67 +271,72 @@ public class HeapModifier extends HeapReader implements BLOB {
         if (pos < 0) return 0;
         
         synchronized (this) {
-            long m = this.mem();
+            this.content.writeLock().lock();
+            try {
+                long m = this.mem();
             
-            // check again if the index contains the key
-            pos = index.get(key);
-            if (pos < 0) return 0;
+                // check again if the index contains the key
+                pos = index.get(key);
+                if (pos < 0) return 0;
             
-            // check consistency of the index
-            //assert checkKey(key, pos) : "key compare failed; key = " + UTF8.String(key) + ", seek = " + pos;
+                // check consistency of the index
+                //assert checkKey(key, pos) : "key compare failed; key = " + UTF8.String(key) + ", seek = " + pos;
             
-            // access the file and read the container
-            file.seek(pos);
-            final int len = file.readInt() - this.keylength;
-            if (MemoryControl.available() < len) {
-                if (!MemoryControl.request(len, true)) return 0; // not enough memory available for this blob
-            }
-            super.deleteFingerprint();
+                // access the file and read the container
+                file.seek(pos);
+                final int len = file.readInt() - this.keylength;
+                if (MemoryControl.available() < len) {
+                    if (!MemoryControl.request(len, true)) return 0; // not enough memory available for this blob
+                }
+                super.deleteFingerprint();
             
-            // read the key
-            final byte[] keyf = new byte[this.keylength];
-            file.readFully(keyf, 0, keyf.length);
-            assert this.ordering.equal(key, keyf);
+                // read the key
+                final byte[] keyf = new byte[this.keylength];
+                file.readFully(keyf, 0, keyf.length);
+                assert this.ordering.equal(key, keyf);
             
-            // read the blob
-            byte[] blob = new byte[len];
-            file.readFully(blob, 0, blob.length);
+                // read the blob
+                byte[] blob = new byte[len];
+                file.readFully(blob, 0, blob.length);
             
-            // rewrite the entry
-            blob = reducer.rewrite(blob);
-            int reduction = len - blob.length;
-            if (reduction == 0) {
-                // even if the reduction is zero then it is still be possible that the record has been changed
-                this.file.seek(pos + 4 + key.length);
-                file.write(blob);
-                return 0;
-            }
+                // rewrite the entry
+                blob = reducer.rewrite(blob);
+                int reduction = len - blob.length;
+                if (reduction == 0) {
+                    // even if the reduction is zero then it is still be possible that the record has been changed
+                    this.file.seek(pos + 4 + key.length);
+                    file.write(blob);
+                    return 0;
+                }
             
-            // the new entry must be smaller than the old entry and must at least be 4 bytes smaller
-            // because that is the space needed to write a new empty entry record at the end of the gap
-            if (blob.length > len - 4) throw new IOException("replace of BLOB for key " + UTF8.String(key) + " failed (too large): new size = " + blob.length + ", old size = " + (len - 4));
+                // the new entry must be smaller than the old entry and must at least be 4 bytes smaller
+                // because that is the space needed to write a new empty entry record at the end of the gap
+                if (blob.length > len - 4) throw new IOException("replace of BLOB for key " + UTF8.String(key) + " failed (too large): new size = " + blob.length + ", old size = " + (len - 4));
             
-            // replace old content
-            this.file.seek(pos);
-            file.writeInt(blob.length + key.length);
-            file.write(key);
-            file.write(blob);
+                // replace old content
+                this.file.seek(pos);
+                file.writeInt(blob.length + key.length);
+                file.write(key);
+                file.write(blob);
             
-            // define the new empty entry
-            final int newfreereclen = reduction - 4;
-            assert newfreereclen >= 0;
-            file.writeInt(newfreereclen);
+                // define the new empty entry
+                final int newfreereclen = reduction - 4;
+                assert newfreereclen >= 0;
+                file.writeInt(newfreereclen);
             
-            // fill zeros to the content
-            int l = newfreereclen; byte[] fill = new byte[newfreereclen];
-            while (l-- > 0) fill[l] = 0;
-            this.file.write(fill, 0, newfreereclen);
+                // fill zeros to the content
+                int l = newfreereclen; byte[] fill = new byte[newfreereclen];
+                while (l-- > 0) fill[l] = 0;
+                this.file.write(fill, 0, newfreereclen);
             
-            // add a new free entry
-            this.free.put(pos + 4 + blob.length + key.length, newfreereclen);
+                // add a new free entry
+                this.free.put(pos + 4 + blob.length + key.length, newfreereclen);
             
-            assert mem() <= m : "m = " + m + ", mem() = " + mem();
-            return reduction;
+                assert mem() <= m : "m = " + m + ", mem() = " + mem();
+                return reduction;
+            } finally {
+                this.content.writeLock().unlock();
+            }
         }
     }
 
@@ -29,15 +29,28 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.UTF8;
+import net.yacy.kelondro.index.BloomFilter;
 import net.yacy.kelondro.index.HandleMap;
+import net.yacy.kelondro.index.OffHeapHandleMap;
+import net.yacy.kelondro.index.RowHandleMap;
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.io.CachedFileWriter;
 import net.yacy.kelondro.io.Writer;
@@ -58,6 +71,7 @@ public class HeapReader {
     
     // input values
     protected int                keylength;  // the length of the primary key
+    protected final boolean      offHeapIndex; // if true, the index is stored outside of the java heap
     protected File               heapFile;   // the file of the heap
     protected final ByteOrder    ordering;   // the ordering on keys
     
@@ -65,23 +79,38 @@ public class HeapReader {
     protected Writer             file;       // a random access to the file
     protected HandleMap          index;      // key/seek relation for used records
     protected Gap                free;       // set of {seek, size} pairs denoting space and position of free records
-    private   File               fingerprintFileIdx, fingerprintFileGap; // files with dumped indexes. Will be deleted if file is written
+    protected BloomFilter        bloom;      // filter of all keys in the index; null if the heap is not sealed
+    private   File               fingerprintFileIdx, fingerprintFileGap, fingerprintFileBloom; // files with dumped indexes. Will be deleted if file is written
+    private volatile FileChannel channel;    // a read-only channel for positional reads; shared by all concurrent readers
+    protected final ReentrantReadWriteLock content; // readers share the read lock; modifications of records inside the file need the write lock
     
     public HeapReader(
             final File heapFile,
             final int keylength,
             final ByteOrder ordering) throws IOException {
+        this(heapFile, keylength, ordering, false);
+    }
+    
+    public HeapReader(
+            final File heapFile,
+            final int keylength,
+            final ByteOrder ordering,
+            final boolean offHeapIndex) throws IOException {
         this.ordering = ordering;
         this.heapFile = heapFile;
         this.keylength = keylength;
+        this.offHeapIndex = offHeapIndex;
         this.index = null; // will be created as result of initialization process
         this.free = null; // will be initialized later depending on existing idx/gap file
+        this.channel = null; // will be opened with the first positional read
+        this.content = new ReentrantReadWriteLock();
         this.heapFile.getParentFile().mkdirs();
         this.file = new CachedFileWriter(this.heapFile);
         
         // read or initialize the index
         fingerprintFileIdx = null;
         fingerprintFileGap = null;
+        fingerprintFileBloom = null;
         if (initIndexReadDump()) {
             // verify that everything worked just fine
             // pick some elements of the index
@@ -114,6 +143,9 @@ public class HeapReader {
         // merge gaps that follow directly
         mergeFreeEntries();
         
+        // read or generate the bloom filter for the keys
+        this.bloom = (useBloomFilter()) ? initBloomFilter() : null;
+        
         // after the initial initialization of the heap, we close the file again
         // to make more room to file pointers which may run out if the number
         // of file descriptors is too low and the number of files is too high
@@ -129,6 +161,46 @@ public class HeapReader {
         this.index.trim();
     }
     
+    /**
+     * a bloom filter is only useful for heaps that do not get new entries after initialization.
+     * Subclasses that write new entries must overwrite this and return false.
+     * @return true if a bloom filter for the keys shall be maintained
+     */
+    protected boolean useBloomFilter() {
+        return true;
+    }
+    
+    private BloomFilter initBloomFilter() {
+        // look for a dump of the bloom filter; if it does not exist, generate a new filter from the index
+        String fingerprint = (this.fingerprintFileIdx == null) ? null : fingerprintFileHash(this.heapFile);
+        if (fingerprint != null) {
+            this.fingerprintFileBloom = HeapWriter.fingerprintBloomFile(this.heapFile, fingerprint);
+            if (this.fingerprintFileBloom.exists()) try {
+                final BloomFilter b = BloomFilter.load(this.fingerprintFileBloom);
+                if (b.size() == this.index.size()) return b;
+                Log.logWarning("HeapReader", "bloom filter dump " + this.fingerprintFileBloom.getName() + " does not fit to index, re-building filter");
+            } catch (IOException e) {
+                Log.logException(e);
+            }
+            this.fingerprintFileBloom = null;
+        }
+        final BloomFilter b = new BloomFilter(this.index.size(), BloomFilter.defaultFalsePositiveRate);
+        b.addAll(this.index.keys(true, null));
+        return b;
+    }
+    
+    /**
+     * test if the heap may contain a given key. This does not need any IO and is cheaper than
+     * containsKey because it uses only the bloom filter of the sealed heap file.
+     * @param key
+     * @return false if the key is certainly not in the heap, true if it may be in the heap
+     */
+    public boolean mayContain(byte[] key) {
+        final BloomFilter b = this.bloom;
+        if (b == null) return true;
+        return b.mayContain(normalizeKey(key));
+    }
+    
     protected byte[] normalizeKey(byte[] key) {
         // check size of key: zero-filled keys are only possible of the ordering is
         // an instance of the natural ordering. Base64-orderings cannot use zeros in keys.
@@ -170,7 +242,9 @@ public class HeapReader {
         // there is an index and a gap file:
         // read the index file:
         try {
-            this.index = new HandleMap(this.keylength, this.ordering, 8, this.fingerprintFileIdx);
+            this.index = (this.offHeapIndex) ?
+                    new OffHeapHandleMap(this.keylength, this.ordering, 8, this.fingerprintFileIdx) :
+                    new RowHandleMap(this.keylength, this.ordering, 8, this.fingerprintFileIdx);
         } catch (IOException e) {
             Log.logException(e);
             return false;
@@ -210,6 +284,10 @@ public class HeapReader {
             FileUtils.deletedelete(this.fingerprintFileGap);
             this.fingerprintFileGap = null;
         }
+        if (this.fingerprintFileBloom != null) {
+            FileUtils.deletedelete(this.fingerprintFileBloom);
+            this.fingerprintFileBloom = null;
+        }
     }
     
     protected static String fingerprintFileHash(File f) {
@@ -231,6 +309,7 @@ public class HeapReader {
             if (exception2 != null && l[i].equals(exception2)) continue;
             if (l[i].endsWith(".idx") ||
                 l[i].endsWith(".gap") ||
+                l[i].endsWith(".blm") ||
                 l[i].endsWith(".idx.gz") ||
                 l[i].endsWith(".gap.gz")
                ) FileUtils.deletedelete(new File(d, l[i]));
@@ -242,7 +321,10 @@ public class HeapReader {
         Log.logInfo("HeapReader", "generating index for " + heapFile.toString() + ", " + (file.length() / 1024 / 1024) + " MB. Please wait.");
         
         this.free = new Gap();
-        HandleMap.initDataConsumer indexready = HandleMap.asynchronusInitializer(this.name() + ".initializer", keylength, this.ordering, 8, Math.max(10, (int) (Runtime.getRuntime().freeMemory() / (10 * 1024 * 1024))));
+        final int expectedspace = Math.max(10, (int) (Runtime.getRuntime().freeMemory() / (10 * 1024 * 1024)));
+        RowHandleMap.initDataConsumer indexready = RowHandleMap.asynchronusInitializer((this.offHeapIndex) ?
+                new OffHeapHandleMap(keylength, this.ordering, 8, expectedspace, this.name() + ".initializer") :
+                new RowHandleMap(keylength, this.ordering, 8, expectedspace, this.name() + ".initializer"));
         byte[] key = new byte[keylength];
         int reclen;
         long seek = 0;
@@ -365,13 +447,13 @@ public class HeapReader {
      * @return true if the key exists, false otherwise
      */
     public boolean containsKey(byte[] key) {
-        assert index != null;
+        final HandleMap idx = this.index;
+        assert idx != null;
+        if (idx == null) return false;
         key = normalizeKey(key);
         
-        synchronized (this.index) {
-            // check if the file index contains the key
-            return index.get(key) >= 0;
-        }
+        // check if the file index contains the key; the index is thread-safe itself
+        return idx.get(key) >= 0;
     }
 
     public ByteOrder ordering() {
@@ -399,11 +481,12 @@ public class HeapReader {
      * @throws IOException
      */
     protected byte[] first() throws IOException, RowSpaceExceededException {
+        final byte[] key;
         synchronized (this.index) {
-            byte[] key = index.smallestKey();
-            if (key == null) return null;
-            return get(key);
+            key = index.smallestKey();
         }
+        if (key == null) return null;
+        return get(key); // must be outside of the index monitor, get() acquires the content lock
     }
     
     /**
@@ -427,77 +510,176 @@ public class HeapReader {
      * @throws IOException
      */
     protected byte[] last() throws IOException, RowSpaceExceededException {
+        final byte[] key;
         synchronized (this.index) {
-            byte[] key = index.largestKey();
-            if (key == null) return null;
-            return get(key);
+            key = index.largestKey();
         }
+        if (key == null) return null;
+        return get(key); // must be outside of the index monitor, get() acquires the content lock
     }
     
     /**
      * read a blob from the heap
+     * the record is read with positional reads on a shared channel; there is no common file pointer
+     * and therefore many threads can read from the same heap at the same time. Only modifications
+     * of records inside the file (deletions and reductions) exclude readers for a short time.
      * @param key
      * @return
      * @throws IOException
      */
     public byte[] get(byte[] key) throws IOException, RowSpaceExceededException {
-        if (this.index == null) return null;
+        return read(key, Integer.MAX_VALUE);
+    }
+
+    /**
+     * read the beginning of a blob from the heap
+     * @param key
+     * @param maxLength the maximum number of bytes that are read from the beginning of the blob
+     * @return the first bytes of the blob or the complete blob if it is not longer than maxLength
+     * @throws IOException
+     * @throws RowSpaceExceededException
+     */
+    public byte[] get(byte[] key, final int maxLength) throws IOException, RowSpaceExceededException {
+        return read(key, maxLength);
+    }
+
+    private byte[] read(byte[] key, final int maxLength) throws IOException, RowSpaceExceededException {
+        final HandleMap idx = this.index;
+        if (idx == null) return null;
         key = normalizeKey(key);
        
-        synchronized (this.index) {
+        final long pos;
+        this.content.readLock().lock();
+        try {
             // check if the index contains the key
-            final long pos = index.get(key);
+            if (this.index == null) return null; // closed in the meantime
+            pos = idx.get(key);
             if (pos < 0) return null;
-            
-            // access the file and read the container
-            file.seek(pos);
-            final int len = file.readInt() - index.row().primaryKeyLength;
-            if (len < 0) {
-                // database file may be corrupted and should be deleted :-((
-                Log.logSevere("HeapReader", "file " + file.file() + " corrupted at " + pos + ": negative len. len = " + len + ", pk.len = " + index.row().primaryKeyLength);
-                // to get lazy over that problem (who wants to tell the user to stop operation and delete the file???) we work on like the entry does not exist
-                index.remove(key);
-                return null;
-            }
-            long memr = len + index.row().primaryKeyLength + 64;
-            if (MemoryControl.available() < memr) {
-                if (!MemoryControl.request(memr, true)) throw new RowSpaceExceededException(memr, "HeapReader.get()/check"); // not enough memory available for this blob
-            }
-            
-            // read the key
-            byte[] keyf;
-            try {
-                keyf = new byte[index.row().primaryKeyLength];
-            } catch (OutOfMemoryError e) {
-                throw new RowSpaceExceededException(index.row().primaryKeyLength, "HeapReader.get()/keyf");
-            }
-            file.readFully(keyf, 0, keyf.length);
-            if (!this.ordering.equal(key, keyf)) {
-                // verification of the indexed access failed. we must re-read the index
-                Log.logSevere("HeapReader", "indexed verification access failed for " + heapFile.toString());
-                // this is a severe operation, it should never happen.
-                // remove entry from index because keeping that element in the index would not make sense
-                index.remove(key);
-                // nothing to return
-                return null;
-                // but if the process ends in this state, it would completely fail
-                // if the index is not rebuild now at once
-                //initIndexReadFromHeap();
+            final byte[] blob = readRecord(idx, key, pos, maxLength);
+            if (blob != null) return blob;
+        } finally {
+            this.content.readLock().unlock();
+        }
+        // the record is corrupted; the index can only be changed after the read lock is released
+        removeCorrupted(idx, key, pos);
+        return null;
+    }
+
+    /**
+     * read the blobs for many keys from the heap.
+     * The records are read in the order of their position in the heap file, so the file is read in one
+     * direction only and not once for each key in the order of the keys.
+     * @param keys
+     * @return an array with the blobs in the same order as the keys; an element is null if the key does not exist
+     * @throws IOException
+     * @throws RowSpaceExceededException
+     */
+    public byte[][] get(final List<byte[]> keys) throws IOException, RowSpaceExceededException {
+        final byte[][] blobs = new byte[keys.size()][];
+        final HandleMap idx = this.index;
+        if (idx == null) return blobs;
+        final byte[][] nkeys = new byte[keys.size()][];
+        final long[] pos = new long[keys.size()];
+        final List<Integer> corrupted = new ArrayList<Integer>(0);
+
+        this.content.readLock().lock();
+        try {
+            if (this.index == null) return blobs; // closed in the meantime
+
+            // find the positions of all records and sort the keys by these positions
+            final List<Integer> found = new ArrayList<Integer>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                nkeys[i] = normalizeKey(keys.get(i));
+                pos[i] = idx.get(nkeys[i]);
+                if (pos[i] >= 0) found.add(i);
             }
-            
-            // read the blob
-            byte[] blob;
-            try {
-                blob = new byte[len];
-            } catch (OutOfMemoryError e) {
-                throw new RowSpaceExceededException(len, "HeapReader.get()/blob");
+            Collections.sort(found, new Comparator<Integer>() {
+                public int compare(final Integer o1, final Integer o2) {
+                    final long p1 = pos[o1.intValue()], p2 = pos[o2.intValue()];
+                    return (p1 < p2) ? -1 : (p1 > p2) ? 1 : 0;
+                }
+            });
+
+            // read the records
+            for (final Integer i: found) {
+                blobs[i.intValue()] = readRecord(idx, nkeys[i.intValue()], pos[i.intValue()], Integer.MAX_VALUE);
+                if (blobs[i.intValue()] == null) corrupted.add(i);
             }
-            file.readFully(blob, 0, blob.length);
-            
-            return blob;
+        } finally {
+            this.content.readLock().unlock();
+        }
+        for (final Integer i: corrupted) removeCorrupted(idx, nkeys[i.intValue()], pos[i.intValue()]);
+        return blobs;
+    }
+
+    /**
+     * remove the index entry of a corrupted record. This needs the write lock, therefore the caller
+     * must not hold the read lock. The entry is only removed if the key still points to the corrupted
+     * position, because another thread may have written the key again in the meantime.
+     */
+    private void removeCorrupted(final HandleMap idx, final byte[] key, final long pos) {
+        this.content.writeLock().lock();
+        try {
+            if (this.index == null) return; // closed in the meantime
+            if (idx.get(key) == pos) idx.remove(key);
+        } finally {
+            this.content.writeLock().unlock();
         }
     }
 
+    /**
+     * read a record at a given position; the content lock must be held by the caller.
+     * If the record is corrupted, null is returned and the caller must remove the index entry
+     * with removeCorrupted() after the lock is released.
+     */
+    private byte[] readRecord(final HandleMap idx, final byte[] key, final long pos, final int maxLength) throws IOException, RowSpaceExceededException {
+        // access the file and read the record header: length and key
+        final int keylen = idx.row().primaryKeyLength;
+        byte[] header;
+        try {
+            header = new byte[4 + keylen];
+        } catch (OutOfMemoryError e) {
+            throw new RowSpaceExceededException(keylen, "HeapReader.get()/keyf");
+        }
+        readFully(pos, header);
+        final int reclen = array2int(header) - keylen;
+        final int len = Math.min(reclen, maxLength);
+        if (reclen < 0) {
+            // database file may be corrupted and should be deleted :-((
+            Log.logSevere("HeapReader", "file " + this.heapFile + " corrupted at " + pos + ": negative len. len = " + reclen + ", pk.len = " + keylen);
+            // to get lazy over that problem (who wants to tell the user to stop operation and delete the file???) we work on like the entry does not exist
+            return null;
+        }
+        long memr = len + keylen + 64;
+        if (MemoryControl.available() < memr) {
+            if (!MemoryControl.request(memr, true)) throw new RowSpaceExceededException(memr, "HeapReader.get()/check"); // not enough memory available for this blob
+        }
+        
+        // verify the key
+        if (!this.ordering.equal(key, 0, header, 4, keylen)) {
+            // verification of the indexed access failed. we must re-read the index
+            Log.logSevere("HeapReader", "indexed verification access failed for " + heapFile.toString());
+            // this is a severe operation, it should never happen.
+            // the caller removes the entry from the index because keeping that element in the index would not make sense
+            // nothing to return
+            return null;
+            // but if the process ends in this state, it would completely fail
+            // if the index is not rebuild now at once
+            //initIndexReadFromHeap();
+        }
+        
+        // read the blob
+        byte[] blob;
+        try {
+            blob = new byte[len];
+        } catch (OutOfMemoryError e) {
+            throw new RowSpaceExceededException(len, "HeapReader.get()/blob");
+        }
+        readFully(pos + 4 + keylen, blob);
+        
+        return blob;
+    }
+
     public byte[] get(Object key) {
         if (!(key instanceof byte[])) return null;
         try {
@@ -528,16 +710,86 @@ public class HeapReader {
      * @throws IOException
      */
     public long length(byte[] key) throws IOException {
+        final HandleMap idx = this.index;
+        if (idx == null) return -1;
         key = normalizeKey(key);
         
-        synchronized (this.index) {
+        this.content.readLock().lock();
+        try {
             // check if the index contains the key
-            final long pos = index.get(key);
+            if (this.index == null) return -1; // closed in the meantime
+            final long pos = idx.get(key);
             if (pos < 0) return -1;
             
             // access the file and read the size of the container
-            file.seek(pos);
-            return file.readInt() - index.row().primaryKeyLength;
+            final byte[] reclen = new byte[4];
+            readFully(pos, reclen);
+            return array2int(reclen) - idx.row().primaryKeyLength;
+        } finally {
+            this.content.readLock().unlock();
+        }
+    }
+    
+    private final static int array2int(final byte[] b) {
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+    
+    /**
+     * read bytes from the heap file at a given position without moving a shared file pointer.
+     * The channel is opened lazily and re-opened if another thread closed it by an interrupt.
+     * @param pos the position in the heap file
+     * @param b the array that is filled completely
+     * @throws IOException if the end of the file is reached or the read fails
+     */
+    private void readFully(final long pos, final byte[] b) throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(b);
+        long p = pos;
+        int c;
+        FileChannel fc = channel();
+        while (bb.hasRemaining()) {
+            try {
+                c = fc.read(bb, p);
+            } catch (final ClosedByInterruptException e) {
+                // this thread was interrupted; the channel is closed for all other readers
+                closeChannel(fc);
+                throw e;
+            } catch (final ClosedChannelException e) {
+                // another reader was interrupted or the heap was closed: try again with a new channel
+                closeChannel(fc);
+                if (this.index == null) throw e;
+                fc = channel();
+                continue;
+            }
+            if (c < 0) throw new IOException("EOF in " + this.heapFile.getName() + ", pos = " + pos + ", requested = " + b.length + ", missing = " + bb.remaining());
+            p += c;
+        }
+    }
+    
+    private FileChannel channel() throws IOException {
+        FileChannel fc = this.channel;
+        if (fc != null && fc.isOpen()) return fc;
+        synchronized (this.content) {
+            fc = this.channel;
+            if (fc == null || !fc.isOpen()) {
+                fc = new RandomAccessFile(this.heapFile, "r").getChannel();
+                this.channel = fc;
+            }
+            return fc;
+        }
+    }
+    
+    protected void closeChannel() {
+        synchronized (this.content) {
+            if (this.channel != null) closeChannel(this.channel);
+        }
+    }
+    
+    private void closeChannel(final FileChannel fc) {
+        synchronized (this.content) {
+            try {
+                fc.close();
+            } catch (final IOException e) {}
+            if (this.channel == fc) this.channel = null;
         }
     }
     
@@ -545,57 +797,77 @@ public class HeapReader {
      * close the BLOB table
      */
     public void close(boolean writeIDX) {
-        synchronized (this.index) {
-            if (file != null)
-    			try {
-    				file.close();
-    			} catch (IOException e) {
-    			    Log.logException(e);
-    			}
-            file = null;
-            if (writeIDX && index != null && free != null && (index.size() > 3 || free.size() > 3)) {
-                // now we can create a dump of the index and the gap information
-                // to speed up the next start
-                try {
-                    String fingerprint = fingerprintFileHash(this.heapFile);
-                    if (fingerprint == null) {
-                        Log.logSevere("HeapReader", "cannot write a dump for " + heapFile.getName()+ ": fingerprint is null");
-                    } else {
-                        File newFingerprintFileGap = HeapWriter.fingerprintGapFile(this.heapFile, fingerprint);
-                        if (this.fingerprintFileGap != null &&
-                            this.fingerprintFileGap.getName().equals(newFingerprintFileGap.getName()) &&
-                            this.fingerprintFileGap.exists()) {
-                            Log.logInfo("HeapReader", "using existing gap dump instead of writing a new one: " + this.fingerprintFileGap.getName());
+        if (this.index == null) return;
+        this.content.writeLock().lock();
+        try {
+            if (this.index == null) return; // closed concurrently
+            synchronized (this.index) {
+                closeChannel();
+                if (file != null)
+        			try {
+        				file.close();
+        			} catch (IOException e) {
+        			    Log.logException(e);
+        			}
+                file = null;
+                if (writeIDX && index != null && free != null && (index.size() > 3 || free.size() > 3)) {
+                    // now we can create a dump of the index and the gap information
+                    // to speed up the next start
+                    try {
+                        String fingerprint = fingerprintFileHash(this.heapFile);
+                        if (fingerprint == null) {
+                            Log.logSevere("HeapReader", "cannot write a dump for " + heapFile.getName()+ ": fingerprint is null");
                         } else {
-                            long start = System.currentTimeMillis();
-                            free.dump(newFingerprintFileGap);
-                            Log.logInfo("HeapReader", "wrote a dump for the " + this.free.size() +  " gap entries of " + heapFile.getName()+ " in " + (System.currentTimeMillis() - start) + " milliseconds.");
+                            File newFingerprintFileGap = HeapWriter.fingerprintGapFile(this.heapFile, fingerprint);
+                            if (this.fingerprintFileGap != null &&
+                                this.fingerprintFileGap.getName().equals(newFingerprintFileGap.getName()) &&
+                                this.fingerprintFileGap.exists()) {
+                                Log.logInfo("HeapReader", "using existing gap dump instead of writing a new one: " + this.fingerprintFileGap.getName());
+                            } else {
+                                long start = System.currentTimeMillis();
+                                free.dump(newFingerprintFileGap);
+                                Log.logInfo("HeapReader", "wrote a dump for the " + this.free.size() +  " gap entries of " + heapFile.getName()+ " in " + (System.currentTimeMillis() - start) + " milliseconds.");
+                            }
                         }
-                    }
-                    free.clear();
-                    free = null;
-                    if (fingerprint != null) {
-                        File newFingerprintFileIdx = HeapWriter.fingerprintIndexFile(this.heapFile, fingerprint);
-                        if (this.fingerprintFileIdx != null &&
-                            this.fingerprintFileIdx.getName().equals(newFingerprintFileIdx.getName()) &&
-                            this.fingerprintFileIdx.exists()) {
-                            Log.logInfo("HeapReader", "using existing idx dump instead of writing a new one: " + this.fingerprintFileIdx.getName());
-                        } else {
-                            long start = System.currentTimeMillis();
-                            index.dump(newFingerprintFileIdx);
-                            Log.logInfo("HeapReader", "wrote a dump for the " + this.index.size() +  " index entries of " + heapFile.getName()+ " in " + (System.currentTimeMillis() - start) + " milliseconds.");
+                        free.clear();
+                        free = null;
+                        if (fingerprint != null) {
+                            File newFingerprintFileIdx = HeapWriter.fingerprintIndexFile(this.heapFile, fingerprint);
+                            if (this.fingerprintFileIdx != null &&
+                                this.fingerprintFileIdx.getName().equals(newFingerprintFileIdx.getName()) &&
+                                this.fingerprintFileIdx.exists()) {
+                                Log.logInfo("HeapReader", "using existing idx dump instead of writing a new one: " + this.fingerprintFileIdx.getName());
+                            } else {
+                                long start = System.currentTimeMillis();
+                                index.dump(newFingerprintFileIdx);
+                                Log.logInfo("HeapReader", "wrote a dump for the " + this.index.size() +  " index entries of " + heapFile.getName()+ " in " + (System.currentTimeMillis() - start) + " milliseconds.");
+                            }
+                            File newFingerprintFileBloom = HeapWriter.fingerprintBloomFile(this.heapFile, fingerprint);
+                            if (this.fingerprintFileBloom != null &&
+                                this.fingerprintFileBloom.getName().equals(newFingerprintFileBloom.getName()) &&
+                                this.fingerprintFileBloom.exists()) {
+                                Log.logInfo("HeapReader", "using existing bloom filter dump instead of writing a new one: " + this.fingerprintFileBloom.getName());
+                            } else {
+                                // the filter is generated from the index to remove keys of deleted entries
+                                final BloomFilter b = new BloomFilter(this.index.size(), BloomFilter.defaultFalsePositiveRate);
+                                b.addAll(this.index.keys(true, null));
+                                b.dump(newFingerprintFileBloom);
+                            }
                         }
+                        index.close();
+                        index = null;
+                    } catch (IOException e) {
+                        Log.logException(e);
                     }
-                    index.close();
-                    index = null;
-                } catch (IOException e) {
-                    Log.logException(e);
                 }
+                if (free != null) free.clear();
+                free = null;
+                bloom = null;
+                if (index != null) index.close();
+                index = null;
             }
-            if (free != null) free.clear();
-            free = null;
-            if (index != null) index.close();
-            index = null;
+        } finally {
+            this.content.writeLock().unlock();
         }
     }
     
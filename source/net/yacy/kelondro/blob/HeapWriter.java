@@ -31,7 +31,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 
 import net.yacy.cora.document.UTF8;
+import net.yacy.kelondro.index.BloomFilter;
 import net.yacy.kelondro.index.HandleMap;
+import net.yacy.kelondro.index.RowHandleMap;
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.ByteOrder;
@@ -80,7 +82,7 @@ public final class HeapWriter {
         this.heapFileTMP = temporaryHeapFile;
         this.heapFileREADY = readyHeapFile;
         this.keylength = keylength;
-        this.index = new HandleMap(keylength, ordering, 8, 100000, readyHeapFile.getAbsolutePath());
+        this.index = new RowHandleMap(keylength, ordering, 8, 100000, readyHeapFile.getAbsolutePath());
         try {
             this.os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryHeapFile), outBuffer));
         } catch (OutOfMemoryError e) {
@@ -143,6 +145,9 @@ public final class HeapWriter {
             } else {
                 new Gap().dump(fingerprintGapFile(this.heapFileREADY, fingerprint));
                 index.dump(fingerprintIndexFile(this.heapFileREADY, fingerprint));
+                final BloomFilter bloom = new BloomFilter(index.size(), BloomFilter.defaultFalsePositiveRate);
+                bloom.addAll(index.keys(true, null));
+                bloom.dump(fingerprintBloomFile(this.heapFileREADY, fingerprint));
                 Log.logInfo("kelondroBLOBHeapWriter", "wrote a dump for the " + this.index.size() +  " index entries of " + heapFileREADY.getName()+ " in " + (System.currentTimeMillis() - start) + " milliseconds.");
             }
             index.close();
@@ -161,7 +166,7 @@ public final class HeapWriter {
         FileUtils.deletedelete(f);
         for (String s: l) {
             if (s.startsWith(n) &&
-                (s.endsWith(".idx") || s.endsWith(".gap")))
+                (s.endsWith(".idx") || s.endsWith(".gap") || s.endsWith(".blm")))
                FileUtils.deletedelete(new File(p, s));
         }
     }
@@ -175,4 +180,9 @@ public final class HeapWriter {
         assert f != null;
         return new File(f.getParentFile(), f.getName() + "." + fingerprint + ".gap");
     }
+    
+    protected static File fingerprintBloomFile(File f, String fingerprint) {
+        assert f != null;
+        return new File(f.getParentFile(), f.getName() + "." + fingerprint + ".blm");
+    }
 }
@@ -56,6 +56,13 @@ import net.yacy.kelondro.util.kelondroException;
 
 public class MapHeap implements Map<byte[], Map<String, String>> {
 
+    /**
+     * if true, the maps are stored compressed and the decompressed maps are kept in the record cache
+     * that is shared by all map heaps. Heap files with uncompressed maps can be read in both cases,
+     * but compressed heap files cannot be read by older versions.
+     */
+    public static boolean compressRecords = false;
+
     private BLOB blob;
     private ARC<byte[], Map<String, String>> cache;
     private final char fillchar;
@@ -68,7 +75,8 @@ public class MapHeap implements Map<byte[], Map<String, String>> {
             final int buffermax,
             final int cachesize,
             final char fillchar) throws IOException {
-        this.blob = new Heap(heapFile, keylength, ordering, buffermax);
+        final Heap heap = new Heap(heapFile, keylength, ordering, buffermax);
+        this.blob = (compressRecords) ? new Compressor(heap, 1024 * 16, true) : heap;
         this.cache = new ConcurrentARC<byte[], Map<String, String>>(cachesize, Math.max(32, 4 * Runtime.getRuntime().availableProcessors()), ordering);
         this.fillchar = fillchar;
     }
@@ -0,0 +1,160 @@
+// RecordCache.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 22.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.blob;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a least-recently-used cache for decoded records of several BLOBs.
+ * The size of the cache is limited by the number of bytes of the cached records, not by the number of records.
+ * Every BLOB that uses the cache gets an own owner number; records of different owners never collide.
+ */
+public class RecordCache {
+
+    private final LinkedHashMap<Key, byte[]> map;
+    private long maxBytes, bytes;
+    private long hits, misses;
+    private int owners;
+
+    public RecordCache(final long maxBytes) {
+        this.map = new LinkedHashMap<Key, byte[]>(64, 0.75f, true);
+        this.maxBytes = maxBytes;
+        this.bytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.owners = 0;
+    }
+
+    /**
+     * get a new owner number for a BLOB that uses this cache
+     * @return a number that is unique within this cache
+     */
+    public synchronized int newOwner() {
+        return this.owners++;
+    }
+
+    public synchronized byte[] get(final int owner, final byte[] key) {
+        final byte[] b = this.map.get(new Key(owner, key));
+        if (b == null) this.misses++; else this.hits++;
+        return b;
+    }
+
+    /**
+     * put a record into the cache; records that are larger than a 16th of the cache size are not cached
+     * @param owner
+     * @param key
+     * @param b the record; the record must not be modified after it was put into the cache
+     */
+    public synchronized void put(final int owner, final byte[] key, final byte[] b) {
+        if (b == null || b.length > this.maxBytes / 16) return;
+        final byte[] old = this.map.put(new Key(owner, key), b);
+        if (old != null) this.bytes -= old.length;
+        this.bytes += b.length;
+        shrink();
+    }
+
+    public synchronized void remove(final int owner, final byte[] key) {
+        final byte[] old = this.map.remove(new Key(owner, key));
+        if (old != null) this.bytes -= old.length;
+    }
+
+    /**
+     * remove all records of one owner
+     * @param owner
+     */
+    public synchronized void clear(final int owner) {
+        final Iterator<Map.Entry<Key, byte[]>> i = this.map.entrySet().iterator();
+        Map.Entry<Key, byte[]> entry;
+        while (i.hasNext()) {
+            entry = i.next();
+            if (entry.getKey().owner == owner) {
+                this.bytes -= entry.getValue().length;
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.map.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        shrink();
+    }
+
+    private void shrink() {
+        if (this.bytes <= this.maxBytes) return;
+        final Iterator<byte[]> i = this.map.values().iterator();
+        while (this.bytes > this.maxBytes && i.hasNext()) {
+            this.bytes -= i.next().length;
+            i.remove();
+        }
+    }
+
+    public synchronized long bytes() {
+        return this.bytes;
+    }
+
+    public synchronized int size() {
+        return this.map.size();
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    private static class Key {
+        private final int owner;
+        private final byte[] key;
+        private final int hash;
+
+        public Key(final int owner, final byte[] key) {
+            this.owner = owner;
+            this.key = key;
+            this.hash = 31 * owner + Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return this.owner == k.owner && Arrays.equals(this.key, k.key);
+        }
+    }
+}
@@ -206,6 +206,20 @@ public class URIMetadataRow implements URIMetadata {
         this.comp = null;
     }
 
+    /**
+     * create a row for a search result from a row without ranking; the decoded metadata is shared with that row
+     * @param row
+     * @param searchedWord
+     * @param ranking
+     */
+    public URIMetadataRow(final URIMetadataRow row, final WordReferenceVars searchedWord, final long ranking) {
+        this.entry = row.entry;
+        this.snippet = row.snippet;
+        this.word = searchedWord;
+        this.ranking = ranking;
+        this.comp = row.metadata(); // decode the metadata in the given row, so later copies share it
+    }
+
     public URIMetadataRow(final Properties prop) {
         // generates an plasmaLURLEntry using the properties from the argument
         // the property names must correspond to the one from toString
@@ -0,0 +1,347 @@
+// WordReferenceColumns.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 24.11.2011 on http://yacy.net
+//
+// This is a part of YaCy, a peer-to-peer based web search engine
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.data.word;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.yacy.cora.document.ASCII;
+import net.yacy.kelondro.data.meta.DigestURI;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.Bitfield;
+import net.yacy.kelondro.order.MicroDate;
+import net.yacy.kelondro.order.NaturalOrder;
+import net.yacy.kelondro.rwi.ReferenceContainer;
+
+/**
+ * a column-oriented view of a reference container: the properties of the references that are used for
+ * filtering and ranking are decoded into arrays of primitive values, one array for each property.
+ * Tests and ranking computations can then be done in loops over these arrays without the creation
+ * of a WordReferenceVars object for each reference; such objects are only created for the references
+ * that are actually used with get(int).
+ */
+public class WordReferenceColumns {
+
+    private static final Row row = WordReferenceRow.urlEntryRow;
+    private static final int hashLength = row.primaryKeyLength;
+    private static final int decodeRows = 1024; // number of rows that are copied at once from the container
+
+    private final ReferenceContainer<WordReference> container;
+    private final int size;
+
+    public final byte[] urlhashes; // the url hashes of all references, one after another
+    public final int[] flags, language, domlength,
+                       virtualAge, hitcount, llocal, lother,
+                       wordsintext, wordsintitle, phrasesintext,
+                       posinphrase, posofphrase, urlcomps, urllength;
+    public final double[] termFrequency;
+    public final boolean[] rootURL;
+
+    /**
+     * create a columnar view of a container; the columns must be filled with decode() before they can be used
+     * @param container a container with rows of WordReferenceRow.urlEntryRow
+     */
+    public WordReferenceColumns(final ReferenceContainer<WordReference> container) {
+        assert container.row().objectsize == row.objectsize;
+        this.container = container;
+        this.size = container.size();
+        this.urlhashes = new byte[this.size * hashLength];
+        this.flags = new int[this.size];
+        this.language = new int[this.size];
+        this.domlength = new int[this.size];
+        this.virtualAge = new int[this.size];
+        this.hitcount = new int[this.size];
+        this.llocal = new int[this.size];
+        this.lother = new int[this.size];
+        this.wordsintext = new int[this.size];
+        this.wordsintitle = new int[this.size];
+        this.phrasesintext = new int[this.size];
+        this.posinphrase = new int[this.size];
+        this.posofphrase = new int[this.size];
+        this.urlcomps = new int[this.size];
+        this.urllength = new int[this.size];
+        this.termFrequency = new double[this.size];
+        this.rootURL = new boolean[this.size];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * decode the rows from position start (inclusive) to end (exclusive) into the columns.
+     * Different ranges may be decoded concurrently.
+     * @param start
+     * @param end
+     */
+    public void decode(final int start, final int end) {
+        final int os = row.objectsize;
+        final int[] cs = row.colstart;
+        final byte[] b = new byte[Math.min(decodeRows, Math.max(0, end - start)) * os];
+        final byte[] hash = new byte[hashLength];
+        int o, i;
+        for (int s = start; s < end; s += decodeRows) {
+            final int count = Math.min(decodeRows, end - s);
+            this.container.copyRows(s, count, b);
+            for (int r = 0; r < count; r++) {
+                o = r * os;
+                i = s + r;
+                System.arraycopy(b, o + cs[WordReferenceRow.col_urlhash], this.urlhashes, i * hashLength, hashLength);
+                System.arraycopy(b, o + cs[WordReferenceRow.col_urlhash], hash, 0, hashLength);
+                this.domlength[i] = DigestURI.domLengthNormalized(hash);
+                this.rootURL[i] = DigestURI.probablyRootURL(hash);
+                this.flags[i] = flags(b, o + cs[WordReferenceRow.col_flags]);
+                this.language[i] = language(b, o + cs[WordReferenceRow.col_language]);
+                this.virtualAge[i] = (int) NaturalOrder.decodeLong(b, o + cs[WordReferenceRow.col_lastModified], 2);
+                this.hitcount[i] = 0xff & b[o + cs[WordReferenceRow.col_hitcount]];
+                this.llocal[i] = 0xff & b[o + cs[WordReferenceRow.col_llocal]];
+                this.lother[i] = 0xff & b[o + cs[WordReferenceRow.col_lother]];
+                this.wordsintext[i] = (int) NaturalOrder.decodeLong(b, o + cs[WordReferenceRow.col_wordsInText], 2);
+                this.wordsintitle[i] = 0xff & b[o + cs[WordReferenceRow.col_wordsInTitle]];
+                this.phrasesintext[i] = (int) NaturalOrder.decodeLong(b, o + cs[WordReferenceRow.col_phrasesInText], 2);
+                this.posinphrase[i] = 0xff & b[o + cs[WordReferenceRow.col_posinphrase]];
+                this.posofphrase[i] = 0xff & b[o + cs[WordReferenceRow.col_posofphrase]];
+                this.urlcomps[i] = 0xff & b[o + cs[WordReferenceRow.col_urlComps]];
+                this.urllength[i] = 0xff & b[o + cs[WordReferenceRow.col_urlLength]];
+                this.termFrequency[i] = ((double) this.hitcount[i]) / ((double) (this.wordsintext[i] + this.wordsintitle[i] + 1));
+            }
+        }
+    }
+
+    /**
+     * the flags of a reference as int; bit p of the int is the same as flags().get(p)
+     * @param b the bytes of a Bitfield
+     * @param offset
+     * @return
+     */
+    private static int flags(final byte[] b, final int offset) {
+        return (0xff & b[offset]) | ((0xff & b[offset + 1]) << 8) | ((0xff & b[offset + 2]) << 16) | ((0xff & b[offset + 3]) << 24);
+    }
+
+    public static int flags(final Bitfield flags) {
+        final byte[] b = flags.bytes();
+        return (b.length < 4) ? flags(Arrays.copyOf(b, 4), 0) : flags(b, 0);
+    }
+
+    /**
+     * the language code as int, to be compared with the values in the language column
+     * @param language a two-byte language code or null
+     * @return
+     */
+    public static int language(final byte[] language) {
+        return (language == null || language.length < 2) ? 0 : language(language, 0);
+    }
+
+    private static int language(final byte[] b, final int offset) {
+        return ((0xff & b[offset]) << 8) | (0xff & b[offset + 1]);
+    }
+
+    public byte[] urlhash(final int i) {
+        final byte[] hash = new byte[hashLength];
+        System.arraycopy(this.urlhashes, i * hashLength, hash, 0, hashLength);
+        return hash;
+    }
+
+    public String hosthash(final int i) {
+        return ASCII.String(this.urlhashes, i * hashLength + 6, 6);
+    }
+
+    public boolean hosthashEquals(final int i, final byte[] hosthash) {
+        final int o = i * hashLength + 6;
+        for (int j = 0; j < 6; j++) if (this.urlhashes[o + j] != hosthash[j]) return false;
+        return true;
+    }
+
+    /**
+     * get the reference at a given position as object
+     * @param i
+     * @return the same object as new WordReferenceVars(new WordReferenceRow(container.get(i, false)))
+     */
+    public WordReferenceVars get(final int i) {
+        return new WordReferenceVars(new WordReferenceRow(this.container.get(i, false)));
+    }
+
+    /**
+     * count the appearances of flags
+     * @param flagcount an array with 32 counters; the counter at position p is increased for each reference with flag p
+     */
+    public void countFlags(final int[] flagcount) {
+        int f;
+        for (int i = 0; i < this.size; i++) {
+            f = this.flags[i];
+            while (f != 0) {
+                flagcount[Integer.numberOfTrailingZeros(f)]++;
+                f &= f - 1;
+            }
+        }
+    }
+
+    /**
+     * count the references for each host
+     * @return a map from host hashes to the number of references with that host hash
+     */
+    public Map<String, Integer> countHosts() {
+        // the host hash is packed into a long, so it can be counted by sorting
+        final long[] hosts = new long[this.size];
+        int o;
+        for (int i = 0; i < this.size; i++) {
+            o = i * hashLength + 6;
+            long h = 0;
+            for (int j = 0; j < 6; j++) h = (h << 8) | (0xff & this.urlhashes[o + j]);
+            hosts[i] = h;
+        }
+        Arrays.sort(hosts);
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        int i = 0;
+        while (i < this.size) {
+            final long h = hosts[i];
+            int j = i + 1;
+            while (j < this.size && hosts[j] == h) j++;
+            final byte[] hosthash = new byte[6];
+            for (int k = 0; k < 6; k++) hosthash[k] = (byte) (h >>> (8 * (5 - k)));
+            counts.put(ASCII.String(hosthash), j - i);
+            i = j;
+        }
+        return counts;
+    }
+
+    /**
+     * @return an object that has the minimum of all references in the ranking properties, or null if the container is empty
+     */
+    public WordReferenceVars min() {
+        if (this.size == 0) return null;
+        return vars(0, min(this.urllength), min(this.urlcomps), min(this.wordsintitle), min(this.hitcount),
+                min(this.wordsintext), min(this.phrasesintext), min(this.posinphrase), min(this.posofphrase),
+                min(this.virtualAge), min(this.llocal), min(this.lother), min(this.termFrequency));
+    }
+
+    /**
+     * @return an object that has the maximum of all references in the ranking properties, or null if the container is empty
+     */
+    public WordReferenceVars max() {
+        if (this.size == 0) return null;
+        return vars(0, max(this.urllength), max(this.urlcomps), max(this.wordsintitle), max(this.hitcount),
+                max(this.wordsintext), max(this.phrasesintext), max(this.posinphrase), max(this.posofphrase),
+                max(this.virtualAge), max(this.llocal), max(this.lother), max(this.termFrequency));
+    }
+
+    private WordReferenceVars vars(
+            final int i, final int urllength, final int urlcomps, final int wordsintitle, final int hitcount,
+            final int wordsintext, final int phrasesintext, final int posinphrase, final int posofphrase,
+            final int virtualAge, final int llocal, final int lother, final double termFrequency) {
+        final WordReferenceVars v = new WordReferenceVars(
+                urlhash(i), urllength, urlcomps, wordsintitle, hitcount, wordsintext, phrasesintext,
+                new ConcurrentLinkedQueue<Integer>(), posinphrase, posofphrase,
+                MicroDate.reverseMicroDateDays(virtualAge), System.currentTimeMillis(),
+                null, ' ', llocal, lother, new Bitfield(4), termFrequency);
+        v.setVirtualAge(virtualAge);
+        return v;
+    }
+
+    private int min(final int[] a) {
+        int m = Integer.MAX_VALUE;
+        for (int i = 0; i < this.size; i++) if (a[i] < m) m = a[i];
+        return m;
+    }
+
+    private int max(final int[] a) {
+        int m = Integer.MIN_VALUE;
+        for (int i = 0; i < this.size; i++) if (a[i] > m) m = a[i];
+        return m;
+    }
+
+    private double min(final double[] a) {
+        double m = Double.MAX_VALUE;
+        for (int i = 0; i < this.size; i++) if (a[i] < m) m = a[i];
+        return m;
+    }
+
+    private double max(final double[] a) {
+        double m = -Double.MAX_VALUE;
+        for (int i = 0; i < this.size; i++) if (a[i] > m) m = a[i];
+        return m;
+    }
+
+    /**
+     * benchmark for the decoding of a container: the object path creates a WordReferenceVars for each reference,
+     * counts the flags and computes minimum and maximum; the column path does the same with a WordReferenceColumns.
+     * Sizes can be given as arguments, i.e. 10000 100000 1000000
+     * @param args
+     */
+    public static void main(final String[] args) {
+        final int[] sizes;
+        if (args.length == 0) {
+            sizes = new int[]{10000, 100000, 1000000};
+        } else {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        final Random random = new Random(0);
+        try {
+            for (final int size: sizes) {
+                final ReferenceContainer<WordReference> container = new ReferenceContainer<WordReference>(new WordReferenceFactory(), RowSet.randomHash(random), size);
+                final byte[] b = new byte[row.objectsize];
+                for (int i = 0; i < size; i++) {
+                    random.nextBytes(b);
+                    System.arraycopy(RowSet.randomHash(random), 0, b, 0, hashLength);
+                    container.add(new WordReferenceRow(b));
+                }
+                for (int run = 0; run < 3; run++) {
+                    long time = System.currentTimeMillis();
+                    final int[] flagcount0 = new int[32];
+                    WordReferenceVars min = null, max = null, v;
+                    for (int i = 0; i < size; i++) {
+                        v = new WordReferenceVars(new WordReferenceRow(container.get(i, false)));
+                        for (int j = 0; j < 32; j++) if (v.flags().get(j)) flagcount0[j]++;
+                        if (min == null) min = v.clone(); else min.min(v);
+                        if (max == null) max = v.clone(); else max.max(v);
+                    }
+                    final long objectTime = System.currentTimeMillis() - time;
+
+                    time = System.currentTimeMillis();
+                    final int[] flagcount1 = new int[32];
+                    final WordReferenceColumns columns = new WordReferenceColumns(container);
+                    columns.decode(0, size);
+                    columns.countFlags(flagcount1);
+                    min = columns.min();
+                    max = columns.max();
+                    final long columnTime = System.currentTimeMillis() - time;
+                    System.out.println("size = " + size + ", object decoding: " + objectTime + " ms, column decoding: " + columnTime + " ms, equal flag counts: " + Arrays.equals(flagcount0, flagcount1));
+                }
+            }
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        }
+        System.exit(0);
+    }
+}
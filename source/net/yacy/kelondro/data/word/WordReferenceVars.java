@@ -293,6 +293,14 @@ public class WordReferenceVars extends AbstractReference implements WordReferenc
         return this.virtualAge;
     }
 
+    /**
+     * set the virtual age as stored in a WordReferenceRow, without a computation from the last-modified date
+     * @param virtualAge
+     */
+    void setVirtualAge(final int virtualAge) {
+        this.virtualAge = virtualAge;
+    }
+
     public int wordsintext() {
         return this.wordsintext;
     }
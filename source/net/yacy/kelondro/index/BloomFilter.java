@@ -0,0 +1,261 @@
+// BloomFilter.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 14.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.yacy.kelondro.util.FileUtils;
+
+/**
+ * a Bloom filter over byte[] keys.
+ * The filter answers the question if a key may be contained in a set: if the answer is false,
+ * the key is certainly not in the set; if the answer is true, the key is in the set with a probability
+ * that depends on the size of the filter and the number of inserted keys.
+ * Keys cannot be removed, but removal of keys in the underlying set only causes more false positives.
+ * The filter is thread-safe: bits are set with compare-and-set operations, therefore concurrent
+ * insertions never cause false negatives.
+ * The class provides methods to dump the filter to a file and read it again.
+ */
+public final class BloomFilter {
+
+    public  static final double defaultFalsePositiveRate = 0.01d;
+    private static final int    magic = 0x626C6D31; // 'blm1'
+
+    private final AtomicLongArray bits;
+    private final long            m; // number of bits
+    private final int             k; // number of hash functions
+    private final AtomicInteger   count; // number of add operations
+
+    /**
+     * initialize a Bloom filter that has the given false positive rate when the expected number of keys is inserted
+     * @param expectedEntries
+     * @param falsePositiveRate
+     */
+    public BloomFilter(final int expectedEntries, final double falsePositiveRate) {
+        final long n = Math.max(1, expectedEntries);
+        final double ln2 = Math.log(2.0d);
+        final long bitcount = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        this.bits = new AtomicLongArray((int) ((bitcount + 63) >>> 6));
+        this.m = ((long) this.bits.length()) << 6;
+        this.k = Math.max(1, Math.min(16, (int) Math.round(((double) this.m) / n * ln2)));
+        this.count = new AtomicInteger(0);
+    }
+
+    private BloomFilter(final AtomicLongArray bits, final int k, final int count) {
+        this.bits = bits;
+        this.m = ((long) bits.length()) << 6;
+        this.k = k;
+        this.count = new AtomicInteger(count);
+    }
+
+    /**
+     * initialize a Bloom filter with the content of a dump
+     * @param file
+     * @return the filter
+     * @throws IOException if the file cannot be read or is not a filter dump
+     */
+    public static BloomFilter load(final File file) throws IOException {
+        DataInputStream is;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        } catch (final OutOfMemoryError e) {
+            is = new DataInputStream(new FileInputStream(file));
+        }
+        try {
+            return read(is);
+        } catch (final IOException e) {
+            throw new IOException("file " + file + " is not a bloom filter dump: " + e.getMessage());
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * read a Bloom filter from a stream that was written with write()
+     * @param is
+     * @return the filter
+     * @throws IOException if the stream cannot be read or does not contain a filter
+     */
+    static BloomFilter read(final DataInputStream is) throws IOException {
+        if (is.readInt() != magic) throw new IOException("no bloom filter magic");
+        final int k = is.readInt();
+        final int count = is.readInt();
+        final int longs = is.readInt();
+        if (k <= 0 || count < 0 || longs <= 0) throw new IOException("bad bloom filter header");
+        final AtomicLongArray bits = new AtomicLongArray(longs);
+        for (int i = 0; i < longs; i++) bits.set(i, is.readLong());
+        return new BloomFilter(bits, k, count);
+    }
+
+    /**
+     * dump the filter to a file
+     * @param file
+     * @throws IOException if the dump cannot be written or cannot replace the old dump
+     */
+    public void dump(final File file) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".prt");
+        DataOutputStream os;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+        } catch (final OutOfMemoryError e) {
+            os = new DataOutputStream(new FileOutputStream(tmp));
+        }
+        write(os);
+        os.flush();
+        os.close();
+        if (!tmp.renameTo(file)) {
+            // the old dump may have been locked; try once more and do not leave a stale dump behind
+            FileUtils.deletedelete(file);
+            if (!tmp.renameTo(file)) {
+                FileUtils.deletedelete(tmp);
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * write the filter to a stream
+     * @param os
+     * @throws IOException
+     */
+    void write(final DataOutputStream os) throws IOException {
+        final int longs = this.bits.length();
+        os.writeInt(magic);
+        os.writeInt(this.k);
+        os.writeInt(this.count.get());
+        os.writeInt(longs);
+        for (int i = 0; i < longs; i++) os.writeLong(this.bits.get(i));
+    }
+
+    /**
+     * add a key to the filter
+     * @param key
+     */
+    public void add(final byte[] key) {
+        final long h = hash(key);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32);
+        long bit, word, mask;
+        int wordindex;
+        for (int i = 0; i < this.k; i++) {
+            bit = position(h1, h2, i);
+            wordindex = (int) (bit >>> 6);
+            mask = 1L << (bit & 63);
+            do {
+                word = this.bits.get(wordindex);
+                if ((word & mask) != 0) break;
+            } while (!this.bits.compareAndSet(wordindex, word, word | mask));
+        }
+        this.count.incrementAndGet();
+    }
+
+    /**
+     * add all keys that an iterator produces
+     * @param keys
+     */
+    public void addAll(final Iterator<byte[]> keys) {
+        while (keys.hasNext()) add(keys.next());
+    }
+
+    /**
+     * test if a key may be contained in the filter
+     * @param key
+     * @return false if the key was never added; true if the key was added or in case of a false positive
+     */
+    public boolean mayContain(final byte[] key) {
+        final long h = hash(key);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32);
+        long bit;
+        for (int i = 0; i < this.k; i++) {
+            bit = position(h1, h2, i);
+            if ((this.bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * remove all keys from the filter
+     */
+    public void clear() {
+        for (int i = 0; i < this.bits.length(); i++) this.bits.set(i, 0L);
+        this.count.set(0);
+    }
+
+    /**
+     * the number of add operations that had been made on the filter
+     * @return
+     */
+    public int size() {
+        return this.count.get();
+    }
+
+    /**
+     * the memory that the filter needs
+     * @return number of bytes
+     */
+    public long mem() {
+        return this.m >>> 3;
+    }
+
+    /**
+     * estimate the current false positive rate using the number of inserted keys
+     * @return a probability between 0 and 1
+     */
+    public double falsePositiveRate() {
+        return Math.pow(1.0d - Math.exp(-((double) this.k) * this.count.get() / this.m), this.k);
+    }
+
+    private long position(final int h1, final int h2, final int i) {
+        // double hashing as in Kirsch/Mitzenmacher; the result must be non-negative
+        final long p = (h1 + (long) i * h2) % this.m;
+        return (p < 0) ? p + this.m : p;
+    }
+
+    private static long hash(final byte[] key) {
+        // 64-bit FNV-1a followed by a final avalanche mix
+        long h = 0xcbf29ce484222325L;
+        for (final byte b: key) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
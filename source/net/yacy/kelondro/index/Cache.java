@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.yacy.kelondro.index.Row.Entry;
 import net.yacy.kelondro.order.CloneableIterator;
@@ -47,6 +48,8 @@ public final class Cache implements Index, Iterable<Row.Entry> {
     // - a write buffer for rows that are not contained in the target index
     // - a write buffer for rows that are known to be contained in target
     // furthermore, if we access a kelondroFlexTable, we can use the ram index of the underlying index
+    // the read-cache and the miss-cache can be read concurrently; a lookup that is not answered by
+    // one of the caches and all write operations are synchronized
 
     // static object tracker; stores information about object cache usage
     private static final TreeMap<String, Cache> objectTracker = new TreeMap<String, Cache>();
@@ -55,11 +58,12 @@ public final class Cache implements Index, Iterable<Row.Entry> {
 
     // class objects
     private final Index index;         // the back-end of the cache
-    private       RowSet      readHitCache;  // contains a complete copy of the cached objects
-    private       RowSet      readMissCache; // contains only the keys of the objects that had been a miss
+    private volatile RAMIndexCluster readHitCache;  // contains a complete copy of the cached objects
+    private volatile RAMIndexCluster readMissCache; // contains only the keys of the objects that had been a miss
     private       Row         keyrow;
-    private       int         readHit, readMiss, writeUnique, writeDouble, cacheDelete, cacheFlush;
-    private       int         hasnotHit, hasnotMiss, hasnotUnique, hasnotDouble, hasnotDelete;
+    private final AtomicInteger readHit, hasnotHit; // counted also by concurrent readers
+    private       int         readMiss, writeUnique, writeDouble, cacheDelete, cacheFlush;
+    private       int         hasnotMiss, hasnotUnique, hasnotDouble, hasnotDelete;
     private final int         hitLimit, missLimit;
 
     /**
@@ -73,6 +77,8 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         this.index = backupIndex;
         this.hitLimit = hitLimit;
         this.missLimit = missLimit;
+        this.readHit = new AtomicInteger(0);
+        this.hasnotHit = new AtomicInteger(0);
         init();
         objectTracker.put(backupIndex.filename(), this);
     }
@@ -80,15 +86,16 @@ public final class Cache implements Index, Iterable<Row.Entry> {
     private void init() {
         final Row row = this.index.row();
         this.keyrow = new Row(new Column[]{row.column(0)}, row.objectOrder);
-        this.readHitCache = new RowSet(row);
-        this.readMissCache = new RowSet(this.keyrow);
-        this.readHit = 0;
+        final int stripes = Runtime.getRuntime().availableProcessors();
+        this.readHitCache = new RAMIndexCluster(this.index.filename() + ".hit", row, stripes);
+        this.readMissCache = new RAMIndexCluster(this.index.filename() + ".miss", this.keyrow, stripes);
+        this.readHit.set(0);
         this.readMiss = 0;
         this.writeUnique = 0;
         this.writeDouble = 0;
         this.cacheDelete = 0;
         this.cacheFlush = 0;
-        this.hasnotHit = 0;
+        this.hasnotHit.set(0);
         this.hasnotMiss = 0;
         this.hasnotUnique = 0;
         this.hasnotDouble = 0;
@@ -164,20 +171,20 @@ public final class Cache implements Index, Iterable<Row.Entry> {
     private final Map<StatKeys, String> memoryStats() {
         // returns statistical data about this object
         final HashMap<StatKeys, String> map = new HashMap<StatKeys, String>(20);
-        map.put(StatKeys.objectHitChunkSize, (this.readHitCache == null) ? "0" : Integer.toString(this.readHitCache.rowdef.objectsize));
+        map.put(StatKeys.objectHitChunkSize, (this.readHitCache == null) ? "0" : Integer.toString(this.readHitCache.row().objectsize));
         map.put(StatKeys.objectHitCacheCount, (this.readHitCache == null) ? "0" : Integer.toString(this.readHitCache.size()));
-        map.put(StatKeys.objectHitMem, (this.readHitCache == null) ? "0" : Long.toString(this.readHitCache.rowdef.objectsize * this.readHitCache.size()));
-        map.put(StatKeys.objectHitCacheReadHit, Integer.toString(this.readHit));
+        map.put(StatKeys.objectHitMem, (this.readHitCache == null) ? "0" : Long.toString(this.readHitCache.row().objectsize * this.readHitCache.size()));
+        map.put(StatKeys.objectHitCacheReadHit, Integer.toString(this.readHit.get()));
         map.put(StatKeys.objectHitCacheReadMiss, Integer.toString(this.readMiss));
         map.put(StatKeys.objectHitCacheWriteUnique, Integer.toString(this.writeUnique));
         map.put(StatKeys.objectHitCacheWriteDouble, Integer.toString(this.writeDouble));
         map.put(StatKeys.objectHitCacheDeletes, Integer.toString(this.cacheDelete));
         map.put(StatKeys.objectHitCacheFlushes, Integer.toString(this.cacheFlush));
 
-        map.put(StatKeys.objectMissChunkSize, (this.readMissCache == null) ? "0" : Integer.toString(this.readMissCache.rowdef.objectsize));
+        map.put(StatKeys.objectMissChunkSize, (this.readMissCache == null) ? "0" : Integer.toString(this.readMissCache.row().objectsize));
         map.put(StatKeys.objectMissCacheCount, (this.readMissCache == null) ? "0" : Integer.toString(this.readMissCache.size()));
-        map.put(StatKeys.objectMissMem, (this.readMissCache == null) ? "0" : Long.toString(this.readMissCache.rowdef.objectsize * this.readMissCache.size()));
-        map.put(StatKeys.objectMissCacheReadHit, Integer.toString(this.hasnotHit));
+        map.put(StatKeys.objectMissMem, (this.readMissCache == null) ? "0" : Long.toString(this.readMissCache.row().objectsize * this.readMissCache.size()));
+        map.put(StatKeys.objectMissCacheReadHit, Integer.toString(this.hasnotHit.get()));
         map.put(StatKeys.objectMissCacheReadMiss, Integer.toString(this.hasnotMiss));
         map.put(StatKeys.objectMissCacheWriteUnique, Integer.toString(this.hasnotUnique));
         map.put(StatKeys.objectMissCacheWriteDouble, Integer.toString(this.hasnotDouble));
@@ -236,15 +243,35 @@ public final class Cache implements Index, Iterable<Row.Entry> {
 
     public final synchronized void close() {
         this.index.close();
+        // close the clusters to remove their RAMIndex stripes from the RAMIndex object tracker
+        final RAMIndexCluster hitCache = this.readHitCache;
+        final RAMIndexCluster missCache = this.readMissCache;
         this.readHitCache = null;
         this.readMissCache = null;
+        if (hitCache != null) hitCache.close();
+        if (missCache != null) missCache.close();
     }
 
-    public final synchronized boolean has(final byte[] key) {
+    public final boolean has(final byte[] key) {
+        // first look into the caches without synchronization
+        final RAMIndexCluster missCache = this.readMissCache;
+        if (missCache != null && missCache.has(key)) {
+            this.hasnotHit.incrementAndGet();
+            return false;
+        }
+        final RAMIndexCluster hitCache = this.readHitCache;
+        if (hitCache != null && hitCache.has(key)) {
+            this.readHit.incrementAndGet();
+            return true;
+        }
+        return has0(key);
+    }
+
+    private final synchronized boolean has0(final byte[] key) {
         // first look into the miss cache
         if (this.readMissCache != null) {
             if (this.readMissCache.has(key)) {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
                 return false;
             } else {
                 this.hasnotMiss++;
@@ -254,7 +281,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         // then try the hit cache and the buffers
         if (this.readHitCache != null) {
             if (this.readHitCache.has(key)) {
-                this.readHit++;
+                this.readHit.incrementAndGet();
                 return true;
             } else {
                 this.readMiss++;
@@ -265,11 +292,29 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         return this.index.has(key);
     }
 
-    public final synchronized Row.Entry get(final byte[] key, final boolean cachecopy) throws IOException {
+    public final Row.Entry get(final byte[] key, final boolean cachecopy) throws IOException {
+        // first look into the caches without synchronization
+        final RAMIndexCluster missCache = this.readMissCache;
+        if (missCache != null && missCache.has(key)) {
+            this.hasnotHit.incrementAndGet();
+            return null;
+        }
+        final RAMIndexCluster hitCache = this.readHitCache;
+        if (hitCache != null) {
+            final Row.Entry entry = hitCache.get(key, cachecopy);
+            if (entry != null) {
+                this.readHit.incrementAndGet();
+                return entry;
+            }
+        }
+        return get0(key, cachecopy);
+    }
+
+    private final synchronized Row.Entry get0(final byte[] key, final boolean cachecopy) throws IOException {
         // first look into the miss cache
         if (this.readMissCache != null) {
             if (this.readMissCache.has(key)) {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
                 return null;
             } else {
                 this.hasnotMiss++;
@@ -282,7 +327,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         if (this.readHitCache != null) {
             entry = this.readHitCache.get(key, cachecopy);
             if (entry != null) {
-                this.readHit++;
+                this.readHit.incrementAndGet();
                 return entry;
             }
         }
@@ -331,7 +376,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         // remove entry from miss- and hit-cache
         if (this.readMissCache != null) {
             if (this.readMissCache.delete(key)) {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
             }
         }
 
@@ -364,7 +409,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
         // remove entry from miss- and hit-cache
         if (this.readMissCache != null) {
             if (this.readMissCache.delete(key)) {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
                 // the entry does not exist before
                 try {
                     this.index.put(row);
@@ -497,7 +542,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
             if (dummy == null) {
                 this.hasnotUnique++;
             } else {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
                 this.hasnotDouble++;
             }
         } catch (final RowSpaceExceededException e) {
@@ -510,7 +555,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
             if (entry == null) {
                 this.readMiss++;
             } else {
-                this.readHit++;
+                this.readHit.incrementAndGet();
                 this.cacheDelete++;
             }
         }
@@ -528,7 +573,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
             if (dummy == null) {
                 this.hasnotUnique++;
             } else {
-                this.hasnotHit++;
+                this.hasnotHit.incrementAndGet();
                 this.hasnotDouble++;
             }
         } catch (final RowSpaceExceededException e) {
@@ -541,7 +586,7 @@ public final class Cache implements Index, Iterable<Row.Entry> {
             if (entry == null) {
                 this.readMiss++;
             } else {
-                this.readHit++;
+                this.readHit.incrementAndGet();
                 this.cacheDelete++;
             }
         }
@@ -115,7 +115,7 @@ public class IndexTest {
         Runtime.getRuntime().gc();
         final long freeStartKelondro = MemoryControl.available();
         HandleMap ii = null;
-        ii = new HandleMap(12, Base64Order.enhancedCoder, 4, count, "test");
+        ii = new RowHandleMap(12, Base64Order.enhancedCoder, 4, count, "test");
         for (int i = 0; i < count; i++)
             try {
                 ii.putUnique(tests[i], 1);
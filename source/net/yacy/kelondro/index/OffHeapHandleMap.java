@@ -0,0 +1,938 @@
+/**
+ *  OffHeapHandleMap
+ *  Copyright 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+ *  First released 16.11.2011 at http://yacy.net
+ *
+ *  $LastChangedDate$
+ *  $LastChangedRevision$
+ *  $LastChangedBy$
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.yacy.kelondro.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.ByteOrder;
+import net.yacy.kelondro.order.CloneableIterator;
+import net.yacy.kelondro.order.NaturalOrder;
+
+/**
+ * a HandleMap that stores its entries outside of the java heap.
+ * The entries are kept as packed records (key + value with idxbytes width) in sorted runs of
+ * direct ByteBuffers. New entries are collected in a small in-memory delta (a RowSet); when the delta
+ * is full it is sorted and spilled as a new run. Runs of similar size are merged like in a binary counter,
+ * so the number of runs that a lookup must search is logarithmic in the number of entries.
+ * Updates of existing keys are written in place, removals only mark a record in a bit set
+ * and are purged with the next merge.
+ * Iterations do not compact the map: they merge the runs and a sorted copy of the delta on the fly.
+ * The dump format is the same as for a RowHandleMap, dumps can be exchanged between both implementations.
+ */
+public final class OffHeapHandleMap implements HandleMap {
+
+    private static final int segmentShift = 20; // 1M records in one direct buffer
+    private static final int segmentSize  = 1 << segmentShift;
+    private static final int segmentMask  = segmentSize - 1;
+    private static final int deltaMax     = 64 * 1024; // number of entries in the delta before it is spilled
+    private static final int deltaMin     = 1024; // trim() spills the delta only if it has at least that many entries
+
+    private final Row rowdef;
+    private final ByteOrder ordering;
+    private final int keylength, idxbytes, reclen;
+    private final ReentrantReadWriteLock lock;
+    private final List<Run> runs; // sorted runs; the newest run is the last
+    private RowSet delta; // new entries that are not yet written to a run
+    private final TreeMap<byte[], ArrayList<Long>> doubles; // values of keys that had been inserted more than once
+
+    /**
+     * initialize an OffHeapHandleMap
+     * This may store a key and a long value for each key.
+     * The class is used as index for database files
+     * @param keylength
+     * @param objectOrder
+     * @param idxbytes
+     * @param expectedspace
+     * @param name
+     */
+    public OffHeapHandleMap(final int keylength, final ByteOrder objectOrder, final int idxbytes, final int expectedspace, final String name) {
+        this.rowdef = new Row(new Column[]{new Column("key", Column.celltype_binary, Column.encoder_bytes, keylength, "key"), new Column("long c-" + idxbytes + " {b256}")}, objectOrder);
+        this.ordering = objectOrder;
+        this.keylength = keylength;
+        this.idxbytes = idxbytes;
+        this.reclen = keylength + idxbytes;
+        this.lock = new ReentrantReadWriteLock();
+        this.runs = new ArrayList<Run>();
+        this.delta = new RowSet(this.rowdef);
+        this.doubles = new TreeMap<byte[], ArrayList<Long>>(objectOrder);
+    }
+
+    /**
+     * initialize an OffHeapHandleMap with the content of a dumped index.
+     * Dumps are sorted and are therefore copied directly into a run.
+     * @param keylength
+     * @param objectOrder
+     * @param idxbytes
+     * @param file
+     * @throws IOException
+     * @throws RowSpaceExceededException
+     */
+    public OffHeapHandleMap(final int keylength, final ByteOrder objectOrder, final int idxbytes, final File file) throws IOException, RowSpaceExceededException {
+        this(keylength, objectOrder, idxbytes, (int) (file.length() / (keylength + idxbytes)), file.getAbsolutePath());
+        // read the index dump and fill the index
+        InputStream is;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+        } catch (final OutOfMemoryError e) {
+            is = new FileInputStream(file);
+        }
+        if (file.getName().endsWith(".gz")) is = new GZIPInputStream(is);
+        final Run run = new Run((int) (file.length() / this.reclen));
+        final byte[] a = new byte[this.reclen];
+        final byte[] last = new byte[this.keylength];
+        boolean first = true;
+        try {
+            while (readFully(is, a)) {
+                if (!this.ordering.wellformed(a, 0, this.keylength)) continue;
+                if (!first && this.ordering.compare(last, 0, a, 0, this.keylength) >= 0) {
+                    // not in order; this should not happen for dumps
+                    putUnique(a);
+                    continue;
+                }
+                run.append(a, 0);
+                System.arraycopy(a, 0, last, 0, this.keylength);
+                first = false;
+            }
+        } finally {
+            is.close();
+        }
+        this.runs.add(run);
+        if (this.delta.size() > 0) spill();
+    }
+
+    private static boolean readFully(final InputStream is, final byte[] a) throws IOException {
+        int p = 0, c;
+        while (p < a.length) {
+            c = is.read(a, p, a.length - p);
+            if (c <= 0) return false;
+            p += c;
+        }
+        return true;
+    }
+
+    /**
+     * a sorted sequence of records in direct buffers
+     */
+    private final class Run {
+        private final ByteBuffer[] segments;
+        private final BitSet removed;
+        private int count, removedCount;
+
+        public Run(final int capacity) throws RowSpaceExceededException {
+            final int s = (capacity + segmentSize - 1) >>> segmentShift;
+            this.segments = new ByteBuffer[s];
+            try {
+                for (int i = 0; i < s; i++) {
+                    this.segments[i] = ByteBuffer.allocateDirect(Math.min(segmentSize, capacity - (i << segmentShift)) * OffHeapHandleMap.this.reclen);
+                }
+            } catch (final OutOfMemoryError e) {
+                throw new RowSpaceExceededException(((long) capacity) * OffHeapHandleMap.this.reclen, "OffHeapHandleMap.Run", e);
+            }
+            this.removed = new BitSet();
+            this.count = 0;
+            this.removedCount = 0;
+        }
+
+        /**
+         * a run on the java heap for sorted records; used for a copy of the delta
+         * @param records sorted records, not more than segmentSize
+         * @param count the number of records
+         */
+        public Run(final byte[] records, final int count) {
+            assert count <= segmentSize;
+            this.segments = new ByteBuffer[]{ByteBuffer.wrap(records)};
+            this.removed = new BitSet();
+            this.count = count;
+            this.removedCount = 0;
+        }
+
+        public int live() {
+            return this.count - this.removedCount;
+        }
+
+        public void append(final byte[] b, final int offset) {
+            final ByteBuffer s = this.segments[this.count >>> segmentShift];
+            final int p = (this.count & segmentMask) * OffHeapHandleMap.this.reclen;
+            for (int i = 0; i < OffHeapHandleMap.this.reclen; i++) s.put(p + i, b[offset + i]);
+            this.count++;
+        }
+
+        public void key(final int i, final byte[] b) {
+            final ByteBuffer s = this.segments[i >>> segmentShift];
+            final int p = (i & segmentMask) * OffHeapHandleMap.this.reclen;
+            for (int j = 0; j < OffHeapHandleMap.this.keylength; j++) b[j] = s.get(p + j);
+        }
+
+        public void record(final int i, final byte[] b) {
+            final ByteBuffer s = this.segments[i >>> segmentShift];
+            final int p = (i & segmentMask) * OffHeapHandleMap.this.reclen;
+            for (int j = 0; j < OffHeapHandleMap.this.reclen; j++) b[j] = s.get(p + j);
+        }
+
+        public long value(final int i) {
+            final ByteBuffer s = this.segments[i >>> segmentShift];
+            final int p = (i & segmentMask) * OffHeapHandleMap.this.reclen + OffHeapHandleMap.this.keylength;
+            long c = 0;
+            for (int j = 0; j < OffHeapHandleMap.this.idxbytes; j++) c = (c << 8) | (s.get(p + j) & 0xFF);
+            return c;
+        }
+
+        public void value(final int i, long c) {
+            final ByteBuffer s = this.segments[i >>> segmentShift];
+            final int p = (i & segmentMask) * OffHeapHandleMap.this.reclen + OffHeapHandleMap.this.keylength;
+            for (int j = OffHeapHandleMap.this.idxbytes - 1; j >= 0; j--) {
+                s.put(p + j, (byte) (c & 0xFF));
+                c >>= 8;
+            }
+        }
+
+        public boolean isRemoved(final int i) {
+            return this.removed.get(i);
+        }
+
+        public void remove(final int i) {
+            assert !this.removed.get(i);
+            this.removed.set(i);
+            this.removedCount++;
+        }
+
+        /**
+         * binary search of a key
+         * @param key
+         * @param probe a buffer for the keys of the run
+         * @return the position of the key or (-(insertion point) - 1) if the key is not in the run
+         */
+        public int find(final byte[] key, final byte[] probe) {
+            int l = 0, r = this.count - 1, m, c;
+            while (l <= r) {
+                m = (l + r) >>> 1;
+                key(m, probe);
+                c = OffHeapHandleMap.this.ordering.compare(probe, key);
+                if (c < 0) l = m + 1;
+                else if (c > 0) r = m - 1;
+                else return m;
+            }
+            return -(l + 1);
+        }
+
+        /**
+         * find a key that is not marked as removed
+         * @return the position or -1 if the key does not exist
+         */
+        public int findLive(final byte[] key, final byte[] probe) {
+            final int p = find(key, probe);
+            if (p < 0 || isRemoved(p)) return -1;
+            return p;
+        }
+
+        public long mem() {
+            return this.removed.size() / 8;
+        }
+    }
+
+    /**
+     * move a delta that is not tiny out of the heap and purge runs where most of the entries are removed
+     */
+    public void trim() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.delta.size() >= deltaMin) spill();
+            Run run;
+            for (int i = 0; i < this.runs.size(); i++) {
+                run = this.runs.get(i);
+                if (run.removedCount > run.count / 2) this.runs.set(i, merge(run, null));
+            }
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * the memory that is used on the java heap: the delta and the removal marks of the runs
+     */
+    public long mem() {
+        this.lock.readLock().lock();
+        try {
+            long m = this.delta.mem();
+            for (final Run run: this.runs) m += run.mem();
+            return m;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * the memory that is used outside of the java heap
+     * @return number of bytes in direct buffers
+     */
+    public long offHeapMem() {
+        this.lock.readLock().lock();
+        try {
+            long m = 0;
+            for (final Run run: this.runs) for (final ByteBuffer b: run.segments) m += b.capacity();
+            return m;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public final int[] saturation() {
+        int keym = 0;
+        int valm = this.rowdef.width(1);
+        int valc;
+        byte[] lastk = null, thisk;
+        for (final Row.Entry row: this) {
+            // check length of key
+            if (lastk == null) {
+                lastk = row.bytes();
+            } else {
+                thisk = row.bytes();
+                keym = Math.max(keym, eq(lastk, thisk));
+                lastk = thisk;
+            }
+
+            // check length of value
+            for (valc = this.rowdef.primaryKeyLength; valc < this.rowdef.objectsize; valc++) {
+                if (lastk[valc] != 0) break;
+            } // valc is the number of leading zeros plus primaryKeyLength
+            valm = Math.min(valm, valc - this.rowdef.primaryKeyLength); // valm is the number of leading zeros
+        }
+        return new int[]{keym, this.rowdef.width(1) - valm};
+    }
+
+    private final int eq(final byte[] a, final byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) return i;
+        }
+        return a.length;
+    }
+
+    public final int dump(final File file) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".prt");
+        final Iterator<Row.Entry> i = rows(true, null);
+        OutputStream os;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp), 4 * 1024 * 1024);
+        } catch (final OutOfMemoryError e) {
+            os = new FileOutputStream(tmp);
+        }
+        if (file.getName().endsWith(".gz")) os = new GZIPOutputStream(os);
+        int c = 0;
+        while (i.hasNext()) {
+            os.write(i.next().bytes());
+            c++;
+        }
+        os.flush();
+        os.close();
+        tmp.renameTo(file);
+        assert file.exists() : file.toString();
+        assert !tmp.exists() : tmp.toString();
+        return c;
+    }
+
+    public final Row row() {
+        return this.rowdef;
+    }
+
+    public final void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.runs.clear();
+            this.delta.clear();
+            this.doubles.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final byte[] smallestKey() {
+        final CloneableIterator<byte[]> i = keys(true, null);
+        return i.hasNext() ? i.next() : null;
+    }
+
+    public final byte[] largestKey() {
+        final CloneableIterator<byte[]> i = keys(false, null);
+        return i.hasNext() ? i.next() : null;
+    }
+
+    public final boolean has(final byte[] key) {
+        return get(key) >= 0;
+    }
+
+    public final long get(final byte[] key) {
+        assert (key != null);
+        this.lock.readLock().lock();
+        try {
+            return get0(key);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private long get0(final byte[] key) {
+        final Row.Entry entry = this.delta.get(key, false);
+        if (entry != null) return entry.getColLong(1);
+        final byte[] probe = new byte[this.keylength];
+        Run run;
+        int p;
+        for (int i = this.runs.size() - 1; i >= 0; i--) {
+            run = this.runs.get(i);
+            p = run.findLive(key, probe);
+            if (p >= 0) return run.value(p);
+        }
+        return -1;
+    }
+
+    public final long put(final byte[] key, final long l) throws RowSpaceExceededException {
+        assert l >= 0 : "l = " + l;
+        assert (key != null);
+        this.lock.writeLock().lock();
+        try {
+            return put0(key, l);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private long put0(final byte[] key, final long l) throws RowSpaceExceededException {
+        // if the key is in a run, overwrite the value in place
+        if (!this.delta.has(key)) {
+            final byte[] probe = new byte[this.keylength];
+            Run run;
+            int p;
+            for (int i = this.runs.size() - 1; i >= 0; i--) {
+                run = this.runs.get(i);
+                p = run.findLive(key, probe);
+                if (p >= 0) {
+                    final long old = run.value(p);
+                    run.value(p, l);
+                    return old;
+                }
+            }
+        }
+        final Row.Entry newentry = this.rowdef.newEntry();
+        newentry.setCol(0, key);
+        newentry.setCol(1, l);
+        final Row.Entry oldentry = this.delta.replace(newentry);
+        if (this.delta.size() >= deltaMax) spill();
+        if (oldentry == null) return -1;
+        return oldentry.getColLong(1);
+    }
+
+    public final void putUnique(final byte[] key, final long l) throws RowSpaceExceededException {
+        assert l >= 0 : "l = " + l;
+        assert (key != null);
+        final Row.Entry newentry = this.rowdef.newEntry();
+        newentry.setCol(0, key);
+        newentry.setCol(1, l);
+        putUnique(newentry.bytes());
+    }
+
+    private void putUnique(final byte[] record) throws RowSpaceExceededException {
+        this.lock.writeLock().lock();
+        try {
+            // doubles are not checked here; they are detected when the delta is spilled
+            this.delta.addUnique(this.rowdef.newEntry(record));
+            if (this.delta.size() >= deltaMax) spill();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final long add(final byte[] key, final long a) throws RowSpaceExceededException {
+        assert key != null;
+        assert a > 0; // it does not make sense to add 0. If this occurres, it is a performance issue
+        this.lock.writeLock().lock();
+        try {
+            final long old = get0(key);
+            if (old < 0) {
+                put0(key, a);
+                return 1;
+            }
+            final long i = old + a;
+            put0(key, i);
+            return i;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final long inc(final byte[] key) throws RowSpaceExceededException {
+        return add(key, 1);
+    }
+
+    public final long dec(final byte[] key) throws RowSpaceExceededException {
+        return add(key, -1);
+    }
+
+    public final ArrayList<long[]> removeDoubles() throws RowSpaceExceededException {
+        final ArrayList<long[]> report = new ArrayList<long[]>();
+        this.lock.writeLock().lock();
+        try {
+            // doubles inside of a run had been recorded when the run was written;
+            // doubles in different runs or in the delta are found with a merge of all runs
+            final Merger merger = new Merger(snapshot(), true, null);
+            merger.values = new ArrayList<Long>(2);
+            while (merger.next()) {
+                if (merger.values.size() < 2) continue;
+                final byte[] key = new byte[this.keylength];
+                merger.run.key(merger.pos, key);
+                for (final Long l: merger.values) addDouble(key, l.longValue());
+            }
+            long[] is;
+            int c;
+            for (final Map.Entry<byte[], ArrayList<Long>> entry: this.doubles.entrySet()) {
+                is = new long[entry.getValue().size()];
+                c = 0;
+                for (final Long l: entry.getValue()) is[c++] = l.longValue();
+                report.add(is);
+                remove0(entry.getKey());
+            }
+            this.doubles.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return report;
+    }
+
+    public final ArrayList<byte[]> top(final int count) {
+        final ArrayList<byte[]> list = new ArrayList<byte[]>();
+        final CloneableIterator<byte[]> i = keys(false, null);
+        while (i.hasNext() && list.size() < count) list.add(i.next());
+        return list;
+    }
+
+    public final long remove(final byte[] key) {
+        assert (key != null);
+        this.lock.writeLock().lock();
+        try {
+            return remove0(key);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * remove all copies of a key; a key that was inserted with putUnique may exist in the delta and in runs
+     * @return the value of the newest copy or -1 if the key does not exist
+     */
+    private long remove0(final byte[] key) {
+        long old = -1;
+        Row.Entry entry;
+        while ((entry = this.delta.remove(key)) != null) {
+            if (old < 0) old = entry.getColLong(1);
+        }
+        final byte[] probe = new byte[this.keylength];
+        Run run;
+        int p;
+        for (int i = this.runs.size() - 1; i >= 0; i--) {
+            run = this.runs.get(i);
+            p = run.findLive(key, probe);
+            if (p >= 0) {
+                run.remove(p);
+                if (old < 0) old = run.value(p);
+            }
+        }
+        return old;
+    }
+
+    public final long removeone() {
+        this.lock.writeLock().lock();
+        try {
+            if (!this.delta.isEmpty()) {
+                final Row.Entry entry = this.delta.removeOne();
+                if (entry != null) {
+                    remove0(entry.getPrimaryKeyBytes()); // other copies of the key must not become visible
+                    return entry.getColLong(1);
+                }
+            }
+            Run run;
+            for (int i = this.runs.size() - 1; i >= 0; i--) {
+                run = this.runs.get(i);
+                for (int j = run.count - 1; j >= 0; j--) {
+                    if (run.isRemoved(j)) continue;
+                    final byte[] key = new byte[this.keylength];
+                    run.key(j, key);
+                    return remove0(key);
+                }
+            }
+            return -1;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final int size() {
+        this.lock.readLock().lock();
+        try {
+            int s = this.delta.size();
+            for (final Run run: this.runs) s += run.live();
+            return s;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public final boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public final CloneableIterator<byte[]> keys(final boolean up, final byte[] firstKey) {
+        return new KeyIterator(snapshot(), up, firstKey);
+    }
+
+    public final CloneableIterator<Row.Entry> rows(final boolean up, final byte[] firstKey) {
+        return new RowIterator(snapshot(), up, firstKey);
+    }
+
+    /**
+     * the sources of an iteration: a sorted copy of the delta and the runs, the newest source first
+     */
+    private Run[] snapshot() {
+        this.lock.readLock().lock();
+        try {
+            final List<Run> sources = new ArrayList<Run>(this.runs.size() + 1);
+            final int d = this.delta.size();
+            if (d > 0) {
+                final byte[] records = new byte[d * this.reclen];
+                synchronized (this.delta) {
+                    System.arraycopy(this.delta.chunkcache, 0, records, 0, records.length);
+                }
+                final RowSet copy = new RowSet(this.rowdef, d, records, 0);
+                copy.sort();
+                sources.add(new Run(copy.chunkcache, d));
+            }
+            for (int i = this.runs.size() - 1; i >= 0; i--) sources.add(this.runs.get(i));
+            return sources.toArray(new Run[sources.size()]);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public Iterator<Row.Entry> iterator() {
+        return rows(true, null);
+    }
+
+    public final void close() {
+        clear();
+    }
+
+    /**
+     * write the delta into a new run and merge the runs that have a similar size
+     * the caller must hold the write lock
+     * @throws RowSpaceExceededException
+     */
+    private void spill() throws RowSpaceExceededException {
+        if (this.delta.isEmpty()) return;
+        this.delta.sort();
+        // doubles inside of the delta: record them and put one of each back
+        for (final RowCollection collection: this.delta.removeDoubles()) {
+            Row.Entry entry = null;
+            for (final Row.Entry e: collection) {
+                entry = e;
+                addDouble(e.getPrimaryKeyBytes(), e.getColLong(1));
+            }
+            if (entry != null) this.delta.addUnique(entry);
+        }
+        this.delta.sort();
+        final Run run = new Run(this.delta.size());
+        for (int i = 0; i < this.delta.chunkcount; i++) run.append(this.delta.chunkcache, i * this.reclen);
+        this.runs.add(run);
+        this.delta = new RowSet(this.rowdef);
+        // merge like a binary counter: the number of runs is logarithmic
+        while (this.runs.size() >= 2 && this.runs.get(this.runs.size() - 2).live() <= 2 * this.runs.get(this.runs.size() - 1).live()) {
+            final Run newer = this.runs.remove(this.runs.size() - 1);
+            final Run older = this.runs.remove(this.runs.size() - 1);
+            this.runs.add(merge(older, newer));
+        }
+    }
+
+    /**
+     * merge two runs into a new run; removed entries are purged.
+     * If a key appears in both runs, the value of the newer run is kept and both values are recorded as doubles
+     * @param older
+     * @param newer may be null; then only the removed entries of the older run are purged
+     * @return the merged run
+     * @throws RowSpaceExceededException
+     */
+    private Run merge(final Run older, final Run newer) throws RowSpaceExceededException {
+        final Run run = new Run(older.live() + ((newer == null) ? 0 : newer.live()));
+        final byte[] ko = new byte[this.keylength], kn = new byte[this.keylength], record = new byte[this.reclen];
+        int po = nextLive(older, 0), pn = (newer == null) ? -1 : nextLive(newer, 0), c;
+        if (po >= 0) older.key(po, ko);
+        if (pn >= 0) newer.key(pn, kn);
+        while (po >= 0 || pn >= 0) {
+            c = (po < 0) ? 1 : (pn < 0) ? -1 : this.ordering.compare(ko, kn);
+            if (c < 0) {
+                older.record(po, record);
+                run.append(record, 0);
+                po = nextLive(older, po + 1);
+                if (po >= 0) older.key(po, ko);
+            } else {
+                if (c == 0) {
+                    addDouble(ko.clone(), older.value(po));
+                    addDouble(kn.clone(), newer.value(pn));
+                    po = nextLive(older, po + 1);
+                    if (po >= 0) older.key(po, ko);
+                }
+                newer.record(pn, record);
+                run.append(record, 0);
+                pn = nextLive(newer, pn + 1);
+                if (pn >= 0) newer.key(pn, kn);
+            }
+        }
+        return run;
+    }
+
+    private static int nextLive(final Run run, int p) {
+        while (p < run.count && run.isRemoved(p)) p++;
+        return (p < run.count) ? p : -1;
+    }
+
+    private void addDouble(final byte[] key, final long value) {
+        ArrayList<Long> values = this.doubles.get(key);
+        if (values == null) {
+            values = new ArrayList<Long>(2);
+            this.doubles.put(key, values);
+        }
+        if (!values.contains(value)) values.add(value);
+    }
+
+    /**
+     * a merge of sorted runs in one direction. The runs must be given with the newest run first;
+     * if a key appears in several runs, only the entry of the newest run is visible.
+     * The merge works on the runs that existed when it was created. Later merges produce new runs
+     * and do not disturb the iteration.
+     */
+    private final class Merger {
+        private final Run[] sources;
+        private final boolean up;
+        private final int[] p; // the position in each source; -1 if the source is exhausted
+        private final byte[][] k; // the key at the position in each source
+        protected Run run; // the run of the current entry
+        protected int pos; // the position of the current entry in the run
+        protected ArrayList<Long> values; // if not null, this gets the values of all copies of the current key
+
+        public Merger(final Run[] sources, final boolean up, byte[] firstKey) {
+            this.sources = sources;
+            this.up = up;
+            this.p = new int[sources.length];
+            this.k = new byte[sources.length][OffHeapHandleMap.this.keylength];
+            final byte[] probe = new byte[OffHeapHandleMap.this.keylength];
+            if (!up && firstKey != null) {
+                // like in RowSet, a missing key starts the iteration down at the insertion point
+                firstKey = ceiling(firstKey, probe);
+            }
+            int f;
+            for (int i = 0; i < sources.length; i++) {
+                if (firstKey == null) {
+                    this.p[i] = (up) ? 0 : sources[i].count - 1;
+                } else {
+                    f = sources[i].find(firstKey, probe);
+                    this.p[i] = (f >= 0) ? f : (up) ? -f - 1 : -f - 2;
+                }
+                skip(i);
+            }
+        }
+
+        /**
+         * the smallest live key that is not smaller than the given key
+         * @return the given key if there is no such key
+         */
+        private byte[] ceiling(final byte[] key, final byte[] probe) {
+            byte[] c = null;
+            int q;
+            for (final Run source: this.sources) {
+                q = source.find(key, probe);
+                q = (q >= 0) ? q : -q - 1;
+                while (q < source.count && source.isRemoved(q)) q++;
+                if (q == source.count) continue;
+                source.key(q, probe);
+                if (c == null || OffHeapHandleMap.this.ordering.compare(probe, c) < 0) c = probe.clone();
+            }
+            return (c == null) ? key : c;
+        }
+
+        private void skip(final int i) {
+            final Run source = this.sources[i];
+            while (this.p[i] >= 0 && this.p[i] < source.count && source.isRemoved(this.p[i])) this.p[i] += (this.up) ? 1 : -1;
+            if (this.p[i] >= 0 && this.p[i] < source.count) source.key(this.p[i], this.k[i]); else this.p[i] = -1;
+        }
+
+        /**
+         * move to the next entry
+         * @return false if there is no next entry
+         */
+        public boolean next() {
+            int best = -1, c;
+            for (int i = 0; i < this.sources.length; i++) {
+                if (this.p[i] < 0) continue;
+                if (best < 0) {
+                    best = i;
+                    continue;
+                }
+                c = OffHeapHandleMap.this.ordering.compare(this.k[i], this.k[best]);
+                if ((this.up) ? c < 0 : c > 0) best = i; // on equal keys the newer source wins
+            }
+            if (best < 0) {
+                this.run = null;
+                return false;
+            }
+            this.run = this.sources[best];
+            this.pos = this.p[best];
+            if (this.values != null) this.values.clear();
+            // step over all copies of the key
+            final byte[] key = this.k[best].clone();
+            for (int i = 0; i < this.sources.length; i++) {
+                while (this.p[i] >= 0 && OffHeapHandleMap.this.ordering.equal(this.k[i], key)) {
+                    if (this.values != null) this.values.add(this.sources[i].value(this.p[i]));
+                    this.p[i] += (this.up) ? 1 : -1;
+                    skip(i);
+                }
+            }
+            return true;
+        }
+    }
+
+    private abstract class MergeIterator<E> implements CloneableIterator<E> {
+        protected final Run[] sources;
+        protected final boolean up;
+        private final Merger merger;
+        private boolean hasNext;
+
+        public MergeIterator(final Run[] sources, final boolean up, final byte[] firstKey) {
+            this.sources = sources;
+            this.up = up;
+            this.merger = new Merger(sources, up, firstKey);
+            this.hasNext = this.merger.next();
+        }
+
+        protected abstract E element(Run run, int p);
+
+        public boolean hasNext() {
+            return this.hasNext;
+        }
+
+        public E next() {
+            if (!this.hasNext) throw new NoSuchElementException();
+            final E e = element(this.merger.run, this.merger.pos);
+            this.hasNext = this.merger.next();
+            return e;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final class KeyIterator extends MergeIterator<byte[]> {
+
+        public KeyIterator(final Run[] sources, final boolean up, final byte[] firstKey) {
+            super(sources, up, firstKey);
+        }
+
+        public CloneableIterator<byte[]> clone(final Object modifier) {
+            return new KeyIterator(this.sources, this.up, (byte[]) modifier);
+        }
+
+        protected byte[] element(final Run run, final int p) {
+            final byte[] key = new byte[OffHeapHandleMap.this.keylength];
+            run.key(p, key);
+            return key;
+        }
+    }
+
+    private final class RowIterator extends MergeIterator<Row.Entry> {
+
+        public RowIterator(final Run[] sources, final boolean up, final byte[] firstKey) {
+            super(sources, up, firstKey);
+        }
+
+        public CloneableIterator<Row.Entry> clone(final Object modifier) {
+            return new RowIterator(this.sources, this.up, (byte[]) modifier);
+        }
+
+        protected Row.Entry element(final Run run, final int p) {
+            final byte[] record = new byte[OffHeapHandleMap.this.reclen];
+            run.record(p, record);
+            return OffHeapHandleMap.this.rowdef.newEntry(record);
+        }
+    }
+
+    public static void main(final String[] args) {
+        // a simple consistency and speed test against the RowHandleMap
+        final int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        final HandleMap a = new OffHeapHandleMap(12, NaturalOrder.naturalOrder, 8, count, "test");
+        final HandleMap b = new RowHandleMap(12, NaturalOrder.naturalOrder, 8, count, "test");
+        final java.util.Random r = new java.util.Random(0);
+        byte[] key;
+        try {
+            long t = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) a.putUnique(RowSet.randomHash(r), i);
+            System.out.println("off heap: " + count + " putUnique in " + (System.currentTimeMillis() - t) + " ms");
+            r.setSeed(0);
+            t = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) b.putUnique(RowSet.randomHash(r), i);
+            System.out.println("row map : " + count + " putUnique in " + (System.currentTimeMillis() - t) + " ms");
+            r.setSeed(0);
+            int errors = 0;
+            t = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                key = RowSet.randomHash(r);
+                if (a.get(key) != i) errors++;
+            }
+            System.out.println("off heap: " + count + " get in " + (System.currentTimeMillis() - t) + " ms, " + errors + " errors");
+            r.setSeed(0);
+            t = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) b.get(RowSet.randomHash(r));
+            System.out.println("row map : " + count + " get in " + (System.currentTimeMillis() - t) + " ms");
+            System.out.println("heap memory: off heap " + a.mem() + " bytes, row map " + b.mem() + " bytes");
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        }
+        Log.shutdown();
+    }
+}
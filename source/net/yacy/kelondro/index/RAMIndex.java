@@ -31,6 +31,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.yacy.kelondro.index.Row.Entry;
 import net.yacy.kelondro.order.CloneableIterator;
@@ -38,6 +39,12 @@ import net.yacy.kelondro.order.MergeIterator;
 import net.yacy.kelondro.order.StackIterator;
 
 
+/**
+ * an index in RAM which consists of a sorted set of entries that were loaded during an initialization phase
+ * and a set for entries that were added later.
+ * The index is guarded by a read/write lock: lookups with get() and has() do not modify the sets and
+ * may run concurrently; all other operations are exclusive.
+ */
 public final class RAMIndex implements Index, Iterable<Row.Entry> {
 
     private static final TreeMap<String, RAMIndex> objectTracker = new TreeMap<String, RAMIndex>();
@@ -47,6 +54,7 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
     private RowSet index0;
     private RowSet index1;
     private final Row.EntryComparator entryComparator;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     //private final int spread;
 
     public RAMIndex(final String name, final Row rowdef, final int expectedspace) {
@@ -55,7 +63,9 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
         this.entryComparator = new Row.EntryComparator(rowdef.objectOrder);
         //this.spread = Math.max(10, expectedspace / 3000);
         reset();
-        objectTracker.put(name, this);
+        synchronized (objectTracker) {
+            objectTracker.put(name, this);
+        }
     }
 
     private RAMIndex(final String name, final Row rowdef, final RowSet index0, final RowSet index1, final Row.EntryComparator entryComparator) {
@@ -64,7 +74,9 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
         this.index0 = index0;
         this.index1 = index1;
         this.entryComparator = entryComparator;
-        objectTracker.put(name, this);
+        synchronized (objectTracker) {
+            objectTracker.put(name, this);
+        }
     }
 
     public static final Iterator<Map.Entry<String, RAMIndex>> objects() {
@@ -81,20 +93,35 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
 	}
 
     public void trim() {
-        if (this.index0 != null) this.index0.trim();
-        if (this.index1 != null) this.index1.trim();
+        this.lock.writeLock().lock();
+        try {
+            if (this.index0 != null) this.index0.trim();
+            if (this.index1 != null) this.index1.trim();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
-    public final synchronized void reset() {
-        this.index0 = null; // first flush RAM to make room
-        this.index0 = new RowSet(this.rowdef);
-        this.index1 = null; // to show that this is the initialization phase
+    public final void reset() {
+        this.lock.writeLock().lock();
+        try {
+            this.index0 = null; // first flush RAM to make room
+            this.index0 = new RowSet(this.rowdef);
+            this.index1 = null; // to show that this is the initialization phase
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
-    public final synchronized void reset(final int initialspace) throws RowSpaceExceededException {
-        this.index0 = null; // first flush RAM to make room
-        this.index0 = new RowSet(this.rowdef, initialspace);
-        this.index1 = null; // to show that this is the initialization phase
+    public final void reset(final int initialspace) throws RowSpaceExceededException {
+        this.lock.writeLock().lock();
+        try {
+            this.index0 = null; // first flush RAM to make room
+            this.index0 = new RowSet(this.rowdef, initialspace);
+            this.index1 = null; // to show that this is the initialization phase
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
     public final Row row() {
@@ -111,31 +138,65 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
         }
     }
 
-    public final synchronized byte[] smallestKey() {
-        final byte[] b0 = this.index0.smallestKey();
-        if (b0 == null) return null;
-        if (this.index1 == null) return b0;
-        final byte[] b1 = this.index0.smallestKey();
-        if (b1 == null || this.rowdef.objectOrder.compare(b1, b0) > 0) return b0;
-        return b1;
+    /**
+     * acquire the read lock. Readers must not modify the sets; therefore the initialization phase must be
+     * finished and the sets must not have a long unsorted tail. If this is not the case, this is done first
+     * with the write lock which is then downgraded to the read lock.
+     */
+    private void readLock() {
+        this.lock.readLock().lock();
+        if (this.index1 != null && !this.index0.sortRequired() && !this.index1.sortRequired()) return;
+        this.lock.readLock().unlock();
+        this.lock.writeLock().lock();
+        try {
+            finishInitialization();
+            if (this.index0.sortRequired()) this.index0.sort();
+            if (this.index1.sortRequired()) this.index1.sort();
+            this.lock.readLock().lock();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
-    public final synchronized byte[] largestKey() {
-        final byte[] b0 = this.index0.largestKey();
-        if (b0 == null) return null;
-        if (this.index1 == null) return b0;
-        final byte[] b1 = this.index0.largestKey();
-        if (b1 == null || this.rowdef.objectOrder.compare(b0, b1) > 0) return b0;
-        return b1;
+    public final byte[] smallestKey() {
+        this.lock.writeLock().lock();
+        try {
+            final byte[] b0 = this.index0.smallestKey();
+            if (b0 == null) return null;
+            if (this.index1 == null) return b0;
+            final byte[] b1 = this.index0.smallestKey();
+            if (b1 == null || this.rowdef.objectOrder.compare(b1, b0) > 0) return b0;
+            return b1;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
-    public final synchronized Row.Entry get(final byte[] key, final boolean forceclone) {
+    public final byte[] largestKey() {
+        this.lock.writeLock().lock();
+        try {
+            final byte[] b0 = this.index0.largestKey();
+            if (b0 == null) return null;
+            if (this.index1 == null) return b0;
+            final byte[] b1 = this.index0.largestKey();
+            if (b1 == null || this.rowdef.objectOrder.compare(b0, b1) > 0) return b0;
+            return b1;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final Row.Entry get(final byte[] key, final boolean forceclone) {
         assert (key != null);
-        finishInitialization();
-        assert this.index0.isSorted();
-        final Row.Entry indexentry = this.index0.get(key, forceclone);
-        if (indexentry != null) return indexentry;
-        return this.index1.get(key, forceclone);
+        readLock();
+        try {
+            assert this.index0.isSorted();
+            final Row.Entry indexentry = this.index0.lookupGet(key, forceclone);
+            if (indexentry != null) return indexentry;
+            return this.index1.lookupGet(key, forceclone);
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     public Map<byte[], Row.Entry> get(final Collection<byte[]> keys, final boolean forcecopy) throws IOException, InterruptedException {
@@ -148,26 +209,35 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
         return map;
     }
 
-    public final synchronized boolean has(final byte[] key) {
+    public final boolean has(final byte[] key) {
 		assert (key != null);
-        finishInitialization();
-        assert this.index0.isSorted();
-        if (this.index0.has(key)) return true;
-        return this.index1.has(key);
+        readLock();
+        try {
+            assert this.index0.isSorted();
+            if (this.index0.lookupHas(key)) return true;
+            return this.index1.lookupHas(key);
+        } finally {
+            this.lock.readLock().unlock();
+        }
 	}
 
-	public final synchronized Row.Entry replace(final Row.Entry entry) throws RowSpaceExceededException {
+	public final Row.Entry replace(final Row.Entry entry) throws RowSpaceExceededException {
         assert (entry != null);
-        finishInitialization();
-        // if the new entry is within the initialization part, just overwrite it
-        assert this.index0.isSorted();
-        final byte[] key = entry.getPrimaryKeyBytes();
-        if (this.index0.has(key)) {
-            // replace the entry
-            return this.index0.replace(entry);
+        this.lock.writeLock().lock();
+        try {
+            finishInitialization();
+            // if the new entry is within the initialization part, just overwrite it
+            assert this.index0.isSorted();
+            final byte[] key = entry.getPrimaryKeyBytes();
+            if (this.index0.has(key)) {
+                // replace the entry
+                return this.index0.replace(entry);
+            }
+            // else place it in the index1
+            return this.index1.replace(entry);
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // else place it in the index1
-        return this.index1.replace(entry);
     }
 
 	/**
@@ -180,7 +250,8 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
 	public final boolean put(final Row.Entry entry) throws RowSpaceExceededException {
         assert (entry != null);
         if (entry == null) return true;
-        synchronized (this) {
+        this.lock.writeLock().lock();
+        try {
             finishInitialization();
             // if the new entry is within the initialization part, just overwrite it
             assert this.index0.isSorted();
@@ -192,13 +263,16 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
             }
             // else place it in the index1
             return this.index1.put(entry);
+        } finally {
+            this.lock.writeLock().unlock();
         }
     }
 
     public final void addUnique(final Row.Entry entry) throws RowSpaceExceededException {
     	assert (entry != null);
     	if (entry == null) return;
-    	synchronized (this) {
+        this.lock.writeLock().lock();
+        try {
             if (this.index1 == null) {
                 // we are in the initialization phase
             	this.index0.addUnique(entry);
@@ -206,7 +280,9 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
             }
             // initialization is over, add to secondary index
             this.index1.addUnique(entry);
-    	}
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
 	public final void addUnique(final List<Entry> rows) throws RowSpaceExceededException {
@@ -214,76 +290,119 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
 		while (i.hasNext()) addUnique(i.next());
 	}
 
-	public final synchronized long inc(final byte[] key, final int col, final long add, final Row.Entry initrow) throws RowSpaceExceededException {
-        assert (key != null);
-        finishInitialization();
-        assert this.index0.isSorted();
-        final long l = this.index0.inc(key, col, add, null);
-        if (l != Long.MIN_VALUE) return l;
-        return this.index1.inc(key, col, add, initrow);
-    }
-
-    public final synchronized ArrayList<RowCollection> removeDoubles() throws RowSpaceExceededException {
-	    // finish initialization phase explicitely
-        this.index0.sort();
-	    if (this.index1 == null) {
-	        return this.index0.removeDoubles();
-	    }
-	    final ArrayList<RowCollection> d0 = this.index0.removeDoubles();
-	    final ArrayList<RowCollection> d1 = this.index1.removeDoubles();
-        d0.addAll(d1);
-        return d0;
+	public final long inc(final byte[] key, final int col, final long add, final Row.Entry initrow) throws RowSpaceExceededException {
+        this.lock.writeLock().lock();
+        try {
+            assert (key != null);
+            finishInitialization();
+            assert this.index0.isSorted();
+            final long l = this.index0.inc(key, col, add, null);
+            if (l != Long.MIN_VALUE) return l;
+            return this.index1.inc(key, col, add, initrow);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public final ArrayList<RowCollection> removeDoubles() throws RowSpaceExceededException {
+        this.lock.writeLock().lock();
+        try {
+    	    // finish initialization phase explicitely
+            this.index0.sort();
+    	    if (this.index1 == null) {
+    	        return this.index0.removeDoubles();
+    	    }
+    	    final ArrayList<RowCollection> d0 = this.index0.removeDoubles();
+    	    final ArrayList<RowCollection> d1 = this.index1.removeDoubles();
+            d0.addAll(d1);
+            return d0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
 	}
 
-    public final synchronized boolean delete(final byte[] key) {
-        finishInitialization();
-        // if the new entry is within the initialization part, just delete it
-        boolean b = this.index0.delete(key);
-        if (b) {
-            assert !this.index0.has(key); // check if remove worked
-            return true;
+    public final boolean delete(final byte[] key) {
+        this.lock.writeLock().lock();
+        try {
+            finishInitialization();
+            // if the new entry is within the initialization part, just delete it
+            boolean b = this.index0.delete(key);
+            if (b) {
+                assert !this.index0.has(key); // check if remove worked
+                return true;
+            }
+            // else remove it from the index1
+            b = this.index1.delete(key);
+            assert !this.index1.has(key) : "removed " + ((b) ? " true" : " false") + ", and index entry still exists"; // check if remove worked
+            return b;
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // else remove it from the index1
-        b = this.index1.delete(key);
-        assert this.index1.has(key) : "removed " + ((b) ? " true" : " false") + ", and index entry still exists"; // check if remove worked
-        return b;
-    }
-
-    public final synchronized Row.Entry remove(final byte[] key) {
-        finishInitialization();
-        // if the new entry is within the initialization part, just delete it
-        int s = this.index0.size();
-        final Row.Entry indexentry = this.index0.remove(key);
-        if (indexentry != null) {
-            assert this.index0.size() < s: "s = " + s + ", index0.size() = " + this.index0.size();
-            assert !this.index0.has(key); // check if remove worked
-            return indexentry;
+    }
+
+    public final Row.Entry remove(final byte[] key) {
+        this.lock.writeLock().lock();
+        try {
+            finishInitialization();
+            // if the new entry is within the initialization part, just delete it
+            int s = this.index0.size();
+            final Row.Entry indexentry = this.index0.remove(key);
+            if (indexentry != null) {
+                assert this.index0.size() < s: "s = " + s + ", index0.size() = " + this.index0.size();
+                assert !this.index0.has(key); // check if remove worked
+                return indexentry;
+            }
+            // else remove it from the index1
+            s = this.index1.size();
+            final Row.Entry removed = this.index1.remove(key);
+            assert removed == null || this.index1.size() < s: "s = " + s + ", index1.size() = " + this.index1.size();
+            assert !this.index1.has(key) : "removed " + ((removed == null) ? " is null" : " is not null") + ", and index entry still exists"; // check if remove worked
+            return removed;
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // else remove it from the index1
-        s = this.index1.size();
-        final Row.Entry removed = this.index1.remove(key);
-        assert removed == null || this.index1.size() < s: "s = " + s + ", index1.size() = " + this.index1.size();
-        assert !this.index1.has(key) : "removed " + ((removed == null) ? " is null" : " is not null") + ", and index entry still exists"; // check if remove worked
-        return removed;
     }
 
-    public final synchronized Row.Entry removeOne() {
-        if (this.index1 != null && !this.index1.isEmpty()) {
-            return this.index1.removeOne();
+    public final Row.Entry removeOne() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.index1 != null && !this.index1.isEmpty()) {
+                return this.index1.removeOne();
+            }
+            if (this.index0 != null && !this.index0.isEmpty()) {
+            	return this.index0.removeOne();
+            }
+            return null;
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        if (this.index0 != null && !this.index0.isEmpty()) {
-        	return this.index0.removeOne();
+    }
+
+    public List<Row.Entry> top(final int count) throws IOException {
+        this.lock.writeLock().lock();
+        try {
+            final List<Row.Entry> list = new ArrayList<Row.Entry>();
+            List<Row.Entry> list0 = this.index1.top(count);
+            list.addAll(list0);
+            list0 = this.index0.top(count - list.size());
+            list.addAll(list0);
+            return list;
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        return null;
     }
 
-    public synchronized List<Row.Entry> top(final int count) throws IOException {
-        final List<Row.Entry> list = new ArrayList<Row.Entry>();
-        List<Row.Entry> list0 = this.index1.top(count);
-        list.addAll(list0);
-        list0 = this.index0.top(count - list.size());
-        list.addAll(list0);
-        return list;
+    /**
+     * compute the memory that is needed to add the next entry
+     * @return the number of bytes that must be allocated when the next entry is added
+     */
+    protected final long memoryNeededForGrow() {
+        this.lock.readLock().lock();
+        try {
+            return (this.index1 == null) ? this.index0.memoryNeededForGrow() : this.index1.memoryNeededForGrow();
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     public long mem() {
@@ -297,119 +416,151 @@ public final class RAMIndex implements Index, Iterable<Row.Entry> {
         return this.index0.mem() + this.index1.mem();
     }
 
-    public final synchronized int size() {
-        if (this.index0 != null && this.index1 == null) {
-            return this.index0.size();
-        }
-        if (this.index0 == null && this.index1 != null) {
-            return this.index1.size();
+    public final int size() {
+        this.lock.readLock().lock();
+        try {
+            if (this.index0 != null && this.index1 == null) {
+                return this.index0.size();
+            }
+            if (this.index0 == null && this.index1 != null) {
+                return this.index1.size();
+            }
+            assert (this.index0 != null && this.index1 != null);
+            return this.index0.size() + this.index1.size();
+        } finally {
+            this.lock.readLock().unlock();
         }
-        assert (this.index0 != null && this.index1 != null);
-        return this.index0.size() + this.index1.size();
     }
 
-    public final synchronized boolean isEmpty() {
-        if (this.index0 != null && this.index1 == null) {
-            return this.index0.isEmpty();
-        }
-        if (this.index0 == null && this.index1 != null) {
-            return this.index1.isEmpty();
+    public final boolean isEmpty() {
+        this.lock.readLock().lock();
+        try {
+            if (this.index0 != null && this.index1 == null) {
+                return this.index0.isEmpty();
+            }
+            if (this.index0 == null && this.index1 != null) {
+                return this.index1.isEmpty();
+            }
+            assert (this.index0 != null && this.index1 != null);
+            if (!this.index0.isEmpty()) return false;
+            if (!this.index1.isEmpty()) return false;
+            return true;
+        } finally {
+            this.lock.readLock().unlock();
         }
-        assert (this.index0 != null && this.index1 != null);
-        if (!this.index0.isEmpty()) return false;
-        if (!this.index1.isEmpty()) return false;
-        return true;
     }
 
 
-    public final synchronized CloneableIterator<byte[]> keys(final boolean up, final byte[] firstKey) {
-        // returns the key-iterator of the underlying kelondroIndex
-        if (this.index1 == null) {
-            // finish initialization phase
-            this.index0.sort();
-            this.index0.uniq();
-            this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
-            return this.index0.keys(up, firstKey);
-        }
-        assert (this.index1 != null);
-        if (this.index0 == null) {
+    public final CloneableIterator<byte[]> keys(final boolean up, final byte[] firstKey) {
+        this.lock.writeLock().lock();
+        try {
+            // returns the key-iterator of the underlying kelondroIndex
+            if (this.index1 == null) {
+                // finish initialization phase
+                this.index0.sort();
+                this.index0.uniq();
+                this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
+                return this.index0.keys(up, firstKey);
+            }
+            assert (this.index1 != null);
+            if (this.index0 == null) {
+                //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
+                return this.index1.keys(up, firstKey);
+            }
+            // index0 should be sorted
+            // sort index1 to enable working of the merge iterator
             //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-            return this.index1.keys(up, firstKey);
+            final CloneableIterator<byte[]> k0 = this.index0.keys(up, firstKey);
+            final CloneableIterator<byte[]> k1 = this.index1.keys(up, firstKey);
+            if (k0 == null) return k1;
+            if (k1 == null) return k0;
+            return new MergeIterator<byte[]>(
+                    k0,
+                    k1,
+                    this.rowdef.objectOrder,
+                    MergeIterator.simpleMerge,
+                    true);
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // index0 should be sorted
-        // sort index1 to enable working of the merge iterator
-        //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-        final CloneableIterator<byte[]> k0 = this.index0.keys(up, firstKey);
-        final CloneableIterator<byte[]> k1 = this.index1.keys(up, firstKey);
-        if (k0 == null) return k1;
-        if (k1 == null) return k0;
-        return new MergeIterator<byte[]>(
-                k0,
-                k1,
-                this.rowdef.objectOrder,
-                MergeIterator.simpleMerge,
-                true);
-    }
-
-    public final synchronized CloneableIterator<Row.Entry> rows(final boolean up, final byte[] firstKey) {
-        // returns the row-iterator of the underlying kelondroIndex
-        if (this.index1 == null) {
-            // finish initialization phase
-            this.index0.sort();
-            this.index0.uniq();
-            this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
-            return this.index0.rows(up, firstKey);
-        }
-        assert (this.index1 != null);
-        if (this.index0 == null) {
+    }
+
+    public final CloneableIterator<Row.Entry> rows(final boolean up, final byte[] firstKey) {
+        this.lock.writeLock().lock();
+        try {
+            // returns the row-iterator of the underlying kelondroIndex
+            if (this.index1 == null) {
+                // finish initialization phase
+                this.index0.sort();
+                this.index0.uniq();
+                this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
+                return this.index0.rows(up, firstKey);
+            }
+            assert (this.index1 != null);
+            if (this.index0 == null) {
+                //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
+                return this.index1.rows(up, firstKey);
+            }
+            // index0 should be sorted
+            // sort index1 to enable working of the merge iterator
+            //index1.sort();
             //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-            return this.index1.rows(up, firstKey);
+            final CloneableIterator<Row.Entry> k0 = this.index0.rows(up, firstKey);
+            final CloneableIterator<Row.Entry> k1 = this.index1.rows(up, firstKey);
+            if (k0 == null) return k1;
+            if (k1 == null) return k0;
+            return new MergeIterator<Row.Entry>(
+                    k0,
+                    k1,
+                    this.entryComparator,
+                    MergeIterator.simpleMerge,
+                    true);
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // index0 should be sorted
-        // sort index1 to enable working of the merge iterator
-        //index1.sort();
-        //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-        final CloneableIterator<Row.Entry> k0 = this.index0.rows(up, firstKey);
-        final CloneableIterator<Row.Entry> k1 = this.index1.rows(up, firstKey);
-        if (k0 == null) return k1;
-        if (k1 == null) return k0;
-        return new MergeIterator<Row.Entry>(
-                k0,
-                k1,
-                this.entryComparator,
-                MergeIterator.simpleMerge,
-                true);
     }
 
     public final Iterator<Entry> iterator() {
         return rows();
     }
 
-    public final synchronized CloneableIterator<Row.Entry> rows() {
-        // returns the row-iterator of the underlying kelondroIndex
-        if (this.index1 == null) {
-            // finish initialization phase
-            this.index0.sort();
-            this.index0.uniq();
-            this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
-            return this.index0.rows();
-        }
-        assert (this.index1 != null);
-        if (this.index0 == null) {
+    public final CloneableIterator<Row.Entry> rows() {
+        this.lock.writeLock().lock();
+        try {
+            // returns the row-iterator of the underlying kelondroIndex
+            if (this.index1 == null) {
+                // finish initialization phase
+                this.index0.sort();
+                this.index0.uniq();
+                this.index1 = new RowSet(this.rowdef); //new RowSetArray(rowdef, spread);
+                return this.index0.rows();
+            }
+            assert (this.index1 != null);
+            if (this.index0 == null) {
+                //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
+                return this.index1.rows();
+            }
+            // index0 should be sorted
+            // sort index1 to enable working of the merge iterator
+            //index1.sort();
             //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-            return this.index1.rows();
+            return new StackIterator<Row.Entry>(this.index0.rows(), this.index1.rows());
+        } finally {
+            this.lock.writeLock().unlock();
         }
-        // index0 should be sorted
-        // sort index1 to enable working of the merge iterator
-        //index1.sort();
-        //assert consistencyAnalysis0() : "consistency problem: " + consistencyAnalysis();
-        return new StackIterator<Row.Entry>(this.index0.rows(), this.index1.rows());
     }
 
-    public final synchronized void close() {
-        if (this.index0 != null) this.index0.close();
-        if (this.index1 != null) this.index1.close();
-        objectTracker.remove(this.name);
+    public final void close() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.index0 != null) this.index0.close();
+            if (this.index1 != null) this.index1.close();
+            synchronized (objectTracker) {
+                objectTracker.remove(this.name);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
 	public final String filename() {
@@ -36,6 +36,7 @@ import net.yacy.kelondro.index.Row.Entry;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.CloneableIterator;
 import net.yacy.kelondro.order.MergeIterator;
+import net.yacy.kelondro.order.NaturalOrder;
 import net.yacy.kelondro.order.StackIterator;
 
 
@@ -302,6 +303,16 @@ public final class RAMIndexCluster implements Index, Iterable<Row.Entry>, Clonea
         return m;
     }
 
+    /**
+     * compute the memory that is needed to add the next entry
+     * @return the largest number of bytes that one of the cluster elements must allocate when an entry is added
+     */
+    protected final long memoryNeededForGrow() {
+        long m = 0;
+        for (final RAMIndex i: this.cluster) if (i != null) m = Math.max(m, i.memoryNeededForGrow());
+        return m;
+    }
+
     public final boolean isEmpty() {
         synchronized (this.cluster) {
             for (final RAMIndex i: this.cluster) if (i != null && !i.isEmpty()) return false;
@@ -318,4 +329,65 @@ public final class RAMIndexCluster implements Index, Iterable<Row.Entry>, Clonea
         if (i < 0) return -1;
         return accessArray(i).inc(key, col, add, initrow);
     }
+
+    /**
+     * a throughput test for concurrent readers and writers. Every thread performs get operations with
+     * an occasional put; the result is compared with a single synchronized RowSet.
+     */
+    public static void main(final String[] args) {
+        final int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        final int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+        final Row row = new Row("byte[] key-12, long c-8 {b256}", NaturalOrder.naturalOrder);
+        final byte[][] keys = new byte[count][];
+        final java.util.Random r = new java.util.Random(0);
+        for (int i = 0; i < count; i++) keys[i] = RowSet.randomHash(r);
+        try {
+            for (final int threads: new int[]{1, 2, 4, 8, 16, 32}) {
+                final RowSet set = new RowSet(row);
+                final RAMIndexCluster cluster = new RAMIndexCluster("test", row, Runtime.getRuntime().availableProcessors());
+                for (int i = 0; i < count; i += 2) {
+                    set.put(row.newEntry(new byte[][]{keys[i], NaturalOrder.encodeLong(i, 8)}));
+                    cluster.put(row.newEntry(new byte[][]{keys[i], NaturalOrder.encodeLong(i, 8)}));
+                }
+                final long tset = throughput(set, row, keys, threads, ops);
+                final long tcluster = throughput(cluster, row, keys, threads, ops);
+                System.out.println(threads + " threads: RowSet " + (ops * 1000L / Math.max(1, tset)) + " ops/s, RAMIndexCluster " + (ops * 1000L / Math.max(1, tcluster)) + " ops/s");
+                cluster.close();
+            }
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        } catch (final InterruptedException e) {
+            Log.logException(e);
+        }
+        Log.shutdown();
+    }
+
+    private static long throughput(final Index index, final Row row, final byte[][] keys, final int threads, final int ops) throws InterruptedException {
+        final Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int seed = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    final java.util.Random r = new java.util.Random(seed);
+                    try {
+                        for (int j = ops / threads; j > 0; j--) {
+                            final byte[] key = keys[r.nextInt(keys.length)];
+                            if (j % 10 == 0) {
+                                index.put(row.newEntry(new byte[][]{key, NaturalOrder.encodeLong(j, 8)}));
+                            } else {
+                                index.get(key, false);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        Log.logException(e);
+                    }
+                }
+            };
+        }
+        final long start = System.currentTimeMillis();
+        for (final Thread x: t) x.start();
+        for (final Thread x: t) x.join();
+        return System.currentTimeMillis() - start;
+    }
 }
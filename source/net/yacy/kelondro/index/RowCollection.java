@@ -346,6 +346,18 @@ public class RowCollection implements Sortable<Row.Entry>, Iterable<Row.Entry>,
         return entry;
     }
 
+    /**
+     * copy the bytes of a sequence of rows into a target array. This can be used to decode
+     * the columns of many rows without the creation of an entry object for each row
+     * @param index the position of the first row
+     * @param count the number of rows
+     * @param target an array with a length of at least count * row().objectsize
+     */
+    public synchronized final void copyRows(final int index, final int count, final byte[] target) {
+        assert index >= 0 && index + count <= this.chunkcount : "index = " + index + ", count = " + count + ", chunkcount = " + this.chunkcount;
+        System.arraycopy(this.chunkcache, index * this.rowdef.objectsize, target, 0, count * this.rowdef.objectsize);
+    }
+
     public synchronized final void set(final int index, final Row.Entry a) throws RowSpaceExceededException {
         assert (index >= 0) : "set: access with index " + index + " is below zero";
         ensureSize(index + 1);
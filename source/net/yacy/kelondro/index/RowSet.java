@@ -273,14 +273,53 @@ public class RowSet extends RowCollection implements Index, Iterable<Row.Entry>
         }
     }
 
+    /**
+     * check if a lookup should sort the set first because the unsorted tail is too long for an iterative search
+     * @return true if the set should be sorted before it is read without modification
+     */
+    protected final boolean sortRequired() {
+        return this.rowdef.objectOrder != null && (this.chunkcount - this.sortBound) > collectionReSortLimit;
+    }
+
+    /**
+     * check if a key is in the set without modifying the set.
+     * This method is not synchronized; the caller must ensure that no other thread modifies the set at the same time
+     * (e.g. with a read lock that excludes all writers). Such readers may run concurrently.
+     * @param key
+     * @return true if the set contains the key
+     */
+    protected final boolean lookupHas(final byte[] key) {
+        assert key.length == this.rowdef.primaryKeyLength;
+        return search(key, 0) >= 0;
+    }
+
+    /**
+     * get an entry without modifying the set.
+     * This method is not synchronized; the caller must ensure that no other thread modifies the set at the same time
+     * (e.g. with a read lock that excludes all writers). Such readers may run concurrently.
+     * @param key
+     * @param forcecopy
+     * @return the entry or null if the set does not contain the key
+     */
+    protected final Row.Entry lookupGet(final byte[] key, final boolean forcecopy) {
+        assert key.length == this.rowdef.primaryKeyLength;
+        final int index = search(key, 0);
+        if (index < 0) return null;
+        final int addr = index * this.rowdef.objectsize;
+        if (addr + this.rowdef.objectsize > this.chunkcache.length) return null;
+        return this.rowdef.newEntry(this.chunkcache, addr, forcecopy);
+    }
+
     private final int find(final byte[] a, final int astart) {
         // returns the chunknumber; -1 if not found
+        if (sortRequired()) sort();
+        return search(a, astart);
+    }
 
-        if (this.rowdef.objectOrder == null) return iterativeSearch(a, astart, 0, this.chunkcount);
+    private final int search(final byte[] a, final int astart) {
+        // returns the chunknumber; -1 if not found; the collection is not modified
 
-        if ((this.chunkcount - this.sortBound) > collectionReSortLimit) {
-            sort();
-        }
+        if (this.rowdef.objectOrder == null) return iterativeSearch(a, astart, 0, this.chunkcount);
 
         if (this.rowdef.objectOrder != null && this.rowdef.objectOrder instanceof Base64Order) {
             // first try to find in sorted area
@@ -0,0 +1,251 @@
+// ScalableBloomFilter.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 28.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.yacy.kelondro.util.FileUtils;
+
+/**
+ * a Bloom filter for a set of keys that grows without a known maximum size.
+ * The filter is a sequence of Bloom filters: new keys are added to the last filter, and if that filter
+ * has reached its capacity, a new filter with twice the capacity and half of the false positive rate
+ * is appended. Therefore the false positive rate of the whole filter never exceeds the given rate,
+ * and the memory grows linear with the number of keys.
+ * As with the BloomFilter, keys cannot be removed and the filter is thread-safe.
+ */
+public final class ScalableBloomFilter {
+
+    private static final int magic = 0x73626C31; // 'sbl1'
+
+    private final int initialCapacity;
+    private final double falsePositiveRate;
+    private final List<BloomFilter> filters;
+    private volatile BloomFilter current; // the last filter; new keys are added here
+    private volatile int currentCapacity;
+    private final AtomicLong positives, negatives;
+
+    /**
+     * initialize a filter
+     * @param initialCapacity the number of keys that the first filter can hold
+     * @param falsePositiveRate the maximum false positive rate of the whole filter
+     */
+    public ScalableBloomFilter(final int initialCapacity, final double falsePositiveRate) {
+        this(Math.max(1024, initialCapacity), falsePositiveRate, new CopyOnWriteArrayList<BloomFilter>());
+        append();
+    }
+
+    private ScalableBloomFilter(final int initialCapacity, final double falsePositiveRate, final List<BloomFilter> filters) {
+        this.initialCapacity = initialCapacity;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filters = filters;
+        this.positives = new AtomicLong(0);
+        this.negatives = new AtomicLong(0);
+        if (!filters.isEmpty()) {
+            this.current = filters.get(filters.size() - 1);
+            this.currentCapacity = capacity(initialCapacity, filters.size() - 1);
+        }
+    }
+
+    /**
+     * initialize a filter with the content of a dump
+     * @param file
+     * @return the filter
+     * @throws IOException if the file cannot be read or is not a filter dump
+     */
+    public static ScalableBloomFilter load(final File file) throws IOException {
+        DataInputStream is;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        } catch (final OutOfMemoryError e) {
+            is = new DataInputStream(new FileInputStream(file));
+        }
+        try {
+            if (is.readInt() != magic) throw new IOException("file " + file + " is not a scalable bloom filter dump");
+            final int initialCapacity = is.readInt();
+            final double falsePositiveRate = is.readDouble();
+            final int count = is.readInt();
+            if (initialCapacity <= 0 || falsePositiveRate <= 0.0d || count <= 0) throw new IOException("file " + file + " has a bad scalable bloom filter header");
+            final List<BloomFilter> filters = new CopyOnWriteArrayList<BloomFilter>();
+            for (int i = 0; i < count; i++) filters.add(BloomFilter.read(is));
+            return new ScalableBloomFilter(initialCapacity, falsePositiveRate, filters);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * dump the filter to a file
+     * @param file
+     * @throws IOException if the dump cannot be written or cannot replace the old dump
+     */
+    public synchronized void dump(final File file) throws IOException {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".prt");
+        DataOutputStream os;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+        } catch (final OutOfMemoryError e) {
+            os = new DataOutputStream(new FileOutputStream(tmp));
+        }
+        os.writeInt(magic);
+        os.writeInt(this.initialCapacity);
+        os.writeDouble(this.falsePositiveRate);
+        os.writeInt(this.filters.size());
+        for (final BloomFilter f: this.filters) f.write(os);
+        os.flush();
+        os.close();
+        if (!tmp.renameTo(file)) {
+            // the old dump may have been locked; try once more and do not leave a stale dump behind
+            FileUtils.deletedelete(file);
+            if (!tmp.renameTo(file)) {
+                FileUtils.deletedelete(tmp);
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static int capacity(final int initialCapacity, final int stage) {
+        return (int) Math.min(Integer.MAX_VALUE / 2, ((long) initialCapacity) << Math.min(30, stage));
+    }
+
+    private synchronized void append() {
+        // the rates of the filters are p/2, p/4, p/8, ..., therefore the sum of the rates is below p
+        final int stage = this.filters.size();
+        final int capacity = capacity(this.initialCapacity, stage);
+        final BloomFilter f = new BloomFilter(capacity, this.falsePositiveRate / (2L << Math.min(30, stage)));
+        this.filters.add(f);
+        this.currentCapacity = capacity;
+        this.current = f;
+    }
+
+    /**
+     * add a key to the filter
+     * @param key
+     */
+    public void add(final byte[] key) {
+        if (contains(key)) return; // the key would only use capacity of the current filter
+        BloomFilter f = this.current;
+        if (f.size() >= this.currentCapacity) {
+            synchronized (this) {
+                if (this.current.size() >= this.currentCapacity) append();
+                f = this.current;
+            }
+        }
+        f.add(key);
+    }
+
+    private boolean contains(final byte[] key) {
+        for (final BloomFilter f: this.filters) {
+            if (f.mayContain(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * test if a key may be contained in the filter
+     * @param key
+     * @return false if the key was never added; true if the key was added or in case of a false positive
+     */
+    public boolean mayContain(final byte[] key) {
+        if (contains(key)) {
+            this.positives.incrementAndGet();
+            return true;
+        }
+        this.negatives.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * remove all keys from the filter
+     */
+    public synchronized void clear() {
+        this.filters.clear();
+        append();
+    }
+
+    /**
+     * the number of keys in the filter
+     * @return
+     */
+    public long size() {
+        long s = 0;
+        for (final BloomFilter f: this.filters) s += f.size();
+        return s;
+    }
+
+    /**
+     * the number of Bloom filters in the sequence
+     * @return
+     */
+    public int filters() {
+        return this.filters.size();
+    }
+
+    /**
+     * the memory that the filter needs
+     * @return number of bytes
+     */
+    public long mem() {
+        long m = 0;
+        for (final BloomFilter f: this.filters) m += f.mem();
+        return m;
+    }
+
+    /**
+     * estimate the current false positive rate of the whole filter
+     * @return a probability between 0 and 1
+     */
+    public double falsePositiveRate() {
+        double p = 1.0d;
+        for (final BloomFilter f: this.filters) p *= 1.0d - f.falsePositiveRate();
+        return 1.0d - p;
+    }
+
+    /**
+     * the number of mayContain requests that had a positive result
+     * @return
+     */
+    public long positives() {
+        return this.positives.get();
+    }
+
+    /**
+     * the number of mayContain requests that had a negative result
+     * @return
+     */
+    public long negatives() {
+        return this.negatives.get();
+    }
+}
@@ -28,7 +28,10 @@
 package net.yacy.kelondro.rwi;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -127,6 +130,21 @@ public abstract class AbstractIndex <ReferenceType extends Reference> implements
      * @return map of wordhash:indexContainer
      */
     public TreeMap<byte[], ReferenceContainer<ReferenceType>> searchConjunction(final HandleSet wordHashes, final HandleSet urlselection) {
+        return searchConjunction(wordHashes, urlselection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * collect containers for given word hashes.
+     * This collection stops if a single container does not contain any references.
+     * In that case only a empty result is returned.
+     * Each container holds not more than maxReferences references; because all containers are truncated
+     * in the order of the url hashes, a join of the containers is not affected below the smallest truncation point.
+     * @param wordHashes
+     * @param urlselection
+     * @param maxReferences the maximum number of references for each word
+     * @return map of wordhash:indexContainer
+     */
+    public TreeMap<byte[], ReferenceContainer<ReferenceType>> searchConjunction(final HandleSet wordHashes, final HandleSet urlselection, final int maxReferences) {
     	// first check if there is any entry that has no match; this uses only operations in ram
     	/*
     	Iterator<byte[]> i = wordHashes.iterator();
@@ -146,7 +164,7 @@ public abstract class AbstractIndex <ReferenceType extends Reference> implements
 
             // retrieve index
             try {
-                singleContainer = get(singleHash, urlselection);
+                singleContainer = get(singleHash, urlselection, maxReferences);
             } catch (final IOException e) {
                 Log.logException(e);
                 continue;
@@ -160,6 +178,28 @@ public abstract class AbstractIndex <ReferenceType extends Reference> implements
         return containers;
     }
 
+    /**
+     * get cursors over the references of the given words.
+     * This default implementation retrieves the complete container of each word;
+     * indexes that can read the references of several words in one batch shall overwrite this method
+     * @param wordHashes
+     * @param urlselection
+     * @return map of wordhash:cursor; words without any references are not in the map
+     * @throws IOException
+     */
+    public TreeMap<byte[], ReferenceCursor<ReferenceType>> references(final Collection<byte[]> wordHashes, final HandleSet urlselection) throws IOException {
+        final TreeMap<byte[], ReferenceCursor<ReferenceType>> cursors = new TreeMap<byte[], ReferenceCursor<ReferenceType>>(Base64Order.enhancedCoder);
+        ReferenceContainer<ReferenceType> container;
+        for (final byte[] wordHash: wordHashes) {
+            container = get(wordHash, urlselection);
+            if (container == null || container.isEmpty()) continue;
+            final List<byte[]> sources = new ArrayList<byte[]>(1);
+            sources.add(container.exportCollection());
+            cursors.put(wordHash, new ReferenceCursor<ReferenceType>(this.factory, wordHash, sources, null));
+        }
+        return cursors;
+    }
+
     /**
      * collect containers for given word hashes and join them as they are retrieved.
      * This collection stops if a single container does not contain any references
@@ -202,6 +242,30 @@ public abstract class AbstractIndex <ReferenceType extends Reference> implements
         return resultContainer;
     }
 
+    /**
+     * get the references to a given word, but not more than maxReferences.
+     * This default implementation retrieves the complete container and truncates it;
+     * indexes that can read their references incrementally shall overwrite this method
+     * @param termHash
+     * @param urlselection
+     * @param maxReferences the maximum number of references in the result
+     * @return the references
+     * @throws IOException
+     */
+    public ReferenceContainer<ReferenceType> get(final byte[] termHash, final HandleSet urlselection, final int maxReferences) throws IOException {
+        final ReferenceContainer<ReferenceType> c = get(termHash, urlselection);
+        if (c == null || c.size() <= maxReferences) return c;
+        try {
+            final ReferenceContainer<ReferenceType> t = new ReferenceContainer<ReferenceType>(this.factory, termHash, maxReferences);
+            c.sort();
+            for (int i = 0; i < maxReferences; i++) t.addUnique(c.get(i, false));
+            return t;
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+            return c;
+        }
+    }
+
     public TermSearch<ReferenceType> query(
             final HandleSet queryHashes,
             final HandleSet excludeHashes,
@@ -209,7 +273,30 @@ public abstract class AbstractIndex <ReferenceType extends Reference> implements
             final ReferenceFactory<ReferenceType> termFactory,
             final int maxDistance) throws RowSpaceExceededException {
 
-        return new TermSearch<ReferenceType>(this, queryHashes, excludeHashes, urlselection, termFactory, maxDistance);
+        return new TermSearch<ReferenceType>(this, queryHashes, excludeHashes, urlselection, termFactory, maxDistance, Integer.MAX_VALUE);
+    }
+
+    public TermSearch<ReferenceType> query(
+            final HandleSet queryHashes,
+            final HandleSet excludeHashes,
+            final HandleSet urlselection,
+            final ReferenceFactory<ReferenceType> termFactory,
+            final int maxDistance,
+            final int maxReferences) throws RowSpaceExceededException {
+
+        return new TermSearch<ReferenceType>(this, queryHashes, excludeHashes, urlselection, termFactory, maxDistance, maxReferences);
+    }
+
+    public TermSearch<ReferenceType> query(
+            final HandleSet queryHashes,
+            final HandleSet excludeHashes,
+            final HandleSet urlselection,
+            final ReferenceFactory<ReferenceType> termFactory,
+            final int maxDistance,
+            final int maxReferences,
+            final long maxtime) throws RowSpaceExceededException {
+
+        return new TermSearch<ReferenceType>(this, queryHashes, excludeHashes, urlselection, termFactory, maxDistance, maxReferences, maxtime);
     }
 
     public Row referenceRow() {
@@ -0,0 +1,63 @@
+// CompactionStrategy.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 18.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.rwi;
+
+import java.io.File;
+
+import net.yacy.kelondro.blob.ArrayStack;
+
+/**
+ * a compaction strategy decides which BLOB files of a ReferenceContainerArray are merged next.
+ * The IndexCell asks the strategy repeatedly for files to merge as long as the strategy returns some;
+ * the returned files are already unmounted from the array and are handed over to the IODispatcher.
+ * The strategy also defines the levels of the files which are used to report the shape of the array.
+ */
+public interface CompactionStrategy {
+
+    /**
+     * the name of the strategy, for the performance pages
+     * @return
+     */
+    public String name();
+
+    /**
+     * select files for the next merge and unmount them from the array
+     * @param array the files of the cell
+     * @param queueLength the number of merge jobs that are queued or running for the cell
+     * @param targetFileSize the preferred size of a merged file
+     * @param maxFileSize files with this size are not merged any more
+     * @return the unmounted files; one file means that the file shall be rewritten. null if nothing shall be merged
+     */
+    public File[] unmountNext(ArrayStack array, int queueLength, long targetFileSize, long maxFileSize);
+
+    /**
+     * compute the level of a file with the given size
+     * @param fileSize
+     * @param targetFileSize
+     * @return a level number, 0 for the smallest files
+     */
+    public int level(long fileSize, long targetFileSize);
+
+}
@@ -0,0 +1,87 @@
+// HeuristicCompaction.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 18.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.rwi;
+
+import java.io.File;
+
+import net.yacy.kelondro.blob.ArrayStack;
+import net.yacy.kelondro.logging.Log;
+
+/**
+ * the classic merge heuristics of the IndexCell: first merge pairs of small files with similar size,
+ * then merge any small files, then merge files up to the maximum size and finally rewrite old files.
+ * The merge steps are only done if the merge queue is short enough.
+ */
+public class HeuristicCompaction implements CompactionStrategy {
+
+    public String name() {
+        return "heuristic";
+    }
+
+    public File[] unmountNext(final ArrayStack array, final int queueLength, final long targetFileSize, final long maxFileSize) {
+        if (array.entries() < 2) return null;
+        File[] ff;
+
+        // first try to merge small files that match
+        if (queueLength < 3 || array.entries() >= 50) {
+            ff = array.unmountBestMatch(2.0f, targetFileSize);
+            if (ff != null) {
+                Log.logInfo("RICELL-shrink1", "unmountBestMatch(2.0, " + targetFileSize + ")");
+                return ff;
+            }
+        }
+
+        // then try to merge simply any small file; as many as possible in one pass
+        if (queueLength < 2) {
+            ff = array.unmountSmallest(IODispatcher.mergeFanIn, targetFileSize);
+            if (ff != null) {
+                Log.logInfo("RICELL-shrink2", "unmountSmallest(" + IODispatcher.mergeFanIn + ", " + targetFileSize + "): " + ff.length + " files");
+                return ff;
+            }
+        }
+
+        if (queueLength >= 1) return null;
+
+        // if there is no small file, then merge matching files up to limit
+        ff = array.unmountBestMatch(2.0f, maxFileSize);
+        if (ff != null) {
+            Log.logInfo("RICELL-shrink3", "unmountBestMatch(2.0, " + maxFileSize + ")");
+            return ff;
+        }
+
+        // rewrite old files (hack from sixcooler, see http://forum.yacy-websuche.de/viewtopic.php?p=15004#p15004)
+        final File f = array.unmountOldest();
+        if (f != null) {
+            Log.logInfo("RICELL-shrink4/rewrite", "unmountOldest()");
+            return new File[]{f};
+        }
+        return null;
+    }
+
+    public int level(final long fileSize, final long targetFileSize) {
+        return (fileSize < targetFileSize) ? 0 : 1;
+    }
+
+}
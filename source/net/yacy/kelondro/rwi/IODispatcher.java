@@ -26,12 +26,23 @@ package net.yacy.kelondro.rwi;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.yacy.kelondro.blob.ArrayStack;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.util.MemoryControl;
+import net.yacy.kelondro.util.NamePrefixThreadFactory;
 
 
 /**
@@ -45,9 +56,36 @@ import net.yacy.kelondro.util.MemoryControl;
  * to use this class, first instantiate a object and then start the concurrent execution
  * of merging with a call to the start() - method. To shut down all mergings, call terminate()
  * only once.
+ *
+ * Dumps are done by the dispatcher thread itself. Merge jobs are handed over to a merge pool
+ * that is shared by all dispatchers, so independent merges (i.e. of different cells) can run
+ * concurrently. The size of that pool limits the number of merges that run at the same time.
+ * A merge job may contain any number of files; they are merged in one streaming pass.
  */
 public class IODispatcher extends Thread {
 
+    // the pool for merge jobs of all dispatchers
+    private final static ThreadPoolExecutor mergePool = new ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamePrefixThreadFactory("IODispatcher.merge"));
+    static {
+        mergePool.allowCoreThreadTimeOut(true);
+    }
+
+    // the maximum number of files in one merge job
+    public static int mergeFanIn = 8;
+
+    // the number of running dispatchers; they share the merge pool
+    private final static AtomicInteger dispatchers = new AtomicInteger(0);
+
+    // statistics for the performance pages
+    private final static AtomicLong mergeJobs = new AtomicLong(0);
+    private final static AtomicLong mergeFiles = new AtomicLong(0);
+    private final static AtomicLong mergeBytesRead = new AtomicLong(0);
+    private final static AtomicLong mergeBytesWritten = new AtomicLong(0);
+    private final static AtomicLong mergeTime = new AtomicLong(0);
+
     private   Semaphore                    controlQueue;
     private   final Semaphore              termination;
     private   ArrayBlockingQueue<MergeJob> mergeQueue;
@@ -55,6 +93,8 @@ public class IODispatcher extends Thread {
     //private ReferenceFactory<ReferenceType> factory;
     private   boolean                      terminate;
     private final int                          writeBufferSize;
+    private final List<Future<?>>              mergeRuns; // the merges of this dispatcher that are submitted to the merge pool
+    private final AtomicLong                   bytesDumped, bytesMerged; // written bytes of this dispatcher, to compute the write amplification
 
     public IODispatcher(final int dumpQueueLength, final int mergeQueueLength, final int writeBufferSize) {
         this.termination = new Semaphore(0);
@@ -62,9 +102,91 @@ public class IODispatcher extends Thread {
         this.dumpQueue = new ArrayBlockingQueue<DumpJob<? extends Reference>>(dumpQueueLength);
         this.mergeQueue = new ArrayBlockingQueue<MergeJob>(mergeQueueLength);
         this.writeBufferSize = writeBufferSize;
+        this.mergeRuns = new ArrayList<Future<?>>();
+        this.bytesDumped = new AtomicLong(0);
+        this.bytesMerged = new AtomicLong(0);
         this.terminate = false;
     }
 
+    /**
+     * set the number of merge jobs that may run at the same time
+     * @param count
+     */
+    public static void setMaxConcurrentMerges(final int count) {
+        final int c = Math.max(1, count);
+        if (c > mergePool.getMaximumPoolSize()) {
+            mergePool.setMaximumPoolSize(c);
+            mergePool.setCorePoolSize(c);
+        } else {
+            mergePool.setCorePoolSize(c);
+            mergePool.setMaximumPoolSize(c);
+        }
+    }
+
+    public static int getMaxConcurrentMerges() {
+        return mergePool.getMaximumPoolSize();
+    }
+
+    /**
+     * the number of merge jobs that one dispatcher should have queued or running at the same time,
+     * so that a single cell cannot occupy the merge pool that is shared by all dispatchers
+     * @return the share of the merge pool, at least 1
+     */
+    public static int getMergeShare() {
+        return Math.max(1, getMaxConcurrentMerges() / Math.max(1, dispatchers.get()));
+    }
+
+    public static int getActiveMerges() {
+        return mergePool.getActiveCount();
+    }
+
+    public static long getMergeJobs() {
+        return mergeJobs.get();
+    }
+
+    public static long getMergeFiles() {
+        return mergeFiles.get();
+    }
+
+    public static long getMergeBytesRead() {
+        return mergeBytesRead.get();
+    }
+
+    public static long getMergeBytesWritten() {
+        return mergeBytesWritten.get();
+    }
+
+    public static long getMergeTime() {
+        return mergeTime.get();
+    }
+
+    /**
+     * the write amplification of the files of this dispatcher: the number of bytes that had been written
+     * by dumps and merges divided by the number of bytes that had been written by dumps
+     * @return the write amplification; 1.0 if nothing has been merged
+     */
+    public double writeAmplification() {
+        final long dumped = this.bytesDumped.get();
+        return (dumped == 0) ? 1.0d : ((double) (dumped + this.bytesMerged.get())) / ((double) dumped);
+    }
+
+    public long getBytesDumped() {
+        return this.bytesDumped.get();
+    }
+
+    public long getBytesMerged() {
+        return this.bytesMerged.get();
+    }
+
+    /**
+     * the merge throughput of all finished merges
+     * @return number of bytes that had been read per second
+     */
+    public static long getMergeThroughput() {
+        final long t = mergeTime.get();
+        return (t == 0) ? 0 : mergeBytesRead.get() * 1000L / t;
+    }
+
     public void terminate() {
         if (this.termination != null && this.controlQueue != null && isAlive()) {
             this.terminate = true;
@@ -75,6 +197,20 @@ public class IODispatcher extends Thread {
             } catch (final InterruptedException e) {
                 Log.logException(e);
             }
+            // wait until the merges of this dispatcher are finished, their results must be mounted
+            List<Future<?>> runs;
+            synchronized (this.mergeRuns) {
+                runs = new ArrayList<Future<?>>(this.mergeRuns);
+            }
+            for (final Future<?> run: runs) {
+                try {
+                    run.get();
+                } catch (final InterruptedException e) {
+                    Log.logException(e);
+                } catch (final ExecutionException e) {
+                    Log.logException(e);
+                }
+            }
         }
     }
 
@@ -106,39 +242,52 @@ public class IODispatcher extends Thread {
     }
 
     protected synchronized int queueLength() {
-        return (this.controlQueue == null || !isAlive()) ? 0 : this.controlQueue.availablePermits();
+        return ((this.controlQueue == null || !isAlive()) ? 0 : this.controlQueue.availablePermits()) + runningMerges();
+    }
+
+    private int runningMerges() {
+        synchronized (this.mergeRuns) {
+            int c = 0;
+            for (final Future<?> run: this.mergeRuns) if (!run.isDone()) c++;
+            return c;
+        }
     }
 
-    protected synchronized void merge(final File f1, final File f2, final ReferenceFactory<? extends Reference> factory, final ArrayStack array, final File newFile) {
+    protected void merge(final File f1, final File f2, final ReferenceFactory<? extends Reference> factory, final ArrayStack array, final File newFile) {
+        merge((f2 == null) ? new File[]{f1} : new File[]{f1, f2}, factory, array, newFile);
+    }
+
+    protected synchronized void merge(final File[] files, final ReferenceFactory<? extends Reference> factory, final ArrayStack array, final File newFile) {
+        final String names = ArrayStack.names(files);
         if (this.mergeQueue == null || this.controlQueue == null || !isAlive()) {
-            if (f2 == null) {
-                Log.logWarning("IODispatcher", "emergency rewrite of file " + f1.getName() + " to " + newFile.getName());
+            if (files.length == 1) {
+                Log.logWarning("IODispatcher", "emergency rewrite of file " + names + " to " + newFile.getName());
             } else {
-                Log.logWarning("IODispatcher", "emergency merge of files " + f1.getName() + ", " + f2.getName() + " to " + newFile.getName());
+                Log.logWarning("IODispatcher", "emergency merge of files " + names + " to " + newFile.getName());
             }
-            array.mergeMount(f1, f2, factory, newFile, (int) Math.min(MemoryControl.available() / 3, this.writeBufferSize));
+            new MergeJob(files, factory, array, newFile).merge();
         } else {
-            final MergeJob job = new MergeJob(f1, f2, factory, array, newFile);
+            final MergeJob job = new MergeJob(files, factory, array, newFile);
             if (isAlive()) {
                 try {
                     this.mergeQueue.put(job);
-                    if (f2 == null) {
-                        Log.logInfo("IODispatcher", "appended rewrite job of file " + f1.getName() + " to " + newFile.getName());
+                    if (files.length == 1) {
+                        Log.logInfo("IODispatcher", "appended rewrite job of file " + names + " to " + newFile.getName());
                     } else {
-                        Log.logInfo("IODispatcher", "appended merge job of files " + f1.getName() + ", " + f2.getName() + " to " + newFile.getName());
+                        Log.logInfo("IODispatcher", "appended merge job of files " + names + " to " + newFile.getName());
                     }
                 } catch (final InterruptedException e) {
                     Log.logWarning("IODispatcher", "interrupted: " + e.getMessage(), e);
-                    array.mergeMount(f1, f2, factory, newFile, (int) Math.min(MemoryControl.available() / 3, this.writeBufferSize));
+                    job.merge();
                 } finally {
                     this.controlQueue.release();
                 }
             } else {
                 job.merge();
-                if (f2 == null) {
-                    Log.logWarning("IODispatcher", "dispatcher not running, merged files " + f1.getName() + " to " + newFile.getName());
+                if (files.length == 1) {
+                    Log.logWarning("IODispatcher", "dispatcher not running, rewrote file " + names + " to " + newFile.getName());
                 } else {
-                    Log.logWarning("IODispatcher", "dispatcher not running, rewrote file " + f1.getName() + ", " + f2.getName() + " to " + newFile.getName());
+                    Log.logWarning("IODispatcher", "dispatcher not running, merged files " + names + " to " + newFile.getName());
                 }
             }
         }
@@ -146,8 +295,8 @@ public class IODispatcher extends Thread {
 
     @Override
     public void run() {
-        MergeJob mergeJob;
         DumpJob<? extends Reference> dumpJob;
+        dispatchers.incrementAndGet();
         try {
             loop: while (true) try {
                 this.controlQueue.acquire();
@@ -169,25 +318,32 @@ public class IODispatcher extends Thread {
                     continue loop;
                 }
 
-                // otherwise do a merge operation
+                // otherwise hand a merge operation over to the merge pool
                 if (!this.mergeQueue.isEmpty() && !MemoryControl.shortStatus()) {
-                	File f = null, f1 = null, f2 = null;
+                    MergeJob job = null;
                     try {
-                        mergeJob = this.mergeQueue.take();
-                        f = mergeJob.newFile;
-                        f1 = mergeJob.f1;
-                        f2 = mergeJob.f2;
-                        mergeJob.merge();
+                        job = this.mergeQueue.take();
+                        final MergeJob j = job;
+                        synchronized (this.mergeRuns) {
+                            // forget about finished merges
+                            for (int i = this.mergeRuns.size() - 1; i >= 0; i--) if (this.mergeRuns.get(i).isDone()) this.mergeRuns.remove(i);
+                            this.mergeRuns.add(mergePool.submit(new Runnable() {
+                                public void run() {
+                                    try {
+                                        j.merge();
+                                    } catch (final Throwable e) {
+                                        Log.logSevere("IODispatcher", "merge job had errors, dump to " + j.newFile + " failed. Input files are " + ArrayStack.names(j.files), e);
+                                        Log.logException(e);
+                                    }
+                                }
+                            }));
+                        }
                     } catch (final InterruptedException e) {
                         Log.logSevere("IODispatcher", "main run job was interrupted (2)", e);
                         Log.logException(e);
-                    } catch (final Throwable e) {
-                        if (f2 == null) {
-                        Log.logSevere("IODispatcher", "main run job had errors (2), dump to " + f + " failed. Input file is " + f1, e);
-                        } else {
-                            Log.logSevere("IODispatcher", "main run job had errors (2), dump to " + f + " failed. Input files are " + f1 + " and " + f2, e);
-                        }
-                        Log.logException(e);
+                    } catch (final RejectedExecutionException e) {
+                        Log.logSevere("IODispatcher", "merge pool rejected merge job for " + job.newFile + ", merging now", e);
+                        job.merge();
                     }
                     continue loop;
                 }
@@ -210,6 +366,7 @@ public class IODispatcher extends Thread {
             Log.logException(e);
         } finally {
             Log.logInfo("IODispatcher", "terminating run job");
+            dispatchers.decrementAndGet();
             this.controlQueue = null;
             this.dumpQueue = null;
             this.mergeQueue = null;
@@ -229,6 +386,7 @@ public class IODispatcher extends Thread {
         private void dump() {
             try {
                 if (!this.cache.isEmpty()) this.cache.dump(this.file, (int) Math.min(MemoryControl.available() / 3, IODispatcher.this.writeBufferSize), true);
+                IODispatcher.this.bytesDumped.addAndGet(this.file.length());
                 this.array.mountBLOBFile(this.file);
             } catch (final IOException e) {
                 Log.logException(e);
@@ -238,33 +396,42 @@ public class IODispatcher extends Thread {
 
     private class MergeJob {
 
-        private final File f1, f2, newFile;
+        private final File[] files;
+        private final File newFile;
         private final ArrayStack array;
         private final ReferenceFactory<? extends Reference> factory;
 
         private MergeJob(
-                final File f1,
-                final File f2,
+                final File[] files,
                 final ReferenceFactory<? extends Reference> factory,
                 final ArrayStack array,
                 final File newFile) {
-            this.f1 = f1;
-            this.f2 = f2;
+            this.files = files;
             this.factory = factory;
             this.newFile = newFile;
             this.array = array;
         }
 
         private File merge() {
-        	if (!this.f1.exists()) {
-        		Log.logWarning("IODispatcher", "merge of file (1) " + this.f1.getName() + " failed: file does not exists");
-        		return null;
-        	}
-        	if (this.f2 != null && !this.f2.exists()) {
-        		Log.logWarning("IODispatcher", "merge of file (2) " + this.f2.getName() + " failed: file does not exists");
-        		return null;
-        	}
-            return this.array.mergeMount(this.f1, this.f2, this.factory, this.newFile, (int) Math.min(MemoryControl.available() / 3, IODispatcher.this.writeBufferSize));
+            long bytes = 0;
+            for (int i = 0; i < this.files.length; i++) {
+                if (!this.files[i].exists()) {
+                    Log.logWarning("IODispatcher", "merge of file (" + (i + 1) + ") " + this.files[i].getName() + " failed: file does not exists");
+                    return null;
+                }
+                bytes += this.files[i].length();
+            }
+            final long start = System.currentTimeMillis();
+            final File result = this.array.mergeMount(this.files, this.factory, this.newFile, (int) Math.min(MemoryControl.available() / 3, IODispatcher.this.writeBufferSize));
+            mergeTime.addAndGet(System.currentTimeMillis() - start);
+            mergeJobs.incrementAndGet();
+            mergeFiles.addAndGet(this.files.length);
+            mergeBytesRead.addAndGet(bytes);
+            if (result != null) {
+                mergeBytesWritten.addAndGet(result.length());
+                IODispatcher.this.bytesMerged.addAndGet(result.length());
+            }
+            return result;
         }
     }
 
@@ -29,6 +29,7 @@
 package net.yacy.kelondro.rwi;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -104,6 +105,17 @@ public interface Index <ReferenceType extends Reference> extends Iterable<Refere
 	 */
 	public ReferenceContainer<ReferenceType> get(byte[] termHash, HandleSet referenceselection) throws IOException;
 
+	/**
+	 * get the references to a given word, but not more than maxReferences.
+	 *  if the number of references is limited, then the references with the smallest url hashes are returned.
+	 * @param termHash
+	 * @param referenceselection
+	 * @param maxReferences the maximum number of references in the result
+	 * @return the references
+	 * @throws IOException
+	 */
+	public ReferenceContainer<ReferenceType> get(byte[] termHash, HandleSet referenceselection, int maxReferences) throws IOException;
+
     /**
      * delete all references for a word
      * @param termHash
@@ -178,6 +190,25 @@ public interface Index <ReferenceType extends Reference> extends Iterable<Refere
      */
     public TreeMap<byte[], ReferenceContainer<ReferenceType>> searchConjunction(final HandleSet wordHashes, final HandleSet urlselection);
 
+    /**
+     * collect containers for given word hashes, each container with not more than maxReferences references.
+     * @param wordHashes
+     * @param urlselection
+     * @param maxReferences the maximum number of references for each word
+     * @return map of wordhash:indexContainer
+     */
+    public TreeMap<byte[], ReferenceContainer<ReferenceType>> searchConjunction(final HandleSet wordHashes, final HandleSet urlselection, final int maxReferences);
+
+    /**
+     * get cursors over the references of the given words. The references are read in advance,
+     * the cursors only merge them; therefore the cursors of different words can be consumed concurrently.
+     * @param wordHashes
+     * @param urlselection
+     * @return map of wordhash:cursor; words without any references are not in the map
+     * @throws IOException
+     */
+    public TreeMap<byte[], ReferenceCursor<ReferenceType>> references(final Collection<byte[]> wordHashes, final HandleSet urlselection) throws IOException;
+
     /**
      * delete all references entries
      * @throws IOException
@@ -28,7 +28,11 @@ package net.yacy.kelondro.rwi;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -39,6 +43,7 @@ import net.yacy.kelondro.data.meta.URIMetadataRow;
 import net.yacy.kelondro.index.HandleSet;
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.Base64Order;
 import net.yacy.kelondro.order.ByteOrder;
 import net.yacy.kelondro.order.CloneableIterator;
 import net.yacy.kelondro.order.MergeIterator;
@@ -62,12 +67,16 @@ public final class IndexCell<ReferenceType extends Reference> extends AbstractBu
     private static final long cleanupCycle =  60000;
     private static final long dumpCycle    = 600000;
 
+    // the compaction strategy for new cells
+    public static CompactionStrategy defaultCompactionStrategy = new TieredCompaction(8);
+
     // class variables
     private final ReferenceContainerArray<ReferenceType> array;
     private       ReferenceContainerCache<ReferenceType> ram;
     private final ComparableARC<byte[], Integer>         countCache;
     private       int                                    maxRamEntries;
     private final IODispatcher                           merger;
+    private       CompactionStrategy                     compaction;
     private       long                                   lastCleanup;
     private long  lastDump;
     private final long                                   targetFileSize, maxFileSize;
@@ -85,12 +94,14 @@ public final class IndexCell<ReferenceType extends Reference> extends AbstractBu
             final int maxRamEntries,
             final long targetFileSize,
             final long maxFileSize,
-            final int writeBufferSize
+            final int writeBufferSize,
+            final boolean offHeapIndex
             ) throws IOException {
         super(factory);
 
         this.merger = new IODispatcher(1, 1, writeBufferSize);
-        this.array = new ReferenceContainerArray<ReferenceType>(cellPath, prefix, factory, termOrder, termSize);
+        this.compaction = defaultCompactionStrategy;
+        this.array = new ReferenceContainerArray<ReferenceType>(cellPath, prefix, factory, termOrder, termSize, offHeapIndex);
         this.ram = new ReferenceContainerCache<ReferenceType>(factory, termOrder, termSize);
         this.countCache = new ComparableARC<byte[], Integer>(1000, termOrder);
         this.maxRamEntries = maxRamEntries;
@@ -176,31 +187,37 @@ public final class IndexCell<ReferenceType extends Reference> extends AbstractBu
         if (this.array.entries() < 2) return false;
         boolean donesomething = false;
 
-        // first try to merge small files that match
-        int term = 10;
-        while (term-- > 0 && (this.merger.queueLength() < 3 || this.array.entries() >= 50)) {
-            if (!this.array.shrinkBestSmallFiles(this.merger, targetFileSize)) break; else donesomething = true;
+        // ask the compaction strategy for merge jobs until it has nothing more to do
+        int term = 40;
+        while (term-- > 0) {
+            if (!this.array.shrink(this.compaction, this.merger, targetFileSize, maxFileSize)) break; else donesomething = true;
         }
 
-        // then try to merge simply any small file
-        term = 10;
-        while (term-- > 0 && (this.merger.queueLength() < 2)) {
-            if (!this.array.shrinkAnySmallFiles(this.merger, targetFileSize)) break; else donesomething = true;
-        }
+        return donesomething;
+    }
 
-        // if there is no small file, then merge matching files up to limit
-        term = 10;
-        while (term-- > 0 && (this.merger.queueLength() < 1)) {
-            if (!this.array.shrinkUpToMaxSizeFiles(this.merger, maxFileSize)) break; else donesomething = true;
-        }
+    public void setCompactionStrategy(final CompactionStrategy strategy) {
+        this.compaction = strategy;
+    }
 
-        // rewrite old files (hack from sixcooler, see http://forum.yacy-websuche.de/viewtopic.php?p=15004#p15004)
-        term = 10;
-        while (term-- > 0 && (this.merger.queueLength() < 1)) {
-            if (!this.array.shrinkOldFiles(this.merger, targetFileSize)) break; else donesomething = true;
-        }
+    public CompactionStrategy getCompactionStrategy() {
+        return this.compaction;
+    }
 
-        return donesomething;
+    /**
+     * the shape of the file array according to the compaction strategy
+     * @return an array with one {files, bytes} pair for each level
+     */
+    public long[][] compactionLevels() {
+        return this.array.levels(this.compaction, this.targetFileSize);
+    }
+
+    /**
+     * the write amplification of the cell: all bytes that had been written to files divided by the bytes written by dumps
+     * @return
+     */
+    public double writeAmplification() {
+        return this.merger.writeAmplification();
     }
 
     /*
@@ -296,38 +313,128 @@ public final class IndexCell<ReferenceType extends Reference> extends AbstractBu
      * @return a container with merged ReferenceContainer from RAM and the file array or null if there is no data to be returned
      */
     public ReferenceContainer<ReferenceType> get(final byte[] termHash, final HandleSet urlselection) throws IOException {
+        return get(termHash, urlselection, Integer.MAX_VALUE);
+    }
+
+    /**
+     * all containers in the BLOBs and the RAM are merged and returned, but not more than maxReferences.
+     * If the number of references is limited, the references with the smallest url hashes are returned.
+     * Because all terms are truncated at the same position of the url hash order, a join of limited
+     * containers is equal to the join of the complete containers, truncated at the smallest limit.
+     * @param termHash
+     * @param urlselection
+     * @param maxReferences the maximum number of references in the result
+     * @return a container with merged ReferenceContainer from RAM and the file array or null if there is no data to be returned
+     * @throws IOException
+     */
+    public ReferenceContainer<ReferenceType> get(final byte[] termHash, final HandleSet urlselection, final int maxReferences) throws IOException {
+        final ReferenceCursor<ReferenceType> cursor = references(termHash);
+        if (cursor == null) return null;
+        try {
+            return cursor.collect(maxReferences);
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+            return null;
+        }
+    }
+
+    /**
+     * get a cursor that iterates all references of a term from the BLOBs and the RAM in the order of the url hashes.
+     * The containers of the BLOB files are not imported into the RAM and not merged; the references can be consumed
+     * one by one and the consumer can stop at any time. References from the BLOBs have priority over the references in the RAM.
+     * References that are scheduled for deletion are not returned.
+     * @param termHash
+     * @return a cursor or null if there is no data to be returned
+     * @throws IOException
+     */
+    public ReferenceCursor<ReferenceType> references(final byte[] termHash) throws IOException {
+        HandleSet exclude = null;
+        synchronized (this.removeDelayedURLs) {
+            final HandleSet s = this.removeDelayedURLs.get(termHash);
+            if (s != null) exclude = s.clone();
+        }
+        final List<byte[]> sources = this.array.exports(termHash);
         final ReferenceContainer<ReferenceType> c0 = this.ram.get(termHash, null);
-        ReferenceContainer<ReferenceType> c1 = null;
+        if (c0 != null && !c0.isEmpty()) sources.add(c0.exportCollection());
+        if (sources.isEmpty()) return null;
+        return new ReferenceCursor<ReferenceType>(this.factory, termHash, sources, exclude);
+    }
+
+    /**
+     * get cursors over the references of the given words. The containers of all words are read from the BLOB files
+     * with one batched read for each file and merged with the references in the RAM by the cursors.
+     * @param wordHashes
+     * @param urlselection
+     * @return map of wordhash:cursor; words without any references are not in the map
+     * @throws IOException
+     */
+    @Override
+    public TreeMap<byte[], ReferenceCursor<ReferenceType>> references(final Collection<byte[]> wordHashes, final HandleSet urlselection) throws IOException {
+        final TreeMap<byte[], ReferenceCursor<ReferenceType>> cursors = new TreeMap<byte[], ReferenceCursor<ReferenceType>>(Base64Order.enhancedCoder);
+        final TreeMap<byte[], List<byte[]>> exports = this.array.exports(wordHashes);
+        for (final byte[] wordHash: wordHashes) {
+            HandleSet exclude = null;
+            synchronized (this.removeDelayedURLs) {
+                final HandleSet s = this.removeDelayedURLs.get(wordHash);
+                if (s != null) exclude = s.clone();
+            }
+            List<byte[]> sources = exports.get(wordHash);
+            if (sources == null) sources = new ArrayList<byte[]>(1);
+            final ReferenceContainer<ReferenceType> c0 = this.ram.get(wordHash, null);
+            if (c0 != null && !c0.isEmpty()) sources.add(c0.exportCollection());
+            if (sources.isEmpty()) continue;
+            cursors.put(wordHash, new ReferenceCursor<ReferenceType>(this.factory, wordHash, sources, exclude));
+        }
+        return cursors;
+    }
+
+    /**
+     * collect containers for given word hashes. The containers of all words are read from the BLOB files
+     * with one batched read for each file; then the references of each word are merged with a cursor.
+     * If a single word has no references, an empty result is returned.
+     * @param wordHashes
+     * @param urlselection
+     * @param maxReferences the maximum number of references for each word
+     * @return map of wordhash:indexContainer
+     */
+    public TreeMap<byte[], ReferenceContainer<ReferenceType>> searchConjunction(final HandleSet wordHashes, final HandleSet urlselection, final int maxReferences) {
+        final TreeMap<byte[], ReferenceContainer<ReferenceType>> containers = new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
+        if (wordHashes.isEmpty()) return containers;
+
+        // check the ram first: a word that is nowhere stored stops the search without any IO
+        final List<byte[]> hashes = new ArrayList<byte[]>(wordHashes.size());
+        for (final byte[] wordHash: wordHashes) {
+            if (!this.ram.has(wordHash) && !this.array.has(wordHash)) return containers;
+            hashes.add(wordHash);
+        }
+
+        // read the containers of all words from the files in one batch
+        final TreeMap<byte[], ReferenceCursor<ReferenceType>> cursors;
         try {
-            c1 = this.array.get(termHash);
-        } catch (final RowSpaceExceededException e2) {
-            Log.logException(e2);
+            cursors = references(hashes, urlselection);
+        } catch (final InterruptedIOException e) {
+            // the search was stopped; do not join on partial containers
+            return containers;
+        } catch (final IOException e) {
+            Log.logException(e);
+            return super.searchConjunction(wordHashes, urlselection, maxReferences);
         }
-        ReferenceContainer<ReferenceType> result = null;
-        if (c0 != null && c1 != null) {
+
+        // merge the references of each word
+        for (final byte[] wordHash: hashes) {
+            final ReferenceCursor<ReferenceType> cursor = cursors.get(wordHash);
+            if (cursor == null) return new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
+            final ReferenceContainer<ReferenceType> container;
             try {
-                result = c1.merge(c0);
+                container = cursor.collect(maxReferences);
             } catch (final RowSpaceExceededException e) {
-                // try to free some ram
-                try {
-                    result = c1.merge(c0);
-                } catch (final RowSpaceExceededException e1) {
-                    // go silently over the problem
-                    result = (c1.size() > c0.size()) ? c1: c0;
-                }
+                Log.logException(e);
+                return new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
             }
-        } else if (c0 != null) {
-            result = c0;
-        } else if (c1 != null) {
-            result = c1;
-        }
-        if (result == null) return null;
-        // remove the failed urls
-        synchronized (this.removeDelayedURLs) {
-            final HandleSet s = this.removeDelayedURLs.get(termHash);
-            if (s != null) result.removeEntries(s);
+            if (container.isEmpty()) return new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
+            containers.put(wordHash, container);
         }
-        return result;
+        return containers;
     }
 
     /**
@@ -333,7 +333,7 @@ public class ReferenceContainer<ReferenceType extends Reference> extends RowSet
             if (singleContainer == null || singleContainer.isEmpty()) return null; // as this is a cunjunction of searches, we have no result if any word is not known
 
             // store result in order of result size
-            map.put(Long.valueOf(singleContainer.size() * 1000 + count), singleContainer);
+            map.put(Long.valueOf(singleContainer.size() * 1000L + count), singleContainer);
             count++;
         }
 
@@ -341,19 +341,8 @@ public class ReferenceContainer<ReferenceType extends Reference> extends RowSet
         if (map.isEmpty()) return null; // no result, nothing found
 
         // the map now holds the search results in order of number of hits per word
-        // we now must pairwise build up a conjunction of these sets
-        Long k = map.firstKey(); // the smallest, which means, the one with the least entries
-        ReferenceContainer<ReferenceType> searchA, searchB, searchResult = map.remove(k);
-        while (!map.isEmpty() && !searchResult.isEmpty()) {
-            // take the first element of map which is a result and combine it with result
-            k = map.firstKey(); // the next smallest...
-            searchA = searchResult;
-            searchB = map.remove(k);
-            searchResult = ReferenceContainer.joinConstructive(factory, searchA, searchB, maxDistance);
-            // free resources
-            searchA = null;
-            searchB = null;
-        }
+        // we now build the conjunction of all these sets in one simultaneous iteration
+        final ReferenceContainer<ReferenceType> searchResult = ReferenceContainer.joinConstructive(factory, new ArrayList<ReferenceContainer<ReferenceType>>(map.values()), maxDistance);
 
         // in 'searchResult' is now the combined search result
         if (searchResult.isEmpty()) return null;
@@ -391,95 +380,113 @@ public class ReferenceContainer<ReferenceType extends Reference> extends RowSet
             final int maxDistance) throws RowSpaceExceededException {
         if ((i1 == null) || (i2 == null)) return null;
         if (i1.isEmpty() || i2.isEmpty()) return null;
-
-        // decide which method to use
-        final int high = ((i1.size() > i2.size()) ? i1.size() : i2.size());
-        final int low  = ((i1.size() > i2.size()) ? i2.size() : i1.size());
-        final int stepsEnum = 10 * (high + low - 1);
-        final int stepsTest = 12 * log2(high) * low;
-
-        // start most efficient method
-        if (stepsEnum > stepsTest) {
-            if (i1.size() < i2.size())
-                return joinConstructiveByTest(factory, i1, i2, maxDistance);
-            else
-                return joinConstructiveByTest(factory, i2, i1, maxDistance);
+        final List<ReferenceContainer<ReferenceType>> containers = new ArrayList<ReferenceContainer<ReferenceType>>(2);
+        if (i1.size() <= i2.size()) {
+            containers.add(i1);
+            containers.add(i2);
+        } else {
+            containers.add(i2);
+            containers.add(i1);
         }
-        return joinConstructiveByEnumeration(factory, i1, i2, maxDistance);
+        return joinConstructive(factory, containers, maxDistance);
     }
 
-    private static <ReferenceType extends Reference> ReferenceContainer<ReferenceType> joinConstructiveByTest(
+    /**
+     * join any number of containers in one simultaneous iteration.
+     * The keys of the first container are searched in the other containers with a galloping (exponential) search
+     * that starts at the position of the last hit. If a key is missing in another container, the first container
+     * gallops forward to the next key of that container. Therefore the join needs about
+     * n * log(m / n) comparisons for a container with m entries, if n is the size of the first container;
+     * the first container should be the smallest and the others should follow in ascending size.
+     * The references of the first container are joined with the references of the other containers in the order of the list;
+     * a reference is omitted as soon as the distance of the joined words exceeds maxDistance.
+     * @param factory
+     * @param containers the containers, ordered by size
+     * @param maxDistance
+     * @return the joined references
+     * @throws RowSpaceExceededException
+     */
+    public static <ReferenceType extends Reference> ReferenceContainer<ReferenceType> joinConstructive(
             final ReferenceFactory<ReferenceType> factory,
-            final ReferenceContainer<ReferenceType> small,
-            final ReferenceContainer<ReferenceType> large,
+            final List<ReferenceContainer<ReferenceType>> containers,
             final int maxDistance) throws RowSpaceExceededException {
-        //System.out.println("DEBUG: JOIN METHOD BY TEST, maxdistance = " + maxDistance);
-        assert small.rowdef.equals(large.rowdef) : "small = " + small.rowdef.toString() + "; large = " + large.rowdef.toString();
-        final int keylength = small.rowdef.width(0);
-        assert (keylength == large.rowdef.width(0));
         final ReferenceContainer<ReferenceType> conj = new ReferenceContainer<ReferenceType>(factory, null, 0); // start with empty search result
-        final Iterator<ReferenceType> se = small.entries();
-        ReferenceType ie1;
-        ReferenceType ie2;
-        while (se.hasNext()) {
-            ie1 = se.next();
-            ie2 = large.getReference(ie1.urlhash());
-            if ((ie1 != null) && (ie2 != null)) {
-                assert (ie1.urlhash().length == keylength) : "ie0.urlHash() = " + ASCII.String(ie1.urlhash());
-                assert (ie2.urlhash().length == keylength) : "ie1.urlHash() = " + ASCII.String(ie2.urlhash());
-                // this is a hit. Calculate word distance:
-
-                ie1 = factory.produceFast(ie2);
-                ie1.join(ie2);
-                if (ie1.distance() <= maxDistance) conj.add(ie1);
-            }
+        final int n = containers.size();
+        if (n == 0) return conj;
+        final Row rowdef = containers.get(0).rowdef;
+        final ByteOrder ordering = rowdef.getOrdering();
+        final int objectsize = rowdef.objectsize;
+        final int keylength = rowdef.primaryKeyLength;
+        final byte[][] chunks = new byte[n][];
+        final int[] size = new int[n];
+        final int[] pos = new int[n];
+        for (int j = 0; j < n; j++) {
+            final ReferenceContainer<ReferenceType> c = containers.get(j);
+            if (c == null || c.isEmpty()) return conj;
+            assert rowdef.equals(c.rowdef) : "c0 = " + rowdef.toString() + "; c" + j + " = " + c.rowdef.toString();
+            if (!ordering.signature().equals(c.rowdef.getOrdering().signature())) return conj; // ordering must be equal
+            c.sort();
+            chunks[j] = c.chunkcache;
+            size[j] = c.size();
+            pos[j] = 0;
         }
-        return conj;
-    }
 
-    private static <ReferenceType extends Reference> ReferenceContainer<ReferenceType> joinConstructiveByEnumeration(
-            final ReferenceFactory<ReferenceType> factory,
-            final ReferenceContainer<ReferenceType> i1,
-            final ReferenceContainer<ReferenceType> i2,
-            final int maxDistance) throws RowSpaceExceededException {
-        //System.out.println("DEBUG: JOIN METHOD BY ENUMERATION, maxdistance = " + maxDistance);
-        assert i1.rowdef.equals(i2.rowdef) : "i1 = " + i1.rowdef.toString() + "; i2 = " + i2.rowdef.toString();
-        final int keylength = i1.rowdef.width(0);
-        assert (keylength == i2.rowdef.width(0));
-        final ReferenceContainer<ReferenceType> conj = new ReferenceContainer<ReferenceType>(factory, null, 0); // start with empty search result
-        if (!((i1.rowdef.getOrdering().signature().equals(i2.rowdef.getOrdering().signature())))) return conj; // ordering must be equal
-        final ByteOrder ordering = i1.rowdef.getOrdering();
-        final Iterator<ReferenceType> e1 = i1.entries();
-        final Iterator<ReferenceType> e2 = i2.entries();
-        int c;
-        if ((e1.hasNext()) && (e2.hasNext())) {
-            ReferenceType ie1;
-            ReferenceType ie2;
-            ie1 = e1.next();
-            ie2 = e2.next();
+        ReferenceType ie;
+        iterate: while (pos[0] < size[0]) {
+            final int a0 = pos[0] * objectsize;
+            for (int j = 1; j < n; j++) {
+                pos[j] = gallop(ordering, chunks[j], size[j], pos[j], chunks[0], a0, objectsize, keylength);
+                if (pos[j] >= size[j]) break iterate;
+                if (ordering.compare(chunks[j], pos[j] * objectsize, chunks[0], a0, keylength) != 0) {
+                    // the key is not in container j; continue with the next key in the first container that is not smaller than the key of container j
+                    pos[0] = gallop(ordering, chunks[0], size[0], pos[0] + 1, chunks[j], pos[j] * objectsize, objectsize, keylength);
+                    continue iterate;
+                }
+            }
 
-            while (true) {
-                assert (ie1.urlhash().length == keylength) : "ie1.urlHash() = " + ASCII.String(ie1.urlhash());
-                assert (ie2.urlhash().length == keylength) : "ie2.urlHash() = " + ASCII.String(ie2.urlhash());
-                c = ordering.compare(ie1.urlhash(), ie2.urlhash());
-                //System.out.println("** '" + ie1.getUrlHash() + "'.compareTo('" + ie2.getUrlHash() + "')="+c);
-                if (c < 0) {
-                    if (e1.hasNext()) ie1 = e1.next(); else break;
-                } else if (c > 0) {
-                    if (e2.hasNext()) ie2 = e2.next(); else break;
-                } else {
-                    // we have found the same urls in different searches!
-                    ie1 = factory.produceFast(ie1);
-                    ie1.join(ie2);
-                    if (ie1.distance() <= maxDistance) conj.add(ie1);
-                    if (e1.hasNext()) ie1 = e1.next(); else break;
-                    if (e2.hasNext()) ie2 = e2.next(); else break;
+            // we have found the same url in all containers
+            ie = factory.produceFast(factory.produceSlow(rowdef.newEntry(chunks[0], a0, false)));
+            boolean accept = true;
+            for (int j = 1; j < n; j++) {
+                ie.join(factory.produceSlow(rowdef.newEntry(chunks[j], pos[j] * objectsize, false)));
+                if (ie.distance() > maxDistance) {
+                    accept = false;
+                    break;
                 }
             }
+            if (accept) conj.add(ie);
+            for (int j = 0; j < n; j++) pos[j]++;
         }
         return conj;
     }
 
+    /**
+     * find the first position p >= from in an array of sorted rows where the key is not smaller than the given key.
+     * The search probes the positions from, from + 1, from + 3, from + 7, ... until a greater or equal key is found,
+     * and then finds the exact position with a binary search between the last two probes.
+     * @return the position or size if all keys from the position on are smaller than the given key
+     */
+    private static int gallop(final ByteOrder ordering, final byte[] chunks, final int size, final int from, final byte[] key, final int keyoffset, final int objectsize, final int keylength) {
+        if (from >= size) return size;
+        if (ordering.compare(chunks, from * objectsize, key, keyoffset, keylength) >= 0) return from;
+        int lo = from; // the key at lo is smaller than the given key
+        int step = 1;
+        int hi = from + step;
+        while (hi < size && ordering.compare(chunks, hi * objectsize, key, keyoffset, keylength) < 0) {
+            lo = hi;
+            step = step << 1;
+            hi = lo + step;
+        }
+        if (hi > size) hi = size;
+        // the key at lo is smaller, the key at hi is not smaller than the given key (or hi == size)
+        int p;
+        while (lo + 1 < hi) {
+            p = (lo + hi) >>> 1;
+            if (ordering.compare(chunks, p * objectsize, key, keyoffset, keylength) < 0) lo = p; else hi = p;
+        }
+        return hi;
+    }
+
     public static <ReferenceType extends Reference> ReferenceContainer<ReferenceType> excludeDestructive(
             final ReferenceFactory<ReferenceType> factory,
             final ReferenceContainer<ReferenceType> pivot,
@@ -26,14 +26,21 @@ package net.yacy.kelondro.rwi;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
 
+import net.yacy.cora.document.ASCII;
 import net.yacy.cora.ranking.Rating;
 import net.yacy.kelondro.blob.ArrayStack;
 import net.yacy.kelondro.blob.BLOB;
 import net.yacy.kelondro.index.HandleMap;
+import net.yacy.kelondro.index.HandleSet;
 import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowHandleMap;
 import net.yacy.kelondro.index.RowSet;
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
@@ -61,7 +68,8 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
     		final String prefix,
     		final ReferenceFactory<ReferenceType> factory,
     		final ByteOrder termOrder,
-    		final int termSize) throws IOException {
+    		final int termSize,
+    		final boolean offHeapIndex) throws IOException {
         this.factory = factory;
         this.array = new ArrayStack(
             heapLocation,
@@ -69,7 +77,8 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
             termOrder,
             termSize,
             0,
-            true);
+            true,
+            offHeapIndex);
     }
 
     public void close() {
@@ -272,41 +281,84 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
      * @throws RowSpaceExceededException
      */
     public ReferenceContainer<ReferenceType> get(final byte[] termHash) throws IOException, RowSpaceExceededException {
+        return get(termHash, Integer.MAX_VALUE);
+    }
+
+    /**
+     * get a indexContainer from a heap; the containers from all BLOBs are merged with a single simultaneous iteration
+     * @param termHash
+     * @param maxReferences the maximum number of references that are returned. The references with the smallest url hashes are returned.
+     * @return the indexContainer if one exist, null otherwise
+     * @throws IOException
+     * @throws RowSpaceExceededException
+     */
+    public ReferenceContainer<ReferenceType> get(final byte[] termHash, final int maxReferences) throws IOException, RowSpaceExceededException {
+        final ReferenceCursor<ReferenceType> cursor = references(termHash, null);
+        if (cursor == null) return null;
+        return cursor.collect(maxReferences);
+    }
+
+    /**
+     * get a cursor that iterates the references of a term in all BLOBs in the order of the url hashes.
+     * The containers are not imported and not merged; the references can be consumed one by one.
+     * If a reference exists in more than one BLOB, the reference from the oldest BLOB is returned.
+     * @param termHash
+     * @param exclude url hashes that shall not be returned by the cursor, may be null
+     * @return a cursor or null if there are no references for the term
+     * @throws IOException
+     */
+    public ReferenceCursor<ReferenceType> references(final byte[] termHash, final HandleSet exclude) throws IOException {
+        final List<byte[]> entries = exports(termHash);
+        if (entries.isEmpty()) return null;
+        return new ReferenceCursor<ReferenceType>(this.factory, termHash, entries, exclude);
+    }
+
+    /**
+     * read the exported containers of a term from all BLOBs, the oldest BLOB first
+     * @param termHash
+     * @return a list of exported containers, may be empty
+     * @throws IOException
+     */
+    protected List<byte[]> exports(final byte[] termHash) throws IOException {
         final long timeout = System.currentTimeMillis() + 3000;
-        final Iterator<byte[]> entries = this.array.getAll(termHash).iterator();
-    	if (entries == null || !entries.hasNext()) return null;
-    	final byte[] a = entries.next();
-    	int k = 1;
-    	ReferenceContainer<ReferenceType> c = new ReferenceContainer<ReferenceType>(this.factory, termHash, RowSet.importRowSet(a, this.factory.getRow()));
-    	if (System.currentTimeMillis() > timeout) {
-    	    Log.logWarning("ReferenceContainerArray", "timout in index retrieval (1): " + k + " tables searched. timeout = 3000");
-    	    return c;
-    	}
-    	while (entries.hasNext()) {
-    		c = c.merge(new ReferenceContainer<ReferenceType>(this.factory, termHash, RowSet.importRowSet(entries.next(), this.factory.getRow())));
-    		k++;
-    		if (System.currentTimeMillis() > timeout) {
-    		    Log.logWarning("ReferenceContainerArray", "timout in index retrieval (2): " + k + " tables searched. timeout = 3000");
-    		    return c;
+        final List<byte[]> entries = new ArrayList<byte[]>();
+        for (final byte[] b: this.array.getAll(termHash)) {
+            entries.add(b);
+            if (System.currentTimeMillis() > timeout) {
+                Log.logWarning("ReferenceContainerArray", "timout in index retrieval: " + entries.size() + " tables searched. timeout = 3000");
+                break;
             }
-    	}
-    	return c;
+        }
+        return entries;
+    }
+
+    /**
+     * read the exported containers of many terms from all BLOBs. Every BLOB file is read only once
+     * for all terms, in the order of the positions of the containers in the file.
+     * @param termHashes
+     * @return a map from the term hashes to the exported containers, the oldest BLOB first.
+     *  Terms without containers are not in the map.
+     * @throws IOException
+     */
+    protected TreeMap<byte[], List<byte[]>> exports(final Collection<byte[]> termHashes) throws IOException {
+        return this.array.getAll(termHashes);
     }
 
     public int count(final byte[] termHash) throws IOException {
         final long timeout = System.currentTimeMillis() + 3000;
-        final Iterator<Long> entries = this.array.lengthAll(termHash).iterator();
+        // the number of references is stored at the beginning of each container; only these bytes are read
+        final Iterator<byte[]> entries = this.array.getAll(termHash, ReferenceContainerCodec.headLength).iterator();
         if (entries == null || !entries.hasNext()) return 0;
-        final Long a = entries.next();
+        final byte[] a = entries.next();
         int k = 1;
-        int c = RowSet.importRowCount(a, this.factory.getRow());
+        int c = ReferenceContainerCodec.count(a);
         assert c >= 0;
         if (System.currentTimeMillis() > timeout) {
             Log.logWarning("ReferenceContainerArray", "timout in index retrieval (1): " + k + " tables searched. timeout = 3000");
             return c;
         }
         while (entries.hasNext()) {
-            c += RowSet.importRowCount(entries.next(), this.factory.getRow());
+            c += ReferenceContainerCodec.count(entries.next());
             assert c >= 0;
             k++;
             if (System.currentTimeMillis() > timeout) {
@@ -357,10 +409,28 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
 
         public byte[] rewrite(final byte[] b) throws RowSpaceExceededException {
             if (b == null) return null;
-            final ReferenceContainer<ReferenceType> c = this.rewriter.reduce(new ReferenceContainer<ReferenceType>(ReferenceContainerArray.this.factory, this.wordHash, RowSet.importRowSet(b, ReferenceContainerArray.this.factory.getRow())));
+            final RowSet set;
+            try {
+                set = ReferenceContainerCodec.importRowSet(b, ReferenceContainerArray.this.factory.getRow());
+            } catch (final IOException e) {
+                // keep the entry unchanged; a reduction must not replace a container that cannot be read
+                Log.logSevere("ReferenceContainerArray", "container for " + ASCII.String(this.wordHash) + " cannot be read; reduction skipped: " + e.getMessage());
+                return b;
+            }
+            final ReferenceContainer<ReferenceType> c = this.rewriter.reduce(new ReferenceContainer<ReferenceType>(ReferenceContainerArray.this.factory, this.wordHash, set));
             if (c == null) return null;
-            final byte bb[] = c.exportCollection();
-            assert bb.length <= b.length;
+            final byte bb[] = ReferenceContainerCodec.export(c, b);
+            if (bb.length > b.length) {
+                // the entry is rewritten in place and cannot grow. This may only happen in rare cases with compressed containers
+                Log.logWarning("ReferenceContainerArray", "reduced container for " + ASCII.String(this.wordHash) + " does not fit; reduction skipped");
+                return b;
+            }
+            if (bb.length < b.length && bb.length > b.length - 4 && ReferenceContainerCodec.isCompressed(bb)) {
+                // a gap of less than 4 bytes cannot be recorded as free space in the heap; compressed containers may have trailing zeros
+                final byte[] padded = new byte[b.length];
+                System.arraycopy(bb, 0, padded, 0, bb.length);
+                return padded;
+            }
             return bb;
         }
     }
@@ -375,36 +445,37 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
         return this.array.entries();
     }
 
-    public boolean shrinkBestSmallFiles(final IODispatcher merger, final long targetFileSize) {
-        final File[] ff = this.array.unmountBestMatch(2.0f, targetFileSize);
-        if (ff == null) return false;
-        Log.logInfo("RICELL-shrink1", "unmountBestMatch(2.0, " + targetFileSize + ")");
-        merger.merge(ff[0], ff[1], this.factory, this.array, newContainerBLOBFile());
-        return true;
-    }
-
-    public boolean shrinkAnySmallFiles(final IODispatcher merger, final long targetFileSize) {
-        final File[] ff = this.array.unmountSmallest(targetFileSize);
-        if (ff == null) return false;
-        Log.logInfo("RICELL-shrink2", "unmountSmallest(" + targetFileSize + ")");
-        merger.merge(ff[0], ff[1], this.factory, this.array, newContainerBLOBFile());
-        return true;
-    }
-
-    public boolean shrinkUpToMaxSizeFiles(final IODispatcher merger, final long maxFileSize) {
-        final File[] ff = this.array.unmountBestMatch(2.0f, maxFileSize);
+    /**
+     * ask a compaction strategy for files to merge and hand them over to the merger
+     * @param strategy
+     * @param merger
+     * @param targetFileSize
+     * @param maxFileSize
+     * @return true if a merge job was started
+     */
+    public boolean shrink(final CompactionStrategy strategy, final IODispatcher merger, final long targetFileSize, final long maxFileSize) {
+        final File[] ff = strategy.unmountNext(this.array, merger.queueLength(), targetFileSize, maxFileSize);
         if (ff == null) return false;
-        Log.logInfo("RICELL-shrink3", "unmountBestMatch(2.0, " + maxFileSize + ")");
-        merger.merge(ff[0], ff[1], this.factory, this.array, newContainerBLOBFile());
+        merger.merge(ff, this.factory, this.array, newContainerBLOBFile());
         return true;
     }
 
-    public boolean shrinkOldFiles(final IODispatcher merger, final long targetFileSize) {
-        final File ff = this.array.unmountOldest();
-        if (ff == null) return false;
-        Log.logInfo("RICELL-shrink4/rewrite", "unmountOldest()");
-        merger.merge(ff, null, this.factory, this.array, newContainerBLOBFile());
-        return true;
+    /**
+     * compute the number of files and the sum of their sizes for each level of a compaction strategy
+     * @param strategy
+     * @param targetFileSize
+     * @return an array with one {files, bytes} pair for each level
+     */
+    public long[][] levels(final CompactionStrategy strategy, final long targetFileSize) {
+        final List<long[]> levels = new ArrayList<long[]>();
+        int l;
+        for (final File f: this.array.files()) {
+            l = strategy.level(f.length(), targetFileSize);
+            while (levels.size() <= l) levels.add(new long[2]);
+            levels.get(l)[0]++;
+            levels.get(l)[1] += f.length();
+        }
+        return levels.toArray(new long[levels.size()][]);
     }
 
     public static <ReferenceType extends Reference> HandleMap referenceHashes(
@@ -414,7 +485,7 @@ public final class ReferenceContainerArray<ReferenceType extends Reference> {
                             final Row payloadrow) throws IOException, RowSpaceExceededException {
 
         System.out.println("CELL REFERENCE COLLECTION startup");
-        final HandleMap references = new HandleMap(payloadrow.primaryKeyLength, termOrder, 4, 1000000, heapLocation.getAbsolutePath());
+        final HandleMap references = new RowHandleMap(payloadrow.primaryKeyLength, termOrder, 4, 1000000, heapLocation.getAbsolutePath());
         final String[] files = heapLocation.list();
         for (final String f: files) {
             if (f.length() < 22 || !f.startsWith("text.index") || !f.endsWith(".blob")) continue;
@@ -145,7 +145,7 @@ public final class ReferenceContainerCache<ReferenceType extends Reference> exte
             if (container != null && term.length == this.termSize) {
                 //System.out.println("Dump: " + wordHash);
                 try {
-                    dump.add(term, container.exportCollection());
+                    dump.add(term, ReferenceContainerCodec.export(container));
                 } catch (final IOException e) {
                     Log.logException(e);
                 } catch (final RowSpaceExceededException e) {
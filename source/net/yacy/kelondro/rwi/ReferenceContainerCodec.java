@@ -0,0 +1,417 @@
+// ReferenceContainerCodec.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 22.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.rwi;
+
+import java.io.IOException;
+import java.util.Random;
+
+import net.yacy.cora.document.ASCII;
+import net.yacy.kelondro.data.word.WordReferenceRow;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowCollection;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.NaturalOrder;
+
+/**
+ * a compressed storage format for reference containers in the BLOB files of the RWI.
+ * The plain format (see RowCollection.exportCollection) stores all rows with their fixed width.
+ * The compressed format stores the rows column by column:
+ * - the primary keys (url hashes) are sorted; each key is stored with the length of the prefix that
+ *   it shares with the key before and the remaining bytes
+ * - every other column is stored in the shortest of three encodings: raw bytes, runs of equal values or
+ *   variable-length integers of the difference to the value in the row before
+ * A compressed container starts with a marker byte that cannot be the first byte of a plain container,
+ * followed by a version byte. Therefore both formats can be mixed in the same BLOB file and
+ * files that had been written before the compressed format existed are still readable.
+ * Compressed containers may have trailing bytes (zeros) which are ignored.
+ */
+public final class ReferenceContainerCodec {
+
+    private static final byte MARKER = (byte) 0xFF; // the first byte of the plain format is the high byte of a positive int
+    private static final byte VERSION = 1;
+
+    private static final int plainOverheadSize = 14; // see RowCollection.exportOverheadSize
+
+    private static final byte MODE_RAW = 0, MODE_RUN = 1, MODE_DELTA = 2;
+
+    /**
+     * the number of bytes that are needed from the beginning of an exported container to compute its size with count()
+     */
+    public static final int headLength = 7;
+
+    /**
+     * if true, then containers that are written to the BLOB files are compressed
+     */
+    public static boolean writeCompressed = false;
+
+    public static boolean isCompressed(final byte[] b) {
+        return b != null && b.length >= 2 && b[0] == MARKER;
+    }
+
+    /**
+     * export a container for a BLOB file; the format depends on the writeCompressed setting
+     * @param c
+     * @return the exported container
+     */
+    public static byte[] export(final RowCollection c) {
+        final byte[] plain = c.exportCollection();
+        return (writeCompressed) ? compress(plain, c.row()) : plain;
+    }
+
+    /**
+     * export a container in the same format as a given exported container.
+     * This is used to rewrite a BLOB entry in place: the result must not become larger than before.
+     * @param c
+     * @param format an exported container
+     * @return the exported container
+     */
+    public static byte[] export(final RowCollection c, final byte[] format) {
+        final byte[] plain = c.exportCollection();
+        return (isCompressed(format)) ? compress(plain, c.row()) : plain;
+    }
+
+    /**
+     * compute the number of rows from the head of an exported container
+     * @param head the first bytes of the exported container, at least headLength bytes or the complete container
+     * @return the number of rows in the container
+     */
+    public static int count(final byte[] head) {
+        if (head == null || head.length < 4) return 0;
+        if (isCompressed(head)) return (int) readVarLong(head, new int[]{2});
+        final int size = (int) NaturalOrder.decodeLong(head, 0, 4);
+        return Math.max(0, size);
+    }
+
+    /**
+     * import an exported container in any format
+     * @param b
+     * @param rowdef
+     * @return the rows of the container
+     * @throws RowSpaceExceededException
+     * @throws IOException if the container is corrupted
+     */
+    public static RowSet importRowSet(final byte[] b, final Row rowdef) throws RowSpaceExceededException, IOException {
+        return RowSet.importRowSet(uncompress(b, rowdef), rowdef);
+    }
+
+    /**
+     * compress a plain exported container
+     * @param plain a container in the plain format with sorted rows
+     * @param rowdef
+     * @return the compressed container or the plain container if compression would not reduce the size
+     */
+    public static byte[] compress(final byte[] plain, final Row rowdef) {
+        if (plain == null || plain.length < plainOverheadSize) return plain;
+        final int count = (int) NaturalOrder.decodeLong(plain, 0, 4);
+        final int orderbound = (int) NaturalOrder.decodeLong(plain, 10, 4);
+        if (count <= 0 || orderbound != count || plain.length != plainOverheadSize + count * rowdef.objectsize) return plain;
+        final int objectsize = rowdef.objectsize;
+        final int keylength = rowdef.primaryKeyLength;
+
+        // the compressed container is never larger than this, otherwise the plain format is used
+        final byte[] out = new byte[plain.length];
+        int p = 0;
+        out[p++] = MARKER;
+        out[p++] = VERSION;
+        p = writeVarLong(out, p, count);
+
+        // the keys with prefix compression
+        int row = plainOverheadSize, shared;
+        for (int i = 0; i < count; i++) {
+            shared = 0;
+            if (i > 0) while (shared < keylength && plain[row - objectsize + shared] == plain[row + shared]) shared++;
+            if (p + 1 + keylength - shared > out.length) return plain;
+            out[p++] = (byte) shared;
+            copy(plain, row + shared, out, p, keylength - shared);
+            p += keylength - shared;
+            row += objectsize;
+        }
+
+        // all other columns, one after another
+        for (int col = 1; col < rowdef.columns(); col++) {
+            final int start = plainOverheadSize + rowdef.colstart[col];
+            final int width = rowdef.width(col);
+
+            // compute the size of all encodings
+            final long raw = (long) count * width;
+            long run = 0, delta = 0;
+            long v, last = 0;
+            int r = 0;
+            row = start;
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && equal(plain, row - objectsize, row, width)) {
+                    r++;
+                } else {
+                    if (r > 0) run += varLongSize(r) + width;
+                    r = 1;
+                }
+                if (width <= 4) {
+                    v = NaturalOrder.decodeLong(plain, row, width);
+                    delta += varLongSize(zigzag(v - last));
+                    last = v;
+                }
+                row += objectsize;
+            }
+            run += varLongSize(r) + width;
+            final byte mode = (width <= 4 && delta < raw && delta < run) ? MODE_DELTA : (run < raw) ? MODE_RUN : MODE_RAW;
+            final long size = (mode == MODE_DELTA) ? delta : (mode == MODE_RUN) ? run : raw;
+            if (p + 1 + size > out.length) return plain;
+
+            // write the column
+            out[p++] = mode;
+            row = start;
+            if (mode == MODE_RAW) {
+                for (int i = 0; i < count; i++) {
+                    copy(plain, row, out, p, width);
+                    p += width;
+                    row += objectsize;
+                }
+            } else if (mode == MODE_RUN) {
+                int i = 0;
+                while (i < count) {
+                    r = 1;
+                    while (i + r < count && equal(plain, row, row + r * objectsize, width)) r++;
+                    p = writeVarLong(out, p, r);
+                    copy(plain, row, out, p, width);
+                    p += width;
+                    i += r;
+                    row += r * objectsize;
+                }
+            } else {
+                last = 0;
+                for (int i = 0; i < count; i++) {
+                    v = NaturalOrder.decodeLong(plain, row, width);
+                    p = writeVarLong(out, p, zigzag(v - last));
+                    last = v;
+                    row += objectsize;
+                }
+            }
+        }
+
+        final byte[] b = new byte[p];
+        System.arraycopy(out, 0, b, 0, p);
+        return b;
+    }
+
+    /**
+     * produce the plain format of an exported container
+     * @param b a container in the compressed or plain format
+     * @param rowdef
+     * @return the plain container; if b is already in the plain format, b is returned
+     * @throws IOException if the compressed container is corrupted or has an unknown format
+     */
+    public static byte[] uncompress(final byte[] b, final Row rowdef) throws IOException {
+        if (!isCompressed(b)) return b;
+        if (b[1] != VERSION) throw new IOException("unknown container format version " + b[1]);
+        try {
+            final int[] pp = new int[]{2};
+            final int count = (int) readVarLong(b, pp);
+            final int objectsize = rowdef.objectsize;
+            final int keylength = rowdef.primaryKeyLength;
+            final byte[] plain = new byte[plainOverheadSize + count * objectsize];
+            writePlainHeader(plain, count, rowdef);
+
+            // the keys
+            int p = pp[0], row = plainOverheadSize, shared;
+            for (int i = 0; i < count; i++) {
+                shared = b[p++] & 0xFF;
+                if (shared > 0) copy(plain, row - objectsize, plain, row, shared);
+                copy(b, p, plain, row + shared, keylength - shared);
+                p += keylength - shared;
+                row += objectsize;
+            }
+
+            // all other columns
+            long v;
+            for (int col = 1; col < rowdef.columns(); col++) {
+                final int start = plainOverheadSize + rowdef.colstart[col];
+                final int width = rowdef.width(col);
+                final byte mode = b[p++];
+                row = start;
+                if (mode == MODE_RAW) {
+                    for (int i = 0; i < count; i++) {
+                        copy(b, p, plain, row, width);
+                        p += width;
+                        row += objectsize;
+                    }
+                } else if (mode == MODE_RUN) {
+                    int i = 0, r;
+                    while (i < count) {
+                        pp[0] = p;
+                        r = (int) readVarLong(b, pp);
+                        p = pp[0];
+                        for (int j = 0; j < r && i < count; j++) {
+                            copy(b, p, plain, row, width);
+                            row += objectsize;
+                            i++;
+                        }
+                        p += width;
+                    }
+                } else if (mode == MODE_DELTA) {
+                    pp[0] = p;
+                    v = 0;
+                    for (int i = 0; i < count; i++) {
+                        v += unzigzag(readVarLong(b, pp));
+                        NaturalOrder.encodeLong(v, plain, row, width);
+                        row += objectsize;
+                    }
+                    p = pp[0];
+                } else {
+                    throw new IOException("unknown column encoding " + mode);
+                }
+            }
+            return plain;
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("compressed container corrupted: " + e.getMessage());
+        } catch (final NegativeArraySizeException e) {
+            throw new IOException("compressed container corrupted: " + e.getMessage());
+        }
+    }
+
+    private static void writePlainHeader(final byte[] plain, final int count, final Row rowdef) {
+        // see RowCollection.exportRow: chunkcount-4, last_read-2, last_wrote-2, order_type-2, order_bound-4
+        NaturalOrder.encodeLong(count, plain, 0, 4);
+        NaturalOrder.encodeLong(0, plain, 4, 4);
+        final byte[] signature = ASCII.getBytes(rowdef.objectOrder == null ? "__" : rowdef.objectOrder.signature());
+        System.arraycopy(signature, 0, plain, 8, Math.min(2, signature.length));
+        NaturalOrder.encodeLong(count, plain, 10, 4);
+    }
+
+    private static void copy(final byte[] src, final int srcPos, final byte[] dest, final int destPos, final int length) {
+        // most columns are only a few bytes wide, a loop is faster than System.arraycopy for these
+        for (int i = 0; i < length; i++) dest[destPos + i] = src[srcPos + i];
+    }
+
+    private static boolean equal(final byte[] b, final int p0, final int p1, final int length) {
+        for (int i = 0; i < length; i++) if (b[p0 + i] != b[p1 + i]) return false;
+        return true;
+    }
+
+    private static long zigzag(final long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(final long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int varLongSize(long v) {
+        int s = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            s++;
+        }
+        return s;
+    }
+
+    private static int writeVarLong(final byte[] b, int p, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[p++] = (byte) v;
+        return p;
+    }
+
+    private static long readVarLong(final byte[] b, final int[] pp) {
+        int p = pp[0];
+        long v = 0;
+        int shift = 0;
+        byte x;
+        do {
+            x = b[p++];
+            v |= ((long) (x & 0x7F)) << shift;
+            shift += 7;
+        } while ((x & 0x80) != 0);
+        pp[0] = p;
+        return v;
+    }
+
+    /**
+     * a benchmark for the compressed format against the plain format
+     * @param args the number of references in a container (default 100000)
+     */
+    public static void main(final String[] args) {
+        final int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final Row rowdef = WordReferenceRow.urlEntryRow;
+        final Random r = new Random(0);
+        final int today = (int) (System.currentTimeMillis() / 86400000L);
+        try {
+            final RowSet set = new RowSet(rowdef, count);
+            for (int i = 0; i < count; i++) {
+                final Row.Entry entry = rowdef.newEntry();
+                entry.setCol(0, RowSet.randomHash(r));
+                entry.setCol(1, today - r.nextInt(1000));
+                entry.setCol(2, today + 30);
+                entry.setCol(3, r.nextInt(8));
+                entry.setCol(4, r.nextInt(3000));
+                entry.setCol(5, r.nextInt(300));
+                entry.setCol(6, new byte[]{(byte) 't'});
+                entry.setCol(7, "en");
+                entry.setCol(8, r.nextInt(40));
+                entry.setCol(9, r.nextInt(40));
+                entry.setCol(10, 20 + r.nextInt(60));
+                entry.setCol(11, r.nextInt(8));
+                entry.setCol(12, new byte[]{0});
+                entry.setCol(13, new byte[]{(byte) r.nextInt(4), 0, 0, 0});
+                entry.setCol(14, 1 + r.nextInt(5));
+                entry.setCol(15, r.nextInt(2000));
+                entry.setCol(16, r.nextInt(10));
+                entry.setCol(17, r.nextInt(100));
+                entry.setCol(18, 0);
+                entry.setCol(19, 0);
+                set.put(entry);
+            }
+            final int rounds = 20;
+            byte[] plain = null, compressed = null;
+            long t = System.currentTimeMillis();
+            for (int i = 0; i < rounds; i++) plain = set.exportCollection();
+            final long plainExport = System.currentTimeMillis() - t;
+            t = System.currentTimeMillis();
+            for (int i = 0; i < rounds; i++) compressed = compress(set.exportCollection(), rowdef);
+            final long compressedExport = System.currentTimeMillis() - t;
+            t = System.currentTimeMillis();
+            for (int i = 0; i < rounds; i++) RowSet.importRowSet(plain, rowdef);
+            final long plainImport = System.currentTimeMillis() - t;
+            t = System.currentTimeMillis();
+            for (int i = 0; i < rounds; i++) importRowSet(compressed, rowdef);
+            final long compressedImport = System.currentTimeMillis() - t;
+            final byte[] restored = uncompress(compressed, rowdef);
+            boolean equal = restored.length == plain.length;
+            for (int i = plainOverheadSize; equal && i < plain.length; i++) equal = restored[i] == plain[i];
+            System.out.println("references: " + set.size() + ", rounds: " + rounds);
+            System.out.println("plain:      " + plain.length + " bytes, export " + plainExport + " ms, import " + plainImport + " ms");
+            System.out.println("compressed: " + compressed.length + " bytes (" + (100 * compressed.length / plain.length) + "%), export " + compressedExport + " ms, import " + compressedImport + " ms");
+            System.out.println("round trip " + ((equal) ? "ok" : "FAILED"));
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        } catch (final IOException e) {
+            Log.logException(e);
+        }
+        Log.shutdown();
+    }
+}
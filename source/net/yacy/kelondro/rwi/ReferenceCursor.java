@@ -0,0 +1,210 @@
+// ReferenceCursor.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 21.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.rwi;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.yacy.kelondro.index.HandleSet;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.ByteOrder;
+import net.yacy.kelondro.order.NaturalOrder;
+import net.yacy.kelondro.util.LookAheadIterator;
+
+/**
+ * a cursor over the references of one term that are stored in several exported containers.
+ * Compressed containers are expanded to the plain format before they are merged.
+ * The exported containers are sorted by the url hash, therefore the cursor can merge them
+ * with a simultaneous iteration (a k-way merge) without importing the containers into RowSets.
+ * The rows are not copied; the returned entries point into the exported containers.
+ * If the same url hash appears in more than one container, only the entry from the container
+ * that comes first in the list of sources is returned.
+ */
+public class ReferenceCursor<ReferenceType extends Reference> extends LookAheadIterator<Row.Entry> {
+
+    private static final int exportOverheadSize = 14; // see RowCollection.exportOverheadSize
+
+    private final ReferenceFactory<ReferenceType> factory;
+    private final byte[] termHash;
+    private final Row rowdef;
+    private final ByteOrder order;
+    private final HandleSet exclude;
+    private final PriorityQueue<Head> heads;
+    private int count;
+    private byte[] lastb;
+    private int lastp;
+
+    /**
+     * create a cursor
+     * @param factory the reference factory of the term index
+     * @param termHash the term of the references
+     * @param sources exported containers; if two containers have an entry with the same url hash,
+     *  then the entry of the container that appears first in this list is used
+     * @param exclude url hashes that shall not be returned, may be null
+     * @throws IOException if a source is corrupted
+     */
+    public ReferenceCursor(
+            final ReferenceFactory<ReferenceType> factory,
+            final byte[] termHash,
+            final List<byte[]> sources,
+            final HandleSet exclude) throws IOException {
+        this.factory = factory;
+        this.termHash = termHash;
+        this.rowdef = factory.getRow();
+        this.order = this.rowdef.objectOrder;
+        this.exclude = (exclude == null || exclude.isEmpty()) ? null : exclude;
+        this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new HeadComparator());
+        this.count = 0;
+        this.lastb = null;
+        this.lastp = 0;
+        int rank = 0;
+        for (final byte[] b: sources) {
+            final Head h = head(b, rank++);
+            if (h == null) continue;
+            this.count += h.size;
+            this.heads.add(h);
+        }
+    }
+
+    private Head head(byte[] b, final int rank) throws IOException {
+        b = ReferenceContainerCodec.uncompress(b, this.rowdef);
+        if (b == null || b.length < exportOverheadSize) return null;
+        final int size = (int) NaturalOrder.decodeLong(b, 0, 4);
+        if (size <= 0) return null;
+        if ((long) size * (long) this.rowdef.objectsize != b.length - exportOverheadSize) {
+            Log.logSevere("ReferenceCursor", "exported container has wrong size: b.length = " + b.length + ", size * rowdef.objectsize = " + size * this.rowdef.objectsize);
+            return null;
+        }
+        final int orderbound = (int) NaturalOrder.decodeLong(b, 10, 4);
+        if (orderbound < size) {
+            // this container was not exported in sorted order; this should not happen, but we can repair it here
+            try {
+                final RowSet set = RowSet.importRowSet(b, this.rowdef);
+                set.sort();
+                b = set.exportCollection();
+            } catch (final RowSpaceExceededException e) {
+                Log.logException(e);
+                return null;
+            }
+        }
+        return new Head(b, rank, size, this.rowdef.objectsize);
+    }
+
+    /**
+     * the number of entries in all sources. Because entries with the same url hash are
+     * returned only once, this is an upper limit of the number of entries that the cursor returns
+     * @return the sum of all source sizes
+     */
+    public int count() {
+        return this.count;
+    }
+
+    public byte[] getTermHash() {
+        return this.termHash;
+    }
+
+    @Override
+    protected Row.Entry next0() {
+        Head h;
+        while ((h = this.heads.poll()) != null) {
+            final byte[] b = h.b;
+            final int p = h.p;
+            if (h.advance()) this.heads.add(h);
+            // skip entries that had been returned already from a source with higher priority
+            if (this.lastb != null && this.order.compare(this.lastb, this.lastp, b, p, this.rowdef.primaryKeyLength) == 0) continue;
+            this.lastb = b;
+            this.lastp = p;
+            final Row.Entry entry = this.rowdef.newEntry(b, p, false);
+            if (entry == null) continue;
+            if (this.exclude != null && this.exclude.has(entry.getPrimaryKeyBytes())) continue;
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * collect the remaining entries of the cursor into a container
+     * @param maxReferences the maximum number of references in the result; the collection stops
+     *  as soon as this number is reached. Because the entries are returned in the order of the url hashes,
+     *  the result contains the references with the smallest url hashes.
+     * @return a container with the collected references, sorted by the url hash
+     * @throws RowSpaceExceededException
+     */
+    public ReferenceContainer<ReferenceType> collect(final int maxReferences) throws RowSpaceExceededException {
+        return collect(maxReferences, Long.MAX_VALUE);
+    }
+
+    /**
+     * collect the remaining entries of the cursor into a container, but stop at a deadline.
+     * If the collection was stopped, the result is truncated like a result that was limited by maxReferences;
+     * this can be recognized with hasNext(), which is true if the cursor has more references.
+     * @param maxReferences the maximum number of references in the result
+     * @param deadline the time in milliseconds when the collection stops
+     * @return a container with the collected references, sorted by the url hash
+     * @throws RowSpaceExceededException
+     */
+    public ReferenceContainer<ReferenceType> collect(final int maxReferences, final long deadline) throws RowSpaceExceededException {
+        final ReferenceContainer<ReferenceType> c = new ReferenceContainer<ReferenceType>(this.factory, this.termHash, Math.max(0, Math.min(this.count, maxReferences)));
+        while (c.size() < maxReferences && hasNext()) {
+            if ((c.size() & 0xff) == 0 && deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) break;
+            c.addUnique(next());
+        }
+        return c;
+    }
+
+    private static class Head {
+        private final byte[] b;
+        private final int rank, size, objectsize, end;
+        private int p;
+
+        public Head(final byte[] b, final int rank, final int size, final int objectsize) {
+            this.b = b;
+            this.rank = rank;
+            this.size = size;
+            this.objectsize = objectsize;
+            this.p = exportOverheadSize;
+            this.end = exportOverheadSize + size * objectsize;
+        }
+
+        public boolean advance() {
+            this.p += this.objectsize;
+            return this.p < this.end;
+        }
+    }
+
+    private class HeadComparator implements Comparator<Head> {
+        public int compare(final Head a, final Head b) {
+            final int c = ReferenceCursor.this.order.compare(a.b, a.p, b.b, b.p, ReferenceCursor.this.rowdef.primaryKeyLength);
+            if (c != 0) return c;
+            // on equal keys the source that comes first in the list wins
+            return (a.rank < b.rank) ? -1 : (a.rank > b.rank) ? 1 : 0;
+        }
+    }
+}
@@ -63,7 +63,7 @@ public class ReferenceIterator <ReferenceType extends Reference> extends LookAhe
             entry = this.blobs.next();
             if (entry == null) break;
             try {
-                row = RowSet.importRowSet(entry.getValue(), this.factory.getRow());
+                row = ReferenceContainerCodec.importRowSet(entry.getValue(), this.factory.getRow());
                 if (row == null) {
                     Log.logSevere("ReferenceIterator", "lost entry '" + entry.getKey() + "' because importRowSet returned null");
                     continue; // thats a fail but not as REALLY bad if the whole method would crash here
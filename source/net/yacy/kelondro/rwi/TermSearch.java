@@ -27,15 +27,38 @@
 
 package net.yacy.kelondro.rwi;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.yacy.kelondro.index.HandleSet;
+import net.yacy.kelondro.index.Row;
 import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
+import net.yacy.kelondro.util.NamePrefixThreadFactory;
 
 
 public class TermSearch <ReferenceType extends Reference> {
 
+    // the thread pool for the concurrent collection of the references of each term; it is shared by all searches
+    private final static ThreadPoolExecutor collectPool = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(), 60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamePrefixThreadFactory("TermSearch.collect"));
+    static {
+        collectPool.allowCoreThreadTimeOut(true);
+    }
+
     private final ReferenceContainer<ReferenceType> joinResult;
     TreeMap<byte[], ReferenceContainer<ReferenceType>> inclusionContainers;
     
@@ -46,27 +69,169 @@ public class TermSearch <ReferenceType extends Reference> {
             final HandleSet urlselection,
             ReferenceFactory<ReferenceType> termFactory,
             int maxDistance) throws RowSpaceExceededException {
-        
-        this.inclusionContainers =
-            (queryHashes.isEmpty()) ?
-                new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder) :
-                base.searchConjunction(queryHashes, urlselection);
-                
-        if (!inclusionContainers.isEmpty() &&
-            (inclusionContainers.size() < queryHashes.size()))
-            inclusionContainers = new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder); // prevent that only a subset is returned
-        
-        TreeMap<byte[], ReferenceContainer<ReferenceType>> exclusionContainers =
-            (inclusionContainers.isEmpty()) ?
-                new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder) :
-                base.searchConjunction(excludeHashes, urlselection);
-    
+        this(base, queryHashes, excludeHashes, urlselection, termFactory, maxDistance, Integer.MAX_VALUE);
+    }
+
+    public TermSearch(
+            Index<ReferenceType> base,
+            final HandleSet queryHashes,
+            final HandleSet excludeHashes,
+            final HandleSet urlselection,
+            ReferenceFactory<ReferenceType> termFactory,
+            int maxDistance,
+            int maxReferences) throws RowSpaceExceededException {
+        this(base, queryHashes, excludeHashes, urlselection, termFactory, maxDistance, maxReferences, -1);
+    }
+
+    /**
+     * search the given terms with a limited number of references for each term.
+     * The references of each term are retrieved in the order of the url hashes, therefore
+     * the join is complete up to the smallest url hash where one of the terms was truncated.
+     * Results beyond that point are removed, because they may be incomplete.
+     * The references of all terms are read in one batch and then collected concurrently. A term
+     * that cannot be collected until the deadline is truncated like a term that reached maxReferences,
+     * so the result is a complete prefix of the result that a search without time limit would return.
+     * @param maxtime the time in milliseconds for the collection of the references, or -1 for no limit
+     */
+    public TermSearch(
+            Index<ReferenceType> base,
+            final HandleSet queryHashes,
+            final HandleSet excludeHashes,
+            final HandleSet urlselection,
+            ReferenceFactory<ReferenceType> termFactory,
+            int maxDistance,
+            int maxReferences,
+            long maxtime) throws RowSpaceExceededException {
+
+        final long deadline = (maxtime < 0) ? Long.MAX_VALUE : System.currentTimeMillis() + maxtime;
+        this.inclusionContainers = new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
+        final TreeMap<byte[], ReferenceContainer<ReferenceType>> exclusionContainers = new TreeMap<byte[], ReferenceContainer<ReferenceType>>(Base64Order.enhancedCoder);
+        final List<ReferenceContainer<ReferenceType>> truncated = new ArrayList<ReferenceContainer<ReferenceType>>();
+        if (!queryHashes.isEmpty()) {
+            collect(base, queryHashes, excludeHashes, urlselection, maxReferences, deadline, this.inclusionContainers, exclusionContainers, truncated);
+        }
+
         // join and exclude the result
-        this.joinResult = ReferenceContainer.joinExcludeContainers(
+        ReferenceContainer<ReferenceType> join = ReferenceContainer.joinExcludeContainers(
                 termFactory,
-                inclusionContainers.values(),
+                this.inclusionContainers.values(),
                 exclusionContainers.values(),
-                maxDistance);        
+                maxDistance);
+
+        // remove the references behind the first truncation point
+        byte[] bound = null;
+        for (final ReferenceContainer<ReferenceType> c: truncated) {
+            if (c.isEmpty()) {
+                // the term was stopped before it returned any reference: there is no complete result
+                join = ReferenceContainer.emptyContainer(termFactory, null, 0);
+                bound = null;
+                break;
+            }
+            c.sort();
+            final byte[] last = c.get(c.size() - 1, false).getPrimaryKeyBytes();
+            if (bound == null || c.row().objectOrder.compare(last, bound) < 0) bound = last;
+        }
+        if (bound != null && !join.isEmpty()) {
+            final Row rowdef = join.row();
+            final HandleSet behind = new HandleSet(rowdef.primaryKeyLength, rowdef.objectOrder, 0);
+            for (final Row.Entry entry: join) {
+                if (rowdef.objectOrder.compare(entry.getPrimaryKeyBytes(), bound) > 0) behind.put(entry.getPrimaryKeyBytes());
+            }
+            join.removeEntries(behind);
+        }
+        this.joinResult = join;
+    }
+
+    /**
+     * collect the references of the include and exclude terms. The references are read with one call to
+     * the index and then merged concurrently for each term, each merge stops at the deadline.
+     * If one of the include terms has no references, the include containers are empty.
+     * @param truncated the containers that were truncated by maxReferences or the deadline are added to this list
+     */
+    private static <ReferenceType extends Reference> void collect(
+            final Index<ReferenceType> base,
+            final HandleSet queryHashes,
+            final HandleSet excludeHashes,
+            final HandleSet urlselection,
+            final int maxReferences,
+            final long deadline,
+            final TreeMap<byte[], ReferenceContainer<ReferenceType>> inclusionContainers,
+            final TreeMap<byte[], ReferenceContainer<ReferenceType>> exclusionContainers,
+            final List<ReferenceContainer<ReferenceType>> truncated) throws RowSpaceExceededException {
+
+        // read the references of all terms
+        final List<byte[]> hashes = new ArrayList<byte[]>(queryHashes.size() + excludeHashes.size());
+        for (final byte[] hash: queryHashes) hashes.add(hash);
+        for (final byte[] hash: excludeHashes) hashes.add(hash);
+        final TreeMap<byte[], ReferenceCursor<ReferenceType>> cursors;
+        try {
+            cursors = base.references(hashes, urlselection);
+        } catch (final IOException e) {
+            Log.logException(e);
+            return;
+        }
+        for (final byte[] hash: queryHashes) {
+            if (!cursors.containsKey(hash)) return; // prevent that only a subset is returned
+        }
+
+        // collect the references of each term concurrently; the first term is collected in this thread
+        final List<ReferenceCursor<ReferenceType>> cursorList = new ArrayList<ReferenceCursor<ReferenceType>>(cursors.values());
+        final List<Future<ReferenceContainer<ReferenceType>>> futures = new ArrayList<Future<ReferenceContainer<ReferenceType>>>(cursorList.size());
+        for (int i = 1; i < cursorList.size(); i++) {
+            futures.add(collectPool.submit(new Collector<ReferenceType>(cursorList.get(i), maxReferences, deadline)));
+        }
+        final List<ReferenceContainer<ReferenceType>> containers = new ArrayList<ReferenceContainer<ReferenceType>>(cursorList.size());
+        try {
+            containers.add(new Collector<ReferenceType>(cursorList.get(0), maxReferences, deadline).call());
+            for (final Future<ReferenceContainer<ReferenceType>> future: futures) containers.add(future.get());
+        } catch (final InterruptedException e) {
+            for (final Future<ReferenceContainer<ReferenceType>> future: futures) future.cancel(false);
+            return;
+        } catch (final ExecutionException e) {
+            for (final Future<ReferenceContainer<ReferenceType>> future: futures) future.cancel(false);
+            if (e.getCause() instanceof RowSpaceExceededException) throw (RowSpaceExceededException) e.getCause();
+            Log.logException(e);
+            return;
+        }
+
+        // sort the containers into include and exclude containers
+        ReferenceCursor<ReferenceType> cursor;
+        ReferenceContainer<ReferenceType> container;
+        for (int i = 0; i < cursorList.size(); i++) {
+            cursor = cursorList.get(i);
+            container = containers.get(i);
+            final boolean stopped = cursor.hasNext();
+            if (stopped) truncated.add(container);
+            if (queryHashes.has(cursor.getTermHash())) {
+                if (container.isEmpty() && !stopped) {
+                    // all references of the term are excluded by deletions; the conjunction is empty
+                    inclusionContainers.clear();
+                    truncated.clear();
+                    return;
+                }
+                inclusionContainers.put(cursor.getTermHash(), container);
+            } else {
+                exclusionContainers.put(cursor.getTermHash(), container);
+            }
+        }
+    }
+
+    private static class Collector<ReferenceType extends Reference> implements Callable<ReferenceContainer<ReferenceType>> {
+
+        private final ReferenceCursor<ReferenceType> cursor;
+        private final int maxReferences;
+        private final long deadline;
+
+        public Collector(final ReferenceCursor<ReferenceType> cursor, final int maxReferences, final long deadline) {
+            this.cursor = cursor;
+            this.maxReferences = maxReferences;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public ReferenceContainer<ReferenceType> call() throws RowSpaceExceededException {
+            return this.cursor.collect(this.maxReferences, this.deadline);
+        }
     }
     
     public ReferenceContainer<ReferenceType> joined() {
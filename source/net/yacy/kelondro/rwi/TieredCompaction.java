@@ -0,0 +1,128 @@
+// TieredCompaction.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 18.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.kelondro.rwi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.yacy.kelondro.blob.ArrayStack;
+import net.yacy.kelondro.logging.Log;
+
+/**
+ * a size-tiered compaction with a bounded fan-in.
+ * Files are grouped into levels by their size: level 0 holds files up to the base size and
+ * each following level holds files that are fanIn times larger than those of the level before.
+ * As soon as a level holds fanIn files or fanIn times the size limit of its files, these files are merged
+ * in one pass into a file of the next level. Files are never rewritten while all levels are within their limits;
+ * outdated references are removed with the next merge of their level.
+ * Every byte is therefore rewritten only once per level, and the number of files that a term lookup must
+ * touch is bounded by (fanIn - 1) * levels plus the files that reached the maximum file size.
+ * A leveled compaction with partitioned key ranges is not possible here, because every BLOB file covers the
+ * complete term space.
+ */
+public class TieredCompaction implements CompactionStrategy {
+
+    private final int fanIn;
+
+    public TieredCompaction(final int fanIn) {
+        this.fanIn = Math.max(2, fanIn);
+    }
+
+    public String name() {
+        return "tiered (fan-in " + this.fanIn + ")";
+    }
+
+    private long baseSize(final long targetFileSize) {
+        // the target file size is reached after two merge levels
+        return Math.max(1024 * 1024, targetFileSize / this.fanIn / this.fanIn);
+    }
+
+    public int level(final long fileSize, final long targetFileSize) {
+        long limit = baseSize(targetFileSize);
+        int level = 0;
+        while (fileSize > limit && level < 16) {
+            limit *= this.fanIn;
+            level++;
+        }
+        return level;
+    }
+
+    private static long times(final long a, final int b) {
+        return (a > Long.MAX_VALUE / b) ? Long.MAX_VALUE : a * b;
+    }
+
+    public File[] unmountNext(final ArrayStack array, final int queueLength, final long targetFileSize, final long maxFileSize) {
+        // the merge pool is shared by all cells; one cell must not occupy more than its share
+        if (queueLength >= IODispatcher.getMergeShare()) return null;
+        final List<File> files = array.files(); // oldest first
+        if (files.size() < 2) return null;
+
+        // sort the files into levels; files with maximum size are not merged any more
+        final List<List<File>> levels = new ArrayList<List<File>>();
+        int l;
+        for (final File f: files) {
+            if (f.length() >= maxFileSize) continue;
+            l = level(f.length(), targetFileSize);
+            while (levels.size() <= l) levels.add(new ArrayList<File>());
+            levels.get(l).add(f);
+        }
+
+        // merge the lowest level that exceeds its count or size limit
+        long limit = baseSize(targetFileSize); // the size limit of the files in the level
+        for (int i = 0; i < levels.size(); i++) {
+            final File[] ff = select(levels.get(i), times(limit, this.fanIn), maxFileSize, this.fanIn);
+            if (ff != null && array.unmountBLOBs(ff)) {
+                Log.logInfo("RICELL-shrink", "tiered compaction of level " + i + ": " + ff.length + " files");
+                return ff;
+            }
+            limit = times(limit, this.fanIn);
+        }
+        return null;
+    }
+
+    /**
+     * select the oldest files of a level if the level is full
+     * @param level the files of the level
+     * @param sizeLimit the maximum sum of the file sizes in the level
+     * @return the files or null if the level is not full
+     */
+    private static File[] select(final List<File> level, final long sizeLimit, final long maxFileSize, final int fanIn) {
+        long levelSize = 0;
+        for (final File f: level) levelSize += f.length();
+        if (level.size() < fanIn && levelSize < sizeLimit) return null;
+        final List<File> selected = new ArrayList<File>(fanIn);
+        long sum = 0;
+        for (final File f: level) {
+            if (selected.size() >= fanIn) break;
+            if (sum + f.length() > maxFileSize) continue;
+            selected.add(f);
+            sum += f.length();
+        }
+        if (selected.size() < 2) return null;
+        return selected.toArray(new File[selected.size()]);
+    }
+
+}
@@ -77,6 +77,7 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
     private final long  fileSizeLimit;
     private final boolean useTailCache;
     private final boolean exceed134217727;
+    private final boolean offHeapIndex;
 
     public SplitTable(
             final File path,
@@ -84,7 +85,17 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
             final Row rowdef,
             final boolean useTailCache,
             final boolean exceed134217727) {
-        this(path, tablename, rowdef, ArrayStack.oneMonth, Integer.MAX_VALUE, useTailCache, exceed134217727);
+        this(path, tablename, rowdef, useTailCache, exceed134217727, false);
+    }
+
+    public SplitTable(
+            final File path,
+            final String tablename,
+            final Row rowdef,
+            final boolean useTailCache,
+            final boolean exceed134217727,
+            final boolean offHeapIndex) {
+        this(path, tablename, rowdef, ArrayStack.oneMonth, Integer.MAX_VALUE, useTailCache, exceed134217727, offHeapIndex);
     }
 
     private SplitTable(
@@ -94,7 +105,8 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
             final long fileAgeLimit,
             final long fileSizeLimit,
             final boolean useTailCache,
-            final boolean exceed134217727) {
+            final boolean exceed134217727,
+            final boolean offHeapIndex) {
         this.path = path;
         this.prefix = tablename;
         this.rowdef = rowdef;
@@ -102,6 +114,7 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
         this.fileSizeLimit = fileSizeLimit;
         this.useTailCache = useTailCache;
         this.exceed134217727 = exceed134217727;
+        this.offHeapIndex = offHeapIndex;
         this.entryOrder = new Row.EntryComparator(rowdef.objectOrder);
         init();
     }
@@ -211,10 +224,10 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
             Log.logInfo("kelondroSplitTable", "opening partial eco table " + f);
             Table table;
             try {
-                table = new Table(f, this.rowdef, EcoFSBufferSize, 0, this.useTailCache, this.exceed134217727, false);
+                table = new Table(f, this.rowdef, EcoFSBufferSize, 0, this.useTailCache, this.exceed134217727, false, this.offHeapIndex);
             } catch (final RowSpaceExceededException e) {
                 try {
-                    table = new Table(f, this.rowdef, 0, 0, false, this.exceed134217727, false);
+                    table = new Table(f, this.rowdef, 0, 0, false, this.exceed134217727, false, this.offHeapIndex);
                 } catch (final RowSpaceExceededException ee) {
                     Log.logSevere("SplitTable", "Table " + f.toString() + " cannot be initialized: " + ee.getMessage(), ee);
                     continue maxfind;
@@ -313,11 +326,23 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
     }
 
     public Map<byte[], Row.Entry> get(final Collection<byte[]> keys, final boolean forcecopy) throws IOException, InterruptedException {
-        final Map<byte[], Row.Entry> map = new TreeMap<byte[], Row.Entry>(row().objectOrder);
-        Row.Entry entry;
+        // group the keys by the table that contains them, then each table can read its rows in one pass
+        final Map<Index, List<byte[]>> keepers = new HashMap<Index, List<byte[]>>();
+        Index keeper;
+        List<byte[]> k;
         for (final byte[] key: keys) {
-            entry = get(key, forcecopy);
-            if (entry != null) map.put(key, entry);
+            keeper = keeperOf(key);
+            if (keeper == null) continue;
+            k = keepers.get(keeper);
+            if (k == null) {
+                k = new ArrayList<byte[]>();
+                keepers.put(keeper, k);
+            }
+            k.add(key);
+        }
+        final Map<byte[], Row.Entry> map = new TreeMap<byte[], Row.Entry>(row().objectOrder);
+        for (final Map.Entry<Index, List<byte[]>> entry: keepers.entrySet()) {
+            map.putAll(entry.getKey().get(entry.getValue(), forcecopy));
         }
         return map;
     }
@@ -327,10 +352,10 @@ public class SplitTable implements Index, Iterable<Row.Entry> {
         final File f = new File(this.path, this.current);
         Table table = null;
         try {
-            table = new Table(f, this.rowdef, EcoFSBufferSize, 0, this.useTailCache, this.exceed134217727, true);
+            table = new Table(f, this.rowdef, EcoFSBufferSize, 0, this.useTailCache, this.exceed134217727, true, this.offHeapIndex);
         } catch (final RowSpaceExceededException e) {
             try {
-                table = new Table(f, this.rowdef, 0, 0, false, this.exceed134217727, true);
+                table = new Table(f, this.rowdef, 0, 0, false, this.exceed134217727, true, this.offHeapIndex);
             } catch (final RowSpaceExceededException e1) {
                 Log.logException(e1);
             }
@@ -29,6 +29,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
@@ -41,6 +42,8 @@ import java.util.TreeSet;
 
 import net.yacy.kelondro.index.Column;
 import net.yacy.kelondro.index.HandleMap;
+import net.yacy.kelondro.index.OffHeapHandleMap;
+import net.yacy.kelondro.index.RowHandleMap;
 import net.yacy.kelondro.index.Index;
 import net.yacy.kelondro.index.Row;
 import net.yacy.kelondro.index.Row.Entry;
@@ -89,6 +92,21 @@ public class Table implements Index, Iterable<Row.Entry> {
     		boolean useTailCache,
     		final boolean exceed134217727,
     		final boolean warmUp) throws RowSpaceExceededException {
+        this(tablefile, rowdef, buffersize, initialSpace, useTailCache, exceed134217727, warmUp, false);
+    }
+
+    /**
+     * @param offHeapIndex if true, the key/record index of the table is stored outside of the java heap
+     */
+    public Table(
+    		final File tablefile,
+    		final Row rowdef,
+    		final int buffersize,
+    		final int initialSpace,
+    		boolean useTailCache,
+    		final boolean exceed134217727,
+    		final boolean warmUp,
+    		final boolean offHeapIndex) throws RowSpaceExceededException {
         useTailCache = true; // fixed for testing
 
         this.rowdef = rowdef;
@@ -137,8 +155,10 @@ public class Table implements Index, Iterable<Row.Entry> {
                 this.table = null; System.gc();
                 Log.logSevere("TABLE", tablefile.getName() + ": RAM after releasing the table: " + (MemoryControl.available() / 1024 / 1024) + "MB");
             }
-            this.index = new HandleMap(rowdef.primaryKeyLength, rowdef.objectOrder, 4, records, tablefile.getAbsolutePath());
-            final HandleMap errors = new HandleMap(rowdef.primaryKeyLength, NaturalOrder.naturalOrder, 4, records, tablefile.getAbsolutePath() + ".errors");
+            this.index = (offHeapIndex) ?
+                    new OffHeapHandleMap(rowdef.primaryKeyLength, rowdef.objectOrder, 4, records, tablefile.getAbsolutePath()) :
+                    new RowHandleMap(rowdef.primaryKeyLength, rowdef.objectOrder, 4, records, tablefile.getAbsolutePath());
+            final HandleMap errors = new RowHandleMap(rowdef.primaryKeyLength, NaturalOrder.naturalOrder, 4, records, tablefile.getAbsolutePath() + ".errors");
             Log.logInfo("TABLE", tablefile + ": TABLE " + tablefile.toString() + " has table copy " + ((this.table == null) ? "DISABLED" : "ENABLED"));
 
             // read all elements from the file into the copy table
@@ -482,6 +502,10 @@ public class Table implements Index, Iterable<Row.Entry> {
     	if (this.file == null || this.index == null) return null;
         final int i = (int) this.index.get(key);
         if (i == -1) return null;
+        return get0(key, i);
+    }
+
+    private Entry get0(final byte[] key, final int i) throws IOException {
         final byte[] b = new byte[this.rowdef.objectsize];
         final Row.Entry cacherow;
         if (this.table == null || (cacherow = this.table.get(i, false)) == null) {
@@ -506,12 +530,34 @@ public class Table implements Index, Iterable<Row.Entry> {
         return this.rowdef.newEntry(b);
     }
 
+    /**
+     * get the rows for a collection of keys. The rows are read in the order of their position in the file
+     * which reduces the number of disk seeks compared to a sequence of single get calls.
+     */
     public Map<byte[], Row.Entry> get(final Collection<byte[]> keys, final boolean forcecopy) throws IOException, InterruptedException {
         final Map<byte[], Row.Entry> map = new TreeMap<byte[], Row.Entry>(row().objectOrder);
-        Row.Entry entry;
-        for (final byte[] key: keys) {
-            entry = get(key, forcecopy);
-            if (entry != null) map.put(key, entry);
+        if (this.file == null || this.index == null) return map;
+
+        // find the row positions; each position is combined with the number of the key to sort both together
+        final byte[][] k = keys.toArray(new byte[keys.size()][]);
+        final long[] positions = new long[k.length];
+        int c = 0;
+        long i;
+        for (int j = 0; j < k.length; j++) {
+            i = this.index.get(k[j]);
+            if (i >= 0) positions[c++] = (i << 32) | j;
+        }
+        Arrays.sort(positions, 0, c);
+
+        // read the rows in the order of the file
+        Entry e;
+        byte[] key;
+        for (int p = 0; p < c; p++) {
+            key = k[(int) (positions[p] & 0xffffffffL)];
+            e = get0(key, (int) (positions[p] >>> 32));
+            // the table may have been modified after the positions had been computed; then the row is read again
+            if (e == null || !this.rowdef.objectOrder.equal(key, e.getPrimaryKeyBytes())) e = get(key, forcecopy);
+            if (e != null) map.put(key, e);
         }
         return map;
     }
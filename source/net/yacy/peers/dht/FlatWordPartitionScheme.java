@@ -30,6 +30,7 @@ import java.util.TreeMap;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.kelondro.index.HandleMap;
+import net.yacy.kelondro.index.RowHandleMap;
 import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
@@ -112,7 +113,7 @@ public class FlatWordPartitionScheme implements PartitionScheme {
 
         System.gc(); // for resource measurement
         long a = MemoryControl.available();
-        HandleMap idx = new HandleMap(12, Base64Order.enhancedCoder, 4, 150000, "test");
+        HandleMap idx = new RowHandleMap(12, Base64Order.enhancedCoder, 4, 150000, "test");
         for (int i = 0; i < count; i++) {
             try {
                 idx.inc(FlatWordPartitionScheme.positionToHash(r.nextInt(count)));
@@ -105,6 +105,9 @@ import net.yacy.document.content.SurrogateReader;
 import net.yacy.document.importer.OAIListFriendsLoader;
 import net.yacy.document.parser.html.Evaluation;
 import net.yacy.gui.Tray;
+import net.yacy.kelondro.blob.Compressor;
+import net.yacy.kelondro.blob.HeapReader;
+import net.yacy.kelondro.blob.MapHeap;
 import net.yacy.kelondro.blob.Tables;
 import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.meta.URIMetadataRow;
@@ -116,7 +119,12 @@ import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
 import net.yacy.kelondro.order.Digest;
 import net.yacy.kelondro.order.NaturalOrder;
+import net.yacy.kelondro.rwi.HeuristicCompaction;
+import net.yacy.kelondro.rwi.IODispatcher;
+import net.yacy.kelondro.rwi.IndexCell;
 import net.yacy.kelondro.rwi.ReferenceContainer;
+import net.yacy.kelondro.rwi.ReferenceContainerCodec;
+import net.yacy.kelondro.rwi.TieredCompaction;
 import net.yacy.kelondro.util.EventTracker;
 import net.yacy.kelondro.util.FileUtils;
 import net.yacy.kelondro.util.MemoryControl;
@@ -143,14 +151,17 @@ import net.yacy.peers.operation.yacyUpdateLocation;
 import net.yacy.repository.Blacklist;
 import net.yacy.repository.FilterEngine;
 import net.yacy.repository.LoaderDispatcher;
+import net.yacy.search.index.MetadataRepository;
 import net.yacy.search.index.Segment;
 import net.yacy.search.index.Segments;
 import net.yacy.search.query.AccessTracker;
+import net.yacy.search.query.RWIProcess;
 import net.yacy.search.query.SearchEvent;
 import net.yacy.search.query.SearchEventCache;
 import net.yacy.search.ranking.BlockRank;
 import net.yacy.search.ranking.RankingProfile;
 import net.yacy.search.snippet.ContentDomain;
+import net.yacy.search.snippet.TextSnippet;
 import de.anomic.crawler.CrawlProfile;
 import de.anomic.crawler.CrawlQueues;
 import de.anomic.crawler.CrawlStacker;
@@ -321,6 +332,10 @@ public final class Switchboard extends serverSwitch {
         this.workPath.mkdirs();
         Domains.init(new File(this.workPath, "globalhosts.list"));
 
+        // init snippet cache
+        TextSnippet.snippetsCache.setMaxBytes(getConfigLong("search.snippetCache.maxSize", 16) * 1024L * 1024L);
+        if (getConfigBool("search.snippetCache.persistent", true)) TextSnippet.snippetsCache.load(new File(this.workPath, "snippets.dump"));
+
         // init sessionid name file
         final String sessionidNamesFile = getConfig("sessionidNamesFile","defaults/sessionid.names");
         this.log.logConfig("Loading sessionid file " + sessionidNamesFile);
@@ -355,6 +370,8 @@ public final class Switchboard extends serverSwitch {
         this.queuesRoot = new File(new File(indexPath, networkName), "QUEUES");
         this.networkRoot.mkdirs();
         this.queuesRoot.mkdirs();
+        MapHeap.compressRecords = getConfigBool("store.compressMaps", false);
+        Compressor.recordCache.setMaxBytes(getConfigLong("store.recordCacheSize", 4 * 1024 * 1024));
         final File mySeedFile = new File(this.networkRoot, SeedDB.DBFILE_OWN_SEED);
         this.peers = new SeedDB(
                 this.networkRoot,
@@ -369,6 +386,18 @@ public final class Switchboard extends serverSwitch {
 
         // initialize index
         ReferenceContainer.maxReferences = getConfigInt("index.maxReferences", 0);
+        RWIProcess.maxSearchReferences = getConfigInt("index.maxSearchReferences", 0);
+        RWIProcess.maxTermSearchTime = getConfigLong("search.termSearch.maxtime", 3000);
+        RWIProcess.topKPruning = getConfigBool("search.topKPruning", true);
+        RWIProcess.prefetchCount = Math.max(0, getConfigInt("search.metadataPrefetch", 20));
+        MetadataRepository.metadataCache.setMaxBytes(getConfigLong("index.metadataCache.maxSize", 32) * 1024L * 1024L);
+        MetadataRepository.useKeyFilter = getConfigBool("index.metadataFilter", true);
+        SearchEventCache.maxBytes = getConfigLong("search.eventCache.maxSize", 128) * 1024L * 1024L;
+        Segment.textStoreMaxSize = getConfigLong("index.textStore.maxSize", 0) * 1024L * 1024L;
+        ReferenceContainerCodec.writeCompressed = getConfigBool("index.compressContainers", false);
+        IODispatcher.setMaxConcurrentMerges(getConfigInt("index.merge.concurrency", 2));
+        IODispatcher.mergeFanIn = Math.max(2, getConfigInt("index.merge.fanin", 8));
+        IndexCell.defaultCompactionStrategy = "heuristic".equals(getConfig("index.compaction", "tiered")) ? new HeuristicCompaction() : new TieredCompaction(IODispatcher.mergeFanIn);
         final File oldSingleSegment = new File(new File(indexPath, networkName), "TEXT");
         final File newSegmentsPath = new File(new File(indexPath, networkName), "SEGMENTS");
         Segments.migrateOld(oldSingleSegment, newSegmentsPath, getConfig(SwitchboardConstants.SEGMENT_PUBLIC, "default"));
@@ -378,7 +407,8 @@ public final class Switchboard extends serverSwitch {
                 wordCacheMaxCount,
                 fileSizeMax,
                 this.useTailCache,
-                this.exceed134217727);
+                this.exceed134217727,
+                getConfigBool("index.offHeapHandleMaps", false));
         // set the default segment names
         setDefaultSegments();
 
@@ -515,6 +545,8 @@ public final class Switchboard extends serverSwitch {
 
         // load the robots.txt db
         this.log.logConfig("Initializing robots.txt DB");
+        RobotsTxt.cacheMaxSize = getConfigInt("crawler.robots.cache.maxSize", 10000);
+        RobotsTxt.cacheTTL = getConfigLong("crawler.robots.cache.ttl", 60) * 60L * 1000L;
         this.robots = new RobotsTxt(this.tables);
         this.log.logConfig("Loaded robots.txt DB: " +  this.robots.size() + " entries");
 
@@ -614,6 +646,8 @@ public final class Switchboard extends serverSwitch {
         final Map<String, File> oaiFriends = OAIListFriendsLoader.loadListFriendsSources(new File("defaults/oaiListFriendsSource.xml"), getDataPath());
         OAIListFriendsLoader.init(this.loader, oaiFriends);
         this.crawlQueues = new CrawlQueues(this, this.queuesRoot);
+        // the connections per host must not limit the loads per host of the crawler
+        HTTPClient.setDefaultMaxPerRoute((int) getConfigLong(SwitchboardConstants.CRAWLER_LOADS_PER_HOST_MAX, 2));
         this.crawlQueues.noticeURL.setMinimumDelta(
                 getConfigLong("minimumLocalDelta", this.crawlQueues.noticeURL.getMinimumLocalDelta()),
                 getConfigLong("minimumGlobalDelta", this.crawlQueues.noticeURL.getMinimumGlobalDelta()));
@@ -1000,7 +1034,8 @@ public final class Switchboard extends serverSwitch {
                     wordCacheMaxCount,
                     fileSizeMax,
                     this.useTailCache,
-                    this.exceed134217727);
+                    this.exceed134217727,
+                    getConfigBool("index.offHeapHandleMaps", false));
             // set the default segment names
             setDefaultSegments();
             this.crawlQueues.relocate(this.queuesRoot); // cannot be closed because the busy threads are working with that object
@@ -1326,6 +1361,11 @@ public final class Switchboard extends serverSwitch {
         Cache.close();
         this.tables.close();
         Domains.close();
+        if (getConfigBool("search.snippetCache.persistent", true)) try {
+            TextSnippet.snippetsCache.save(new File(this.workPath, "snippets.dump"));
+        } catch (final IOException e) {
+            Log.logException(e);
+        }
         AccessTracker.dumpLog(new File("DATA/LOG/queries.log"));
         UPnP.deletePortMapping();
         Tray.removeTray();
@@ -1961,6 +2001,7 @@ public final class Switchboard extends serverSwitch {
             hl.putAll(Document.getImagelinks(documents));
 
             // insert those hyperlinks to the crawler
+            final List<Request> nextEntries = new ArrayList<Request>(hl.size());
             MultiProtocolURI nextUrl;
             for (final Map.Entry<MultiProtocolURI, String> nextEntry : hl.entrySet()) {
                 // check for interruption
@@ -1970,9 +2011,9 @@ public final class Switchboard extends serverSwitch {
                 nextUrl = nextEntry.getKey();
                 final String u = nextUrl.toNormalform(true, true, false, true);
                 if (!(u.startsWith("http://") || u.startsWith("https://") || u.startsWith("ftp://") || u.startsWith("smb://") || u.startsWith("file://"))) continue;
-                // enqueue the hyperlink into the pre-notice-url db
+                // collect the hyperlink for the pre-notice-url db
                 try {
-                    this.crawlStacker.enqueueEntry(new Request(
+                    nextEntries.add(new Request(
                             response.initiator(),
                             new DigestURI(u),
                             response.url().hash(),
@@ -1988,6 +2029,8 @@ public final class Switchboard extends serverSwitch {
                     Log.logException(e);
                 }
             }
+            // enqueue all hyperlinks as one batch
+            this.crawlStacker.enqueueEntries(nextEntries);
             final long stackEndTime = System.currentTimeMillis();
             if (this.log.isInfo()) {
                 this.log.logInfo("CRAWL: ADDED " + hl.size() + " LINKS FROM " + response.url().toNormalform(false, true) +
@@ -296,6 +296,11 @@ public final class SwitchboardConstants {
      * <p>Name of the setting how many active crawler-threads may maximal be running on the same time</p>
      */
     public static final String CRAWLER_THREADS_ACTIVE_MAX       = "crawler.MaxActiveThreads";
+    /**
+     * <p><code>public static final String <strong>CRAWLER_LOADS_PER_HOST_MAX</strong> = "crawler.MaxLoadsPerHost"</code></p>
+     * <p>Name of the setting how many crawler loads from the same host may maximal be running on the same time</p>
+     */
+    public static final String CRAWLER_LOADS_PER_HOST_MAX       = "crawler.MaxLoadsPerHost";
     public static final String YACY_MODE_DEBUG                  = "yacyDebugMode";
 
     /**
@@ -32,11 +32,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.MultiProtocolURI;
@@ -50,22 +53,43 @@ import net.yacy.document.parser.html.CharacterCoding;
 import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.meta.URIMetadataRow;
 import net.yacy.kelondro.data.word.WordReferenceVars;
+import net.yacy.kelondro.index.BloomFilter;
 import net.yacy.kelondro.index.Cache;
 import net.yacy.kelondro.index.HandleSet;
 import net.yacy.kelondro.index.Index;
 import net.yacy.kelondro.index.Row;
 import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.index.ScalableBloomFilter;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.CloneableIterator;
 import net.yacy.kelondro.table.SplitTable;
+import net.yacy.kelondro.util.FileUtils;
 import net.yacy.kelondro.util.MemoryControl;
 import net.yacy.repository.Blacklist;
 import de.anomic.crawler.CrawlStacker;
 
 public final class MetadataRepository implements Iterable<byte[]> {
 
+    /**
+     * a cache for decoded metadata which is shared by all repositories
+     */
+    public static final URIMetadataCache metadataCache = new URIMetadataCache(32 * 1024 * 1024, 4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * if true, each repository keeps a bloom filter of its url hashes, so lookups of unknown urls
+     * are answered without an access to the index or the cache
+     */
+    public static boolean useKeyFilter = true;
+    private static final int keyFilterMinCapacity = 1000000;
+
     // class objects
     protected     Index               urlIndexFile;
+    private final int                 cacheOwner; // the owner number in the metadata cache
+    private final File                keyFilterFile;
+    private volatile ScalableBloomFilter keyFilter; // the filter of all url hashes in the index or null if not used
+    private volatile boolean          keyFilterReady; // false while the filter is built
+    private       Thread              keyFilterBuilder;
+    private final ReentrantReadWriteLock keyFilterLock; // store holds the read lock from the filter add to the index put, clear holds the write lock
     private       Export              exportthread; // will have a export thread assigned if exporter is running
     private final File                location;
     private final String              tablename;
@@ -77,14 +101,89 @@ public final class MetadataRepository implements Iterable<byte[]> {
             final String tablename,
             final boolean useTailCache,
             final boolean exceed134217727) {
+        this(path, tablename, useTailCache, exceed134217727, false);
+    }
+
+    public MetadataRepository(
+            final File path,
+            final String tablename,
+            final boolean useTailCache,
+            final boolean exceed134217727,
+            final boolean offHeapIndex) {
         this.location = path;
         this.tablename = tablename;
         Index backupIndex = null;
-        backupIndex = new SplitTable(this.location, tablename, URIMetadataRow.rowdef, useTailCache, exceed134217727);
+        backupIndex = new SplitTable(this.location, tablename, URIMetadataRow.rowdef, useTailCache, exceed134217727, offHeapIndex);
         this.urlIndexFile = backupIndex; //new Cache(backupIndex, 20000000, 20000000);
+        this.cacheOwner = metadataCache.newOwner();
         this.exportthread = null; // will have a export thread assigned if exporter is running
         this.statsDump = null;
         this.solr = null;
+        this.keyFilterFile = new File(this.location, tablename + ".bloom");
+        this.keyFilterLock = new ReentrantReadWriteLock();
+        initKeyFilter();
+    }
+
+    private void initKeyFilter() {
+        this.keyFilter = null;
+        this.keyFilterReady = false;
+        this.keyFilterBuilder = null;
+        if (!useKeyFilter) return;
+
+        // read the dump of the filter; the dump is deleted then, so after a crash the filter is built again
+        if (this.keyFilterFile.exists()) {
+            try {
+                this.keyFilter = ScalableBloomFilter.load(this.keyFilterFile);
+                this.keyFilterReady = true;
+            } catch (final IOException e) {
+                Log.logWarning("MetadataRepository", "cannot read key filter dump " + this.keyFilterFile.getName() + ", re-building filter: " + e.getMessage());
+            }
+            FileUtils.deletedelete(this.keyFilterFile);
+            if (this.keyFilterReady) return;
+        }
+
+        // build the filter from the keys of the index. Entries that are stored meanwhile are added to the filter,
+        // but the filter is not used before all keys of the index are added
+        final Index index = this.urlIndexFile;
+        final ScalableBloomFilter filter = new ScalableBloomFilter((int) Math.min(Integer.MAX_VALUE / 2, Math.max(keyFilterMinCapacity, 2L * index.size())), BloomFilter.defaultFalsePositiveRate);
+        this.keyFilter = filter;
+        this.keyFilterBuilder = new Thread("MetadataRepository.keyFilterBuilder") {
+            @Override
+            public void run() {
+                final long start = System.currentTimeMillis();
+                try {
+                    final Iterator<byte[]> i = index.keys(true, null);
+                    if (i != null) while (i.hasNext()) {
+                        if (MetadataRepository.this.keyFilter != filter) return; // the repository was closed or cleared
+                        filter.add(i.next());
+                    }
+                } catch (final IOException e) {
+                    Log.logException(e);
+                    return;
+                }
+                if (MetadataRepository.this.keyFilter == filter) MetadataRepository.this.keyFilterReady = true;
+                Log.logInfo("MetadataRepository", "built key filter for " + filter.size() + " urls in " + (System.currentTimeMillis() - start) + " milliseconds");
+            }
+        };
+        this.keyFilterBuilder.start();
+    }
+
+    /**
+     * test with the key filter if an url hash is certainly not in the index
+     * @param urlHash
+     * @return true if the url is not in the index, false if the url may be in the index
+     */
+    private boolean unknown(final byte[] urlHash) {
+        final ScalableBloomFilter filter = this.keyFilter;
+        return filter != null && this.keyFilterReady && !filter.mayContain(urlHash);
+    }
+
+    /**
+     * the filter of the url hashes in this repository
+     * @return the filter or null if no filter is used or the filter is not ready
+     */
+    public ScalableBloomFilter keyFilter() {
+        return this.keyFilterReady ? this.keyFilter : null;
     }
 
     public void connectSolr(final SolrConnector solr) {
@@ -97,17 +196,30 @@ public final class MetadataRepository implements Iterable<byte[]> {
 
     public void clearCache() {
         if (this.urlIndexFile instanceof Cache) ((Cache) this.urlIndexFile).clearCache();
+        metadataCache.clear(this.cacheOwner);
         this.statsDump = null;
     }
 
     public void clear() throws IOException {
         if (this.exportthread != null) this.exportthread.interrupt();
-        if (this.urlIndexFile == null) {
-            SplitTable.delete(this.location, this.tablename);
-            this.urlIndexFile = new SplitTable(this.location, this.tablename, URIMetadataRow.rowdef, false, false);
-        } else {
-            this.urlIndexFile.clear();
+        // a concurrent store must not add its key to the old filter and its entry to the cleared index
+        this.keyFilterLock.writeLock().lock();
+        try {
+            if (this.urlIndexFile == null) {
+                SplitTable.delete(this.location, this.tablename);
+                this.urlIndexFile = new SplitTable(this.location, this.tablename, URIMetadataRow.rowdef, false, false);
+            } else {
+                this.urlIndexFile.clear();
+            }
+            if (this.keyFilter != null) {
+                // an empty filter is correct for the empty index; a running builder stops when it sees the new filter
+                this.keyFilter = new ScalableBloomFilter(keyFilterMinCapacity, BloomFilter.defaultFalsePositiveRate);
+                this.keyFilterReady = true;
+            }
+        } finally {
+            this.keyFilterLock.writeLock().unlock();
         }
+        metadataCache.clear(this.cacheOwner);
         this.statsDump = null;
     }
 
@@ -117,6 +229,20 @@ public final class MetadataRepository implements Iterable<byte[]> {
 
     public void close() {
         this.statsDump = null;
+        metadataCache.clear(this.cacheOwner);
+        final ScalableBloomFilter filter = this.keyFilter;
+        final boolean ready = this.keyFilterReady;
+        this.keyFilter = null; // this stops a running builder
+        this.keyFilterReady = false;
+        if (this.keyFilterBuilder != null) try {
+            this.keyFilterBuilder.join();
+        } catch (final InterruptedException e) {
+        }
+        if (filter != null && ready) try {
+            filter.dump(this.keyFilterFile);
+        } catch (final IOException e) {
+            Log.logException(e);
+        }
         if (this.urlIndexFile != null) {
             this.urlIndexFile.close();
             this.urlIndexFile = null;
@@ -141,22 +267,86 @@ public final class MetadataRepository implements Iterable<byte[]> {
         if (obrwi == null) return null; // all time was already wasted in takeRWI to get another element
         final byte[] urlHash = obrwi.getElement().urlhash();
         if (urlHash == null) return null;
+        final URIMetadataRow row = load(urlHash);
+        if (row == null) return null;
+        return new URIMetadataRow(row, obrwi.getElement(), obrwi.getWeight());
+    }
+
+    /**
+     * load the metadata for several references with one access to the index. The index reads the rows
+     * sorted by their position, which is much faster than a sequence of single loads.
+     * @param obrwis
+     * @return a map from the url hash to the metadata; references that have no metadata are not in the map
+     */
+    public Map<byte[], URIMetadataRow> load(final Collection<WeakPriorityBlockingQueue.Element<WordReferenceVars>> obrwis) {
+        final Map<byte[], URIMetadataRow> pages = new TreeMap<byte[], URIMetadataRow>(URIMetadataRow.rowdef.objectOrder);
+        if (this.urlIndexFile == null || obrwis == null || obrwis.isEmpty()) return pages;
+
+        final Collection<byte[]> urlHashes = new TreeSet<byte[]>(URIMetadataRow.rowdef.objectOrder);
+        for (final WeakPriorityBlockingQueue.Element<WordReferenceVars> obrwi: obrwis) urlHashes.add(obrwi.getElement().urlhash());
+        final Map<byte[], URIMetadataRow> rows = loadAll(urlHashes);
+
+        URIMetadataRow row;
+        for (final WeakPriorityBlockingQueue.Element<WordReferenceVars> obrwi: obrwis) {
+            row = rows.get(obrwi.getElement().urlhash());
+            if (row != null) pages.put(obrwi.getElement().urlhash(), new URIMetadataRow(row, obrwi.getElement(), obrwi.getWeight()));
+        }
+        return pages;
+    }
+
+    /**
+     * load the metadata for several url hashes with one access to the index
+     * @param urlHashes
+     * @return a map from the url hash to the metadata; urls that are not in the index are not in the map
+     */
+    public Map<byte[], URIMetadataRow> loadAll(final Collection<byte[]> urlHashes) {
+        final Map<byte[], URIMetadataRow> rows = new TreeMap<byte[], URIMetadataRow>(URIMetadataRow.rowdef.objectOrder);
+        if (this.urlIndexFile == null || urlHashes == null || urlHashes.isEmpty()) return rows;
+
+        // take the rows from the cache and collect the url hashes that must be loaded
+        final Map<byte[], Long> missing = new TreeMap<byte[], Long>(URIMetadataRow.rowdef.objectOrder);
+        URIMetadataRow row;
+        long generation;
+        for (final byte[] urlHash: urlHashes) {
+            if (unknown(urlHash)) continue;
+            generation = metadataCache.generation(this.cacheOwner, urlHash);
+            row = metadataCache.get(this.cacheOwner, urlHash);
+            if (row == null) missing.put(urlHash, Long.valueOf(generation));
+            else if (row != URIMetadataCache.MISSING) rows.put(urlHash, row);
+        }
+        if (missing.isEmpty()) return rows;
+        final Map<byte[], Row.Entry> entries;
         try {
-            final Row.Entry entry = this.urlIndexFile.get(urlHash, false);
-            if (entry == null) return null;
-            return new URIMetadataRow(entry, obrwi.getElement(), obrwi.getWeight());
+            entries = this.urlIndexFile.get(missing.keySet(), false);
         } catch (final IOException e) {
-            return null;
+            return rows;
+        } catch (final InterruptedException e) {
+            return rows;
+        }
+        Row.Entry entry;
+        for (final Map.Entry<byte[], Long> m: missing.entrySet()) {
+            entry = entries.get(m.getKey());
+            row = entry == null ? null : new URIMetadataRow(entry, null, 0);
+            metadataCache.put(this.cacheOwner, m.getKey(), row, m.getValue().longValue());
+            if (row != null) rows.put(m.getKey(), row);
         }
+        return rows;
     }
 
     public URIMetadataRow load(final byte[] urlHash) {
         if (this.urlIndexFile == null) return null;
         if (urlHash == null) return null;
+        if (unknown(urlHash)) return null;
+        // the generation is read before the index, so a row that is stored meanwhile is not overwritten by an old row
+        final long generation = metadataCache.generation(this.cacheOwner, urlHash);
+        final URIMetadataRow cached = metadataCache.get(this.cacheOwner, urlHash);
+        if (cached == URIMetadataCache.MISSING) return null;
+        if (cached != null) return cached;
         try {
             final Row.Entry entry = this.urlIndexFile.get(urlHash, false);
-            if (entry == null) return null;
-            return new URIMetadataRow(entry, null, 0);
+            final URIMetadataRow row = (entry == null) ? null : new URIMetadataRow(entry, null, 0);
+            metadataCache.put(this.cacheOwner, urlHash, row, generation);
+            return row;
         } catch (final IOException e) {
             return null;
         }
@@ -182,10 +372,17 @@ public final class MetadataRepository implements Iterable<byte[]> {
             return; // this did not need to be stored, but is updated
         }
 
+        // the key is added to the filter before it is in the index, so the filter never misses a key of the index
+        this.keyFilterLock.readLock().lock();
         try {
+            final ScalableBloomFilter filter = this.keyFilter;
+            if (filter != null) filter.add(entry.hash());
             this.urlIndexFile.put(entry.toRowEntry());
         } catch (final RowSpaceExceededException e) {
             throw new IOException("RowSpaceExceededException in " + this.urlIndexFile.filename() + ": " + e.getMessage());
+        } finally {
+            this.keyFilterLock.readLock().unlock();
+            metadataCache.remove(this.cacheOwner, entry.hash());
         }
         this.statsDump = null;
         if (MemoryControl.shortStatus()) clearCache() ;
@@ -199,6 +396,8 @@ public final class MetadataRepository implements Iterable<byte[]> {
             return r != null;
         } catch (final IOException e) {
             return false;
+        } finally {
+            metadataCache.remove(this.cacheOwner, urlHashBytes);
         }
     }
 
@@ -210,6 +409,9 @@ public final class MetadataRepository implements Iterable<byte[]> {
         } catch (final Throwable e) {
         }
         if (this.urlIndexFile == null) return false; // case may happen during shutdown
+        if (unknown(urlHash)) return false;
+        final URIMetadataRow cached = metadataCache.get(this.cacheOwner, urlHash);
+        if (cached != null) return cached != URIMetadataCache.MISSING;
         return this.urlIndexFile.has(urlHash);
     }
 
@@ -332,6 +534,7 @@ public final class MetadataRepository implements Iterable<byte[]> {
                         		&& client.getHttpResponse().getStatusLine().getStatusCode() == 200) {
                             entry.setCol(1, UTF8.getBytes(newUrl.toString()));
                             this.urlIndexFile.put(entry);
+                            metadataCache.remove(this.cacheOwner, urlHashBytes);
                             if (log.isInfo()) log.logInfo("UrlDB-Entry with urlHash '" + ASCII.String(urlHashBytes) + "' corrected\n\tURL: " + oldUrlStr + " -> " + newUrlStr);
                         } else {
                             remove(urlHashBytes);
@@ -755,6 +958,7 @@ public final class MetadataRepository implements Iterable<byte[]> {
         int cnt = 0;
         for (final String h: l) {
             if (this.urlIndexFile.delete(ASCII.getBytes(h))) cnt++;
+            metadataCache.remove(this.cacheOwner, ASCII.getBytes(h));
         }
 
         // finally remove the line with statistics
@@ -81,10 +81,14 @@ public class Segment {
     public static final ReferenceFactory<NavigationReference> navigationReferenceFactory = new NavigationReferenceFactory();
     public static final ByteOrder wordOrder = Base64Order.enhancedCoder;
 
+    // the maximum size of the sentence store in bytes; if this is 0, no sentences are stored
+    public static long textStoreMaxSize = 0;
+
     private   final Log                            log;
     protected final IndexCell<WordReference>       termIndex;
     //private   final IndexCell<NavigationReference> authorNavIndex;
     protected final MetadataRepository             urlMetadata;
+    private   final TextStore                      textStore;
     private   final File                           segmentPath;
 
     public Segment(
@@ -93,7 +97,8 @@ public class Segment {
             final int entityCacheMaxSize,
             final long maxFileSize,
             final boolean useTailCache,
-            final boolean exceed134217727) throws IOException {
+            final boolean exceed134217727,
+            final boolean offHeapIndex) throws IOException {
 
         migrateTextIndex(segmentPath, segmentPath);
         migrateTextMetadata(segmentPath, segmentPath);
@@ -112,7 +117,8 @@ public class Segment {
                 entityCacheMaxSize,
                 targetFileSize,
                 maxFileSize,
-                writeBufferSize);
+                writeBufferSize,
+                offHeapIndex);
         /*
         this.authorNavIndex = new IndexCell<NavigationReference>(
                 new File(new File(segmentPath, "nav_author"), "idx"),
@@ -127,7 +133,10 @@ public class Segment {
         */
 
         // create LURL-db
-        this.urlMetadata = new MetadataRepository(segmentPath, "text.urlmd", useTailCache, exceed134217727);
+        this.urlMetadata = new MetadataRepository(segmentPath, "text.urlmd", useTailCache, exceed134217727, offHeapIndex);
+
+        // create the sentence store
+        this.textStore = (textStoreMaxSize > 0) ? new TextStore(new File(segmentPath, "text.sentences"), textStoreMaxSize) : null;
     }
 
     public void connectSolr(final SolrConnector solr) {
@@ -172,6 +181,14 @@ public class Segment {
         return this.termIndex;
     }
 
+    /**
+     * get the store of the sentences of indexed documents
+     * @return the sentence store or null if sentences are not stored
+     */
+    public TextStore textStore() {
+        return this.textStore;
+    }
+
     public boolean exists(final byte[] urlhash) {
         return this.urlMetadata.exists(urlhash);
     }
@@ -180,6 +197,7 @@ public class Segment {
         try {
             this.termIndex.clear();
             this.urlMetadata.clear();
+            if (this.textStore != null) this.textStore.clear();
         } catch (final IOException e) {
             Log.logException(e);
         }
@@ -270,6 +288,7 @@ public class Segment {
     public void close() {
         this.termIndex.close();
         this.urlMetadata.close();
+        if (this.textStore != null) this.textStore.close();
     }
 
     public URIMetadataRow storeDocument(
@@ -362,6 +381,9 @@ public class Segment {
         // STORE URL TO LOADED-URL-DB
         this.urlMetadata.store(newEntry); // TODO: should be serialized; integrated in IODispatcher
 
+        // STORE SENTENCES FOR SNIPPET COMPUTATION
+        if (this.textStore != null) this.textStore.put(url.hash(), document.getSentences(true));
+
         final long storageEndTime = System.currentTimeMillis();
 
         // STORE PAGE INDEX INTO WORD INDEX DB
@@ -430,6 +452,7 @@ public class Segment {
             if (document == null) {
                 // delete just the url entry
                 urlMetadata().remove(urlhash);
+                if (this.textStore != null) this.textStore.delete(urlhash);
                 return 0;
             }
             // get the word set
@@ -442,6 +465,7 @@ public class Segment {
 
             // finally delete the url entry itself
             urlMetadata().remove(urlhash);
+            if (this.textStore != null) this.textStore.delete(urlhash);
             return count;
         } catch (final Parser.Failure e) {
             return 0;
@@ -68,6 +68,7 @@ public class Segments implements Iterable<Segment> {
     private final HashMap<Process, String> process_assignment;
     private final boolean useTailCache;
     private final boolean exceed134217727;
+    private final boolean offHeapIndex;
 
     public Segments(
             final Log log,
@@ -75,13 +76,15 @@ public class Segments implements Iterable<Segment> {
             final int entityCacheMaxSize,
             final long maxFileSize,
             final boolean useTailCache,
-            final boolean exceed134217727) {
+            final boolean exceed134217727,
+            final boolean offHeapIndex) {
         this.log = log;
         this.segmentsPath = segmentsPath;
         this.entityCacheMaxSize = entityCacheMaxSize;
         this.maxFileSize = maxFileSize;
         this.useTailCache = useTailCache;
         this.exceed134217727 = exceed134217727;
+        this.offHeapIndex = offHeapIndex;
         this.segments = new HashMap<String, Segment>();
         this.process_assignment = new HashMap<Process, String>();
 
@@ -140,7 +143,8 @@ public class Segments implements Iterable<Segment> {
                         this.entityCacheMaxSize,
                         this.maxFileSize,
                         this.useTailCache,
-                        this.exceed134217727);
+                        this.exceed134217727,
+                        this.offHeapIndex);
             } catch (final IOException e) {
                 Log.logException(e);
                 return null;
@@ -0,0 +1,130 @@
+// TextStore.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 25.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.search.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import net.yacy.cora.document.UTF8;
+import net.yacy.document.Document;
+import net.yacy.kelondro.blob.ArrayStack;
+import net.yacy.kelondro.blob.Compressor;
+import net.yacy.kelondro.data.word.Word;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.Base64Order;
+
+/**
+ * a store for the sentences of indexed documents.
+ * The sentences are written by the indexer and read by the snippet computation, which then does not need
+ * to load and parse the document again. The sentences of one document are stored as one compressed record
+ * with the url hash as key; the sentences are separated by line breaks. The size of the store is limited:
+ * if the limit is reached, the oldest BLOB files are deleted.
+ */
+public class TextStore {
+
+    private final ArrayStack backend;
+    private final Compressor store;
+
+    public TextStore(final File location, final long maxSize) throws IOException {
+        this.backend = new ArrayStack(location, "text", Base64Order.enhancedCoder, Word.commonHashLength, 1024 * 1024 * 2, false);
+        this.backend.setMaxSize(maxSize);
+        this.store = new Compressor(this.backend, 2 * 1024 * 1024);
+    }
+
+    /**
+     * store the sentences of a document. The sentences should be computed with pre = true,
+     * then the stored text can be split again into sentences with and without the pre mode.
+     * @param urlhash
+     * @param sentences
+     */
+    public void put(final byte[] urlhash, final Collection<StringBuilder> sentences) {
+        if (sentences == null || sentences.isEmpty()) return;
+        int length = 0;
+        for (final StringBuilder s: sentences) length += s.length() + 1;
+        final StringBuilder text = new StringBuilder(length);
+        for (final StringBuilder s: sentences) text.append(s).append('\n');
+        try {
+            this.store.insert(urlhash, UTF8.getBytes(text.toString()));
+        } catch (final IOException e) {
+            Log.logException(e);
+        }
+    }
+
+    /**
+     * get the sentences of a document
+     * @param urlhash
+     * @param pre if true, line breaks are sentence separators, as in Document.getSentences(pre)
+     * @return the sentences or null if the document is not in the store
+     */
+    public List<StringBuilder> getSentences(final byte[] urlhash, final boolean pre) {
+        final byte[] b;
+        try {
+            b = this.store.get(urlhash);
+        } catch (final IOException e) {
+            Log.logException(e);
+            return null;
+        } catch (final RowSpaceExceededException e) {
+            return null;
+        }
+        if (b == null) return null;
+        return Document.getSentences(pre, new ByteArrayInputStream(b));
+    }
+
+    public boolean has(final byte[] urlhash) {
+        return this.store.containsKey(urlhash);
+    }
+
+    public void delete(final byte[] urlhash) {
+        try {
+            this.store.delete(urlhash);
+        } catch (final IOException e) {
+            Log.logException(e);
+        }
+    }
+
+    public void setMaxSize(final long maxSize) {
+        this.backend.setMaxSize(maxSize);
+    }
+
+    public int size() {
+        return this.store.size();
+    }
+
+    public long length() {
+        return this.backend.length();
+    }
+
+    public void clear() throws IOException {
+        this.store.clear();
+    }
+
+    public void close() {
+        this.store.close(true);
+    }
+}
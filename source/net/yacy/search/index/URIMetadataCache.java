@@ -0,0 +1,299 @@
+// URIMetadataCache.java
+// (C) 2011 by Michael Peter Christen; mc@yacy.net, Frankfurt a. M., Germany
+// first published 26.11.2011 on http://yacy.net
+//
+// $LastChangedDate$
+// $LastChangedRevision$
+// $LastChangedBy$
+//
+// LICENSE
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.yacy.search.index;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.yacy.kelondro.data.meta.URIMetadataRow;
+
+/**
+ * a least-recently-used cache for decoded url metadata that is shared by all metadata repositories.
+ * The cache also remembers url hashes that are not in a repository (negative caching).
+ * To allow concurrent access, the cache is divided into partitions, each with an own lock and an equal
+ * share of the byte limit. Every repository that uses the cache gets an own owner number.
+ * A reader that loads a missing row from a repository must not put a row into the cache that was
+ * changed meanwhile; therefore every removal increments a generation counter of the key, and put
+ * skips rows that were loaded before the generation changed. The generations are striped:
+ * keys that share a counter may cause unnecessary skips, but never a stale entry.
+ */
+public class URIMetadataCache {
+
+    /**
+     * the value that is returned by get if the url is known to be missing in the repository
+     */
+    public static final URIMetadataRow MISSING = new URIMetadataRow();
+
+    private static final int entryOverhead = 96; // estimated memory of the map entry, the key and the hash array
+    private static final int positiveMem = entryOverhead + 3 * URIMetadataRow.rowdef.objectsize; // the row and the decoded strings
+    private static final int negativeMem = entryOverhead;
+    private static final int generationStripes = 64; // the number of generation counters in each partition
+
+    private final Partition[] partitions;
+    private final AtomicInteger owners;
+    private final AtomicLong hits, negativeHits, misses, inserts, deletes;
+
+    public URIMetadataCache(final long maxBytes, final int partitions) {
+        this.partitions = new Partition[Math.max(1, partitions)];
+        for (int i = 0; i < this.partitions.length; i++) this.partitions[i] = new Partition(maxBytes / this.partitions.length);
+        this.owners = new AtomicInteger(0);
+        this.hits = new AtomicLong(0);
+        this.negativeHits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.inserts = new AtomicLong(0);
+        this.deletes = new AtomicLong(0);
+    }
+
+    /**
+     * get a new owner number for a repository that uses this cache
+     * @return a number that is unique within this cache
+     */
+    public int newOwner() {
+        return this.owners.getAndIncrement();
+    }
+
+    private Partition partition(final Key key) {
+        return this.partitions[(key.hash & Integer.MAX_VALUE) % this.partitions.length];
+    }
+
+    private static int stripe(final Key key) {
+        return (key.hash >>> 16) % generationStripes;
+    }
+
+    /**
+     * get the generation of a key. The generation must be read before the row is loaded
+     * from the repository and is then given to put.
+     * @param owner
+     * @param urlhash
+     * @return a number that changes whenever the key is removed from the cache
+     */
+    public long generation(final int owner, final byte[] urlhash) {
+        final Key key = new Key(owner, urlhash);
+        final Partition p = partition(key);
+        synchronized (p) {
+            return p.generations[stripe(key)];
+        }
+    }
+
+    /**
+     * get a cached row
+     * @param owner
+     * @param urlhash
+     * @return the row, MISSING if the url is known to be not in the repository, or null if the url is not cached
+     */
+    public URIMetadataRow get(final int owner, final byte[] urlhash) {
+        final Key key = new Key(owner, urlhash);
+        final Partition p = partition(key);
+        final URIMetadataRow row;
+        synchronized (p) {
+            row = p.map.get(key);
+        }
+        if (row == null) this.misses.incrementAndGet();
+        else if (row == MISSING) this.negativeHits.incrementAndGet();
+        else this.hits.incrementAndGet();
+        return row;
+    }
+
+    /**
+     * put a row into the cache. The metadata of the row is decoded before it is cached,
+     * so all users of the cached row can share the decoded metadata.
+     * @param owner
+     * @param urlhash
+     * @param row the row or null if the url is not in the repository
+     * @param generation the generation of the key before the row was loaded
+     * @return false if the row was not cached because the key was removed after the row was loaded
+     */
+    public boolean put(final int owner, final byte[] urlhash, final URIMetadataRow row, final long generation) {
+        if (row != null) {
+            final URIMetadataRow.Components metadata = row.metadata();
+            if (metadata != null) metadata.url();
+        }
+        final Key key = new Key(owner, urlhash.clone());
+        final Partition p = partition(key);
+        synchronized (p) {
+            if (p.generations[stripe(key)] != generation) return false;
+            final URIMetadataRow old = p.map.put(key, row == null ? MISSING : row);
+            if (old != null) p.bytes -= mem(old);
+            p.bytes += mem(row);
+            p.shrink();
+        }
+        this.inserts.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * remove a row from the cache. This must be called after the row was changed in the repository.
+     * @param owner
+     * @param urlhash
+     */
+    public void remove(final int owner, final byte[] urlhash) {
+        final Key key = new Key(owner, urlhash);
+        final Partition p = partition(key);
+        synchronized (p) {
+            p.generations[stripe(key)]++;
+            final URIMetadataRow old = p.map.remove(key);
+            if (old != null) p.bytes -= mem(old);
+        }
+    }
+
+    /**
+     * remove all entries of one owner
+     * @param owner
+     */
+    public void clear(final int owner) {
+        for (final Partition p: this.partitions) {
+            synchronized (p) {
+                p.nextGeneration();
+                final Iterator<Map.Entry<Key, URIMetadataRow>> i = p.map.entrySet().iterator();
+                Map.Entry<Key, URIMetadataRow> entry;
+                while (i.hasNext()) {
+                    entry = i.next();
+                    if (entry.getKey().owner == owner) {
+                        p.bytes -= mem(entry.getValue());
+                        i.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (final Partition p: this.partitions) {
+            synchronized (p) {
+                p.nextGeneration();
+                p.map.clear();
+                p.bytes = 0;
+            }
+        }
+    }
+
+    public void setMaxBytes(final long maxBytes) {
+        for (final Partition p: this.partitions) {
+            synchronized (p) {
+                p.maxBytes = maxBytes / this.partitions.length;
+                p.shrink();
+            }
+        }
+    }
+
+    private static int mem(final URIMetadataRow row) {
+        return row == null || row == MISSING ? negativeMem : positiveMem;
+    }
+
+    public int size() {
+        int s = 0;
+        for (final Partition p: this.partitions) {
+            synchronized (p) {
+                s += p.map.size();
+            }
+        }
+        return s;
+    }
+
+    public long bytes() {
+        long b = 0;
+        for (final Partition p: this.partitions) {
+            synchronized (p) {
+                b += p.bytes;
+            }
+        }
+        return b;
+    }
+
+    public long hits() {
+        return this.hits.get();
+    }
+
+    public long negativeHits() {
+        return this.negativeHits.get();
+    }
+
+    public long misses() {
+        return this.misses.get();
+    }
+
+    public long inserts() {
+        return this.inserts.get();
+    }
+
+    public long deletes() {
+        return this.deletes.get();
+    }
+
+    private class Partition {
+        private final LinkedHashMap<Key, URIMetadataRow> map;
+        private final long[] generations;
+        private long maxBytes, bytes;
+
+        public Partition(final long maxBytes) {
+            this.map = new LinkedHashMap<Key, URIMetadataRow>(64, 0.75f, true);
+            this.generations = new long[generationStripes];
+            this.maxBytes = maxBytes;
+            this.bytes = 0;
+        }
+
+        private void nextGeneration() {
+            for (int i = 0; i < this.generations.length; i++) this.generations[i]++;
+        }
+
+        private void shrink() {
+            if (this.bytes <= this.maxBytes) return;
+            final Iterator<URIMetadataRow> i = this.map.values().iterator();
+            while (this.bytes > this.maxBytes && i.hasNext()) {
+                this.bytes -= mem(i.next());
+                i.remove();
+                URIMetadataCache.this.deletes.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Key {
+        private final int owner;
+        private final byte[] key;
+        private final int hash;
+
+        public Key(final int owner, final byte[] key) {
+            this.owner = owner;
+            this.key = key;
+            this.hash = 31 * owner + Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return this.owner == k.owner && Arrays.equals(this.key, k.key);
+        }
+    }
+}
@@ -26,15 +26,16 @@
 
 package net.yacy.search.query;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
@@ -51,6 +52,7 @@ import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.meta.URIMetadataRow;
 import net.yacy.kelondro.data.word.Word;
 import net.yacy.kelondro.data.word.WordReference;
+import net.yacy.kelondro.data.word.WordReferenceColumns;
 import net.yacy.kelondro.data.word.WordReferenceVars;
 import net.yacy.kelondro.index.HandleSet;
 import net.yacy.kelondro.index.RowSpaceExceededException;
@@ -68,6 +70,12 @@ import net.yacy.search.snippet.ResultEntry;
 public final class RWIProcess extends Thread {
 
     private static final int maxDoubleDomAll = 1000, maxDoubleDomSpecial = 10000;
+    public static int maxSearchReferences = 0; // the maximum number of local references that are ranked; the references with the best ranking bound are kept; <= 0 means no limit
+    public static long maxTermSearchTime = 3000; // the time in milliseconds for the collection of the references of all search terms; < 0 means no limit
+    public static boolean topKPruning = true; // if true, the cardinal is not computed for references that cannot enter a full stack
+    private static final int referenceMem = 256; // estimated memory of one reference on the stack, including the queue element
+    private static final int navigatorEntryMem = 64; // estimated memory of one entry in a navigator
+    public static int prefetchCount = 20; // the number of references on the stack for which the metadata is loaded together with the metadata of a taken reference
 
     private final QueryParams query;
     private final HandleSet urlhashes; // map for double-check; String/Long relation, addresses ranking number (backreference for deletion)
@@ -84,6 +92,7 @@ public final class RWIProcess extends Thread {
     private final ConcurrentHashMap<String, WeakPriorityBlockingQueue<WordReferenceVars>> doubleDomCache; // key = domhash (6 bytes); value = like stack
     //private final HandleSet handover; // key = urlhash; used for double-check of urls that had been handed over to search process
 
+    private final Map<byte[], URIMetadataRow> prefetched; // metadata of references on the stack that has been loaded in advance
     private final ScoreMap<String> ref;  // reference score computation for the commonSense heuristic
     private final Map<String, byte[]> hostResolver; // a mapping from a host hash (6 bytes) to the full url hash of one of these urls that have the host hash
     private final ReferenceOrder order;
@@ -124,6 +133,7 @@ public final class RWIProcess extends Thread {
         this.protocolNavigator = new ConcurrentScoreMap<String>();
         this.filetypeNavigator = new ConcurrentScoreMap<String>();
         this.ref = new ConcurrentScoreMap<String>();
+        this.prefetched = new TreeMap<byte[], URIMetadataRow>(URIMetadataRow.rowdef.objectOrder);
         this.feeders = new AtomicInteger(1);
         this.startTime = System.currentTimeMillis();
     }
@@ -149,7 +159,9 @@ public final class RWIProcess extends Thread {
                     this.query.excludeHashes,
                     null,
                     Segment.wordReferenceFactory,
-                    this.query.maxDistance);
+                    this.query.maxDistance,
+                    Integer.MAX_VALUE,
+                    maxTermSearchTime);
             this.localSearchInclusion = search.inclusion();
             final ReferenceContainer<WordReference> index = search.joined();
             EventTracker.update(EventTracker.EClass.SEARCH, new ProfilingGraph.EventSearch(this.query.id(true), SearchEvent.Type.JOIN, this.query.queryString, index.size(), System.currentTimeMillis() - timer), false);
@@ -187,7 +199,7 @@ public final class RWIProcess extends Thread {
         long timer = System.currentTimeMillis();
 
         // normalize entries
-        final BlockingQueue<WordReferenceVars> decodedEntries = this.order.normalizeWith(index);
+        final WordReferenceColumns decodedEntries = this.order.normalizeWith(index);
         EventTracker.update(EventTracker.EClass.SEARCH, new ProfilingGraph.EventSearch(this.query.id(true), SearchEvent.Type.NORMALIZING, resourceName, index.size(), System.currentTimeMillis() - timer), false);
 
         // iterate over normalized entries and select some that are better than currently stored
@@ -196,32 +208,41 @@ public final class RWIProcess extends Thread {
 
         // apply all constraints
         try {
-            WordReferenceVars iEntry;
             final String pattern = this.query.urlMask.pattern();
             final boolean httpPattern = pattern.equals("http://.*");
             final boolean noHttpButProtocolPattern = pattern.equals("https://.*") || pattern.equals("ftp://.*") || pattern.equals("smb://.*") || pattern.equals("file://.*");
-            pollloop: while (true) {
-                iEntry = decodedEntries.poll(1, TimeUnit.SECONDS);
-                if (iEntry == null || iEntry == WordReferenceVars.poison) break pollloop;
-                assert (iEntry.urlhash().length == index.row().primaryKeyLength);
-                //if (iEntry.urlHash().length() != index.row().primaryKeyLength) continue;
-
-                // increase flag counts
-                for (int j = 0; j < 32; j++) {
-                    if (iEntry.flags().get(j)) {this.flagcount[j]++;}
+            final int constraint = (this.query.constraint == null) ? 0 : WordReferenceColumns.flags(this.query.constraint);
+            final int contentdomFlag =
+                (this.query.contentdom == ContentDomain.AUDIO) ? Condenser.flag_cat_hasaudio :
+                (this.query.contentdom == ContentDomain.VIDEO) ? Condenser.flag_cat_hasvideo :
+                (this.query.contentdom == ContentDomain.IMAGE) ? Condenser.flag_cat_hasimage :
+                (this.query.contentdom == ContentDomain.APP  ) ? Condenser.flag_cat_hasapp   : -1;
+            final byte[] sitehash = (this.query.sitehash == null) ? null : ASCII.getBytes(this.query.sitehash);
+
+            // increase flag counts
+            decodedEntries.countFlags(this.flagcount);
+
+            // if the local references are limited, keep only those with the best upper bound of the ranking
+            final long rankLimit = (local && maxSearchReferences > 0 && decodedEntries.size() > maxSearchReferences) ? rankLimit(decodedEntries, maxSearchReferences) : Long.MIN_VALUE;
+
+            int flags;
+            WordReferenceVars iEntry;
+            pollloop: for (int i = 0; i < decodedEntries.size(); i++) {
+                flags = decodedEntries.flags[i];
+
+                // check the limit of the references
+                if (rankLimit != Long.MIN_VALUE && this.order.maxCardinal(decodedEntries, i) < rankLimit) {
+                    continue pollloop;
                 }
 
                 // check constraints
-                if (!testFlags(iEntry)) {
+                if (!testFlags(flags, constraint)) {
                     continue pollloop;
                 }
 
                 // check document domain
-                if (this.query.contentdom != ContentDomain.TEXT) {
-                    if ((this.query.contentdom == ContentDomain.AUDIO) && (!(iEntry.flags().get(Condenser.flag_cat_hasaudio)))) { continue pollloop; }
-                    if ((this.query.contentdom == ContentDomain.VIDEO) && (!(iEntry.flags().get(Condenser.flag_cat_hasvideo)))) { continue pollloop; }
-                    if ((this.query.contentdom == ContentDomain.IMAGE) && (!(iEntry.flags().get(Condenser.flag_cat_hasimage)))) { continue pollloop; }
-                    if ((this.query.contentdom == ContentDomain.APP  ) && (!(iEntry.flags().get(Condenser.flag_cat_hasapp  )))) { continue pollloop; }
+                if (contentdomFlag >= 0 && ((flags >>> contentdomFlag) & 1) == 0) {
+                    continue pollloop;
                 }
 
                 // check tld domain
@@ -237,15 +258,15 @@ public final class RWIProcess extends Thread {
                 //this.domZones[DigestURI.domDomain(iEntry.metadataHash())]++;
 
                 // check site constraints
-                final String hosthash = iEntry.hosthash();
-                if (this.query.sitehash == null) {
+                if (sitehash == null) {
                     // no site constraint there; maybe collect host navigation information
                     if (nav_hosts && this.query.urlMask_isCatchall) {
+                        final String hosthash = decodedEntries.hosthash(i);
                         this.hostNavigator.inc(hosthash);
-                        this.hostResolver.put(hosthash, iEntry.urlhash());
+                        this.hostResolver.put(hosthash, decodedEntries.urlhash(i));
                     }
                 } else {
-                    if (!hosthash.equals(this.query.sitehash)) {
+                    if (!decodedEntries.hosthashEquals(i, sitehash)) {
                         // filter out all domains that do not match with the site constraint
                         continue pollloop;
                     }
@@ -253,7 +274,7 @@ public final class RWIProcess extends Thread {
 
                 // check protocol
                 if (!this.query.urlMask_isCatchall) {
-                    final boolean httpFlagSet = DigestURI.flag4HTTPset(iEntry.urlHash);
+                    final boolean httpFlagSet = DigestURI.flag4HTTPset(decodedEntries.urlhash(i));
                     if (httpPattern && !httpFlagSet) continue pollloop;
                     if (noHttpButProtocolPattern && httpFlagSet) continue pollloop;
                 }
@@ -261,7 +282,17 @@ public final class RWIProcess extends Thread {
                 // finally make a double-check and insert result to stack
                 // the url hashes should be unique, no reason to check that
                 //if (!this.urlhashes.has(iEntry.urlhash())) {
-                    this.urlhashes.putUnique(iEntry.urlhash());
+                    this.urlhashes.putUnique(decodedEntries.urlhash(i));
+
+                    // increase counter for statistics
+                    if (local) this.local_indexCount++; else this.remote_indexCount++;
+
+                    // skip the ranking if the stack is full and the reference cannot be better than the worst one on the stack
+                    if (topKPruning) {
+                        final WeakPriorityBlockingQueue.Element<WordReferenceVars> bottom = this.stack.bottom();
+                        if (bottom != null && this.order.maxCardinal(decodedEntries, i) < bottom.getWeight()) continue pollloop;
+                    }
+                    iEntry = decodedEntries.get(i);
                     rankingtryloop: while (true) {
                         try {
                             this.stack.put(new ReverseElement<WordReferenceVars>(iEntry, this.order.cardinal(iEntry))); // inserts the element and removes the worst (which is smallest)
@@ -271,12 +302,10 @@ public final class RWIProcess extends Thread {
                             continue rankingtryloop;
                         }
                     }
-                    // increase counter for statistics
-                    if (local) this.local_indexCount++; else this.remote_indexCount++;
                 //}
             }
 
-        } catch (final InterruptedException e) {} catch (final RowSpaceExceededException e) {} finally {
+        } catch (final RowSpaceExceededException e) {} finally {
             if (finalizeAddAtEnd) this.addRunning = false;
         }
 
@@ -284,6 +313,19 @@ public final class RWIProcess extends Thread {
         EventTracker.update(EventTracker.EClass.SEARCH, new ProfilingGraph.EventSearch(this.query.id(true), SearchEvent.Type.PRESORT, resourceName, index.size(), System.currentTimeMillis() - timer), false);
     }
 
+    /**
+     * the smallest upper bound of the ranking that a reference must have to be among the best references
+     * @param columns the normalized references
+     * @param count the number of references that shall be kept, smaller than the number of references
+     * @return the ranking bound of the count-best reference
+     */
+    private long rankLimit(final WordReferenceColumns columns, final int count) {
+        final long[] bounds = new long[columns.size()];
+        for (int i = 0; i < bounds.length; i++) bounds[i] = this.order.maxCardinal(columns, i);
+        Arrays.sort(bounds);
+        return bounds[bounds.length - count];
+    }
+
     /**
      * method to signal the incoming stack that one feeder has terminated
      */
@@ -300,21 +342,13 @@ public final class RWIProcess extends Thread {
     	return this.feeders.get() <= 0;
     }
 
-    private boolean testFlags(final WordReference ientry) {
+    private boolean testFlags(final int flags, final int constraint) {
         if (this.query.constraint == null) return true;
-        // test if ientry matches with filter
+        // test if the flags match with filter
         // if all = true: let only entries pass that has all matching bits
         // if all = false: let all entries pass that has at least one matching bit
-        if (this.query.allofconstraint) {
-            for (int i = 0; i < 32; i++) {
-                if ((this.query.constraint.get(i)) && (!ientry.flags().get(i))) return false;
-            }
-            return true;
-        }
-        for (int i = 0; i < 32; i++) {
-            if ((this.query.constraint.get(i)) && (ientry.flags().get(i))) return true;
-        }
-        return false;
+        if (this.query.allofconstraint) return (flags & constraint) == constraint;
+        return (flags & constraint) != 0;
     }
 
     public Map<byte[], ReferenceContainer<WordReference>> searchContainerMap() {
@@ -400,6 +434,31 @@ public final class RWIProcess extends Thread {
         return bestEntry;
     }
 
+    /**
+     * load the metadata of a reference. If the metadata was not prefetched, it is loaded in one batch together
+     * with the metadata of the next references on the stack, which are likely to be taken next.
+     * @param obrwi
+     * @return the metadata or null if the url is not in the metadata db
+     */
+    private URIMetadataRow load(final WeakPriorityBlockingQueue.Element<WordReferenceVars> obrwi) {
+        final byte[] urlhash = obrwi.getElement().urlhash();
+        synchronized (this.prefetched) {
+            if (!this.prefetched.containsKey(urlhash)) {
+                // forget entries of references that had been sorted out before their metadata was used
+                if (this.prefetched.size() > 4 * prefetchCount) this.prefetched.clear();
+                final List<WeakPriorityBlockingQueue.Element<WordReferenceVars>> batch = this.stack.peek(prefetchCount);
+                batch.add(obrwi);
+                final Map<byte[], URIMetadataRow> pages = this.query.getSegment().urlMetadata().load(batch);
+                byte[] h;
+                for (final WeakPriorityBlockingQueue.Element<WordReferenceVars> e: batch) {
+                    h = e.getElement().urlhash();
+                    if (!this.prefetched.containsKey(h)) this.prefetched.put(h, pages.get(h)); // null marks a miss
+                }
+            }
+            return this.prefetched.remove(urlhash);
+        }
+    }
+
     /**
      * get one metadata entry from the ranked results. This will be the 'best' entry so far
      * according to the applied ranking. If there are no more entries left or the timeout
@@ -418,7 +477,7 @@ public final class RWIProcess extends Thread {
     	    //System.out.println("timeleft = " + timeleft);
             final WeakPriorityBlockingQueue.Element<WordReferenceVars> obrwi = takeRWI(skipDoubleDom, timeleft);
             if (obrwi == null) return null; // all time was already wasted in takeRWI to get another element
-            final URIMetadataRow page = this.query.getSegment().urlMetadata().load(obrwi);
+            final URIMetadataRow page = load(obrwi);
             if (page == null) {
             	try {
                     this.misses.putUnique(obrwi.getElement().urlhash());
@@ -572,6 +631,36 @@ public final class RWIProcess extends Thread {
         return true;
     }
 
+    /**
+     * estimate the memory that is used by the references and navigators of this process
+     * @return number of bytes
+     */
+    public long mem() {
+        long m = (long) (sizeQueue() + this.prefetched.size()) * referenceMem;
+        m += (long) (this.urlhashes.size() + this.misses.size()) * URIMetadataRow.rowdef.primaryKeyLength;
+        final SortedMap<byte[], ReferenceContainer<WordReference>> inclusion = this.localSearchInclusion;
+        if (inclusion != null) for (final ReferenceContainer<WordReference> container: inclusion.values()) m += container.mem();
+        m += (long) (this.hostNavigator.size() + this.authorNavigator.size() + this.namespaceNavigator.size() +
+                     this.protocolNavigator.size() + this.filetypeNavigator.size() + this.ref.size()) * navigatorEntryMem;
+        return m;
+    }
+
+    /**
+     * release the references that are still waiting on the stacks and the containers of the local search.
+     * The navigators and counters are kept. This must only be called when the feeding has finished.
+     */
+    public void release() {
+        assert feedingIsFinished();
+        this.stack.clear();
+        this.doubleDomCache.clear();
+        this.localSearchInclusion = null;
+        this.urlhashes.clear();
+        this.misses.clear();
+        synchronized (this.prefetched) {
+            this.prefetched.clear();
+        }
+    }
+
     public int[] flagCount() {
     	return this.flagcount;
     }
@@ -86,6 +86,7 @@ public final class SearchEvent {
     private final SortedMap<byte[], HeuristicResult> heuristics;
     private byte[] IAmaxcounthash, IAneardhthash;
     private final ReferenceOrder order;
+    private volatile boolean released, complete; // written by release(), read without synchronization by other threads
 
     protected SearchEvent(final QueryParams query,
                              final SeedDB peers,
@@ -277,6 +278,42 @@ public final class SearchEvent {
        if (this.heuristics != null) this.heuristics.clear();
    }
 
+   /**
+    * release the references and the worker state of a finished event. The results that have already been
+    * computed and the navigators are kept, so the event can still serve the result pages that it has computed.
+    * @return true if the event is released, false if it is still working
+    */
+   public synchronized boolean release() {
+       if (this.released) return true;
+       if (workerAlive() || this.rankingProcess.isAlive() || !this.rankingProcess.feedingIsFinished()) return false;
+       cleanup();
+       this.complete = this.rankingProcess.sizeQueue() == 0;
+       this.rankingProcess.release();
+       this.released = true;
+       return true;
+   }
+
+   public boolean isReleased() {
+       return this.released;
+   }
+
+   /**
+    * check if the event can serve a result page
+    * @param neededResults the number of results up to the end of the page
+    * @return false if the event was released before the results for the page had been computed
+    */
+   public boolean hasResults(final int neededResults) {
+       return !this.released || this.complete || this.resultFetcher.result.sizeAvailable() >= neededResults;
+   }
+
+   /**
+    * estimate the memory that is used by this event
+    * @return number of bytes
+    */
+   public long mem() {
+       return this.rankingProcess.mem() + this.resultFetcher.mem();
+   }
+
    public Iterator<Map.Entry<byte[], String>> abstractsString() {
        return this.IAResults.entrySet().iterator();
    }
@@ -26,11 +26,11 @@
 
 package net.yacy.search.query;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.util.MemoryControl;
@@ -45,67 +45,170 @@ import de.anomic.data.WorkTables;
 
 public class SearchEventCache {
 
-    private static ConcurrentMap<String, SearchEvent> lastEvents = new ConcurrentHashMap<String, SearchEvent>(); // a cache for objects from this class: re-use old search requests
+    // a cache for objects from this class: re-use old search requests
+    // the map is in access order, the first entry is the least recently used event; all access must be synchronized on the map
+    private static final LinkedHashMap<String, SearchEvent> lastEvents = new LinkedHashMap<String, SearchEvent>(16, 0.75f, true);
     public static final long eventLifetimeBigMem = 600000; // the time an event will stay in the cache when available memory is high, 10 Minutes
     public static final long eventLifetimeMediumMem = 60000; // the time an event will stay in the cache when available memory is medium, 1 Minute
     public static final long eventLifetimeShortMem = 10000; // the time an event will stay in the cache when memory is low, 10 seconds
+    public static final long eventLifetimeResults = 3600000; // the time the finished results of an event stay in the cache after the event was released, 1 hour
     public static final long memlimitHigh = 600 * 1024 * 1024; // 400 MB
     public static final long memlimitMedium = 200 * 1024 * 1024; // 100 MB
+    public static long maxBytes = 128 * 1024 * 1024; // the estimated memory that all events in the cache may use
     public static String lastEventID = "";
-    public static long cacheInsert = 0, cacheHit = 0, cacheMiss = 0, cacheDelete = 0;
+    public static long cacheInsert = 0, cacheHit = 0, cacheMiss = 0, cacheDelete = 0, cacheRelease = 0;
+    private static long cacheBytes = 0;
 
     public static int size() {
-        return lastEvents.size();
+        synchronized (lastEvents) {
+            return lastEvents.size();
+        }
+    }
+
+    /**
+     * the estimated memory of all events in the cache; this is computed each time when the cache is shrinked
+     * @return number of bytes
+     */
+    public static long bytes() {
+        return cacheBytes;
     }
 
     public static void put(final String eventID, final SearchEvent event) {
         if (MemoryControl.shortStatus()) cleanupEvents(true);
         lastEventID = eventID;
-        final SearchEvent oldEvent = lastEvents.put(eventID, event);
+        final SearchEvent oldEvent;
+        synchronized (lastEvents) {
+            oldEvent = lastEvents.put(eventID, event);
+        }
         if (oldEvent == null) cacheInsert++;
+        shrink(eventID);
     }
 
     public static boolean delete(final String urlhash) {
-        for (final SearchEvent event: lastEvents.values()) {
+        for (final SearchEvent event: events()) {
             if (event.result().delete(urlhash)) return true;
         }
         return false;
     }
 
-    public static void cleanupEvents(boolean all) {
+    private static List<SearchEvent> events() {
+        synchronized (lastEvents) {
+            return new ArrayList<SearchEvent>(lastEvents.values());
+        }
+    }
+
+    private static boolean remove(final String eventID, final SearchEvent event) {
+        synchronized (lastEvents) {
+            if (lastEvents.get(eventID) != event) return false;
+            lastEvents.remove(eventID);
+        }
+        cacheDelete++;
+        return true;
+    }
+
+    /**
+     * the number of events in the cache that are not released. Released events hold only their finished results
+     * and are limited by maxBytes, therefore only the other events count for the throttling of new searches
+     * @return the number of events that still hold their worker state
+     */
+    private static int unreleased() {
+        int c = 0;
+        for (final SearchEvent e: events()) {
+            if (!e.isReleased()) c++;
+        }
+        return c;
+    }
+
+    public static void cleanupEvents(final boolean all) {
+        cleanupEvents(all, all);
+    }
+
+    /**
+     * remove or release old events
+     * @param all if true, all events that are not released are released or removed, regardless of their age
+     * @param allReleased if true, all released events are removed, regardless of their age;
+     *  if false, the events that could be released are kept with their finished results
+     */
+    private static void cleanupEvents(boolean all, boolean allReleased) {
         // remove old events in the event cache
-        if (MemoryControl.shortStatus()) all = true;
+        if (MemoryControl.shortStatus()) {
+            all = true;
+            allReleased = true;
+        }
         // the less memory is there, the less time is acceptable for elements in the cache
         final long memx = MemoryControl.available();
         final long acceptTime = memx > memlimitHigh ? eventLifetimeBigMem : memx > memlimitMedium ? eventLifetimeMediumMem : eventLifetimeShortMem;
-        Map.Entry<String, SearchEvent> eventEntry;
-        final Iterator<Map.Entry<String, SearchEvent>> i = lastEvents.entrySet().iterator();
+        final List<Map.Entry<String, SearchEvent>> entries;
+        synchronized (lastEvents) {
+            entries = new ArrayList<Map.Entry<String, SearchEvent>>(lastEvents.entrySet());
+        }
         SearchEvent event;
-        while (i.hasNext()) {
-            eventEntry = i.next();
+        for (final Map.Entry<String, SearchEvent> eventEntry: entries) {
             event = eventEntry.getValue();
             if (event == null) continue;
+            if (event.isReleased()) {
+                // only the finished results are left
+                if (allReleased || event.getEventTime() + eventLifetimeResults < System.currentTimeMillis()) remove(eventEntry.getKey(), event);
+                continue;
+            }
             if (all || event.getEventTime() + acceptTime < System.currentTimeMillis()) {
                 if (event.workerAlive()) {
                     event.cleanup();
                 }
-            }
-            if (!event.workerAlive()) {
-                i.remove();
-                cacheDelete++;
+                if (event.workerAlive()) continue;
+                if (allReleased || !event.release()) remove(eventEntry.getKey(), event); else cacheRelease++;
             }
         }
+        shrink(null);
+    }
+
+    /**
+     * reduce the estimated memory of the cached events to maxBytes. First the heavy state of the least recently used
+     * events that have finished is released, then the least recently used events are removed
+     * @param keep the id of an event that shall not be removed, or null
+     */
+    private static void shrink(final String keep) {
+        final List<Map.Entry<String, SearchEvent>> entries;
+        synchronized (lastEvents) {
+            entries = new ArrayList<Map.Entry<String, SearchEvent>>(lastEvents.entrySet());
+        }
+        final long[] mem = new long[entries.size()];
+        long bytes = 0;
+        for (int i = 0; i < mem.length; i++) {
+            mem[i] = entries.get(i).getValue().mem();
+            bytes += mem[i];
+        }
+        SearchEvent event;
+        for (int i = 0; i < mem.length && bytes > maxBytes; i++) {
+            event = entries.get(i).getValue();
+            if (event.isReleased() || entries.get(i).getKey().equals(keep)) continue;
+            if (!event.release()) continue;
+            cacheRelease++;
+            bytes -= mem[i];
+            mem[i] = event.mem();
+            bytes += mem[i];
+        }
+        for (int i = 0; i < mem.length && bytes > maxBytes; i++) {
+            event = entries.get(i).getValue();
+            if (entries.get(i).getKey().equals(keep)) continue;
+            if (event.workerAlive()) event.cleanup();
+            if (remove(entries.get(i).getKey(), event)) bytes -= mem[i];
+        }
+        cacheBytes = bytes;
     }
 
     public static SearchEvent getEvent(final String eventID) {
-        final SearchEvent event = lastEvents.get(eventID);
+        final SearchEvent event;
+        synchronized (lastEvents) {
+            event = lastEvents.get(eventID);
+        }
         if (event == null) cacheMiss++; else cacheHit++;
         return event;
     }
 
     public static int countAliveThreads() {
         int alive = 0;
-        for (final SearchEvent e: SearchEventCache.lastEvents.values()) {
+        for (final SearchEvent e: events()) {
             if (e.workerAlive()) alive++;
         }
         return alive;
@@ -134,14 +237,21 @@ public class SearchEventCache {
             final int burstMultiwordPercent) {
 
         final String id = query.id(false);
-        SearchEvent event = SearchEventCache.lastEvents.get(id);
+        SearchEvent event;
+        synchronized (SearchEventCache.lastEvents) {
+            event = SearchEventCache.lastEvents.get(id);
+        }
+        if (event != null && !event.hasResults(query.neededResults())) {
+            // the event was released and the finished results do not contain the requested page
+            remove(id, event);
+            event = null;
+        }
         if (event == null) cacheMiss++; else cacheHit++;
         if (Switchboard.getSwitchboard() != null && !Switchboard.getSwitchboard().crawlQueues.noticeURL.isEmpty() && event != null && System.currentTimeMillis() - event.getEventTime() > 60000) {
             // if a local crawl is ongoing, don't use the result from the cache to use possibly more results that come from the current crawl
             // to prevent that this happens during a person switches between the different result pages, a re-search happens no more than
             // once a minute
-            SearchEventCache.lastEvents.remove(id);
-            cacheDelete++;
+            remove(id, event);
             event = null;
         } else {
             if (event != null) {
@@ -158,20 +268,20 @@ public class SearchEventCache {
             int waitcount = 0;
             throttling : while (true) {
                 final int allowedThreads = (int) Math.max(1, MemoryControl.available() / (query.snippetCacheStrategy == null ? 3 : 30) / 1024 / 1024);
-                // make room if there are too many search events (they need a lot of RAM)
-                if (SearchEventCache.lastEvents.size() >= allowedThreads) {
-                    Log.logWarning("SearchEventCache", "throttling phase 1: " + SearchEventCache.lastEvents.size() + " in cache; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
+                // make room if there are too many search events (they need a lot of RAM); released events do not count
+                if (unreleased() >= allowedThreads) {
+                    Log.logWarning("SearchEventCache", "throttling phase 1: " + size() + " in cache; " + unreleased() + " unreleased; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
                     cleanupEvents(false);
                 } else break throttling;
-                // if there are still some then delete just all
-                if (SearchEventCache.lastEvents.size() >= allowedThreads) {
-                    Log.logWarning("SearchEventCache", "throttling phase 2: " + SearchEventCache.lastEvents.size() + " in cache; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
-                    cleanupEvents(true);
+                // if there are still some then release or delete all that are not alive, but keep the finished results
+                if (unreleased() >= allowedThreads) {
+                    Log.logWarning("SearchEventCache", "throttling phase 2: " + size() + " in cache; " + unreleased() + " unreleased; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
+                    cleanupEvents(true, false);
                 } else break throttling;
                 // now there might be still events left that are alive
                 if (countAliveThreads() < allowedThreads) break throttling;
                 // finally we just wait some time until we get access
-                Log.logWarning("SearchEventCache", "throttling phase 3: " + SearchEventCache.lastEvents.size() + " in cache; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
+                Log.logWarning("SearchEventCache", "throttling phase 3: " + size() + " in cache; " + countAliveThreads() + " alive; " + allowedThreads + " allowed");
                 try { Thread.sleep(100); } catch (final InterruptedException e) { }
                 waitcount++;
                 if (waitcount >= 10) return getDummyEvent(workTables, loader, query.getSegment());
@@ -183,7 +293,7 @@ public class SearchEventCache {
             }
 
             // check if there are too many other searches alive now
-            Log.logInfo("SearchEventCache", "getEvent: " + SearchEventCache.lastEvents.size() + " in cache; " + countAliveThreads() + " alive");
+            Log.logInfo("SearchEventCache", "getEvent: " + size() + " in cache; " + countAliveThreads() + " alive");
 
             // start a new event
             final boolean delete = Switchboard.getSwitchboard() == null || Switchboard.getSwitchboard().getConfigBool(SwitchboardConstants.SEARCH_VERIFY_DELETE, true);
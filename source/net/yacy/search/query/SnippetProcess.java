@@ -74,6 +74,9 @@ public class SnippetProcess {
     // result values
     protected final LoaderDispatcher        loader;
     protected       Worker[]                workerThreads;
+    private static final int resultEntryMem = 2048; // estimated memory of one result entry with metadata and snippet
+    private static final int mediaSnippetMem = 512; // estimated memory of one media snippet
+
     protected final WeakPriorityBlockingQueue<ResultEntry>  result;
     protected final WeakPriorityBlockingQueue<MediaSnippet> images; // container to sort images by size
     protected final HandleSet               snippetFetchWordHashes; // a set of word hashes that are used to match with the snippets
@@ -130,6 +133,14 @@ public class SnippetProcess {
         this.cleanupState = true;
     }
 
+    /**
+     * estimate the memory that is used by the results and images of this process
+     * @return number of bytes
+     */
+    public long mem() {
+        return (long) this.result.sizeAvailable() * resultEntryMem + (long) this.images.sizeAvailable() * mediaSnippetMem;
+    }
+
     public long getURLRetrievalTime() {
         return this.urlRetrievalAllTime;
     }
@@ -470,6 +481,7 @@ public class SnippetProcess {
             final TextSnippet snippet = new TextSnippet(
                     null,
                     solrText,
+                    this.query.getSegment().textStore(),
                     metadata,
                     this.snippetFetchWordHashes,
                     null,
@@ -487,6 +499,7 @@ public class SnippetProcess {
             final TextSnippet snippet = new TextSnippet(
                     this.loader,
                     solrText,
+                    this.query.getSegment().textStore(),
                     metadata,
                     this.snippetFetchWordHashes,
                     cacheStrategy,
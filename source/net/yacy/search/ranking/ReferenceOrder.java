@@ -26,35 +26,56 @@
 
 package net.yacy.search.ranking;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import net.yacy.cora.document.ASCII;
 import net.yacy.cora.ranking.ConcurrentScoreMap;
+import net.yacy.cora.ranking.WeakPriorityBlockingQueue;
+import net.yacy.cora.ranking.WeakPriorityBlockingQueue.ReverseElement;
 import net.yacy.document.Condenser;
-import net.yacy.document.LargeNumberCache;
 import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.word.WordReference;
+import net.yacy.kelondro.data.word.WordReferenceColumns;
+import net.yacy.kelondro.data.word.WordReferenceFactory;
 import net.yacy.kelondro.data.word.WordReferenceRow;
 import net.yacy.kelondro.data.word.WordReferenceVars;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
 import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Bitfield;
 import net.yacy.kelondro.rwi.ReferenceContainer;
 import net.yacy.kelondro.util.ByteBuffer;
+import net.yacy.kelondro.util.NamePrefixThreadFactory;
+import net.yacy.search.snippet.ContentDomain;
 
 
 public class ReferenceOrder {
 
     private static int cores = Runtime.getRuntime().availableProcessors();
+    private final static int minChunkSize = 1000;
+    private final static ThreadPoolExecutor normalizePool = new ThreadPoolExecutor(
+            cores,
+            cores, 60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamePrefixThreadFactory("ReferenceOrder.normalize"));
+    static {
+        normalizePool.allowCoreThreadTimeOut(true);
+    }
 
     private       int maxdomcount;
     private       WordReferenceVars min, max;
     private final ConcurrentScoreMap<String> doms; // collected for "authority" heuristic
     private final RankingProfile ranking;
     private final byte[] language;
+    private final int languageKey; // the language as value of WordReferenceColumns.language
 
     public ReferenceOrder(final RankingProfile profile, final byte[] language) {
         this.min = null;
@@ -63,133 +84,70 @@ public class ReferenceOrder {
         this.doms = new ConcurrentScoreMap<String>();
         this.maxdomcount = 0;
         this.language = language;
-    }
-
-    public BlockingQueue<WordReferenceVars> normalizeWith(final ReferenceContainer<WordReference> container) {
-        final LinkedBlockingQueue<WordReferenceVars> out = new LinkedBlockingQueue<WordReferenceVars>();
-        int threads = cores;
-        if (container.size() < 100) threads = 2;
-        final Thread distributor = new NormalizeDistributor(container, out, threads);
-        distributor.start();
-        try {
-            distributor.join(10); // let the distributor work for at least 10 milliseconds
-        } catch (final InterruptedException e) {
-        }
-
-        // return the resulting queue while the processing queues are still working
-        return out;
-    }
-
-    private final class NormalizeDistributor extends Thread {
-
-        ReferenceContainer<WordReference> container;
-        LinkedBlockingQueue<WordReferenceVars> out;
-        private final int threads;
-
-        public NormalizeDistributor(final ReferenceContainer<WordReference> container, final LinkedBlockingQueue<WordReferenceVars> out, final int threads) {
-            this.container = container;
-            this.out = out;
-            this.threads = threads;
-        }
-
-        @Override
-        public void run() {
-            // transform the reference container into a stream of parsed entries
-            final BlockingQueue<WordReferenceVars> vars = WordReferenceVars.transform(this.container);
-
-            // start the transformation threads
-            final Semaphore termination = new Semaphore(this.threads);
-            final NormalizeWorker[] worker = new NormalizeWorker[this.threads];
-            for (int i = 0; i < this.threads; i++) {
-                worker[i] = new NormalizeWorker(this.out, termination);
-                worker[i].start();
-            }
-
-            // fill the queue
-            WordReferenceVars iEntry;
-            int p = 0;
-            try {
-                while ((iEntry = vars.take()) != WordReferenceVars.poison) {
-                    worker[p % this.threads].add(iEntry);
-                    p++;
-                }
-            } catch (final InterruptedException e) {
-            }
-
-            // insert poison to stop the queues
-            for (int i = 0; i < this.threads; i++) worker[i].add(WordReferenceVars.poison);
-
-            // wait for termination but not too long to make it possible that this
-            // is called from outside with a join to get some normalization results
-            // before going on
-            for (int i = 0; i < this.threads; i++) try {worker[i].join(100);} catch (final InterruptedException e) {}
-        }
+        this.languageKey = WordReferenceColumns.language(language);
     }
 
     /**
-     * normalize ranking: find minimum and maximum of separate ranking criteria
+     * decode all references of a container into columns and collect the minimum and maximum of the ranking criteria
+     * and the domain counts for the authority heuristic. Large containers are decoded in chunks using a
+     * thread pool that is shared by all search processes.
+     * @param container
+     * @return the decoded references in the order of the container
      */
-    private class NormalizeWorker extends Thread {
+    public WordReferenceColumns normalizeWith(final ReferenceContainer<WordReference> container) {
+        final WordReferenceColumns columns = new WordReferenceColumns(container);
+        final int size = columns.size();
 
-        private final BlockingQueue<WordReferenceVars> out;
-        private final Semaphore termination;
-        private final BlockingQueue<WordReferenceVars> decodedEntries;
-
-        public NormalizeWorker(final BlockingQueue<WordReferenceVars> out, final Semaphore termination) {
-            this.out = out;
-            this.termination = termination;
-            this.decodedEntries = new LinkedBlockingQueue<WordReferenceVars>();
-        }
-
-        public void add(final WordReferenceVars entry) {
+        // split the container into chunks; the first chunk is done by the calling thread
+        final int chunkCount = Math.max(1, Math.min(cores * 4, size / minChunkSize));
+        final int chunkSize = (size + chunkCount - 1) / chunkCount;
+        final Future<?>[] futures = new Future<?>[chunkCount];
+        for (int c = 1; c < chunkCount; c++) {
+            final int start = c * chunkSize, end = Math.min(size, (c + 1) * chunkSize);
             try {
-                this.decodedEntries.put(entry);
-            } catch (final InterruptedException e) {
+                futures[c] = normalizePool.submit(new Runnable() {
+                    public void run() {
+                        columns.decode(start, end);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                columns.decode(start, end);
             }
         }
+        columns.decode(0, Math.min(size, chunkSize));
 
-        public void run() {
-            try {
-                WordReferenceVars iEntry;
-                final Map<String, Integer> doms0 = new HashMap<String, Integer>();
-                String dom;
-                Integer count;
-                final Integer int1 = 1;
-                while ((iEntry = this.decodedEntries.take()) != WordReferenceVars.poison) {
-                    // find min/max
-                    if (ReferenceOrder.this.min == null) ReferenceOrder.this.min = iEntry.clone(); else ReferenceOrder.this.min.min(iEntry);
-                    if (ReferenceOrder.this.max == null) ReferenceOrder.this.max = iEntry.clone(); else ReferenceOrder.this.max.max(iEntry);
-                    this.out.put(iEntry); // must be after the min/max check to prevent that min/max is null in cardinal()
-                    // update domcount
-                    dom = iEntry.hosthash();
-                    count = doms0.get(dom);
-                    if (count == null) {
-                        doms0.put(dom, int1);
-                    } else {
-                        doms0.put(dom, LargeNumberCache.valueOf(count.intValue() + 1));
-                    }
-                }
-
-                // update domain score
-                Map.Entry<String, Integer> entry;
-                final Iterator<Map.Entry<String, Integer>> di = doms0.entrySet().iterator();
-                while (di.hasNext()) {
-                    entry = di.next();
-                    ReferenceOrder.this.doms.inc(entry.getKey(), (entry.getValue()).intValue());
-                }
-                if (!ReferenceOrder.this.doms.isEmpty()) ReferenceOrder.this.maxdomcount = ReferenceOrder.this.doms.getMaxScore();
+        // wait for the chunks
+        boolean interrupted = false;
+        for (int c = 1; c < chunkCount; c++) {
+            if (futures[c] != null) while (true) try {
+                futures[c].get();
+                break;
             } catch (final InterruptedException e) {
+                interrupted = true;
+            } catch (final ExecutionException e) {
                 Log.logException(e);
-            } catch (final Exception e) {
-                Log.logException(e);
-            } finally {
-                // insert poison to signal the termination to next queue
-                try {
-                    this.termination.acquire();
-                    if (this.termination.availablePermits() == 0) this.out.put(WordReferenceVars.poison);
-                } catch (final InterruptedException e) {}
+                break;
             }
         }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        // find min/max
+        final WordReferenceVars cmin = columns.min(), cmax = columns.max();
+        synchronized (this) {
+            if (cmin != null) {
+                if (this.min == null) this.min = cmin; else this.min.min(cmin);
+            }
+            if (cmax != null) {
+                if (this.max == null) this.max = cmax; else this.max.max(cmax);
+            }
+        }
+
+        // update domain score
+        for (final Map.Entry<String, Integer> entry: columns.countHosts().entrySet()) {
+            this.doms.inc(entry.getKey(), entry.getValue().intValue());
+        }
+        if (!this.doms.isEmpty()) this.maxdomcount = this.doms.getMaxScore();
+        return columns;
     }
 
     public int authority(final String hostHash) {
@@ -205,7 +163,6 @@ public class ReferenceOrder {
     public long cardinal(final WordReferenceVars t) {
         //return Long.MAX_VALUE - preRanking(ranking, iEntry, this.entryMin, this.entryMax, this.searchWords);
         // the normalizedEntry must be a normalized indexEntry
-        final Bitfield flags = t.flags();
         assert this.min != null;
         assert this.max != null;
         assert t != null;
@@ -232,23 +189,146 @@ public class ReferenceOrder {
            + ((this.max.hitcount()      == this.min.hitcount())      ? 0 : (((t.hitcount()     - this.min.hitcount()      ) << 8) / (this.max.hitcount()     - this.min.hitcount())      ) << this.ranking.coeff_hitcount)
            + tf
            + ((this.ranking.coeff_authority > 12) ? (authority(t.hosthash()) << this.ranking.coeff_authority) : 0)
-           + ((flags.get(WordReferenceRow.flag_app_dc_identifier))  ? 255 << this.ranking.coeff_appurl             : 0)
-           + ((flags.get(WordReferenceRow.flag_app_dc_title))       ? 255 << this.ranking.coeff_app_dc_title       : 0)
-           + ((flags.get(WordReferenceRow.flag_app_dc_creator))     ? 255 << this.ranking.coeff_app_dc_creator     : 0)
-           + ((flags.get(WordReferenceRow.flag_app_dc_subject))     ? 255 << this.ranking.coeff_app_dc_subject     : 0)
-           + ((flags.get(WordReferenceRow.flag_app_dc_description)) ? 255 << this.ranking.coeff_app_dc_description : 0)
-           + ((flags.get(WordReferenceRow.flag_app_emphasized))     ? 255 << this.ranking.coeff_appemph            : 0)
-           + ((flags.get(Condenser.flag_cat_indexof))      ? 255 << this.ranking.coeff_catindexof         : 0)
-           + ((flags.get(Condenser.flag_cat_hasimage))     ? 255 << this.ranking.coeff_cathasimage        : 0)
-           + ((flags.get(Condenser.flag_cat_hasaudio))     ? 255 << this.ranking.coeff_cathasaudio        : 0)
-           + ((flags.get(Condenser.flag_cat_hasvideo))     ? 255 << this.ranking.coeff_cathasvideo        : 0)
-           + ((flags.get(Condenser.flag_cat_hasapp))       ? 255 << this.ranking.coeff_cathasapp          : 0)
-           + ((ByteBuffer.equals(t.language, this.language)) ? 255 << this.ranking.coeff_language           : 0)
-           + ((DigestURI.probablyRootURL(t.urlhash())) ?  15 << this.ranking.coeff_urllength          : 0);
+           + flagRanking(WordReferenceColumns.flags(t.flags()), ByteBuffer.equals(t.language, this.language), DigestURI.probablyRootURL(t.urlhash()));
 
         //if (searchWords != null) r += (yacyURL.probablyWordURL(t.urlHash(), searchWords) != null) ? 256 << ranking.coeff_appurl : 0;
 
         return r; // the higher the number the better the ranking.
     }
 
+    /**
+     * an upper bound of the ranking of a given word entry: the parts of the ranking that do not
+     * depend on the normalization are computed exactly, all other parts are replaced by their maximum.
+     * Parts where all entries seen so far have the same value do not contribute to the ranking at all.
+     * This is cheap and can be used to sort out entries that cannot reach a given ranking
+     * without computing the cardinal.
+     * @param columns the decoded references
+     * @param i the position of the reference within the columns
+     * @return a number that is not smaller than cardinal(columns.get(i))
+     */
+    public long maxCardinal(final WordReferenceColumns columns, final int i) {
+        return
+             ((256 - columns.domlength[i]) << this.ranking.coeff_domlength)
+           + maxNormalized()
+           + flagRanking(columns.flags[i], columns.language[i] == this.languageKey, columns.rootURL[i]);
+    }
+
+    private long maxNormalized() {
+        assert this.min != null;
+        assert this.max != null;
+        return
+             ((this.ranking.coeff_ybr > 12) ? (256 << this.ranking.coeff_ybr) : 0)
+           + ((this.max.urlcomps()      == this.min.urlcomps()   )   ? 0 : 256 << this.ranking.coeff_urlcomps)
+           + ((this.max.urllength()     == this.min.urllength()  )   ? 0 : 256 << this.ranking.coeff_urllength)
+           + ((this.max.maxposition()   == this.min.minposition())   ? 0 : 256 << this.ranking.coeff_posintext)
+           + ((this.max.posofphrase()   == this.min.posofphrase())   ? 0 : 256 << this.ranking.coeff_posofphrase)
+           + ((this.max.posinphrase()   == this.min.posinphrase())   ? 0 : 256 << this.ranking.coeff_posinphrase)
+           + ((this.max.distance()      == this.min.distance()   )   ? 0 : 256 << this.ranking.coeff_worddistance)
+           + ((this.max.virtualAge()    == this.min.virtualAge())    ? 0 : 256 << this.ranking.coeff_date)
+           + ((this.max.wordsintitle()  == this.min.wordsintitle())  ? 0 : 256 << this.ranking.coeff_wordsintitle)
+           + ((this.max.wordsintext()   == this.min.wordsintext())   ? 0 : 256 << this.ranking.coeff_wordsintext)
+           + ((this.max.phrasesintext() == this.min.phrasesintext()) ? 0 : 256 << this.ranking.coeff_phrasesintext)
+           + ((this.max.llocal()        == this.min.llocal())        ? 0 : 256 << this.ranking.coeff_llocal)
+           + ((this.max.lother()        == this.min.lother())        ? 0 : 256 << this.ranking.coeff_lother)
+           + ((this.max.hitcount()      == this.min.hitcount())      ? 0 : 256 << this.ranking.coeff_hitcount)
+           + ((this.max.termFrequency() == this.min.termFrequency()) ? 0 : 256 << this.ranking.coeff_termfrequency)
+           + ((this.ranking.coeff_authority > 12) ? (256 << this.ranking.coeff_authority) : 0);
+    }
+
+    /**
+     * the part of the ranking that depends on flags of a reference
+     * @param flags the flags as int, see WordReferenceColumns.flags
+     * @param language true if the reference has the language of the search
+     * @param rootURL true if the reference is probably a root url
+     * @return
+     */
+    private long flagRanking(final int flags, final boolean language, final boolean rootURL) {
+        return
+             (((flags >>> WordReferenceRow.flag_app_dc_identifier)  & 1) == 1 ? 255 << this.ranking.coeff_appurl             : 0)
+           + (((flags >>> WordReferenceRow.flag_app_dc_title)       & 1) == 1 ? 255 << this.ranking.coeff_app_dc_title       : 0)
+           + (((flags >>> WordReferenceRow.flag_app_dc_creator)     & 1) == 1 ? 255 << this.ranking.coeff_app_dc_creator     : 0)
+           + (((flags >>> WordReferenceRow.flag_app_dc_subject)     & 1) == 1 ? 255 << this.ranking.coeff_app_dc_subject     : 0)
+           + (((flags >>> WordReferenceRow.flag_app_dc_description) & 1) == 1 ? 255 << this.ranking.coeff_app_dc_description : 0)
+           + (((flags >>> WordReferenceRow.flag_app_emphasized)     & 1) == 1 ? 255 << this.ranking.coeff_appemph            : 0)
+           + (((flags >>> Condenser.flag_cat_indexof)  & 1) == 1 ? 255 << this.ranking.coeff_catindexof         : 0)
+           + (((flags >>> Condenser.flag_cat_hasimage) & 1) == 1 ? 255 << this.ranking.coeff_cathasimage        : 0)
+           + (((flags >>> Condenser.flag_cat_hasaudio) & 1) == 1 ? 255 << this.ranking.coeff_cathasaudio        : 0)
+           + (((flags >>> Condenser.flag_cat_hasvideo) & 1) == 1 ? 255 << this.ranking.coeff_cathasvideo        : 0)
+           + (((flags >>> Condenser.flag_cat_hasapp)   & 1) == 1 ? 255 << this.ranking.coeff_cathasapp          : 0)
+           + ((language) ? 255 << this.ranking.coeff_language           : 0)
+           + ((rootURL)  ?  15 << this.ranking.coeff_urllength          : 0);
+    }
+
+    /**
+     * benchmark for the ranking of references with and without the pruning using maxCardinal:
+     * synthetic containers with the given sizes are normalized and the best 100 entries are selected.
+     * Sizes can be given as arguments, i.e. 10000 100000 1000000 10000000 (needs a large heap)
+     * @param args
+     */
+    public static void main(final String[] args) {
+        final int[] sizes;
+        if (args.length == 0) {
+            sizes = new int[]{10000, 100000, 1000000};
+        } else {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+        final int k = 100;
+        final byte[] language = ASCII.getBytes("en");
+        final Random random = new Random(0);
+        try {
+            for (final int size: sizes) {
+                // generate a container with references that have random properties
+                final ReferenceContainer<WordReference> container = new ReferenceContainer<WordReference>(new WordReferenceFactory(), RowSet.randomHash(random), size);
+                for (int i = 0; i < size; i++) {
+                    final Bitfield flags = new Bitfield(4);
+                    for (int j = 0; j < 32; j++) flags.set(j, random.nextInt(8) == 0);
+                    final int wordcount = 10 + random.nextInt(5000);
+                    container.add(new WordReferenceRow(
+                            RowSet.randomHash(random), 20 + random.nextInt(200), 1 + random.nextInt(10), random.nextInt(100),
+                            1 + random.nextInt(20), wordcount, 1 + wordcount / 10, random.nextInt(wordcount), random.nextInt(20), random.nextInt(100),
+                            System.currentTimeMillis() - random.nextInt(1000) * 86400000L, System.currentTimeMillis(),
+                            (random.nextInt(4) == 0) ? language : ASCII.getBytes("de"), 'h', random.nextInt(50), random.nextInt(50), flags));
+                }
+
+                // normalize the container; this is the same for both ranking methods
+                final ReferenceOrder order = new ReferenceOrder(new RankingProfile(ContentDomain.TEXT), language);
+                final WordReferenceColumns entries = order.normalizeWith(container);
+
+                for (int run = 0; run < 3; run++) {
+                    // rank all entries
+                    long time = System.currentTimeMillis();
+                    final WeakPriorityBlockingQueue<WordReferenceVars> full = new WeakPriorityBlockingQueue<WordReferenceVars>(k);
+                    for (int i = 0; i < size; i++) {
+                        final WordReferenceVars t = entries.get(i);
+                        full.put(new ReverseElement<WordReferenceVars>(t, order.cardinal(t)));
+                    }
+                    final long fullTime = System.currentTimeMillis() - time;
+
+                    // rank only entries that may enter the stack
+                    time = System.currentTimeMillis();
+                    final WeakPriorityBlockingQueue<WordReferenceVars> pruned = new WeakPriorityBlockingQueue<WordReferenceVars>(k);
+                    int skipped = 0;
+                    for (int i = 0; i < size; i++) {
+                        final WeakPriorityBlockingQueue.Element<WordReferenceVars> bottom = pruned.bottom();
+                        if (bottom != null && order.maxCardinal(entries, i) < bottom.getWeight()) {
+                            skipped++;
+                            continue;
+                        }
+                        final WordReferenceVars t = entries.get(i);
+                        pruned.put(new ReverseElement<WordReferenceVars>(t, order.cardinal(t)));
+                    }
+                    final long prunedTime = System.currentTimeMillis() - time;
+
+                    // both stacks must contain the same rankings
+                    boolean equal = full.sizeQueue() == pruned.sizeQueue();
+                    while (equal && full.sizeQueue() > 0) equal = full.poll().getWeight() == pruned.poll().getWeight();
+                    System.out.println("size = " + size + ", full ranking: " + fullTime + " ms, pruned ranking: " + prunedTime + " ms, skipped " + skipped + " references, equal result: " + equal);
+                }
+            }
+        } catch (final RowSpaceExceededException e) {
+            Log.logException(e);
+        }
+        System.exit(0);
+    }
 }
@@ -24,20 +24,30 @@
 
 package net.yacy.search.snippet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import net.yacy.cora.document.ASCII;
 import net.yacy.cora.document.UTF8;
 import net.yacy.cora.services.federated.yacy.CacheStrategy;
-import net.yacy.cora.storage.ARC;
-import net.yacy.cora.storage.ConcurrentARC;
 import net.yacy.document.Document;
 import net.yacy.document.Parser;
 import net.yacy.document.SnippetExtractor;
@@ -47,18 +57,21 @@ import net.yacy.kelondro.data.meta.DigestURI;
 import net.yacy.kelondro.data.meta.URIMetadataRow;
 import net.yacy.kelondro.data.word.Word;
 import net.yacy.kelondro.index.HandleSet;
+import net.yacy.kelondro.logging.Log;
 import net.yacy.kelondro.order.Base64Order;
 import net.yacy.kelondro.util.ByteArray;
 import net.yacy.kelondro.util.ByteBuffer;
+import net.yacy.kelondro.util.FileUtils;
 import net.yacy.peers.RemoteSearch;
 import net.yacy.repository.LoaderDispatcher;
 import net.yacy.search.Switchboard;
+import net.yacy.search.index.TextStore;
 import de.anomic.crawler.retrieval.Request;
 import de.anomic.crawler.retrieval.Response;
 
 public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnippet> {
 
-    private static final int MAX_CACHE = 1000;
+    private static final long MAX_CACHE = 16 * 1024 * 1024; // the default byte limit of the snippet cache
 
 
     /**
@@ -82,31 +95,206 @@ public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnip
     private static final Pattern p4 =
             Pattern.compile("[^\\p{L}\\p{N}]");
 
+    /**
+     * a cache for snippets; the key is the url hash together with the hashes of the query words.
+     * The cache is limited by the estimated memory of the keys and snippets. As in the ARC, new entries
+     * are stored in level A and are moved to level B when they are requested again. If the limit is reached,
+     * the least recently used entries of level A are removed first as long as level A uses more than
+     * half of the limit, then the least recently used entries of level B.
+     */
     public static class Cache {
-        private final ARC<String, String> cache;
-        public Cache() {
-            this.cache = new ConcurrentARC<String, String>(MAX_CACHE, Math.max(32, 4 * Runtime.getRuntime().availableProcessors()));
+        private static final int entryOverhead = 96; // estimated memory of the entry and string objects without the characters
+
+        private final LinkedHashMap<String, String> levelA, levelB; // both in access order
+        private long bytesA, bytesB, maxBytes;
+        private long hits, misses, inserts, deletes;
+
+        public Cache(final long maxBytes) {
+            this.levelA = new LinkedHashMap<String, String>(1024, 0.75f, true);
+            this.levelB = new LinkedHashMap<String, String>(1024, 0.75f, true);
+            this.maxBytes = maxBytes;
+            this.bytesA = 0;
+            this.bytesB = 0;
+            this.hits = 0;
+            this.misses = 0;
+            this.inserts = 0;
+            this.deletes = 0;
+        }
+
+        private static long mem(final String key, final String snippet) {
+            return entryOverhead + 2L * (key.length() + snippet.length());
         }
+
         public void put(final String wordhashes, final String urlhash, final String snippet) {
             // generate key
             final String key = urlhash + wordhashes;
 
             // do nothing if snippet is known or otherwise learn new snippet
-            this.cache.insertIfAbsent(key, snippet);
+            insertIfAbsent(key, snippet);
+        }
+
+        private synchronized void insertIfAbsent(final String key, final String snippet) {
+            if (snippet == null || this.levelB.containsKey(key) || this.levelA.containsKey(key)) return;
+            this.levelA.put(key, snippet);
+            this.bytesA += mem(key, snippet);
+            this.inserts++;
+            shrink();
         }
 
-        public String get(final String wordhashes, final String urlhash) {
+        public synchronized String get(final String wordhashes, final String urlhash) {
             // generate key
             final String key = urlhash + wordhashes;
-            return this.cache.get(key);
+            String snippet = this.levelB.get(key);
+            if (snippet != null) {
+                this.hits++;
+                return snippet;
+            }
+            snippet = this.levelA.remove(key);
+            if (snippet == null) {
+                this.misses++;
+                return null;
+            }
+            // the entry was requested a second time: move it to level B
+            final long m = mem(key, snippet);
+            this.bytesA -= m;
+            this.levelB.put(key, snippet);
+            this.bytesB += m;
+            this.hits++;
+            return snippet;
         }
 
-        public boolean contains(final String wordhashes, final String urlhash) {
-            return this.cache.containsKey(urlhash + wordhashes);
+        public synchronized boolean contains(final String wordhashes, final String urlhash) {
+            final String key = urlhash + wordhashes;
+            return this.levelB.containsKey(key) || this.levelA.containsKey(key);
+        }
+
+        public synchronized void setMaxBytes(final long maxBytes) {
+            this.maxBytes = maxBytes;
+            shrink();
+        }
+
+        private void shrink() {
+            Iterator<Map.Entry<String, String>> i = this.levelA.entrySet().iterator();
+            Map.Entry<String, String> entry;
+            while (this.bytesA + this.bytesB > this.maxBytes && (this.bytesA > this.maxBytes / 2 || this.levelB.isEmpty()) && i.hasNext()) {
+                entry = i.next();
+                this.bytesA -= mem(entry.getKey(), entry.getValue());
+                i.remove();
+                this.deletes++;
+            }
+            i = this.levelB.entrySet().iterator();
+            while (this.bytesA + this.bytesB > this.maxBytes && i.hasNext()) {
+                entry = i.next();
+                this.bytesB -= mem(entry.getKey(), entry.getValue());
+                i.remove();
+                this.deletes++;
+            }
+        }
+
+        public synchronized void clear() {
+            this.levelA.clear();
+            this.levelB.clear();
+            this.bytesA = 0;
+            this.bytesB = 0;
+        }
+
+        public synchronized int size() {
+            return this.levelA.size() + this.levelB.size();
+        }
+
+        public synchronized long bytes() {
+            return this.bytesA + this.bytesB;
+        }
+
+        public synchronized long hits() {
+            return this.hits;
+        }
+
+        public synchronized long misses() {
+            return this.misses;
+        }
+
+        public synchronized long inserts() {
+            return this.inserts;
+        }
+
+        public synchronized long deletes() {
+            return this.deletes;
+        }
+
+        /**
+         * write the cache to a file. The entries are written in the order of their last use,
+         * so the order is restored when the file is loaded again.
+         * @param file
+         * @throws IOException if the dump cannot be written or cannot replace the old dump
+         */
+        public void save(final File file) throws IOException {
+            final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)), 65536));
+            try {
+                synchronized (this) {
+                    save(os, this.levelB, (byte) 'B');
+                    save(os, this.levelA, (byte) 'A');
+                }
+                os.writeByte(0);
+            } finally {
+                os.close();
+            }
+            if (file.exists()) FileUtils.deletedelete(file);
+            if (!tmp.renameTo(file)) {
+                // the old dump may have been locked; try once more and do not leave a stale dump behind
+                FileUtils.deletedelete(file);
+                if (!tmp.renameTo(file)) {
+                    FileUtils.deletedelete(tmp);
+                    throw new IOException("cannot rename " + tmp + " to " + file);
+                }
+            }
+        }
+
+        private static void save(final DataOutputStream os, final Map<String, String> level, final byte levelName) throws IOException {
+            for (final Map.Entry<String, String> entry: level.entrySet()) {
+                if (entry.getKey().length() + entry.getValue().length() > 16384) continue; // writeUTF is limited to 64k bytes
+                os.writeByte(levelName);
+                os.writeUTF(entry.getKey());
+                os.writeUTF(entry.getValue());
+            }
+        }
+
+        /**
+         * load the entries from a file that was written with save
+         * @param file
+         */
+        public void load(final File file) {
+            if (!file.exists()) return;
+            DataInputStream is = null;
+            try {
+                is = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 65536));
+                byte levelName;
+                String key, snippet;
+                synchronized (this) {
+                    while ((levelName = is.readByte()) != 0) {
+                        key = is.readUTF();
+                        snippet = is.readUTF();
+                        if (this.levelA.containsKey(key) || this.levelB.containsKey(key)) continue;
+                        if (levelName == 'B') {
+                            this.levelB.put(key, snippet);
+                            this.bytesB += mem(key, snippet);
+                        } else {
+                            this.levelA.put(key, snippet);
+                            this.bytesA += mem(key, snippet);
+                        }
+                    }
+                    shrink();
+                }
+            } catch (final IOException e) {
+                Log.logWarning("TextSnippet", "cannot load snippet cache from " + file + ": " + e.getMessage());
+            } finally {
+                if (is != null) try {is.close();} catch (final IOException e) {}
+            }
         }
     }
 
-    public static final Cache snippetsCache = new Cache();
+    public static final Cache snippetsCache = new Cache(MAX_CACHE);
 
     public static enum ResultClass {
         SOURCE_CACHE(false),
@@ -144,6 +332,7 @@ public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnip
     public TextSnippet(
             final LoaderDispatcher loader,
             final String solrText,
+            final TextStore textStore,
             final URIMetadataRow.Components comp,
             final HandleSet queryhashes,
             final CacheStrategy cacheStrategy,
@@ -183,6 +372,15 @@ public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnip
                 sentences = Document.getSentences(pre, new ByteArrayInputStream(UTF8.getBytes(solrText)));
             }
 
+            // then try the sentences that the indexer has stored
+            if (sentences == null && textStore != null) {
+                sentences = textStore.getSentences(url.hash(), pre);
+                if (sentences != null) {
+                    final String loc = metadataLine(comp, queryhashes);
+                    if (loc != null) init(url.hash(), loc, ResultClass.SOURCE_METADATA, null);
+                }
+            }
+
             // if then no sentences are found, we fail-over to get the content from the re-loaded document
             if (sentences == null) {
                 final Document document = loadDocument(loader, comp, queryhashes, cacheStrategy, url, reindexing, source);
@@ -264,14 +462,11 @@ public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnip
         Response response = null;
         try {
             // first try to get the snippet from metadata
-            String loc;
+            final String loc = metadataLine(comp, queryhashes);
             final Request request = loader.request(url, true, reindexing);
             final boolean inCache = de.anomic.http.client.Cache.has(comp.url());
             final boolean noCacheUsage = url.isFile() || url.isSMB() || cacheStrategy == null;
-            if (containsAllHashes(loc = comp.dc_title(), queryhashes) ||
-                containsAllHashes(loc = comp.dc_creator(), queryhashes) ||
-                containsAllHashes(loc = comp.dc_subject(), queryhashes) ||
-                containsAllHashes(loc = comp.url().toNormalform(true, true).replace('-', ' '), queryhashes)) {
+            if (loc != null) {
                 // try to create the snippet from information given in the url
                 if (inCache) response = loader == null ? null : loader.load(request, CacheStrategy.CACHEONLY, true);
                 Document document = null;
@@ -324,6 +519,21 @@ public class TextSnippet implements Comparable<TextSnippet>, Comparator<TextSnip
         return document;
     }
 
+    /**
+     * find a metadata field that contains all query words
+     * @param comp
+     * @param queryhashes
+     * @return the content of the metadata field or null if no field contains all query words
+     */
+    private static String metadataLine(final URIMetadataRow.Components comp, final HandleSet queryhashes) {
+        String loc;
+        if (containsAllHashes(loc = comp.dc_title(), queryhashes) ||
+            containsAllHashes(loc = comp.dc_creator(), queryhashes) ||
+            containsAllHashes(loc = comp.dc_subject(), queryhashes) ||
+            containsAllHashes(loc = comp.url().toNormalform(true, true).replace('-', ' '), queryhashes)) return loc;
+        return null;
+    }
+
     private void init(
             final byte[] urlhash,
             final String line,
@@ -0,0 +1,111 @@
+package de.anomic.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.yacy.cora.document.ASCII;
+import net.yacy.kelondro.data.meta.DigestURI;
+import net.yacy.kelondro.index.HandleSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+import net.yacy.kelondro.logging.Log;
+import net.yacy.kelondro.order.Base64Order;
+import net.yacy.kelondro.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.anomic.crawler.retrieval.Request;
+
+
+public class BalancerTest {
+
+    private static final int hosts = 4;
+    private static final int urlsPerHost = 5;
+
+    private File root;
+    private CrawlSwitchboard cs;
+    private Balancer balancer;
+
+    @Before public void setUp() throws IOException {
+        this.root = File.createTempFile("BalancerTest", "");
+        this.root.delete();
+        this.root.mkdirs();
+        this.cs = new CrawlSwitchboard("test", new Log("BalancerTest"), new File(this.root, "queues"));
+        this.balancer = new Balancer(new File(this.root, "stack"), "test", 0, 1000, new HashSet<String>(), false, false);
+    }
+
+    @After public void tearDown() {
+        this.balancer.close();
+        this.cs.close();
+        FileUtils.deletedelete(this.root);
+    }
+
+    /**
+     * push urls of several hosts; the hosts are local addresses, so the scheduler needs no robots.txt
+     */
+    private void pushAll() throws IOException, RowSpaceExceededException {
+        final String handle = this.cs.defaultSurrogateProfile.handle();
+        for (int u = 0; u < urlsPerHost; u++) {
+            for (int h = 0; h < hosts; h++) {
+                final DigestURI url = new DigestURI("http://192.168.7." + (h + 1) + "/page" + u + ".html");
+                assertNull(this.balancer.push(new Request(null, url, null, "page", null, handle, 0, 0, 0, 0)));
+            }
+        }
+    }
+
+    @Test public void testHostsAreInterleaved() throws IOException, RowSpaceExceededException {
+        pushAll();
+        assertEquals(hosts * urlsPerHost, this.balancer.size());
+        assertEquals(hosts, this.balancer.hosts());
+
+        // a url cannot be pushed twice
+        final Request first = this.balancer.top(1).get(0);
+        assertNotNull(this.balancer.push(first));
+
+        // the first pops take one url of each host, because a host is scheduled again only after its delta
+        final Set<String> popped = new HashSet<String>();
+        final Set<String> firstHosts = new HashSet<String>();
+        for (int h = 0; h < hosts; h++) {
+            final Request request = this.balancer.pop(false, this.cs);
+            assertNotNull(request);
+            assertTrue(firstHosts.add(request.url().getHost()));
+            assertTrue(popped.add(ASCII.String(request.url().hash())));
+        }
+
+        // all other urls are returned exactly once
+        Request request;
+        while ((request = this.balancer.pop(false, this.cs)) != null) {
+            assertTrue(popped.add(ASCII.String(request.url().hash())));
+        }
+        assertEquals(hosts * urlsPerHost, popped.size());
+        assertEquals(0, this.balancer.size());
+        assertNull(this.balancer.pop(false, this.cs));
+    }
+
+    @Test public void testRemovedUrlsAreNotPopped() throws IOException, RowSpaceExceededException {
+        pushAll();
+        // remove all urls of one host
+        final String removedHost = "192.168.7.1";
+        int removed = 0;
+        for (int u = 0; u < urlsPerHost; u++) {
+            final byte[] hash = new DigestURI("http://" + removedHost + "/page" + u + ".html").hash();
+            assertTrue(this.balancer.has(hash));
+            final HandleSet set = new HandleSet(hash.length, Base64Order.enhancedCoder, 1);
+            set.put(hash);
+            removed += this.balancer.remove(set);
+        }
+        assertEquals(urlsPerHost, removed);
+        Request request;
+        int count = 0;
+        while ((request = this.balancer.pop(false, this.cs)) != null) {
+            assertFalse(removedHost.equals(request.url().getHost()));
+            count++;
+        }
+        assertEquals((hosts - 1) * urlsPerHost, count);
+    }
+}
@@ -0,0 +1,84 @@
+package net.yacy.kelondro.index;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.yacy.kelondro.order.NaturalOrder;
+import net.yacy.kelondro.table.Table;
+
+import org.junit.Test;
+
+
+public class CacheTest {
+
+    private static final Row row = new Row("byte[] key-12, long c-8 {b256}", NaturalOrder.naturalOrder);
+    private static final int keys = 2000;
+    private static final int threads = 8;
+
+    private static Row.Entry entry(final byte[] key, final long value) {
+        final Row.Entry entry = row.newEntry();
+        entry.setCol(0, key);
+        entry.setCol(1, value);
+        return entry;
+    }
+
+    private static int trackedStripes(final String prefix) {
+        int c = 0;
+        final Iterator<Map.Entry<String, RAMIndex>> i = RAMIndex.objects();
+        while (i.hasNext()) if (i.next().getKey().startsWith(prefix)) c++;
+        return c;
+    }
+
+    @Test public void testConcurrentReaders() throws Exception {
+        final File file = File.createTempFile("CacheTest", ".table");
+        file.delete();
+        file.deleteOnExit();
+        final Cache cache = new Cache(new Table(file, row, 1024, 0, false, false, false), 0, 0);
+        try {
+            final Random r = new Random(0);
+            final byte[][] pool = new byte[keys][];
+            for (int i = 0; i < keys; i++) pool[i] = RowSet.randomHash(r);
+            // only the keys with an even index are stored
+            for (int i = 0; i < keys; i += 2) cache.put(entry(pool[i], i + 1)); // the table rejects rows with an empty tail
+
+            final AtomicInteger errors = new AtomicInteger(0);
+            final Thread[] t = new Thread[threads];
+            for (int j = 0; j < threads; j++) {
+                final int seed = j;
+                t[j] = new Thread() {
+                    @Override
+                    public void run() {
+                        final Random tr = new Random(seed);
+                        try {
+                            for (int n = 0; n < 20000; n++) {
+                                final int i = tr.nextInt(keys);
+                                final Row.Entry e = cache.get(pool[i], false);
+                                if ((i % 2 == 0) != (e != null)) errors.incrementAndGet();
+                                if (e != null && e.getColLong(1) != i + 1) errors.incrementAndGet();
+                                if (cache.has(pool[i]) != (i % 2 == 0)) errors.incrementAndGet();
+                            }
+                        } catch (final IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+                t[j].start();
+            }
+            for (final Thread thread: t) thread.join();
+            assertEquals(0, errors.get());
+            assertEquals(keys / 2, cache.size());
+        } finally {
+            cache.close();
+            file.delete();
+        }
+        // the hit and miss caches are released
+        assertEquals(0, trackedStripes(file.toString() + ".hit"));
+        assertEquals(0, trackedStripes(file.toString() + ".miss"));
+    }
+}
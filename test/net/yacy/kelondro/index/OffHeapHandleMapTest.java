@@ -0,0 +1,113 @@
+package net.yacy.kelondro.index;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import net.yacy.kelondro.order.NaturalOrder;
+
+import org.junit.Test;
+
+
+public class OffHeapHandleMapTest {
+
+    private static final int keys = 50000;
+    private static final int operations = 300000; // more than the delta of the OffHeapHandleMap can hold
+
+    private static byte[][] keyPool(final Random r) {
+        final byte[][] pool = new byte[keys][];
+        for (int i = 0; i < keys; i++) pool[i] = RowSet.randomHash(r);
+        return pool;
+    }
+
+    private static List<byte[]> list(final Iterator<byte[]> i) {
+        final List<byte[]> l = new ArrayList<byte[]>();
+        while (i.hasNext()) l.add(i.next());
+        return l;
+    }
+
+    private static void assertSameKeys(final List<byte[]> expected, final List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals(expected.get(i), actual.get(i));
+    }
+
+    @Test public void testAgainstRowHandleMap() throws RowSpaceExceededException {
+        final Random r = new Random(0);
+        final byte[][] pool = keyPool(r);
+        final HandleMap a = new OffHeapHandleMap(12, NaturalOrder.naturalOrder, 8, keys, "test");
+        final HandleMap b = new RowHandleMap(12, NaturalOrder.naturalOrder, 8, keys, "test");
+        byte[] key;
+        for (int i = 0; i < operations; i++) {
+            key = pool[r.nextInt(keys)];
+            switch (r.nextInt(4)) {
+                case 0:
+                    assertEquals(b.remove(key), a.remove(key));
+                    break;
+                case 1:
+                    assertEquals(b.get(key), a.get(key));
+                    break;
+                default:
+                    assertEquals(b.put(key, i), a.put(key, i));
+            }
+            // check the iteration also while entries are in the delta
+            if (i % 100000 == 50000) assertSameKeys(list(b.keys(true, null)), list(a.keys(true, null)));
+        }
+        assertEquals(b.size(), a.size());
+        for (final byte[] k: pool) assertEquals(b.get(k), a.get(k));
+        final List<byte[]> up = list(b.keys(true, null));
+        assertSameKeys(up, list(a.keys(true, null)));
+        final List<byte[]> down = new ArrayList<byte[]>(up);
+        Collections.reverse(down);
+        assertSameKeys(down, list(a.keys(false, null)));
+        assertSameKeys(b.top(100), a.top(100));
+        assertArrayEquals(up.get(0), a.smallestKey());
+        assertArrayEquals(down.get(0), a.largestKey());
+
+        // iterations that start at a key that exists and at a key that is missing
+        final byte[] missing = pool[0];
+        a.remove(missing);
+        b.remove(missing);
+        for (final byte[] first: new byte[][]{pool[1], missing}) {
+            assertSameKeys(list(b.keys(true, first)), list(a.keys(true, first)));
+            assertSameKeys(list(b.keys(false, first)), list(a.keys(false, first)));
+        }
+
+        // the rows of both maps are equal
+        final Iterator<Row.Entry> ia = a.rows(true, null), ib = b.rows(true, null);
+        while (ib.hasNext()) assertArrayEquals(ib.next().bytes(), ia.next().bytes());
+        assertFalse(ia.hasNext());
+
+        // iterations do not change the content
+        a.trim();
+        assertEquals(b.size(), a.size());
+        assertSameKeys(list(b.keys(true, null)), list(a.keys(true, null)));
+    }
+
+    @Test public void testRemoveOfDoubles() throws RowSpaceExceededException {
+        final Random r = new Random(1);
+        final byte[][] pool = keyPool(r);
+        final HandleMap a = new OffHeapHandleMap(12, NaturalOrder.naturalOrder, 8, keys, "test");
+        // write all keys into runs and then insert some of them again into the delta
+        for (int i = 0; i < keys; i++) a.putUnique(pool[i], i);
+        a.trim();
+        for (int i = 0; i < 10; i++) a.putUnique(pool[i], keys + i);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(a.remove(pool[i]) >= 0);
+            assertEquals(-1, a.get(pool[i]));
+            assertFalse(a.has(pool[i]));
+        }
+        assertEquals(keys - 10, list(a.keys(true, null)).size());
+
+        // doubles are reported and removed
+        for (int i = 10; i < 20; i++) a.putUnique(pool[i], keys + i);
+        final ArrayList<long[]> doubles = a.removeDoubles();
+        assertEquals(10, doubles.size());
+        for (final long[] d: doubles) assertEquals(2, d.length);
+        for (int i = 10; i < 20; i++) assertEquals(-1, a.get(pool[i]));
+        assertEquals(keys - 20, a.size());
+    }
+}
@@ -0,0 +1,101 @@
+package net.yacy.kelondro.index;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ScalableBloomFilterTest {
+
+    private static final int keys = 50000;
+    private static final double rate = 0.01d;
+
+    private static byte[][] keyPool(final Random r, final int count) {
+        final byte[][] pool = new byte[count][];
+        for (int i = 0; i < count; i++) pool[i] = RowSet.randomHash(r);
+        return pool;
+    }
+
+    private static int falsePositives(final ScalableBloomFilter filter, final byte[][] absent) {
+        int c = 0;
+        for (final byte[] key: absent) if (filter.mayContain(key)) c++;
+        return c;
+    }
+
+    @Test public void testGrowth() {
+        final Random r = new Random(0);
+        final byte[][] pool = keyPool(r, keys);
+        final ScalableBloomFilter filter = new ScalableBloomFilter(1024, rate);
+        assertEquals(1, filter.filters());
+        for (final byte[] key: pool) filter.add(key);
+
+        // the filter has grown and has no false negatives
+        assertTrue(filter.filters() > 1);
+        for (final byte[] key: pool) assertTrue(filter.mayContain(key));
+        assertEquals(keys, filter.positives());
+        // keys that are taken for false positives are not added again
+        assertTrue(filter.size() <= keys && filter.size() > keys * (1.0d - rate));
+
+        // the false positive rate stays below the given rate
+        final byte[][] absent = keyPool(r, keys);
+        assertTrue(filter.falsePositiveRate() <= rate);
+        assertTrue(falsePositives(filter, absent) < keys * rate);
+    }
+
+    @Test public void testDumpAndLoad() throws IOException {
+        final Random r = new Random(1);
+        final byte[][] pool = keyPool(r, keys);
+        final byte[][] absent = keyPool(r, 1000);
+        final ScalableBloomFilter filter = new ScalableBloomFilter(1024, rate);
+        for (final byte[] key: pool) filter.add(key);
+
+        final File file = File.createTempFile("ScalableBloomFilterTest", ".bloom");
+        try {
+            filter.dump(file);
+            final ScalableBloomFilter loaded = ScalableBloomFilter.load(file);
+            assertEquals(filter.filters(), loaded.filters());
+            assertEquals(filter.size(), loaded.size());
+            assertEquals(filter.mem(), loaded.mem());
+            for (final byte[] key: pool) assertTrue(loaded.mayContain(key));
+            for (final byte[] key: absent) assertEquals(filter.mayContain(key), loaded.mayContain(key));
+
+            // the loaded filter continues to grow like the original one
+            final byte[][] more = keyPool(r, keys);
+            for (final byte[] key: more) loaded.add(key);
+            for (final byte[] key: more) assertTrue(loaded.mayContain(key));
+            assertTrue(loaded.filters() > filter.filters());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class) public void testLoadOfOtherFile() throws IOException {
+        final File file = File.createTempFile("ScalableBloomFilterTest", ".bloom");
+        try {
+            final FileOutputStream os = new FileOutputStream(file);
+            os.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            os.close();
+            ScalableBloomFilter.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test public void testClear() {
+        final Random r = new Random(2);
+        final byte[][] pool = keyPool(r, keys);
+        final ScalableBloomFilter filter = new ScalableBloomFilter(1024, rate);
+        for (final byte[] key: pool) filter.add(key);
+        filter.clear();
+        assertEquals(1, filter.filters());
+        assertEquals(0, filter.size());
+        assertTrue(falsePositives(filter, pool) < keys * rate);
+        filter.add(pool[0]);
+        assertTrue(filter.mayContain(pool[0]));
+    }
+}
@@ -0,0 +1,88 @@
+package net.yacy.kelondro.rwi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import net.yacy.kelondro.data.word.WordReferenceRow;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+
+import org.junit.Test;
+
+
+public class ReferenceContainerCodecTest {
+
+    private static final Row rowdef = WordReferenceRow.urlEntryRow;
+
+    static RowSet randomReferences(final int count, final Random r) throws RowSpaceExceededException {
+        final int today = (int) (System.currentTimeMillis() / 86400000L);
+        final RowSet set = new RowSet(rowdef, count);
+        for (int i = 0; i < count; i++) {
+            final Row.Entry entry = rowdef.newEntry();
+            entry.setCol(0, RowSet.randomHash(r));
+            entry.setCol(1, today - r.nextInt(1000));
+            entry.setCol(2, today + 30);
+            entry.setCol(3, r.nextInt(8));
+            entry.setCol(4, r.nextInt(3000));
+            entry.setCol(5, r.nextInt(300));
+            entry.setCol(6, new byte[]{(byte) 't'});
+            entry.setCol(7, "en");
+            entry.setCol(8, r.nextInt(40));
+            entry.setCol(9, r.nextInt(40));
+            entry.setCol(10, 20 + r.nextInt(60));
+            entry.setCol(11, r.nextInt(8));
+            entry.setCol(12, new byte[]{0});
+            entry.setCol(13, new byte[]{(byte) r.nextInt(4), 0, 0, 0});
+            entry.setCol(14, 1 + r.nextInt(5));
+            entry.setCol(15, r.nextInt(2000));
+            entry.setCol(16, r.nextInt(10));
+            entry.setCol(17, r.nextInt(100));
+            entry.setCol(18, 0);
+            entry.setCol(19, 0);
+            set.put(entry);
+        }
+        set.sort();
+        return set;
+    }
+
+    private static void assertRoundTrip(final int count, final Random r) throws RowSpaceExceededException, IOException {
+        final RowSet set = randomReferences(count, r);
+        final byte[] plain = set.exportCollection();
+        final byte[] compressed = ReferenceContainerCodec.compress(plain, rowdef);
+        assertEquals(count, ReferenceContainerCodec.count(compressed));
+        final RowSet restored = ReferenceContainerCodec.importRowSet(compressed, rowdef);
+        assertEquals(count, restored.size());
+        for (int i = 0; i < count; i++) assertArrayEquals(set.get(i, false).bytes(), restored.get(i, false).bytes());
+    }
+
+    @Test public void testRoundTrip() throws RowSpaceExceededException, IOException {
+        final Random r = new Random(0);
+        assertRoundTrip(0, r);
+        assertRoundTrip(1, r);
+        assertRoundTrip(2, r);
+        assertRoundTrip(10000, r);
+    }
+
+    @Test public void testCompression() throws RowSpaceExceededException {
+        final byte[] plain = randomReferences(10000, new Random(1)).exportCollection();
+        final byte[] compressed = ReferenceContainerCodec.compress(plain, rowdef);
+        assertTrue(ReferenceContainerCodec.isCompressed(compressed));
+        assertTrue(compressed.length < plain.length);
+    }
+
+    @Test public void testCorruptedContainer() throws RowSpaceExceededException {
+        final byte[] compressed = ReferenceContainerCodec.compress(randomReferences(1000, new Random(2)).exportCollection(), rowdef);
+        assertTrue(ReferenceContainerCodec.isCompressed(compressed));
+        final byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            ReferenceContainerCodec.uncompress(truncated, rowdef);
+            fail("a truncated container must not be imported");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+}
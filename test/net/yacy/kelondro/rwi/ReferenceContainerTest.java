@@ -0,0 +1,80 @@
+package net.yacy.kelondro.rwi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.yacy.kelondro.data.word.WordReference;
+import net.yacy.kelondro.data.word.WordReferenceFactory;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+
+import org.junit.Test;
+
+
+public class ReferenceContainerTest {
+
+    private static final WordReferenceFactory factory = new WordReferenceFactory();
+    private static final int keys = 30000;
+
+    private static byte[][] keyPool(final Random r) {
+        final byte[][] pool = new byte[keys][];
+        for (int i = 0; i < keys; i++) pool[i] = RowSet.randomHash(r);
+        return pool;
+    }
+
+    /**
+     * create a container with the keys of the pool that have an index which is a multiple of the modulus
+     */
+    private static ReferenceContainer<WordReference> container(final byte[][] pool, final int modulus, final Random r) throws RowSpaceExceededException {
+        final RowSet random = ReferenceContainerCodecTest.randomReferences((keys + modulus - 1) / modulus, r);
+        final ReferenceContainer<WordReference> c = new ReferenceContainer<WordReference>(factory, null, random.size());
+        for (int i = 0; i < random.size(); i++) {
+            final Row.Entry entry = random.get(i, true);
+            entry.setCol(0, pool[i * modulus]);
+            c.put(entry);
+        }
+        c.sort();
+        return c;
+    }
+
+    private static void assertJoin(final byte[][] pool, final int modulus, final ReferenceContainer<WordReference> joined) {
+        final TreeSet<byte[]> expected = new TreeSet<byte[]>(factory.getRow().objectOrder);
+        for (int i = 0; i < keys; i += modulus) expected.add(pool[i]);
+        assertNotNull(joined);
+        assertEquals(expected.size(), joined.size());
+        joined.sort();
+        final Iterator<WordReference> i = joined.entries();
+        for (final byte[] key: expected) assertArrayEquals(key, i.next().urlhash());
+    }
+
+    @Test public void testJoinContainers() throws RowSpaceExceededException {
+        final Random r = new Random(0);
+        final byte[][] pool = keyPool(r);
+        final List<ReferenceContainer<WordReference>> containers = new ArrayList<ReferenceContainer<WordReference>>();
+        containers.add(container(pool, 2, r));
+        containers.add(container(pool, 97, r)); // the smallest container is not the first
+        containers.add(container(pool, 3, r));
+        assertJoin(pool, 2 * 3 * 97, ReferenceContainer.joinContainers(factory, containers, Integer.MAX_VALUE));
+    }
+
+    @Test public void testJoinConstructive() throws RowSpaceExceededException {
+        final Random r = new Random(1);
+        final byte[][] pool = keyPool(r);
+        final ReferenceContainer<WordReference> a = container(pool, 5, r);
+        final ReferenceContainer<WordReference> b = container(pool, 7, r);
+        assertJoin(pool, 35, ReferenceContainer.joinConstructive(factory, a, b, Integer.MAX_VALUE));
+        assertJoin(pool, 35, ReferenceContainer.joinConstructive(factory, b, a, Integer.MAX_VALUE));
+        // containers without a common key
+        final ReferenceContainer<WordReference> c = container(pool, 1, r);
+        c.delete(pool[0]);
+        final ReferenceContainer<WordReference> d = new ReferenceContainer<WordReference>(factory, null, 1);
+        d.put(container(pool, keys, r).get(0, true));
+        assertTrue(ReferenceContainer.joinConstructive(factory, c, d, Integer.MAX_VALUE).isEmpty());
+    }
+}
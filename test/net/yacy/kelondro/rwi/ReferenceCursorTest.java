@@ -0,0 +1,89 @@
+package net.yacy.kelondro.rwi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import net.yacy.kelondro.data.word.WordReference;
+import net.yacy.kelondro.data.word.WordReferenceFactory;
+import net.yacy.kelondro.data.word.WordReferenceRow;
+import net.yacy.kelondro.index.HandleSet;
+import net.yacy.kelondro.index.Row;
+import net.yacy.kelondro.index.RowSet;
+import net.yacy.kelondro.index.RowSpaceExceededException;
+
+import org.junit.Test;
+
+
+public class ReferenceCursorTest {
+
+    private static final Row rowdef = WordReferenceRow.urlEntryRow;
+    private static final byte[] termHash = "AAAAAAAAAAAA".getBytes();
+
+    @Test public void testMerge() throws RowSpaceExceededException, IOException {
+        final Random r = new Random(0);
+        // three sources; the second and the third source repeat some url hashes of the first source with other values
+        final RowSet s0 = ReferenceContainerCodecTest.randomReferences(1000, r);
+        final RowSet s1 = ReferenceContainerCodecTest.randomReferences(500, r);
+        final RowSet s2 = ReferenceContainerCodecTest.randomReferences(300, r);
+        for (int i = 0; i < 100; i++) {
+            final Row.Entry e = s1.get(i, true);
+            e.setCol(0, s0.get(i * 10, false).getPrimaryKeyBytes());
+            e.setCol(4, 9999);
+            s1.put(e);
+            final Row.Entry f = s2.get(i, true);
+            f.setCol(0, s0.get(i * 10 + 5, false).getPrimaryKeyBytes());
+            f.setCol(4, 9999);
+            s2.put(f);
+        }
+        s1.sort();
+        s2.sort();
+
+        // the expected result: the first source wins, the excluded url hashes are missing
+        final HandleSet exclude = new HandleSet(rowdef.primaryKeyLength, rowdef.objectOrder, 10);
+        final TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(rowdef.objectOrder);
+        for (final RowSet s: new RowSet[]{s2, s1, s0}) {
+            for (int i = 0; i < s.size(); i++) expected.put(s.get(i, false).getPrimaryKeyBytes(), s.get(i, false).bytes());
+        }
+        for (int i = 0; i < 10; i++) {
+            final byte[] key = s1.get(i * 7, false).getPrimaryKeyBytes();
+            exclude.put(key);
+            expected.remove(key);
+        }
+
+        final List<byte[]> sources = new ArrayList<byte[]>();
+        sources.add(s0.exportCollection());
+        sources.add(ReferenceContainerCodec.compress(s1.exportCollection(), rowdef));
+        sources.add(s2.exportCollection());
+        final ReferenceCursor<WordReference> cursor = new ReferenceCursor<WordReference>(new WordReferenceFactory(), termHash, sources, exclude);
+        assertEquals(s0.size() + s1.size() + s2.size(), cursor.count());
+        for (final byte[] row: expected.values()) {
+            assertTrue(cursor.hasNext());
+            assertArrayEquals(row, cursor.next().bytes());
+        }
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test public void testCollectLimit() throws RowSpaceExceededException, IOException {
+        final Random r = new Random(1);
+        final RowSet s0 = ReferenceContainerCodecTest.randomReferences(200, r);
+        final RowSet s1 = ReferenceContainerCodecTest.randomReferences(200, r);
+        final List<byte[]> sources = new ArrayList<byte[]>();
+        sources.add(s0.exportCollection());
+        sources.add(s1.exportCollection());
+        final ReferenceCursor<WordReference> cursor = new ReferenceCursor<WordReference>(new WordReferenceFactory(), termHash, sources, null);
+        final ReferenceContainer<WordReference> c = cursor.collect(100);
+        assertEquals(100, c.size());
+        assertTrue(cursor.hasNext());
+        // the collected references are the ones with the smallest url hashes
+        final RowSet all = new RowSet(rowdef, 400);
+        all.addAllUnique(s0);
+        all.addAllUnique(s1);
+        all.sort();
+        for (int i = 0; i < 100; i++) assertArrayEquals(all.get(i, false).getPrimaryKeyBytes(), c.get(i, false).getPrimaryKeyBytes());
+    }
+}
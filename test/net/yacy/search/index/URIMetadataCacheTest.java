@@ -0,0 +1,90 @@
+package net.yacy.search.index;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.Date;
+
+import net.yacy.cora.document.UTF8;
+import net.yacy.kelondro.data.meta.DigestURI;
+import net.yacy.kelondro.data.meta.URIMetadataRow;
+import net.yacy.kelondro.order.Bitfield;
+
+import org.junit.Test;
+
+
+public class URIMetadataCacheTest {
+
+    /**
+     * create a row like it is loaded from the index: the metadata is not decoded yet
+     */
+    private static URIMetadataRow row(final String path) throws MalformedURLException {
+        final DigestURI url = new DigestURI("http", "www.yacy.net", 80, path);
+        final URIMetadataRow row = new URIMetadataRow(url, "YaCy Homepage", "", "", "", 0.0f, 0.0f, new Date(), new Date(), new Date(), "", new byte[] {}, 123, 42, '?', new Bitfield(), UTF8.getBytes("de"), 0, 0, 0, 0, 0, 0);
+        return new URIMetadataRow(row.toRowEntry(), null, 0);
+    }
+
+    @Test public void testPutAndGet() throws MalformedURLException {
+        final URIMetadataCache cache = new URIMetadataCache(1024 * 1024, 4);
+        final int owner = cache.newOwner();
+        final URIMetadataRow row = row("/");
+        final byte[] missing = row("/missing").hash();
+        assertNull(cache.get(owner, row.hash()));
+        assertTrue(cache.put(owner, row.hash(), row, cache.generation(owner, row.hash())));
+        assertTrue(cache.put(owner, missing, null, cache.generation(owner, missing)));
+        assertSame(row, cache.get(owner, row.hash()));
+        assertSame(URIMetadataCache.MISSING, cache.get(owner, missing));
+        // another owner does not see the rows
+        assertNull(cache.get(cache.newOwner(), row.hash()));
+        cache.remove(owner, row.hash());
+        assertNull(cache.get(owner, row.hash()));
+        cache.clear(owner);
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testGenerationCheck() throws MalformedURLException {
+        final URIMetadataCache cache = new URIMetadataCache(1024 * 1024, 4);
+        final int owner = cache.newOwner();
+        final byte[] hash = row("/").hash();
+        // a reader finds no row in the index, then a writer stores the row and removes it from the cache
+        final long generation = cache.generation(owner, hash);
+        cache.remove(owner, hash);
+        // the reader must not cache the url as missing
+        assertFalse(cache.put(owner, hash, null, generation));
+        assertNull(cache.get(owner, hash));
+        // the same happens if the repository is cleared while the row is loaded
+        final long generation1 = cache.generation(owner, hash);
+        cache.clear(owner);
+        assertFalse(cache.put(owner, hash, null, generation1));
+        assertTrue(cache.put(owner, hash, null, cache.generation(owner, hash)));
+    }
+
+    @Test public void testDecodedMetadataIsShared() throws MalformedURLException {
+        final URIMetadataCache cache = new URIMetadataCache(1024 * 1024, 4);
+        final int owner = cache.newOwner();
+        final URIMetadataRow row = row("/");
+        cache.put(owner, row.hash(), row, cache.generation(owner, row.hash()));
+        final URIMetadataRow cached = cache.get(owner, row.hash());
+        final URIMetadataRow result = new URIMetadataRow(cached, null, 42);
+        assertSame(cached.metadata(), result.metadata());
+        assertEquals("http://www.yacy.net/", result.metadata().url().toNormalform(false, false));
+        assertEquals(42, result.ranking());
+    }
+
+    @Test public void testMemoryLimit() throws MalformedURLException {
+        final URIMetadataCache cache = new URIMetadataCache(1024 * 1024, 1);
+        final int owner = cache.newOwner();
+        for (int i = 0; i < 100; i++) {
+            final URIMetadataRow row = row("/" + i);
+            cache.put(owner, row.hash(), row, cache.generation(owner, row.hash()));
+        }
+        assertEquals(100, cache.size());
+        final long limit = cache.bytes() / 2;
+        cache.setMaxBytes(limit);
+        assertTrue(cache.size() < 100);
+        assertTrue(cache.bytes() <= limit);
+        // the most recently used rows are kept
+        assertNotNull(cache.get(owner, row("/99").hash()));
+        assertNull(cache.get(owner, row("/0").hash()));
+    }
+}